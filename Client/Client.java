@@ -1,9 +1,27 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // PLEASE ADJUST PORT NUMBER HERE AS NEEDED
 // MAKE SURE SERVER MATCHES THIS PORT
@@ -12,96 +30,1147 @@ class Port {
 }
 
 public class Client {
-    private final int BUFFER_SIZE = 4096;
     private Socket connection;
     private DataInputStream socketIn;
     private DataOutputStream socketOut;
-    private int bytes;
-    private byte[] buffer = new byte[BUFFER_SIZE];
+    // Heap scratch for decompressed bodies, which arrive through a stream. Allocated on first use.
+    private byte[] decodeBuffer;
     private File fileToWrite;
     private static String filename = "";
     private static ClientMode clientMode = ClientMode.read;
     private static long startByteIndex = -1;
     private static long endByteIndex = -1;
     private static String serverName = "";
+    private static int parallelConnections = 1;
+    // Encoding to ask the server for with -z, or null for plain bytes
+    private static String compression = null;
+    // With -mux every connection is a stream of one shared connection to the server
+    private static boolean multiplex = false;
+    private static Multiplexer multiplexer;
+    // With -cluster a transfer goes straight to a node owning the file
+    private static boolean cluster = false;
+    private static BenchOptions benchOptions;
+    // Printed when the Server answers ErrServerBusy because it is serving MAX_CONNECTIONS clients
+    private static final String SERVER_BUSY_MESSAGE = "** Server is busy. Try again later.";
 
     public Client() {
     }
 
     public void start(String host, int port, String filename) {
         try {
-            if (clientMode == ClientMode.write) {
+            boolean wholeFile = startByteIndex < 0 && endByteIndex < 0;
+
+            // Whole-file transfers go through the resumable paths. Byte ranges keep the
+            // original single-stream protocol.
+            if (clientMode == ClientMode.sync) {
+                processSync(host, port, parallelConnections);
+            } else if (clientMode == ClientMode.dedup) {
+                processDedupUpload(host, port, filename);
+            } else if (clientMode == ClientMode.write && wholeFile) {
+                processParallelUpload(host, port, filename, parallelConnections);
+            } else if (clientMode == ClientMode.write) {
                 processUpload(host, port, filename);
+            } else if (parallelConnections > 1) {
+                processParallelDownload(host, port, filename, parallelConnections);
+            } else if (wholeFile && new File("Files/" + filename).isFile()
+                    && !new File("Files/" + filename + ".part").exists()) {
+                processDeltaDownload(host, port, filename);
+            } else if (wholeFile) {
+                processResumableDownload(host, port, filename);
             } else {
                 processDownload(host, port, filename);
             }
 
-            if (connection != null) {
+            if (connection != null) {
+                connection.close();
+            }
+
+        } catch (Exception ex) {
+            System.out.println("Error: " + ex.getLocalizedMessage());
+        }
+    }
+
+    private void establishConnection(String host, int port) throws UnknownHostException, IOException {
+        try {
+            Multiplexer shared = multiplexer(host, port);
+
+            if (shared != null) {
+                connection = shared.openSocket();
+            } else {
+                // Channel-backed so transfer loops can move bytes without going through the heap
+                connection = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            }
+
+            socketIn = new DataInputStream(connection.getInputStream()); // Read data from server
+            socketOut = new DataOutputStream(connection.getOutputStream());
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getLocalizedMessage());
+        }
+    }
+
+    // The shared connection for -mux, opened on first use. Null without -mux, or when the server
+    // does not support multiplexing, after which every transfer opens its own connection.
+    static synchronized Multiplexer multiplexer(String host, int port) throws IOException {
+        if (multiplexer == null && multiplex) {
+            Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            socket.setTcpNoDelay(true); // Frames are written whole
+            multiplexer = Multiplexer.connect(socket);
+
+            if (multiplexer == null) {
+                socket.close();
+                multiplex = false;
+                System.out.println("** Server does not support multiplexing. Using one connection per transfer.");
+            }
+        }
+
+        return multiplexer;
+    }
+
+    static synchronized void closeMultiplexer() {
+        if (multiplexer != null) {
+            multiplexer.close();
+            multiplexer = null;
+        }
+    }
+
+    // With -cluster: host:port of the first owner of filename that answers, going by the
+    // cluster map of the given node. The given node when it is not part of a cluster, or when
+    // no owner can be reached.
+    static String routeToOwner(String host, int port, String filename) {
+        try {
+            ClusterRing ring = clusterMap(host, port);
+
+            if (ring == null) {
+                System.out.println("** Server is not part of a cluster. Sending every request to it.");
+                return host + ":" + port;
+            }
+
+            for (String node : ring.owners(filename)) {
+                try {
+                    clusterMap(ClusterRing.host(node), ClusterRing.port(node));
+                    return node;
+                } catch (IOException e) {
+                    System.out.println("** Owner " + node + " of " + filename + " cannot be reached.");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getLocalizedMessage());
+        }
+
+        return host + ":" + port;
+    }
+
+    // The node list and replica count a cluster node reports, or null from a Server that is
+    // not part of a cluster
+    static ClusterRing clusterMap(String host, int port) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), 2000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("6m\n"); // Set client in list mode, asking for the cluster map
+            out.writeUTF("");
+
+            if (in.readUTF().compareTo("OkClusterMap") != 0) {
+                return null;
+            }
+
+            return ClusterRing.read(in);
+        }
+    }
+
+    // Read mode line, with the -z letter appended when compression was asked for
+    private static String readModeLine() {
+        return compression == null ? "0\n" : "0" + Compression.flagFor(compression) + "\n";
+    }
+
+    // Once the range is settled a server asked to compress names the encoding it used,
+    // which may be identity for files that are already compressed
+    private InputStream openBody() throws IOException {
+        if (compression == null) {
+            return socketIn;
+        }
+
+        return Compression.decoder(socketIn.readUTF(), socketIn);
+    }
+
+    public void processDownload(String host, int port, String filename) {
+        try {
+            establishConnection(host, port);
+
+            socketOut.writeUTF(readModeLine()); // Set client in read mode
+            socketOut.writeUTF(filename); // Write filename to server
+
+            String fileExistFlag = socketIn.readUTF();
+
+            if (fileExistFlag.compareTo("ErrServerBusy") == 0) {
+                System.out.println(SERVER_BUSY_MESSAGE);
+                return;
+            }
+
+            if (fileExistFlag.compareTo("ErrFileDoesNotExist") == 0) {
+                System.out.println("** File with name: " + filename + " does not exist in server.");
+                return;
+            }
+
+            fileToWrite = new File("Files/" + filename);
+
+            long skipItems = startByteIndex < 0 ? 0 : startByteIndex - 1;
+
+            socketOut.writeLong(skipItems);
+            socketOut.writeLong(endByteIndex);
+
+            if (endByteIndex > 0) {
+                String byteIndexDownloadSignal = socketIn.readUTF();
+
+                if (byteIndexDownloadSignal.compareTo("ErrInvalidByteRange") == 0) {
+                    System.out.println("** Invalid byte range specified");
+                    return;
+                }
+            }
+
+            InputStream body = openBody();
+
+            // Read file contents from server
+            try (FileChannel fileChannel = FileChannel.open(fileToWrite.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                receiveToFile(body, fileChannel, 0, -1);
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
+        }
+    }
+
+    // Downloads into Files/<filename>.part and renames it once the whole file has arrived and
+    // matches the server's SHA-256. The server file's size, mtime and hash are kept in
+    // <filename>.part.meta. If a .part file is left from an interrupted run of the same version
+    // only the missing tail is requested, otherwise the download starts over.
+    public void processResumableDownload(String host, int port, String filename) {
+        try {
+            ManifestEntry info = new Client().requestFileInfo(host, port, filename);
+
+            if (info == null) {
+                System.out.println("** File with name: " + filename + " does not exist in server.");
+                return;
+            }
+
+            long fileSize = info.size;
+            File partialFile = new File("Files/" + filename + ".part");
+            File versionFile = new File("Files/" + filename + ".part.meta");
+            fileToWrite = new File("Files/" + filename);
+            long skipItems = partialFile.exists() && isSameVersion(versionFile, info) ? partialFile.length() : 0;
+
+            if (skipItems > fileSize) {
+                skipItems = 0; // The server file shrank, start over
+            }
+
+            if (skipItems == 0) {
+                Files.deleteIfExists(partialFile.toPath());
+                saveVersion(versionFile, info);
+            }
+
+            if (skipItems > 0) {
+                System.out.println("Resuming " + filename + " from byte " + skipItems + " of " + fileSize);
+            }
+
+            if (skipItems < fileSize) {
+                establishConnection(host, port);
+
+                socketOut.writeUTF(readModeLine()); // Set client in read mode
+                socketOut.writeUTF(filename); // Write filename to server
+
+                String fileExistFlag = socketIn.readUTF();
+
+                if (fileExistFlag.compareTo("ErrServerBusy") == 0) {
+                    System.out.println(SERVER_BUSY_MESSAGE);
+                    return;
+                }
+
+                if (fileExistFlag.compareTo("ErrFileDoesNotExist") == 0) {
+                    System.out.println("** File with name: " + filename + " does not exist in server.");
+                    return;
+                }
+
+                // An end index of -1 asks for everything after skipItems
+                socketOut.writeLong(skipItems);
+                socketOut.writeLong(-1);
+
+                InputStream body = openBody();
+
+                try (FileChannel fileChannel = skipItems > 0
+                        ? FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE)
+                        : FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                    // Read file contents from server
+                    receiveToFile(body, fileChannel, skipItems, -1);
+                }
+            } else if (!partialFile.exists()) {
+                partialFile.createNewFile(); // Empty file
+            }
+
+            if (partialFile.length() == fileSize) {
+                if (info.hash != null && !sha256(partialFile).equalsIgnoreCase(info.hash)) {
+                    Files.deleteIfExists(partialFile.toPath());
+                    Files.deleteIfExists(versionFile.toPath());
+                    System.out.println("** Downloaded " + filename + " does not match the Server's SHA-256."
+                            + " Run the same command again to download it again.");
+                    return;
+                }
+
+                Files.move(partialFile.toPath(), fileToWrite.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(versionFile.toPath());
+            } else {
+                System.out.println("** Download interrupted after " + partialFile.length() + " of " + fileSize
+                        + " bytes. Run the same command again to resume.");
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
+            System.out.println("   Run the same command again to resume.");
+        }
+    }
+
+    // Updates an existing local copy by fetching only what changed. The Server picks a block
+    // size, the Client sends a weak and a strong checksum of each block of its copy, and the
+    // Server replies with instructions to copy blocks of that copy or insert literal bytes.
+    // The result is checked against the Server's SHA-256 and replaced by a full download if
+    // it does not match.
+    public void processDeltaDownload(String host, int port, String filename) {
+        File oldFile = new File("Files/" + filename);
+        File deltaFile = new File("Files/" + filename + ".delta");
+
+        try {
+            establishConnection(host, port);
+
+            socketOut.writeUTF("8\n"); // Set client in delta read mode
+            socketOut.writeUTF(filename);
+
+            String deltaSignal = socketIn.readUTF();
+
+            if (deltaSignal.compareTo("ErrServerBusy") == 0) {
+                System.out.println(SERVER_BUSY_MESSAGE);
+                return;
+            }
+
+            if (deltaSignal.compareTo("ErrFileDoesNotExist") == 0) {
+                System.out.println("** File with name: " + filename + " does not exist in server.");
+                return;
+            }
+
+            if (deltaSignal.compareTo("OkToRead") != 0) {
+                connection.close();
+                processResumableDownload(host, port, filename);
+                return;
+            }
+
+            long fileSize = socketIn.readLong();
+            int blockSize = socketIn.readInt();
+            long blockCount = oldFile.length() / blockSize;
+            byte[] block = new byte[blockSize];
+
+            DataOutputStream signatureOut = new DataOutputStream(new BufferedOutputStream(socketOut, 64 * 1024));
+            signatureOut.writeInt((int) blockCount);
+
+            try (DataInputStream oldIn = new DataInputStream(new BufferedInputStream(new FileInputStream(oldFile)))) {
+                for (long i = 0; i < blockCount; i++) {
+                    oldIn.readFully(block);
+                    signatureOut.writeInt(RollingChecksum.of(block, 0, blockSize));
+                    signatureOut.write(RollingChecksum.strong(block, 0, blockSize));
+                }
+            }
+
+            signatureOut.flush();
+
+            DataInputStream deltaIn = new DataInputStream(new BufferedInputStream(socketIn, 64 * 1024));
+            String expectedHash = null;
+            long reusedBytes = 0;
+            long receivedBytes = 0;
+
+            try (RandomAccessFile oldCopy = new RandomAccessFile(oldFile, "r");
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(deltaFile), 64 * 1024)) {
+                while (expectedHash == null) {
+                    int instruction = deltaIn.readByte();
+
+                    if (instruction == 'C') {
+                        long firstBlock = deltaIn.readInt();
+                        int count = deltaIn.readInt();
+                        oldCopy.seek(firstBlock * blockSize);
+
+                        for (int i = 0; i < count; i++) {
+                            oldCopy.readFully(block);
+                            os.write(block);
+                        }
+
+                        reusedBytes += (long) count * blockSize;
+                    } else if (instruction == 'L') {
+                        byte[] literal = new byte[deltaIn.readInt()];
+                        deltaIn.readFully(literal);
+                        os.write(literal);
+                        receivedBytes += literal.length;
+                    } else if (instruction == 'E') {
+                        expectedHash = deltaIn.readUTF();
+                    } else {
+                        throw new IOException("Unknown delta instruction " + instruction);
+                    }
+                }
+            }
+
+            connection.close();
+
+            if (deltaFile.length() != fileSize || !sha256(deltaFile).equals(expectedHash)) {
+                System.out.println("** Rebuilt " + filename + " does not match the Server's copy. Downloading whole file.");
+                deltaFile.delete();
+                processResumableDownload(host, port, filename);
+                return;
+            }
+
+            Files.move(deltaFile.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Updated " + filename + ": reused " + reusedBytes + " bytes, received " + receivedBytes
+                    + " bytes");
+        } catch (Exception e) {
+            deltaFile.delete();
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
+        }
+    }
+
+    // Learns the file size, splits it into one range per connection and fetches the ranges
+    // concurrently. Each segment is written at its own offset so they can land in any order.
+    // The segments go to Files/<filename>.part, which replaces the local copy only once every
+    // segment has arrived. A failed download removes it, since its holes cannot be resumed.
+    public void processParallelDownload(String host, int port, String filename, int connections) {
+        File partialFile = null; // Set once it is ours to remove
+        boolean complete = false;
+
+        try {
+            long fileSize = new Client().requestFileSize(host, port, filename);
+
+            if (fileSize < 0) {
+                System.out.println("** File with name: " + filename + " does not exist in server.");
+                return;
+            }
+
+            int segments = (int) Math.max(1, Math.min(connections, fileSize));
+            long segmentSize = (fileSize + segments - 1) / segments;
+            ExecutorService executorService = Executors.newFixedThreadPool(segments);
+            // A resumable download must not take the segments for a prefix of the file
+            Files.deleteIfExists(Paths.get("Files/" + filename + ".part.meta"));
+            partialFile = new File("Files/" + filename + ".part");
+
+            try (FileChannel fileChannel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                List<Future<Long>> results = new ArrayList<>();
+
+                for (long start = 0; start < fileSize; start += segmentSize) {
+                    long segmentStart = start;
+                    long segmentEnd = Math.min(fileSize, start + segmentSize);
+                    results.add(executorService.submit(
+                            () -> new Client().downloadSegment(host, port, filename, segmentStart, segmentEnd, fileChannel)));
+                }
+
+                long totalBytesTransferred = 0;
+
+                for (Future<Long> result : results) {
+                    totalBytesTransferred += result.get();
+                }
+
+                if (totalBytesTransferred != fileSize) {
+                    System.out.println("** Download incomplete. Received " + totalBytesTransferred + " of " + fileSize
+                            + " bytes");
+                    return;
+                }
+            } finally {
+                executorService.shutdown();
+            }
+
+            Files.move(partialFile.toPath(), Paths.get("Files/" + filename), StandardCopyOption.REPLACE_EXISTING);
+            complete = true;
+        } catch (ExecutionException e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e.getCause());
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
+        } finally {
+            if (partialFile != null && !complete) {
+                partialFile.delete();
+            }
+        }
+    }
+
+    // Whether a .part file was downloaded from the version of the file the server has now.
+    // Never when the server could not name its version.
+    private static boolean isSameVersion(File versionFile, ManifestEntry info) {
+        if (info.hash == null) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(versionFile))) {
+            return in.readLong() == info.size && in.readLong() == info.lastModified
+                    && in.readUTF().equalsIgnoreCase(info.hash);
+        } catch (IOException e) {
+            return false; // No version saved, e.g. a .part from before versions were kept
+        }
+    }
+
+    private static void saveVersion(File versionFile, ManifestEntry info) throws IOException {
+        if (info.hash == null) {
+            Files.deleteIfExists(versionFile.toPath());
+            return;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(versionFile))) {
+            out.writeLong(info.size);
+            out.writeLong(info.lastModified);
+            out.writeUTF(info.hash);
+        }
+    }
+
+    // Asks the server for the size, mtime and SHA-256 of filename. Returns null if the file does
+    // not exist. Servers that only report the size, such as older ones, give lastModified 0 and
+    // a null hash.
+    public ManifestEntry requestFileInfo(String host, int port, String filename) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF("2i\n"); // Set client in size mode, asking for the version too
+            socketOut.writeUTF(filename);
+            String sizeSignal = socketIn.readUTF();
+
+            if (sizeSignal.compareTo("ErrServerBusy") == 0) {
+                throw new IOException("Server is busy");
+            }
+
+            if (sizeSignal.compareTo("ErrFileDoesNotExist") == 0) {
+                return null;
+            }
+
+            if (sizeSignal.compareTo("OkFileInfo") == 0) {
+                return new ManifestEntry(filename, socketIn.readLong(), socketIn.readLong(), socketIn.readUTF());
+            }
+
+            return new ManifestEntry(filename, socketIn.readLong(), 0, null);
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Asks the server for the size of filename. Returns -1 if the file does not exist.
+    public long requestFileSize(String host, int port, String filename) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF("2\n"); // Set client in size mode
+            socketOut.writeUTF(filename);
+            String sizeSignal = socketIn.readUTF();
+
+            if (sizeSignal.compareTo("ErrServerBusy") == 0) {
+                throw new IOException("Server is busy");
+            }
+
+            if (sizeSignal.compareTo("ErrFileDoesNotExist") == 0) {
+                return -1;
+            }
+
+            return socketIn.readLong();
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Downloads bytes [start, end) over its own connection and writes them at the same offset
+    private long downloadSegment(String host, int port, String filename, long start, long end,
+            FileChannel fileChannel) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF(readModeLine());
+            socketOut.writeUTF(filename);
+            String fileExistFlag = socketIn.readUTF();
+
+            if (fileExistFlag.compareTo("ErrServerBusy") == 0) {
+                throw new IOException("Server is busy");
+            }
+
+            if (fileExistFlag.compareTo("ErrFileDoesNotExist") == 0) {
+                throw new IOException("File with name: " + filename + " does not exist in server.");
+            }
+
+            socketOut.writeLong(start);
+            socketOut.writeLong(end);
+
+            if (socketIn.readUTF().compareTo("ErrInvalidByteRange") == 0) {
+                throw new IOException("Invalid byte range " + start + "-" + end);
+            }
+
+            return receiveToFile(openBody(), fileChannel, start, end - start);
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Opens an upload session for the whole file, then sends one chunk per connection in
+    // parallel. The server assembles the chunks and publishes the file once all have arrived.
+    public void processParallelUpload(String host, int port, String filename, int connections) {
+        try {
+            File fileToUpload = new File("Files/" + filename);
+
+            if (!fileToUpload.exists()) {
+                System.out.println("** File with name: " + filename + " does not exist.");
+                System.out.println("   Please ensure file is in Files/ directory of Client");
+                return;
+            }
+
+            long fileSize = fileToUpload.length();
+            // The Server checks the finished file against this before publishing it
+            String fileHash = sha256(fileToUpload);
+
+            if (!isUploadAccepted(new Client().openUpload(host, port, filename, fileSize, fileHash))) {
+                return;
+            }
+
+            // The session may already hold part of the file from an interrupted upload
+            List<long[]> missing = new Client().requestMissingRanges(host, port, filename);
+
+            if (missing == null) {
+                // The session was dropped since it was opened, e.g. by a Server restart that
+                // lost Uploads/. It is opened once more before giving up.
+                System.out.println("** Server has no upload session for " + filename + ". Starting the upload over.");
+
+                if (!isUploadAccepted(new Client().openUpload(host, port, filename, fileSize, fileHash))) {
+                    return;
+                }
+
+                missing = new Client().requestMissingRanges(host, port, filename);
+
+                if (missing == null) {
+                    System.out.println("** Server has no upload session for " + filename + ". Upload failed.");
+                    return;
+                }
+            }
+
+            if (missing.isEmpty()) {
+                return; // Already complete
+            }
+
+            long missingBytes = 0;
+
+            for (long[] range : missing) {
+                missingBytes += range[1] - range[0];
+            }
+
+            if (missingBytes < fileSize) {
+                System.out.println("Resuming " + filename + ". Server already holds " + (fileSize - missingBytes)
+                        + " of " + fileSize + " bytes");
+            }
+
+            int segments = (int) Math.max(1, Math.min(connections, missingBytes));
+            long segmentSize = (missingBytes + segments - 1) / segments;
+            ExecutorService executorService = Executors.newFixedThreadPool(segments);
+
+            try (FileChannel fileChannel = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+                List<Future<String>> results = new ArrayList<>();
+
+                for (long[] range : missing) {
+                    for (long start = range[0]; start < range[1]; start += segmentSize) {
+                        long segmentStart = start;
+                        long segmentEnd = Math.min(range[1], start + segmentSize);
+                        results.add(executorService.submit(
+                                () -> new Client().uploadChunk(host, port, filename, fileChannel, segmentStart, segmentEnd)));
+                    }
+                }
+
+                boolean complete = false;
+
+                for (Future<String> result : results) {
+                    String chunkSignal = result.get();
+
+                    if (chunkSignal.compareTo("OkUploadComplete") == 0) {
+                        complete = true;
+                    } else if (chunkSignal.compareTo("OkChunkReceived") != 0) {
+                        System.out.println("** Chunk upload failed: " + chunkSignal);
+                    }
+                }
+
+                if (!complete) {
+                    System.out.println("** Upload incomplete. Run the same command again to resume.");
+                }
+            } finally {
+                executorService.shutdown();
+            }
+        } catch (ExecutionException e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e.getCause());
+            System.out.println("   Run the same command again to resume.");
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
+        }
+    }
+
+    // Reports why the Server refused to open an upload session. Returns true if it opened one.
+    private static boolean isUploadAccepted(String uploadSignal) {
+        if (uploadSignal.compareTo("ErrServerBusy") == 0) {
+            System.out.println(SERVER_BUSY_MESSAGE);
+            return false;
+        }
+
+        if (uploadSignal.compareTo("ErrFileExists") == 0) {
+            System.out.println("** File already in server. Upload permission denied.");
+            return false;
+        } else if (uploadSignal.compareTo("OkToWrite") != 0) {
+            System.out.println("** Server refused upload: " + uploadSignal);
+            return false;
+        }
+
+        return true;
+    }
+
+    // Uploads only the parts of the file the Server does not hold yet. The file is cut into
+    // content-defined chunks and their hashes are sent first. The Server answers with the
+    // chunks it is missing, which are then sent in order, and checks the result against the
+    // file's SHA-256. Servers that do not deduplicate get a regular upload instead.
+    public void processDedupUpload(String host, int port, String filename) {
+        try {
+            File fileToUpload = new File("Files/" + filename);
+
+            if (!fileToUpload.exists()) {
+                System.out.println("** File with name: " + filename + " does not exist.");
+                System.out.println("   Please ensure file is in Files/ directory of Client");
+                return;
+            }
+
+            List<String> hashes = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long fileSize = 0;
+
+            try (InputStream in = new FileInputStream(fileToUpload)) {
+                ContentChunker chunker = new ContentChunker(in);
+                byte[] chunk;
+
+                while ((chunk = chunker.next()) != null) {
+                    digest.update(chunk);
+                    hashes.add(ContentChunker.hash(chunk));
+                    offsets.add(fileSize);
+                    fileSize += chunk.length;
+                }
+            }
+
+            offsets.add(fileSize);
+            StringBuilder fileHash = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                fileHash.append(String.format("%02x", b));
+            }
+
+            establishConnection(host, port);
+
+            if (connection == null) {
+                throw new IOException("Could not connect to " + host);
+            }
+
+            DataOutputStream requestOut = new DataOutputStream(new BufferedOutputStream(socketOut, 64 * 1024));
+            requestOut.writeUTF("9\n"); // Set client in deduplicated upload mode
+            requestOut.writeUTF(filename);
+            requestOut.writeLong(fileSize);
+            requestOut.writeUTF(fileHash.toString());
+            requestOut.writeInt(hashes.size());
+
+            for (int i = 0; i < hashes.size(); i++) {
+                requestOut.writeUTF(hashes.get(i));
+                requestOut.writeInt((int) (offsets.get(i + 1) - offsets.get(i)));
+            }
+
+            requestOut.flush();
+            String uploadSignal = socketIn.readUTF();
+
+            if (uploadSignal.compareTo("ErrServerBusy") == 0) {
+                System.out.println(SERVER_BUSY_MESSAGE);
+                return;
+            }
+
+            if (uploadSignal.compareTo("ErrFileExists") == 0) {
+                System.out.println("** File already in server. Upload permission denied.");
+                return;
+            }
+
+            if (uploadSignal.compareTo("ErrDedupUnsupported") == 0) {
+                System.out.println("** Server does not deduplicate uploads. Uploading the whole file.");
                 connection.close();
+                processParallelUpload(host, port, filename, parallelConnections);
+                return;
             }
 
-        } catch (Exception ex) {
-            System.out.println("Error: " + ex.getLocalizedMessage());
+            if (uploadSignal.compareTo("OkToWrite") != 0) {
+                System.out.println("** Server refused upload: " + uploadSignal);
+                return;
+            }
+
+            int wantedCount = socketIn.readInt();
+            long sentBytes = 0;
+
+            try (FileChannel fileChannel = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < wantedCount; i++) {
+                    int index = socketIn.readInt();
+                    long length = offsets.get(index + 1) - offsets.get(index);
+                    sentBytes += sendFromFile(fileChannel, offsets.get(index), length);
+                }
+            }
+
+            String completeSignal = socketIn.readUTF();
+
+            if (completeSignal.compareTo("OkUploadComplete") != 0) {
+                System.out.println("** Upload failed: " + completeSignal);
+                return;
+            }
+
+            System.out.println("Uploaded " + filename + ": sent " + sentBytes + " of " + fileSize
+                    + " bytes, the Server already held the rest");
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read file");
+            System.out.println(e);
         }
     }
 
-    private void establishConnection(String host, int port) throws UnknownHostException, IOException {
+    // Starts a chunked upload of fileSize bytes and returns the server's answer
+    public String openUpload(String host, int port, String filename, long fileSize, String hash) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
         try {
-            connection = new Socket(host, port);
-            socketIn = new DataInputStream(connection.getInputStream()); // Read data from server
-            socketOut = new DataOutputStream(connection.getOutputStream());
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getLocalizedMessage());
+            socketOut.writeUTF("3h\n"); // Set client in open upload mode, SHA-256 follows the size
+            socketOut.writeUTF(filename);
+            socketOut.writeLong(fileSize);
+            socketOut.writeUTF(hash);
+            return socketIn.readUTF();
+        } finally {
+            connection.close();
         }
     }
 
-    public void processDownload(String host, int port, String filename) {
+    // Mirrors the server's Files/ directory. The server's manifest is compared against local
+    // files: same size and mtime means unchanged, otherwise content hashes decide. Files that
+    // differ are fetched over `connections` persistent connections, each taking names from a
+    // shared queue until it is empty.
+    public void processSync(String host, int port, int connections) {
         try {
-            establishConnection(host, port);
+            List<ManifestEntry> manifest = new Client().requestManifest(host, port);
+            ConcurrentLinkedQueue<ManifestEntry> changed = new ConcurrentLinkedQueue<>();
+            long changedBytes = 0;
 
-            socketOut.writeUTF("0\n"); // Set client in write mode
-            socketOut.writeUTF(filename); // Write filename to server
+            for (ManifestEntry entry : manifest) {
+                File localFile = new File("Files/" + entry.name);
 
-            String fileExistFlag = socketIn.readUTF();
+                if (localFile.isFile() && localFile.length() == entry.size
+                        && (localFile.lastModified() == entry.lastModified || sha256(localFile).equals(entry.hash))) {
+                    continue;
+                }
 
-            if (fileExistFlag.compareTo("ErrFileDoesNotExist") == 0) {
-                System.out.println("** File with name: " + filename + " does not exist in server.");
+                changed.add(entry);
+                changedBytes += entry.size;
+            }
+
+            if (changed.isEmpty()) {
+                System.out.println("All " + manifest.size() + " files are up to date.");
                 return;
             }
 
-            fileToWrite = new File("Files/" + filename);
+            System.out.println("Fetching " + changed.size() + " of " + manifest.size() + " files (" + changedBytes
+                    + " bytes)");
 
-            long skipItems = startByteIndex < 0 ? 0 : startByteIndex - 1;
+            int streams = Math.min(connections, changed.size());
+            ExecutorService executorService = Executors.newFixedThreadPool(streams);
 
-            socketOut.writeLong(skipItems);
-            socketOut.writeLong(endByteIndex);
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
 
-            if (endByteIndex > 0) {
-                String byteIndexDownloadSignal = socketIn.readUTF();
+                for (int i = 0; i < streams; i++) {
+                    results.add(executorService.submit(() -> new Client().downloadBatch(host, port, changed)));
+                }
 
-                if (byteIndexDownloadSignal.compareTo("ErrInvalidByteRange") == 0) {
-                    System.out.println("** Invalid byte range specified");
-                    return;
+                int fetched = 0;
+
+                for (Future<Integer> result : results) {
+                    fetched += result.get();
                 }
+
+                System.out.println("Synced " + fetched + " files.");
+            } finally {
+                executorService.shutdown();
             }
+        } catch (ExecutionException e) {
+            System.out.println("ERROR: Could not sync files");
+            System.out.println(e.getCause());
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not sync files");
+            System.out.println(e);
+        }
+    }
 
-            OutputStream os = new FileOutputStream(fileToWrite);
+    public List<ManifestEntry> requestManifest(String host, int port) throws IOException {
+        establishConnection(host, port);
 
-            // Read file contents from server
-            while (true) {
-                bytes = socketIn.read(buffer, 0, BUFFER_SIZE); // Read from socket
-                if (bytes <= 0)
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF("6\n"); // Set client in list mode
+            socketOut.writeUTF("");
+
+            if (socketIn.readUTF().compareTo("OkList") != 0) {
+                throw new IOException("Server refused to list files");
+            }
+
+            int count = socketIn.readInt();
+            List<ManifestEntry> manifest = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                manifest.add(new ManifestEntry(socketIn.readUTF(), socketIn.readLong(), socketIn.readLong(),
+                        socketIn.readUTF()));
+            }
+
+            return manifest;
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Fetches files from the queue one after another over a single connection. Each file is
+    // written to a .part file and renamed, then stamped with the server's mtime so the next
+    // sync can skip it without hashing.
+    private int downloadBatch(String host, int port, Queue<ManifestEntry> queue) throws IOException {
+        ManifestEntry entry = queue.poll();
+
+        if (entry == null) {
+            return 0;
+        }
+
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        int fetched = 0;
+
+        try {
+            socketOut.writeUTF("7\n"); // Set client in batch read mode
+            socketOut.writeUTF(entry.name);
+
+            while (entry != null) {
+                if (socketIn.readUTF().compareTo("OkToRead") == 0) {
+                    long length = socketIn.readLong();
+                    File partialFile = new File("Files/" + entry.name + ".part");
+                    try (FileChannel fileChannel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        if (receiveToFile(socketIn, fileChannel, 0, length) < length) {
+                            throw new EOFException("Connection closed while reading " + entry.name);
+                        }
+                    }
+
+                    File localFile = new File("Files/" + entry.name);
+                    Files.move(partialFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    localFile.setLastModified(entry.lastModified);
+                    fetched++;
+                } else {
+                    System.out.println("** File with name: " + entry.name + " no longer exists in server.");
+                }
+
+                entry = queue.poll();
+                socketOut.writeUTF(entry != null ? entry.name : ""); // Empty name ends the batch
+            }
+
+            return fetched;
+        } finally {
+            connection.close();
+        }
+    }
+
+    static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hashBuffer = new byte[64 * 1024];
+            int read;
+
+            while ((read = in.read(hashBuffer)) > 0) {
+                digest.update(hashBuffer, 0, read);
+            }
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Returns the {start, end} ranges the server still needs for an open upload, an empty list
+    // if the upload already finished, or null if there is no such upload.
+    public List<long[]> requestMissingRanges(String host, int port, String filename) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF("5\n"); // Set client in upload status mode
+            socketOut.writeUTF(filename);
+
+            String statusSignal = socketIn.readUTF();
+
+            if (statusSignal.compareTo("ErrServerBusy") == 0) {
+                throw new IOException("Server is busy");
+            }
+
+            if (statusSignal.compareTo("ErrFileExists") == 0) {
+                return new ArrayList<>();
+            } else if (statusSignal.compareTo("OkUploadInProgress") != 0) {
+                return null;
+            }
+
+            socketIn.readLong(); // Total size
+            socketIn.readLong(); // Bytes already received
+            int rangeCount = socketIn.readInt();
+            List<long[]> missing = new ArrayList<>();
+
+            for (int i = 0; i < rangeCount; i++) {
+                missing.add(new long[] { socketIn.readLong(), socketIn.readLong() });
+            }
+
+            return missing;
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Sends bytes [start, end) of the file as one chunk and returns the server's answer
+    private String uploadChunk(String host, int port, String filename, FileChannel fileChannel, long start,
+            long end) throws IOException {
+        establishConnection(host, port);
+
+        if (connection == null) {
+            throw new IOException("Could not connect to " + host);
+        }
+
+        try {
+            socketOut.writeUTF("4\n"); // Set client in upload chunk mode
+            socketOut.writeUTF(filename);
+            socketOut.writeLong(start);
+            socketOut.writeLong(end - start);
+
+            String chunkSignal = socketIn.readUTF();
+
+            if (chunkSignal.compareTo("OkToWrite") != 0) {
+                return chunkSignal;
+            }
+
+            sendFromFile(fileChannel, start, end - start);
+            return socketIn.readUTF();
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Copies the body into fileChannel starting at position, until length bytes have arrived or,
+    // when length is negative, until the server closes the connection. Plain bodies are read
+    // from the socket channel into a pooled direct buffer sized by a ChunkSizer; decompressed
+    // bodies come through a stream and a heap scratch array. Returns the bytes written.
+    private long receiveToFile(InputStream body, FileChannel fileChannel, long position, long length)
+            throws IOException {
+        SocketChannel channel = body == socketIn ? connection.getChannel() : null;
+        ChunkSizer sizer = new ChunkSizer(length < 0 ? BufferPool.MAX_SIZE : length, connection, false);
+        ByteBuffer chunk = BufferPool.shared.acquire(sizer.size());
+        long received = 0;
+
+        try {
+            while (length < 0 || received < length) {
+                if (chunk.capacity() < sizer.size()) {
+                    BufferPool.shared.release(chunk);
+                    chunk = BufferPool.shared.acquire(sizer.size());
+                }
+
+                chunk.clear().limit(sizer.next(length < 0 ? chunk.capacity() : length - received));
+                long start = System.nanoTime();
+                int read;
+
+                if (channel != null) {
+                    read = channel.read(chunk); // Read from socket
+                } else {
+                    if (decodeBuffer == null) {
+                        decodeBuffer = new byte[64 * 1024];
+                    }
+
+                    read = body.read(decodeBuffer, 0, Math.min(decodeBuffer.length, chunk.remaining()));
+
+                    if (read > 0) {
+                        chunk.put(decodeBuffer, 0, read);
+                    }
+                }
+
+                if (read <= 0)
                     break; // Check for end of file
 
-                // Write
-                os.write(buffer, 0, bytes);
+                sizer.record(read, System.nanoTime() - start);
+                chunk.flip();
+
+                while (chunk.hasRemaining()) {
+                    fileChannel.write(chunk, position + received + chunk.position());
+                }
+
+                received += read;
             }
+        } finally {
+            BufferPool.shared.release(chunk);
+        }
 
-            os.close();
-        } catch (Exception e) {
-            System.out.println("ERROR: Could not read file");
-            System.out.println(e);
+        return received;
+    }
+
+    // Sends count bytes of the file starting at position. transferTo lets the kernel copy
+    // straight from the page cache to the socket, in chunks sized by a ChunkSizer.
+    private long sendFromFile(FileChannel fileChannel, long position, long count) throws IOException {
+        socketOut.flush();
+
+        // A multiplexed stream has no channel of its own
+        WritableByteChannel channel = connection.getChannel() != null ? connection.getChannel()
+                : Channels.newChannel(socketOut);
+        ChunkSizer sizer = new ChunkSizer(count, connection, true);
+        long sent = 0;
+
+        while (sent < count) {
+            long start = System.nanoTime();
+            long transferred = fileChannel.transferTo(position + sent, sizer.next(count - sent), channel);
+
+            if (transferred <= 0)
+                break; // Check for end of file
+
+            sizer.record(transferred, System.nanoTime() - start);
+            sent += transferred;
         }
+
+        return sent;
     }
 
     public void processUpload(String host, int port, String filename) {
@@ -135,39 +1204,19 @@ public class Client {
 
             String uploadSignal = socketIn.readUTF();
 
+            if (uploadSignal.compareTo("ErrServerBusy") == 0) {
+                System.out.println(SERVER_BUSY_MESSAGE);
+                return;
+            }
+
             if (uploadSignal.compareTo("ErrFileExists") == 0) {
                 System.out.println("** File already in server. Upload permission denied.");
                 return;
             }
 
-            long totalBytesTransferred = 0;
-            FileInputStream fileInputStream = new FileInputStream(fileToUpload);
-
-            fileInputStream.skip(skipItems);
-
-            int bufferSize = totalFileByteSize > BUFFER_SIZE ? BUFFER_SIZE : (int) totalFileByteSize;
-            buffer = new byte[bufferSize];
-
-            while (true) {
-                if (bufferSize > (totalFileByteSize - totalBytesTransferred)) {
-                    bufferSize = (int) (totalFileByteSize - totalBytesTransferred);
-                }
-
-                bytes = fileInputStream.read(buffer, 0, bufferSize); // Read from file
-                if (bytes <= 0)
-                    break; // Check for end of file
-
-                totalBytesTransferred += bytes;
-
-                socketOut.write(buffer, 0, bytes); // Write bytes to socket
-
-                if (totalBytesTransferred >= totalFileByteSize) {
-                    totalBytesTransferred = 0;
-                    break;
-                }
+            try (FileChannel fileChannel = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+                sendFromFile(fileChannel, skipItems, totalFileByteSize);
             }
-
-            fileInputStream.close();
         } catch (Exception e) {
             System.out.println("ERROR: Could not read file");
         }
@@ -176,18 +1225,85 @@ public class Client {
     public static void main(String[] args) {
         try {
             parseCommandLineArguments(args);
+
+            // <serverName> may name a port, e.g. for the nodes of a cluster on one machine
+            String host = serverName;
+            int port = Port.port;
+            int colon = serverName.lastIndexOf(':');
+
+            if (colon > 0 && serverName.substring(colon + 1).matches("[0-9]+")) {
+                host = serverName.substring(0, colon);
+                port = Integer.parseInt(serverName.substring(colon + 1));
+            }
+
+            if (clientMode == ClientMode.bench) {
+                new LoadGenerator(host, port, filename, benchOptions).run();
+                return;
+            }
+
+            // -sync asks the given node, which lists and relays the files of the whole cluster
+            if (cluster && clientMode != ClientMode.sync) {
+                String owner = routeToOwner(host, port, filename);
+                host = ClusterRing.host(owner);
+                port = ClusterRing.port(owner);
+            }
+
             Client client = new Client();
-            client.start(serverName, Port.port, filename);
+            client.start(host, port, filename);
         } catch (InvalidArgumentException e) {
             printConsoleHelp(e.getCode());
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getLocalizedMessage());
+        } finally {
+            closeMultiplexer();
         }
     }
 
     public static void parseCommandLineArguments(String[] args) throws InvalidArgumentException {
+        args = extractGlobalOptions(args);
+
         if (args.length < 2) {
             throw new InvalidArgumentException(ArgumentErrorCode.missingAll);
         }
 
+        // Mirror the whole Files/ directory of the Server
+        if (args[1].compareTo("-sync") == 0) {
+            serverName = args[0];
+            clientMode = ClientMode.sync;
+            setParamsFromArguments(args, false);
+
+            if (startByteIndex >= 0) {
+                throw new InvalidArgumentException(ArgumentErrorCode.invalid);
+            }
+
+            return;
+        }
+
+        // Upload only the chunks of the file the Server does not already hold
+        if (args[1].compareTo("-dedup") == 0) {
+            if (args.length < 3) {
+                throw new InvalidArgumentException(ArgumentErrorCode.filename);
+            }
+
+            serverName = args[0];
+            filename = args[2];
+            clientMode = ClientMode.dedup;
+            return;
+        }
+
+        // Generate load against the Server and report throughput and latency
+        if (args[1].compareTo("-bench") == 0) {
+            if (args.length < 3) {
+                throw new InvalidArgumentException(ArgumentErrorCode.filename);
+            }
+
+            serverName = args[0];
+            filename = args[2];
+            clientMode = ClientMode.bench;
+            benchOptions = BenchOptions.parse(args, 3);
+            return;
+        }
+
         // We are trying to access Client in Write mode
         if (args[1].compareTo("-w") == 0) {
             if (args.length < 3) {
@@ -207,6 +1323,30 @@ public class Client {
         }
     }
 
+    // -z <encoding>, -mux and -cluster may appear anywhere after the server name. Returns the
+    // remaining arguments.
+    private static String[] extractGlobalOptions(String[] args) throws InvalidArgumentException {
+        List<String> remaining = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0 && args[i].compareTo("-z") == 0) {
+                if (i + 1 >= args.length || Compression.flagFor(args[i + 1]) == null) {
+                    throw new InvalidArgumentException(ArgumentErrorCode.compression);
+                }
+
+                compression = args[++i];
+            } else if (i > 0 && args[i].compareTo("-mux") == 0) {
+                multiplex = true;
+            } else if (i > 0 && args[i].compareTo("-cluster") == 0) {
+                cluster = true;
+            } else {
+                remaining.add(args[i]);
+            }
+        }
+
+        return remaining.toArray(new String[0]);
+    }
+
     public static void setParamsFromArguments(String[] args, Boolean isWriteMode) throws InvalidArgumentException {
         int argsOffset = isWriteMode ? 2 : 1;
 
@@ -214,6 +1354,24 @@ public class Client {
             return;
         }
 
+        if (args[1 + argsOffset].compareTo("-p") == 0) {
+            if (args.length < 3 + argsOffset) {
+                throw new InvalidArgumentException(ArgumentErrorCode.parallelConnections);
+            }
+
+            try {
+                parallelConnections = Integer.parseInt(args[2 + argsOffset]);
+            } catch (NumberFormatException e) {
+                throw new InvalidArgumentException(ArgumentErrorCode.invalidParallelConnections);
+            }
+
+            if (parallelConnections < 1) {
+                throw new InvalidArgumentException(ArgumentErrorCode.invalidParallelConnections);
+            }
+
+            return;
+        }
+
         if (args.length < 5 + argsOffset) {
             throw new InvalidArgumentException(ArgumentErrorCode.missingAll);
         }
@@ -293,6 +1451,18 @@ public class Client {
             System.out.println(
                     "ERROR: CANNOT PARSE END BYTE INDEX. VALUE IS NOT A NUMBER OR NUMBER IS LARGER THAN LONG.MAX_VALUE");
             break;
+        case parallelConnections:
+            System.out.println("ERROR: NUMBER OF PARALLEL CONNECTIONS MISSING");
+            break;
+        case invalidParallelConnections:
+            System.out.println("ERROR: NUMBER OF PARALLEL CONNECTIONS MUST BE A NUMBER GREATER THAN 0");
+            break;
+        case compression:
+            System.out.println("ERROR: COMPRESSION MUST BE gzip, deflate OR lz");
+            break;
+        case bench:
+            System.out.println("ERROR: INVALID BENCH OPTION. -c, -d, -n AND -u TAKE A NUMBER, -mix A LIST LIKE read=60,http=40");
+            break;
         default:
             System.out.println("ERROR: INVALID ARGUMENT");
             break;
@@ -302,10 +1472,16 @@ public class Client {
         System.out.println("Please use as follows:");
         System.out.println();
         System.out.println("  `java Client <serverName> [-w] <filename> [-s <startByteIndex> -e <endByteIndex>]`");
+        System.out.println("  `java Client <serverName> [-w] <filename> -p <connections>`");
+        System.out.println("  `java Client <serverName> -sync [-p <connections>]`");
+        System.out.println("  `java Client <serverName> -dedup <filename>`");
+        System.out.println("  `java Client <serverName> -bench <filename> [-c <clients>] [-d <seconds> | -n <requests>]");
+        System.out.println("                                          [-mix <operation>=<weight>,...] [-u <uploadBytes>]`");
         System.out.println();
         System.out.println("  ============================================================");
         System.out.println();
-        System.out.println("  <serverName> : Required whether reading or writting file");
+        System.out.println("  <serverName> : Required whether reading or writting file. host:port for a port other than "
+                + Port.port);
         System.out.println("  <filename> : Required whether reading or writting file");
         System.out.println("  <startByteIndex> : Must be greater than 0 and less than <endByteIndex>");
         System.out.println("  <endByteIndex> : Must be greater than <startByteIndex> and less than Long.MAX_VALUE");
@@ -315,6 +1491,22 @@ public class Client {
         System.out.println();
         System.out.println("  -s : Sets the start byte index to copy file (if whole file is not needed)");
         System.out.println("  -e : Sets the end byte index to copy file (if whole file is not needed)");
+        System.out.println("  -p : Downloads or uploads the file in <connections> ranges sent in parallel");
+        System.out.println("  -sync : Fetches every new or changed file in the Server's Files/ directory");
+        System.out.println("  -dedup : Uploads <filename> sending only the chunks the Server does not hold yet");
+        System.out.println("  -z : Downloads with gzip, deflate or lz compression, e.g. `-z lz`. May follow any form");
+        System.out.println("  -mux : Runs every transfer, including -p, -sync and -bench, as a stream of one shared");
+        System.out.println("         connection. May follow any form");
+        System.out.println("  -cluster : Sends the transfer straight to a node holding <filename>, using the node list");
+        System.out.println("             <serverName> reports. May follow any form but -sync and -bench");
+        System.out.println("  -bench : Replays a mix of requests for <filename> from concurrent simulated clients and");
+        System.out.println("           reports requests/s, MB/s, latency percentiles and errors");
+        System.out.println("     -c : Simulated clients. Defaults to 16");
+        System.out.println("     -d : Seconds to run for. Defaults to 10");
+        System.out.println("     -n : Total requests to make instead of running for a duration");
+        System.out.println("     -mix : Weights of read, range, write and http. Defaults to read=60,range=20,http=20.");
+        System.out.println("            write uploads new bench-* files to the Server");
+        System.out.println("     -u : Size of each upload in bytes. Defaults to 65536");
         System.out.println();
         System.out.println("  NOTE: If start byte provided, end byte must also be provided");
     }
@@ -335,9 +1527,25 @@ class InvalidArgumentException extends Exception {
 
 enum ArgumentErrorCode {
     serverName, filename, startByte, endByte, missingAll, startIndexAfterEnd, startByteIndexLessThan1,
-    endByteIndexLessThan1, invalid, invalidStartByteNumberParseFormat, invalidEndByteNumberParseFormat
+    endByteIndexLessThan1, invalid, invalidStartByteNumberParseFormat, invalidEndByteNumberParseFormat,
+    parallelConnections, invalidParallelConnections, compression, bench
 }
 
 enum ClientMode {
-    read, write
+    read, write, sync, bench, dedup
+}
+
+// One file in the Server's manifest
+class ManifestEntry {
+    final String name;
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    public ManifestEntry(String name, long size, long lastModified, String hash) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
 }
\ No newline at end of file
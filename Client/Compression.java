@@ -0,0 +1,46 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Encodings a download can be asked for with -z. The letter goes after the mode digit of the
+// request and the server answers with the encoding it actually used.
+class Compression {
+    static final String IDENTITY = "identity";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final String LZ = "lz";
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Returns the mode line letter for an encoding, or null if it is not supported
+    public static String flagFor(String encoding) {
+        switch (encoding) {
+        case GZIP:
+            return "g";
+        case DEFLATE:
+            return "d";
+        case LZ:
+            return "l";
+        default:
+            return null;
+        }
+    }
+
+    public static InputStream decoder(String encoding, InputStream in) throws IOException {
+        switch (encoding) {
+        case IDENTITY:
+            return in;
+        case GZIP:
+            return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+        case DEFLATE:
+            return new InflaterInputStream(in, new Inflater(), STREAM_BUFFER_SIZE);
+        case LZ:
+            return new LzInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+        default:
+            throw new IOException("Server replied with unknown encoding " + encoding);
+        }
+    }
+}
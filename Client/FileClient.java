@@ -0,0 +1,616 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The Client's transfers as a library for other JVM code. A FileClient talks to one server and
+// keeps no state between requests, so any number of threads can share it. Every method runs
+// on the executor and returns a future, which fails with FileNotFoundException for a missing
+// file, FileAlreadyExistsException for an upload to a taken name, or an IOException naming
+// the status the server answered.
+//
+//     ConnectionPool pool = new ConnectionPool(4, 16, 30000);
+//     FileClient files = new FileClient(pool, "fileserver", 2296);
+//     files.download("report.pdf", Paths.get("/tmp/report.pdf")).join();
+//
+// Requests use the per-connection protocol, one request per stream or connection from the pool.
+class FileClient implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final String host;
+    private final int port;
+    private final Executor executor;
+    // Set when this client made its own executor and shuts it down on close()
+    private final ExecutorService ownExecutor;
+
+    public FileClient(ConnectionPool pool, String host, int port, Executor executor) {
+        this.pool = pool;
+        this.host = host;
+        this.port = port;
+        this.executor = executor;
+        this.ownExecutor = null;
+    }
+
+    // Runs requests on virtual threads where the JVM has them, otherwise on a cached pool
+    public FileClient(ConnectionPool pool, String host, int port) {
+        this.pool = pool;
+        this.host = host;
+        this.port = port;
+        this.ownExecutor = createExecutor();
+        this.executor = ownExecutor;
+    }
+
+    // Length of the file on the server
+    public CompletableFuture<Long> size(String filename) {
+        return async(() -> {
+            try (ConnectionPool.Lease lease = pool.lease(host, port)) {
+                lease.out.writeUTF("2\n"); // Size mode
+                lease.out.writeUTF(filename);
+                lease.out.flush();
+                expect(lease.in.readUTF(), "OkToRead", filename);
+                return lease.in.readLong();
+            }
+        });
+    }
+
+    // Downloads the whole file into target, replacing it. Completes with the bytes written.
+    public CompletableFuture<Long> download(String filename, Path target) {
+        return downloadRange(filename, 0, -1, target);
+    }
+
+    // Streams the whole file into target, which the caller keeps open and closes
+    public CompletableFuture<Long> download(String filename, WritableByteChannel target) {
+        return downloadRange(filename, 0, -1, target);
+    }
+
+    // Bytes [start, end) of the file, or from start to the end of the file when end is negative.
+    // They are written to a temporary file beside target, which replaces target only once the
+    // whole range has arrived, so a failed request leaves target as it was.
+    public CompletableFuture<Long> downloadRange(String filename, long start, long end, Path target) {
+        return async(() -> {
+            Path directory = target.toAbsolutePath().getParent();
+            Path partial = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+
+            try {
+                long written;
+
+                try (FileChannel fileChannel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                    written = read(filename, start, end, fileChannel);
+                }
+
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                return written;
+            } finally {
+                Files.deleteIfExists(partial); // Only still there when the download failed
+            }
+        });
+    }
+
+    public CompletableFuture<Long> downloadRange(String filename, long start, long end, WritableByteChannel target) {
+        return async(() -> read(filename, start, end, target));
+    }
+
+    // Uploads source under filename through an upload session, so the server checks size and
+    // SHA-256 before publishing it. Running it again after a failure sends only what is missing.
+    public CompletableFuture<Void> upload(Path source, String filename) {
+        return async(() -> {
+            try (FileChannel fileChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                String hash = Client.sha256(source.toFile());
+
+                try (ConnectionPool.Lease lease = pool.lease(host, port)) {
+                    lease.out.writeUTF("3h\n"); // Open upload mode, SHA-256 follows the size
+                    lease.out.writeUTF(filename);
+                    lease.out.writeLong(size);
+                    lease.out.writeUTF(hash);
+                    lease.out.flush();
+                    expect(lease.in.readUTF(), "OkToWrite", filename);
+                }
+
+                String status = "OkUploadComplete";
+
+                for (long[] range : missingRanges(filename)) {
+                    status = uploadChunk(filename, fileChannel, range[0], range[1]);
+
+                    if (status.compareTo("OkChunkReceived") != 0) {
+                        break;
+                    }
+                }
+
+                expect(status, "OkUploadComplete", filename);
+                return null;
+            }
+        });
+    }
+
+    // Shuts down the executor this client made. The pool is shared and closed by its owner.
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private long read(String filename, long start, long end, WritableByteChannel target) throws IOException {
+        try (ConnectionPool.Lease lease = pool.lease(host, port)) {
+            lease.out.writeUTF("0\n"); // Read mode
+            lease.out.writeUTF(filename);
+            lease.out.flush();
+            expect(lease.in.readUTF(), "OkToRead", filename);
+
+            lease.out.writeLong(start);
+            lease.out.writeLong(end);
+            lease.out.flush();
+
+            if (end > 0) {
+                expect(lease.in.readUTF(), "OkToRead", filename);
+            }
+
+            long received = lease.receive(target);
+
+            if (end > 0 && received < end - start) {
+                throw new EOFException("Connection closed while reading " + filename);
+            }
+
+            return received;
+        }
+    }
+
+    // {start, end} ranges the open session still needs
+    private List<long[]> missingRanges(String filename) throws IOException {
+        try (ConnectionPool.Lease lease = pool.lease(host, port)) {
+            lease.out.writeUTF("5\n"); // Upload status mode
+            lease.out.writeUTF(filename);
+            lease.out.flush();
+            String status = lease.in.readUTF();
+            List<long[]> missing = new ArrayList<>();
+
+            if (status.compareTo("ErrFileExists") == 0) {
+                return missing; // Finished by an earlier run
+            }
+
+            expect(status, "OkUploadInProgress", filename);
+            lease.in.readLong(); // Total size
+            lease.in.readLong(); // Bytes already received
+            int rangeCount = lease.in.readInt();
+
+            for (int i = 0; i < rangeCount; i++) {
+                missing.add(new long[] { lease.in.readLong(), lease.in.readLong() });
+            }
+
+            return missing;
+        }
+    }
+
+    private String uploadChunk(String filename, FileChannel fileChannel, long start, long end) throws IOException {
+        try (ConnectionPool.Lease lease = pool.lease(host, port)) {
+            lease.out.writeUTF("4\n"); // Upload chunk mode
+            lease.out.writeUTF(filename);
+            lease.out.writeLong(start);
+            lease.out.writeLong(end - start);
+            lease.out.flush();
+            String status = lease.in.readUTF();
+
+            if (status.compareTo("OkToWrite") != 0) {
+                return status;
+            }
+
+            lease.send(fileChannel, start, end - start);
+            return lease.in.readUTF();
+        }
+    }
+
+    private static void expect(String status, String expected, String filename) throws IOException {
+        if (status.compareTo(expected) == 0) {
+            return;
+        }
+
+        if (status.compareTo("ErrFileDoesNotExist") == 0) {
+            throw new FileNotFoundException(filename + " does not exist in server");
+        }
+
+        if (status.compareTo("ErrFileExists") == 0) {
+            throw new FileAlreadyExistsException(filename);
+        }
+
+        throw new IOException("Server answered " + status + " for " + filename);
+    }
+
+    private interface Request<T> {
+        T run() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> async(Request<T> request) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return request.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "file-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+// Connections to file servers, shared by the FileClients that use the pool. Requests to a host
+// run as streams of up to maxConnectionsPerHost multiplexed connections. A connection takes up to
+// streamsPerConnection requests at a time, the next one is opened only when all are that busy,
+// and a connection without streams for idleMillis is closed. A server without multiplexing gets
+// a new connection per request, since it closes every connection after one, at most
+// maxConnectionsPerHost at a time. Requests over the limits wait for a slot.
+class ConnectionPool implements AutoCloseable {
+    private final int maxConnectionsPerHost;
+    private final int streamsPerConnection;
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, HostConnections> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    public ConnectionPool(int maxConnectionsPerHost, int streamsPerConnection, long idleMillis) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.streamsPerConnection = Math.min(streamsPerConnection, Multiplexer.MAX_STREAMS);
+        this.idleMillis = idleMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(idleMillis / 2, 100);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Waits for a slot and opens a stream or connection for one request
+    public Lease lease(String host, int port) throws IOException {
+        return hosts.computeIfAbsent(host + ":" + port, key -> new HostConnections(host, port)).lease();
+    }
+
+    // Closes every connection. Requests still running fail.
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+
+        for (HostConnections connections : hosts.values()) {
+            connections.close();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (HostConnections connections : hosts.values()) {
+            connections.evict(now);
+        }
+    }
+
+    // The socket of one request and its buffered streams. Closing it ends the request and
+    // frees the slot.
+    class Lease implements AutoCloseable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private final HostConnections owner;
+        private final Shared shared;
+        private boolean closed = false;
+
+        private Lease(Socket socket, HostConnections owner, Shared shared) throws IOException {
+            this.socket = socket;
+            // Not buffered, receive() reads the body straight from the channel
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.owner = owner;
+            this.shared = shared;
+        }
+
+        // Copies the reply body into target until the server ends it. Returns the bytes copied.
+        long receive(WritableByteChannel target) throws IOException {
+            SocketChannel channel = socket.getChannel();
+            ChunkSizer sizer = new ChunkSizer(BufferPool.MAX_SIZE, socket, false);
+            ByteBuffer chunk = BufferPool.shared.acquire(sizer.size());
+            byte[] scratch = channel == null ? new byte[64 * 1024] : null;
+            long received = 0;
+
+            try {
+                while (true) {
+                    if (chunk.capacity() < sizer.size()) {
+                        BufferPool.shared.release(chunk);
+                        chunk = BufferPool.shared.acquire(sizer.size());
+                    }
+
+                    chunk.clear().limit(sizer.next(chunk.capacity()));
+                    long start = System.nanoTime();
+                    int read;
+
+                    if (channel != null) {
+                        read = channel.read(chunk);
+                    } else {
+                        read = in.read(scratch, 0, Math.min(scratch.length, chunk.remaining()));
+
+                        if (read > 0) {
+                            chunk.put(scratch, 0, read);
+                        }
+                    }
+
+                    if (read <= 0) {
+                        return received;
+                    }
+
+                    sizer.record(read, System.nanoTime() - start);
+                    chunk.flip();
+
+                    while (chunk.hasRemaining()) {
+                        target.write(chunk);
+                    }
+
+                    received += read;
+                }
+            } finally {
+                BufferPool.shared.release(chunk);
+            }
+        }
+
+        // Sends count bytes of the file from position, straight from the page cache where the
+        // socket has a channel
+        void send(FileChannel fileChannel, long position, long count) throws IOException {
+            out.flush();
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            long sent = 0;
+
+            while (sent < count) {
+                long transferred = fileChannel.transferTo(position + sent, count - sent, target);
+
+                if (transferred <= 0) {
+                    throw new IOException("File shrank while uploading");
+                }
+
+                sent += transferred;
+            }
+
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+            }
+
+            try {
+                socket.close();
+            } finally {
+                owner.release(shared);
+            }
+        }
+    }
+
+    // A multiplexed connection and the requests running on it, guarded by its HostConnections
+    private static class Shared {
+        final Multiplexer mux;
+        int active = 0;
+        long idleSince = System.currentTimeMillis();
+
+        Shared(Multiplexer mux) {
+            this.mux = mux;
+        }
+    }
+
+    private class HostConnections {
+        private final String host;
+        private final int port;
+        private final List<Shared> connections = new ArrayList<>();
+        // Multiplexed connections being opened, and plain connections in use
+        private int connecting = 0;
+        private int plain = 0;
+        // Cleared when the server turns out not to support multiplexing
+        private boolean multiplexing = true;
+        private boolean closed = false;
+
+        HostConnections(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        Lease lease() throws IOException {
+            Shared shared;
+            boolean open;
+
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Connection pool closed");
+                    }
+
+                    shared = leastBusy();
+
+                    if (shared != null && shared.active < streamsPerConnection) {
+                        shared.active++;
+                        open = false;
+                        break;
+                    }
+
+                    if (connections.size() + connecting + plain < maxConnectionsPerHost) {
+                        if (multiplexing) {
+                            connecting++;
+                        } else {
+                            plain++;
+                        }
+
+                        open = true;
+                        break;
+                    }
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            if (!open) {
+                return openStream(shared);
+            }
+
+            return multiplexing ? connect() : openPlain();
+        }
+
+        // Opens a new multiplexed connection for the caller's request, or finds out the server
+        // has no multiplexing
+        private Lease connect() throws IOException {
+            Shared shared = null;
+
+            try {
+                Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+                socket.setTcpNoDelay(true); // Frames are written whole
+                Multiplexer mux = Multiplexer.connect(socket);
+
+                if (mux != null) {
+                    shared = new Shared(mux);
+                } else {
+                    socket.close();
+                }
+            } finally {
+                synchronized (this) {
+                    connecting--;
+
+                    if (shared != null) {
+                        shared.active++;
+                        connections.add(shared);
+                    } else {
+                        multiplexing = false;
+                        plain++;
+                    }
+
+                    notifyAll();
+                }
+            }
+
+            return shared != null ? openStream(shared) : openPlain();
+        }
+
+        private Lease openStream(Shared shared) throws IOException {
+            try {
+                return new Lease(shared.mux.openSocket(), this, shared);
+            } catch (IOException e) {
+                release(shared);
+                throw e;
+            }
+        }
+
+        private Lease openPlain() throws IOException {
+            try {
+                return new Lease(SocketChannel.open(new InetSocketAddress(host, port)).socket(), this, null);
+            } catch (IOException e) {
+                release(null);
+                throw e;
+            }
+        }
+
+        synchronized void release(Shared shared) {
+            if (shared == null) {
+                plain--;
+            } else {
+                shared.active--;
+                shared.idleSince = System.currentTimeMillis();
+            }
+
+            notifyAll();
+        }
+
+        // Closes connections that are broken or have been idle too long
+        void evict(long now) {
+            List<Shared> evicted = new ArrayList<>();
+
+            synchronized (this) {
+                for (Iterator<Shared> it = connections.iterator(); it.hasNext();) {
+                    Shared shared = it.next();
+
+                    if (shared.mux.isClosed() || (shared.active == 0 && now - shared.idleSince >= idleMillis)) {
+                        it.remove();
+                        evicted.add(shared);
+                    }
+                }
+
+                if (!evicted.isEmpty()) {
+                    notifyAll();
+                }
+            }
+
+            for (Shared shared : evicted) {
+                shared.mux.close();
+            }
+        }
+
+        void close() {
+            List<Shared> open;
+
+            synchronized (this) {
+                closed = true;
+                open = new ArrayList<>(connections);
+                connections.clear();
+                notifyAll();
+            }
+
+            for (Shared shared : open) {
+                shared.mux.close();
+            }
+        }
+
+        // The open connection with the fewest requests, or null
+        private Shared leastBusy() {
+            Shared best = null;
+
+            for (Iterator<Shared> it = connections.iterator(); it.hasNext();) {
+                Shared shared = it.next();
+
+                if (shared.mux.isClosed()) {
+                    it.remove(); // The server went away, its requests fail on their own
+                } else if (best == null || shared.active < best.active) {
+                    best = shared;
+                }
+            }
+
+            return best;
+        }
+    }
+}
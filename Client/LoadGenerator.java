@@ -0,0 +1,479 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Requests the load generator can replay
+enum BenchOperation {
+    read, range, write, http
+}
+
+// Options of `java Client <serverName> -bench <filename> ...`
+class BenchOptions {
+    int clients = 16;
+    int seconds = 10;
+    long requests = 0; // When set the run ends after this many requests instead of after seconds
+    int uploadSize = 64 * 1024;
+    // Relative weights. Uploads leave files on the server so they are off unless asked for.
+    EnumMap<BenchOperation, Integer> mix = parseMix("read=60,range=20,http=20");
+
+    // Reads flag and value pairs from args[from] on
+    static BenchOptions parse(String[] args, int from) throws InvalidArgumentException {
+        BenchOptions options = new BenchOptions();
+
+        for (int i = from; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new InvalidArgumentException(ArgumentErrorCode.bench);
+            }
+
+            String value = args[i + 1];
+
+            try {
+                switch (args[i]) {
+                case "-c":
+                    options.clients = Integer.parseInt(value);
+                    break;
+                case "-d":
+                    options.seconds = Integer.parseInt(value);
+                    break;
+                case "-n":
+                    options.requests = Long.parseLong(value);
+                    break;
+                case "-u":
+                    options.uploadSize = Integer.parseInt(value);
+                    break;
+                case "-mix":
+                    options.mix = parseMix(value);
+                    break;
+                default:
+                    throw new InvalidArgumentException(ArgumentErrorCode.bench);
+                }
+            } catch (NumberFormatException e) {
+                throw new InvalidArgumentException(ArgumentErrorCode.bench);
+            }
+        }
+
+        if (options.clients < 1 || options.seconds < 1 || options.requests < 0 || options.uploadSize < 0
+                || options.mix == null) {
+            throw new InvalidArgumentException(ArgumentErrorCode.bench);
+        }
+
+        return options;
+    }
+
+    // e.g. "read=60,range=20,write=10,http=10". Returns null when malformed or all zero.
+    static EnumMap<BenchOperation, Integer> parseMix(String mix) {
+        EnumMap<BenchOperation, Integer> weights = new EnumMap<>(BenchOperation.class);
+        int total = 0;
+
+        try {
+            for (String part : mix.split(",")) {
+                String[] nameAndWeight = part.split("=");
+
+                if (nameAndWeight.length != 2) {
+                    return null;
+                }
+
+                int weight = Integer.parseInt(nameAndWeight[1]);
+
+                if (weight < 0) {
+                    return null;
+                }
+
+                weights.put(BenchOperation.valueOf(nameAndWeight[0]), weight);
+                total += weight;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return null; // Covers NumberFormatException and unknown operation names
+        }
+
+        return total > 0 ? weights : null;
+    }
+}
+
+// Counters of one operation across all simulated clients
+class OperationStats {
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+    final ConcurrentHashMap<String, LongAdder> errorMessages = new ConcurrentHashMap<>();
+
+    void record(long nanos, long transferred) {
+        requests.increment();
+        bytes.add(transferred);
+        latency.record(nanos / 1000);
+    }
+
+    void error(Exception e) {
+        errors.increment();
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        errorMessages.computeIfAbsent(message, key -> new LongAdder()).increment();
+    }
+}
+
+// Load generator behind `java Client <serverName> -bench <filename>`. Each simulated client
+// loops over requests drawn from the weighted mix, one at a time and back to back, until the
+// duration or the request count runs out. Downloads are read and discarded, uploads send
+// generated bytes under new bench-* names, and HTTP GETs reuse a keep-alive connection per
+// client. Simulated clients run on virtual threads where the JVM has them.
+class LoadGenerator {
+    private static final long MAX_RANGE = 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String filename;
+    private final BenchOptions options;
+    private final EnumMap<BenchOperation, OperationStats> stats = new EnumMap<>(BenchOperation.class);
+    private final BenchOperation[] weighted;
+    private final AtomicLong issued = new AtomicLong();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final byte[] uploadContent;
+    private volatile boolean stopped = false;
+    private long fileSize;
+
+    public LoadGenerator(String host, int port, String filename, BenchOptions options) {
+        this.host = host;
+        this.port = port;
+        this.filename = filename;
+        this.options = options;
+
+        List<BenchOperation> slots = new ArrayList<>();
+
+        for (Map.Entry<BenchOperation, Integer> entry : options.mix.entrySet()) {
+            stats.put(entry.getKey(), new OperationStats());
+
+            for (int i = 0; i < entry.getValue(); i++) {
+                slots.add(entry.getKey());
+            }
+        }
+
+        weighted = slots.toArray(new BenchOperation[0]);
+        uploadContent = new byte[options.uploadSize];
+        new Random(1).nextBytes(uploadContent);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        fileSize = requestFileSize();
+        ExecutorService executor = createExecutor(options.clients);
+        List<Future<?>> clients = new ArrayList<>();
+
+        System.out.println("Running " + options.clients + " clients against " + host + " for "
+                + (options.requests > 0 ? options.requests + " requests" : options.seconds + " s") + ", mix "
+                + options.mix);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < options.clients; i++) {
+            SimulatedClient client = new SimulatedClient(i);
+            clients.add(executor.submit(client::run));
+        }
+
+        if (options.requests == 0) {
+            Thread.sleep(options.seconds * 1000L);
+            stopped = true;
+        }
+
+        for (Future<?> client : clients) {
+            try {
+                client.get();
+            } catch (ExecutionException e) {
+                System.out.println("ERROR: Simulated client failed. " + e.getCause());
+            }
+        }
+
+        executor.shutdown();
+        report(System.nanoTime() - start);
+    }
+
+    // Same lookup as the Server's EXECUTOR=virtual, falling back to a thread per client
+    private static ExecutorService createExecutor(int clients) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("** Virtual threads are not available on this JVM. Using platform threads.");
+            return Executors.newFixedThreadPool(clients);
+        }
+    }
+
+    private long requestFileSize() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("2\n");
+            out.writeUTF(filename);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+            return in.readLong();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Multiplexer shared = Client.multiplexer(host, port);
+
+        if (shared != null) {
+            return shared.openSocket();
+        }
+
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    private static void expect(String status, String expected) throws IOException {
+        if (!status.equals(expected)) {
+            throw new IOException(status);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        OperationStats total = new OperationStats();
+
+        System.out.println();
+        System.out.println(String.format("Finished in %.1f s", seconds));
+        System.out.println(String.format("%-9s %9s %7s %10s %9s %9s %9s %9s %9s", "operation", "requests", "errors",
+                "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+
+        for (Map.Entry<BenchOperation, OperationStats> entry : stats.entrySet()) {
+            OperationStats operation = entry.getValue();
+            printRow(entry.getKey().name(), operation, seconds);
+            total.requests.add(operation.requests.sum());
+            total.errors.add(operation.errors.sum());
+            total.bytes.add(operation.bytes.sum());
+            total.latency.add(operation.latency);
+        }
+
+        printRow("total", total, seconds);
+
+        for (Map.Entry<BenchOperation, OperationStats> entry : stats.entrySet()) {
+            for (Map.Entry<String, LongAdder> error : new TreeMap<>(entry.getValue().errorMessages).entrySet()) {
+                System.out.println("** " + entry.getKey() + " failed " + error.getValue().sum() + " times: "
+                        + error.getKey());
+            }
+        }
+    }
+
+    private static void printRow(String name, OperationStats operation, double seconds) {
+        LatencyHistogram latency = operation.latency;
+        System.out.println(String.format("%-9s %9d %7d %10.1f %9.2f %9.3f %9.3f %9.3f %9.3f", name,
+                operation.requests.sum(), operation.errors.sum(), operation.requests.sum() / seconds,
+                operation.bytes.sum() / seconds / (1024 * 1024), latency.percentile(0.5) / 1000.0,
+                latency.percentile(0.9) / 1000.0, latency.percentile(0.99) / 1000.0,
+                latency.percentile(0.999) / 1000.0));
+    }
+
+    // One simulated user. Keeps its own random stream, read buffer and HTTP connection.
+    private class SimulatedClient {
+        private final int index;
+        private final Random random;
+        private final byte[] buffer = new byte[64 * 1024];
+        private long uploads = 0;
+        private Socket httpSocket;
+        private DataInputStream httpIn;
+
+        SimulatedClient(int index) {
+            this.index = index;
+            this.random = new Random(index);
+        }
+
+        void run() {
+            try {
+                while (!stopped) {
+                    if (options.requests > 0 && issued.incrementAndGet() > options.requests) {
+                        break;
+                    }
+
+                    BenchOperation operation = weighted[random.nextInt(weighted.length)];
+                    OperationStats operationStats = stats.get(operation);
+                    long begin = System.nanoTime();
+
+                    try {
+                        long transferred = perform(operation);
+                        operationStats.record(System.nanoTime() - begin, transferred);
+                    } catch (IOException e) {
+                        operationStats.error(e);
+
+                        if (operation == BenchOperation.http) {
+                            closeHttp();
+                        }
+                    }
+                }
+            } finally {
+                closeHttp();
+            }
+        }
+
+        private long perform(BenchOperation operation) throws IOException {
+            switch (operation) {
+            case range:
+                if (fileSize > 0) {
+                    long start = (long) (random.nextDouble() * fileSize);
+                    long length = 1 + (long) (random.nextDouble() * Math.min(MAX_RANGE, fileSize - start - 1));
+                    return download(start, start + length);
+                }
+
+                return download(0, 0);
+            case write:
+                return upload();
+            case http:
+                return httpGet();
+            default:
+                return download(0, 0);
+            }
+        }
+
+        // READ of [start, end), or of the whole file when end is 0
+        private long download(long start, long end) throws IOException {
+            try (Socket socket = connect()) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                out.writeUTF("0\n");
+                out.writeUTF(filename);
+                out.flush();
+                expect(in.readUTF(), "OkToRead");
+
+                out.writeLong(start);
+                out.writeLong(end);
+                out.flush();
+
+                if (end > 0) {
+                    expect(in.readUTF(), "OkToRead");
+                }
+
+                return drain(in);
+            }
+        }
+
+        // Legacy WRITE of the generated content under a new name. Done once the server has
+        // stored it and closed the connection.
+        private long upload() throws IOException {
+            String name = "bench-" + runId + "-" + index + "-" + (uploads++);
+
+            try (Socket socket = connect()) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                out.writeUTF("1\n");
+                out.writeUTF(name);
+                out.flush();
+                expect(in.readUTF(), "OkToWrite");
+
+                out.write(uploadContent);
+                out.flush();
+                socket.shutdownOutput();
+                drain(in);
+                return uploadContent.length;
+            }
+        }
+
+        private long httpGet() throws IOException {
+            if (httpSocket == null) {
+                httpSocket = connect();
+                httpIn = new DataInputStream(new BufferedInputStream(httpSocket.getInputStream()));
+            }
+
+            String request = "GET /" + filename + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+            httpSocket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+
+            String status = readLine(httpIn);
+
+            if (!status.startsWith("HTTP/1.1 200")) {
+                throw new IOException(status.isEmpty() ? "Empty HTTP response" : status);
+            }
+
+            long length = 0;
+            boolean close = false;
+            String header;
+
+            while (!(header = readLine(httpIn)).isEmpty()) {
+                String lower = header.toLowerCase();
+
+                if (lower.startsWith("content-length:")) {
+                    length = Long.parseLong(header.substring(15).trim());
+                } else if (lower.equals("connection: close")) {
+                    close = true;
+                }
+            }
+
+            for (long left = length; left > 0;) {
+                int read = httpIn.read(buffer, 0, (int) Math.min(buffer.length, left));
+
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-body");
+                }
+
+                left -= read;
+            }
+
+            if (close) {
+                closeHttp(); // The server's per-connection request limit was reached
+            }
+
+            return length;
+        }
+
+        private long drain(InputStream in) throws IOException {
+            long received = 0;
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                received += read;
+            }
+
+            return received;
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed mid-response");
+                }
+
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+
+            return line.toString();
+        }
+
+        private void closeHttp() {
+            if (httpSocket == null) {
+                return;
+            }
+
+            try {
+                httpSocket.close();
+            } catch (IOException ignored) {
+            }
+
+            httpSocket = null;
+            httpIn = null;
+        }
+    }
+}
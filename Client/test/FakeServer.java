@@ -0,0 +1,118 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stands in for the Server in Client tests. Every connection is read up to its mode line and
+// filename, which are recorded, and then handed to the test's handler. A server created with
+// multiplexing accepts the "MUX/1" preface and serves each stream like a connection; one
+// without closes such connections, as a Server that does not know the preface would.
+class FakeServer implements AutoCloseable {
+    interface Handler {
+        void handle(String mode, String filename, DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    final int port;
+    // "<mode> <filename>" of every request, in arrival order
+    final List<String> requests = new CopyOnWriteArrayList<>();
+    // TCP connections accepted, and those still open
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger openConnections = new AtomicInteger();
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final boolean multiplexing;
+
+    FakeServer(Handler handler) throws IOException {
+        this(handler, false);
+    }
+
+    FakeServer(Handler handler, boolean multiplexing) throws IOException {
+        this.handler = handler;
+        this.multiplexing = multiplexing;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.port = serverSocket.getLocalPort();
+
+        Thread acceptor = new Thread(this::accept, "fake-server-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> serveConnection(socket));
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        openConnections.incrementAndGet();
+
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            in.mark(2);
+
+            // A request starts with the two length bytes of its mode line, the preface with "MU"
+            if (in.read() != 'M' || in.read() != 'U') {
+                in.reset();
+                serve(connection, in);
+                return;
+            }
+
+            while (in.read() > '\n') {
+                // Rest of the preface line
+            }
+
+            if (multiplexing) {
+                Multiplexer mux = Multiplexer.accept(connection, in, connection.getOutputStream());
+                mux.serve(stream -> {
+                    Thread thread = new Thread(() -> {
+                        try {
+                            serve(new MuxSocket(stream, connection.getInetAddress()), null);
+                        } catch (IOException e) {
+                            stream.close();
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                });
+            }
+        } catch (IOException e) {
+            // The client went away, as some tests make it do
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    // One request on a connection or stream. in is the connection's already buffered input.
+    private void serve(Socket socket, InputStream in) throws IOException {
+        try {
+            DataInputStream dataIn = new DataInputStream(in != null ? in : socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            String mode = dataIn.readUTF().trim();
+            String filename = dataIn.readUTF();
+            requests.add(mode + " " + filename);
+            handler.handle(mode, filename, dataIn, out);
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,264 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// FileClient and its ConnectionPool against a FakeServer that keeps its files in memory
+class FileClientTest {
+    @TempDir
+    Path directory;
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    // Upload sessions: the bytes so far and the SHA-256 the finished file must have
+    private final Map<String, byte[]> uploads = new ConcurrentHashMap<>();
+    private final Map<String, String> uploadHashes = new ConcurrentHashMap<>();
+    // Requests being served, and the most there were at once
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private volatile long delayMillis = 0;
+
+    private byte[] content;
+    private FakeServer server;
+    private ConnectionPool pool;
+    private FileClient client;
+
+    @BeforeEach
+    void createContent() {
+        content = new byte[200 * 1024];
+        new Random(7).nextBytes(content);
+        files.put("pooled.bin", content);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        client.close();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    void requestsShareOneMultiplexedConnection() throws Exception {
+        start(true, new ConnectionPool(4, 16, 30000));
+        Path target = directory.resolve("pooled.bin");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(content.length, (long) client.download("pooled.bin", target).get());
+            assertArrayEquals(content, Files.readAllBytes(target));
+        }
+
+        assertEquals(content.length, (long) client.size("pooled.bin").get());
+        client.upload(target, "uploaded.bin").get();
+
+        assertArrayEquals(content, files.get("uploaded.bin"));
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    void concurrentRequestsStayWithinThePoolLimits() throws Exception {
+        start(true, new ConnectionPool(2, 4, 30000));
+        delayMillis = 50;
+
+        assertAllDownloaded(20);
+
+        assertTrue(server.connections.get() <= 2, server.connections + " connections");
+        assertTrue(peak.get() <= 8, peak + " requests at once");
+    }
+
+    // The per-connection protocol closes after every request, so each one gets its own
+    @Test
+    void serverWithoutMultiplexingGetsAConnectionPerRequest() throws Exception {
+        start(false, new ConnectionPool(2, 16, 30000));
+        delayMillis = 50;
+
+        assertAllDownloaded(6);
+
+        assertEquals(6, server.requests.size());
+        assertTrue(peak.get() <= 2, peak + " requests at once");
+    }
+
+    @Test
+    void idleConnectionsAreClosed() throws Exception {
+        start(true, new ConnectionPool(4, 16, 200));
+        client.size("pooled.bin").get();
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (server.openConnections.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(0, server.openConnections.get());
+
+        // The next request opens a new connection
+        assertEquals(content.length, (long) client.size("pooled.bin").get());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    void missingFileFailsTheFuture() throws Exception {
+        start(true, new ConnectionPool(4, 16, 30000));
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.download("missing.bin", directory.resolve("missing.bin")).get());
+
+        assertInstanceOf(FileNotFoundException.class, e.getCause());
+        assertEquals(content.length, (long) client.size("pooled.bin").get());
+    }
+
+    // The connection drops halfway through the range, which must not cost the caller its old copy
+    @Test
+    void failedRangedDownloadLeavesTheTarget() throws Exception {
+        start(true, new ConnectionPool(4, 16, 30000));
+        files.put("broken.bin", content);
+        Path target = directory.resolve("broken.bin");
+        Files.write(target, "previous copy".getBytes());
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.downloadRange("broken.bin", 0, 1000, target).get());
+
+        assertInstanceOf(IOException.class, e.getCause());
+        assertArrayEquals("previous copy".getBytes(), Files.readAllBytes(target));
+
+        try (Stream<Path> left = Files.list(directory)) {
+            assertEquals(1, left.count()); // No temporary file left behind
+        }
+    }
+
+    private void assertAllDownloaded(int count) throws Exception {
+        List<CompletableFuture<Long>> downloads = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            downloads.add(client.download("pooled.bin", directory.resolve(i + ".bin")));
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(content.length, (long) downloads.get(i).get());
+            assertArrayEquals(content, Files.readAllBytes(directory.resolve(i + ".bin")));
+        }
+    }
+
+    private void start(boolean multiplexing, ConnectionPool connectionPool) throws IOException {
+        server = new FakeServer(this::handle, multiplexing);
+        pool = connectionPool;
+        client = new FileClient(pool, "localhost", server.port);
+    }
+
+    private void handle(String mode, String filename, DataInputStream in, DataOutputStream out) throws IOException {
+        peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+
+        try {
+            Thread.sleep(delayMillis);
+
+            switch (mode) {
+            case "0":
+                read(filename, in, out);
+                break;
+            case "2":
+                if (reply(filename, out)) {
+                    out.writeLong(files.get(filename).length);
+                }
+                break;
+            case "3h":
+                uploads.put(filename, new byte[(int) in.readLong()]);
+                uploadHashes.put(filename, in.readUTF());
+                out.writeUTF("OkToWrite");
+                break;
+            case "5":
+                // Reports the whole file as missing, so chunks are always sent in one piece
+                byte[] upload = uploads.get(filename);
+                out.writeUTF("OkUploadInProgress");
+                out.writeLong(upload.length);
+                out.writeLong(0);
+                out.writeInt(1);
+                out.writeLong(0);
+                out.writeLong(upload.length);
+                break;
+            case "4":
+                receiveChunk(filename, in, out);
+                break;
+            default:
+                throw new IOException("Unexpected mode " + mode);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void read(String filename, DataInputStream in, DataOutputStream out) throws IOException {
+        if (!reply(filename, out)) {
+            return;
+        }
+
+        byte[] file = files.get(filename);
+        int skip = (int) in.readLong();
+        long end = in.readLong();
+
+        if (end > 0) {
+            out.writeUTF("OkToRead");
+        }
+
+        int length = (int) (end > 0 ? end : file.length) - skip;
+        out.write(file, skip, filename.equals("broken.bin") ? length / 2 : length);
+    }
+
+    private void receiveChunk(String filename, DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] upload = uploads.get(filename);
+        int offset = (int) in.readLong();
+        int length = (int) in.readLong();
+        out.writeUTF("OkToWrite");
+        out.flush();
+        in.readFully(upload, offset, length);
+
+        if (!sha256(upload).equals(uploadHashes.get(filename))) {
+            out.writeUTF("ErrChecksumMismatch");
+            return;
+        }
+
+        uploads.remove(filename);
+        files.put(filename, upload);
+        out.writeUTF("OkUploadComplete");
+    }
+
+    private boolean reply(String filename, DataOutputStream out) throws IOException {
+        out.writeUTF(files.containsKey(filename) ? "OkToRead" : "ErrFileDoesNotExist");
+        return files.containsKey(filename);
+    }
+
+    private static String sha256(byte[] data) throws IOException {
+        try {
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
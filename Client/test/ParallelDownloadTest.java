@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Client.processParallelDownload against a FakeServer answering SIZE and ranged READs
+class ParallelDownloadTest {
+    private static final byte[] PREVIOUS = "previous copy".getBytes();
+    private static byte[] content;
+
+    @BeforeAll
+    static void createContent() {
+        content = new byte[40000];
+        new Random(7).nextBytes(content);
+        new File("Files").mkdirs();
+    }
+
+    @Test
+    void segmentsReplaceTheLocalCopy() throws Exception {
+        String name = "parallel-whole.bin";
+        Files.write(new File("Files/" + name).toPath(), PREVIOUS);
+
+        try (FakeServer server = serve(false)) {
+            new Client().processParallelDownload("localhost", server.port, name, 4);
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(new File("Files/" + name).toPath()));
+        assertFalse(new File("Files/" + name + ".part").exists());
+    }
+
+    // One segment is cut short, so the local copy stays as it was
+    @Test
+    void failedSegmentLeavesTheLocalCopy() throws Exception {
+        String name = "parallel-cut.bin";
+        Files.write(new File("Files/" + name).toPath(), PREVIOUS);
+
+        try (FakeServer server = serve(true)) {
+            new Client().processParallelDownload("localhost", server.port, name, 4);
+        }
+
+        assertArrayEquals(PREVIOUS, Files.readAllBytes(new File("Files/" + name).toPath()));
+        assertFalse(new File("Files/" + name + ".part").exists());
+    }
+
+    // With cutLast the segment that ends the file gets half of its bytes
+    private static FakeServer serve(boolean cutLast) throws Exception {
+        return new FakeServer((mode, filename, in, out) -> {
+            if (mode.equals("2")) {
+                out.writeUTF("OkFileSize");
+                out.writeLong(content.length);
+            } else {
+                out.writeUTF("OkToRead");
+                int start = (int) in.readLong();
+                int end = (int) in.readLong();
+                out.writeUTF("OkToRead");
+
+                if (cutLast && end == content.length) {
+                    end = start + (end - start) / 2;
+                }
+
+                out.write(content, start, end - start);
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Client.processParallelUpload against a FakeServer that loses its upload sessions
+class ParallelUploadTest {
+    private static byte[] content;
+
+    @BeforeAll
+    static void createContent() {
+        content = new byte[30000];
+        new Random(8).nextBytes(content);
+        new File("Files").mkdirs();
+    }
+
+    // The session is gone by the time its status is asked for, so the upload starts over
+    @Test
+    void lostSessionIsOpenedAgain() throws Exception {
+        String name = "upload-lost.bin";
+        Files.write(new File("Files/" + name).toPath(), content);
+        SessionServer sessions = new SessionServer(1);
+
+        try (FakeServer server = new FakeServer(sessions::handle)) {
+            new Client().processParallelUpload("localhost", server.port, name, 1);
+        }
+
+        assertEquals(2, sessions.opened.get());
+        assertArrayEquals(content, sessions.stored.get(name));
+    }
+
+    @Test
+    void sessionThatKeepsGettingLostFailsTheUpload() throws Exception {
+        String name = "upload-never.bin";
+        Files.write(new File("Files/" + name).toPath(), content);
+        SessionServer sessions = new SessionServer(Integer.MAX_VALUE);
+
+        try (FakeServer server = new FakeServer(sessions::handle)) {
+            new Client().processParallelUpload("localhost", server.port, name, 1);
+
+            assertFalse(server.requests.contains("4 " + name));
+        }
+
+        assertEquals(2, sessions.opened.get());
+    }
+
+    // Opens sessions (3h), reports them (5) and takes whole-file chunks (4). The first drops
+    // status requests find no session, as after a server restart.
+    private static class SessionServer {
+        final AtomicInteger opened = new AtomicInteger();
+        final Map<String, byte[]> uploads = new ConcurrentHashMap<>();
+        final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+        private final AtomicInteger drops;
+
+        SessionServer(int drops) {
+            this.drops = new AtomicInteger(drops);
+        }
+
+        void handle(String mode, String filename, DataInputStream in, DataOutputStream out) throws IOException {
+            switch (mode) {
+            case "3h":
+                uploads.put(filename, new byte[(int) in.readLong()]);
+                in.readUTF();
+                opened.incrementAndGet();
+                out.writeUTF("OkToWrite");
+                break;
+            case "5":
+                byte[] upload = uploads.get(filename);
+
+                if (drops.getAndDecrement() > 0) {
+                    uploads.remove(filename);
+                    out.writeUTF("ErrNoUploadSession");
+                    break;
+                }
+
+                out.writeUTF("OkUploadInProgress");
+                out.writeLong(upload.length);
+                out.writeLong(0);
+                out.writeInt(1);
+                out.writeLong(0);
+                out.writeLong(upload.length);
+                break;
+            case "4":
+                byte[] chunked = uploads.remove(filename);
+                int offset = (int) in.readLong();
+                int length = (int) in.readLong();
+                out.writeUTF("OkToWrite");
+                out.flush();
+                in.readFully(chunked, offset, length);
+                stored.put(filename, chunked);
+                out.writeUTF("OkUploadComplete");
+                break;
+            default:
+                throw new IOException("Unexpected mode " + mode);
+            }
+        }
+    }
+}
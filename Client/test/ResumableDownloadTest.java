@@ -0,0 +1,130 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Client.processResumableDownload against a FakeServer serving one version of a file
+class ResumableDownloadTest {
+    private static final long MTIME = 1700000000000L;
+    private static byte[] content;
+    private static String hash;
+    // Skip field of the last READ the FakeServer answered
+    private static volatile long skipAsked;
+
+    @BeforeAll
+    static void createContent() throws Exception {
+        content = new byte[50000];
+        new Random(6).nextBytes(content);
+        new File("Files").mkdirs();
+        File source = new File("Files/resume-source.tmp");
+        Files.write(source.toPath(), content);
+        hash = Client.sha256(source);
+        Files.delete(source.toPath());
+    }
+
+    @Test
+    void resumesAPartialFileOfTheSameVersion() throws Exception {
+        String name = "resume-same.bin";
+        writePart(name, 20000, MTIME, hash);
+
+        try (FakeServer server = serve(hash)) {
+            new Client().processResumableDownload("localhost", server.port, name);
+
+            assertEquals("0 " + name, server.requests.get(1));
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(new File("Files/" + name).toPath()));
+        assertFalse(new File("Files/" + name + ".part").exists());
+        assertFalse(new File("Files/" + name + ".part.meta").exists());
+        assertEquals(20000, skipAsked);
+    }
+
+    // A .part of a file that has since changed on the server is thrown away
+    @Test
+    void startsOverWhenTheServerFileChanged() throws Exception {
+        String name = "resume-changed.bin";
+        writePart(name, 20000, MTIME - 1000, hash);
+
+        try (FakeServer server = serve(hash)) {
+            new Client().processResumableDownload("localhost", server.port, name);
+        }
+
+        assertEquals(0, skipAsked);
+        assertArrayEquals(content, Files.readAllBytes(new File("Files/" + name).toPath()));
+    }
+
+    @Test
+    void dropsADownloadThatDoesNotMatchTheHash() throws Exception {
+        String name = "resume-corrupt.bin";
+
+        try (FakeServer server = serve("0".repeat(64))) {
+            new Client().processResumableDownload("localhost", server.port, name);
+        }
+
+        assertFalse(new File("Files/" + name).exists());
+        assertFalse(new File("Files/" + name + ".part").exists());
+    }
+
+    @Test
+    void keepsTheTailForTheNextRun() throws Exception {
+        String name = "resume-cut.bin";
+
+        // The connection drops after 30000 bytes
+        try (FakeServer server = serve(hash, 30000)) {
+            new Client().processResumableDownload("localhost", server.port, name);
+        }
+
+        assertFalse(new File("Files/" + name).exists());
+        assertEquals(30000, new File("Files/" + name + ".part").length());
+
+        try (FakeServer server = serve(hash)) {
+            new Client().processResumableDownload("localhost", server.port, name);
+        }
+
+        assertEquals(30000, skipAsked);
+        assertArrayEquals(content, Files.readAllBytes(new File("Files/" + name).toPath()));
+    }
+
+    private static FakeServer serve(String reportedHash) throws Exception {
+        return serve(reportedHash, content.length);
+    }
+
+    // Answers SIZE with the info flag and READ of any range, sending at most sendLimit bytes
+    private static FakeServer serve(String reportedHash, int sendLimit) throws Exception {
+        return new FakeServer((mode, filename, in, out) -> {
+            if (mode.equals("2i")) {
+                out.writeUTF("OkFileInfo");
+                out.writeLong(content.length);
+                out.writeLong(MTIME);
+                out.writeUTF(reportedHash);
+            } else {
+                out.writeUTF("OkToRead");
+                long skip = in.readLong();
+                in.readLong();
+                skipAsked = skip;
+                out.write(content, (int) skip, (int) (Math.min(sendLimit, content.length) - skip));
+            }
+        });
+    }
+
+    // A .part holding the first length bytes, saved for the given version
+    private static void writePart(String name, int length, long mtime, String partHash) throws Exception {
+        try (FileOutputStream part = new FileOutputStream("Files/" + name + ".part")) {
+            part.write(content, 0, length);
+        }
+
+        try (DataOutputStream meta = new DataOutputStream(new FileOutputStream("Files/" + name + ".part.meta"))) {
+            meta.writeLong(content.length);
+            meta.writeLong(mtime);
+            meta.writeUTF(partHash);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers shared by every transfer loop so steady-state transfers do not allocate.
+// Buffers come in power-of-two size classes from 4 KB to 4 MB, and each class keeps at most
+// 32 MB (and at most 256 buffers) around; anything beyond that is left to the GC.
+class BufferPool {
+    static final int MIN_SIZE = 4 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_SHIFT = 12;
+    private static final int CLASS_COUNT = 11; // 4 KB .. 4 MB
+    private static final long MAX_POOLED_BYTES_PER_CLASS = 32L * 1024 * 1024;
+
+    static final BufferPool shared = new BufferPool();
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>(CLASS_COUNT);
+    private final AtomicInteger[] pooled = new AtomicInteger[CLASS_COUNT];
+
+    private BufferPool() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    // Returns a cleared buffer with a capacity of at least size, rounded up to a size class
+    public ByteBuffer acquire(int size) {
+        int sizeClass = classFor(size);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+        }
+
+        pooled[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1
+                || buffer.capacity() < MIN_SIZE || buffer.capacity() > MAX_SIZE) {
+            return; // Not one of ours
+        }
+
+        int sizeClass = classFor(buffer.capacity());
+
+        if (pooled[sizeClass].incrementAndGet() > Math.min(256, MAX_POOLED_BYTES_PER_CLASS / buffer.capacity())) {
+            pooled[sizeClass].decrementAndGet();
+            return;
+        }
+
+        free.get(sizeClass).offer(buffer);
+    }
+
+    private static int classFor(int size) {
+        int rounded = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+        return 32 - Integer.numberOfLeadingZeros(rounded - 1) - MIN_SHIFT;
+    }
+}
+
+// Picks the size of each read or write in a transfer loop. Starts from the transfer size
+// (capped at 256 KB), doubles while chunks go through full and fast, and halves when a chunk
+// is slow or a read comes back mostly empty. The socket's send or receive buffer is raised to
+// match as the chunk grows so each chunk fits in one system call.
+class ChunkSizer {
+    private static final int INITIAL_MAX = 256 * 1024;
+    private static final long FAST_NANOS = 5_000_000; // 5 ms
+    private static final long SLOW_NANOS = 50_000_000; // 50 ms
+
+    private final Socket socket;
+    private final boolean sending;
+    private int size;
+    private int socketBufferSize = 0;
+
+    // socket may be null for transfers that do not touch the network
+    public ChunkSizer(long totalBytes, Socket socket, boolean sending) {
+        this.socket = socket;
+        this.sending = sending;
+        long wanted = Math.max(BufferPool.MIN_SIZE, Math.min(INITIAL_MAX, totalBytes));
+        this.size = Integer.highestOneBit((int) wanted - 1) << 1;
+        matchSocketBuffer();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Size for the next chunk, no larger than what is left
+    public int next(long remaining) {
+        return (int) Math.min(size, remaining);
+    }
+
+    public void record(long bytes, long nanos) {
+        if (bytes >= size && nanos < FAST_NANOS && size < BufferPool.MAX_SIZE) {
+            size <<= 1;
+            matchSocketBuffer();
+        } else if ((nanos > SLOW_NANOS || bytes < size / 4) && size > BufferPool.MIN_SIZE) {
+            size >>= 1;
+        }
+    }
+
+    private void matchSocketBuffer() {
+        if (socket == null || size <= socketBufferSize) {
+            return;
+        }
+
+        try {
+            if (sending) {
+                if (socket.getSendBufferSize() < size) {
+                    socket.setSendBufferSize(size);
+                }
+
+                socketBufferSize = socket.getSendBufferSize();
+            } else {
+                if (socket.getReceiveBufferSize() < size) {
+                    socket.setReceiveBufferSize(size);
+                }
+
+                socketBufferSize = socket.getReceiveBufferSize();
+            }
+
+            // The kernel may cap the size below what was asked for, do not ask again
+            socketBufferSize = Math.max(socketBufferSize, size);
+        } catch (SocketException e) {
+            socketBufferSize = Integer.MAX_VALUE; // Closed socket or unsupported option
+        }
+    }
+}
+
@@ -0,0 +1,111 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent-hash ring over the nodes of a cluster, each named host:port. Every node is
+// placed at VIRTUAL_NODES points of the ring, and a file is owned by the first `replicas`
+// distinct nodes found walking clockwise from the hash of its name. Adding or removing a node
+// only moves the files next to its points. Server and Client build the same ring from the
+// same node list, so a Client can send a request straight to an owner.
+class ClusterRing {
+    static final int VIRTUAL_NODES = 64;
+
+    final List<String> nodes;
+    final int replicas;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ClusterRing(List<String> nodes, int replicas) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.replicas = Math.min(replicas, nodes.size());
+
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // The nodes holding a file, primary first
+    public List<String> owners(String name) {
+        List<String> owners = new ArrayList<>();
+
+        if (ring.isEmpty()) {
+            return owners;
+        }
+
+        Long start = ring.ceilingKey(hash(name));
+        Map<Long, String> clockwise = start != null ? ring.tailMap(start) : ring;
+        collect(clockwise, owners);
+
+        if (owners.size() < replicas) {
+            collect(ring, owners); // Wrap around
+        }
+
+        return owners;
+    }
+
+    private void collect(Map<Long, String> points, List<String> owners) {
+        for (String node : points.values()) {
+            if (owners.size() >= replicas) {
+                return;
+            }
+
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(replicas);
+        out.writeInt(nodes.size());
+
+        for (String node : nodes) {
+            out.writeUTF(node);
+        }
+    }
+
+    public static ClusterRing read(DataInputStream in) throws IOException {
+        int replicas = in.readInt();
+        int count = in.readInt();
+        List<String> nodes = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            nodes.add(in.readUTF());
+        }
+
+        return new ClusterRing(nodes, replicas);
+    }
+
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    public static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    // First 8 bytes of the SHA-256, so points spread evenly whatever the names look like
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (digest[i] & 0xff);
+            }
+
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
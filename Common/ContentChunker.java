@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+// Splits a stream into content-defined chunks for deduplicated uploads. A gear hash runs over
+// the bytes and a chunk ends where its top bits are all zero, so boundaries depend on the
+// nearby content only: an insertion early in a file shifts the bytes after it, but the
+// boundaries, and with them the chunks, are found again. Chunks are MIN_SIZE to MAX_SIZE
+// bytes. A stricter mask before AVERAGE_SIZE and a looser one after keep most chunks close
+// to the average (normalized chunking, as in FastCDC).
+class ContentChunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    // Bit i of the gear hash depends on the last i + 1 bytes only, so the masks test the top bits
+    private static final long MASK_BEFORE_AVERAGE = -1L << (64 - 18);
+    private static final long MASK_AFTER_AVERAGE = -1L << (64 - 14);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // java.util.Random's sequence is fixed by its specification, so every JVM builds this table
+        Random random = new Random(0x6765617243444331L);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] window = new byte[2 * MAX_SIZE];
+    private int start = 0;
+    private int limit = 0;
+    private boolean endOfStream = false;
+
+    public ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    // Returns the next chunk, or null at the end of the stream
+    public byte[] next() throws IOException {
+        if (limit - start < MAX_SIZE && !endOfStream) {
+            fill();
+        }
+
+        if (start == limit) {
+            return null;
+        }
+
+        int length = cut(window, start, limit - start);
+        byte[] chunk = Arrays.copyOfRange(window, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    // Length of the chunk at the start of data[offset, offset + length)
+    static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+
+        int normal = Math.min(length, AVERAGE_SIZE);
+        int max = Math.min(length, MAX_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+
+            if ((hash & MASK_BEFORE_AVERAGE) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < max; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+
+            if ((hash & MASK_AFTER_AVERAGE) == 0) {
+                return i + 1;
+            }
+        }
+
+        return max;
+    }
+
+    // Chunks are named by the hex SHA-256 of their bytes
+    static String hash(byte[] chunk) {
+        try {
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(chunk)) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Moves the unread bytes to the front and reads until the window is full or the stream ends
+    private void fill() throws IOException {
+        System.arraycopy(window, start, window, 0, limit - start);
+        limit -= start;
+        start = 0;
+
+        while (limit < window.length) {
+            int read = in.read(window, limit, window.length - limit);
+
+            if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+
+            limit += read;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of microsecond values in the style of HdrHistogram. Every power of two
+// is split into 16 linear sub-buckets, so a recorded value is placed within 1/16 (about 6%) of
+// its true value. Recording is one atomic increment and never locks. The fine buckets are
+// folded into Prometheus' cumulative `le` buckets for /metrics and read back as percentiles by
+// the Client's load generator.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 us is about 12 days
+    private static final double[] BOUNDS_SECONDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30, 60 };
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    public void record(long micros) {
+        micros = Math.max(0, Math.min(micros, (1L << MAX_EXPONENT) - 1));
+        counts.incrementAndGet(indexFor(micros));
+        sumMicros.add(micros);
+        count.increment();
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Exclusive upper end of a bucket's values
+    static long upperBoundOf(int index) {
+        int row = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+
+        if (row == 0) {
+            return subBucket + 1;
+        }
+
+        int shift = row - 1;
+        return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    // Value in microseconds that a fraction q of the recorded values do not exceed, rounded up
+    // to the end of its bucket. 0 when nothing was recorded.
+    public long percentile(double q) {
+        long total = count.sum();
+        long wanted = Math.max(1, (long) Math.ceil(q * total));
+        long cumulative = 0;
+
+        for (int index = 0; index < counts.length() && total > 0; index++) {
+            cumulative += counts.get(index);
+
+            if (cumulative >= wanted) {
+                return upperBoundOf(index) - 1;
+            }
+        }
+
+        return 0;
+    }
+
+    // Merges other's values into this one
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < counts.length(); index++) {
+            long n = other.counts.get(index);
+
+            if (n > 0) {
+                counts.addAndGet(index, n);
+            }
+        }
+
+        sumMicros.add(other.sumMicros.sum());
+        count.add(other.count.sum());
+    }
+
+    // A fine bucket that straddles a bound is counted in the next bound up
+    public void render(StringBuilder text, String name, String labels) {
+        long cumulative = 0;
+        int index = 0;
+
+        for (double bound : BOUNDS_SECONDS) {
+            long boundMicros = (long) (bound * 1_000_000);
+
+            while (index < counts.length() && upperBoundOf(index) - 1 <= boundMicros) {
+                cumulative += counts.get(index++);
+            }
+
+            text.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString()).append("\"} ").append(cumulative).append('\n');
+        }
+
+        long total = count.sum();
+        text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+        text.append(name).append("_sum{").append(labels).append("} ").append(sumMicros.sum() / 1e6).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.*;
+
+// Fast LZ77 block codec. Input is cut into 64 KB blocks, each written as
+// [int rawLength][int encodedLength][encoded bytes]. An encodedLength of 0 means the block
+// is stored as is because it did not shrink. A rawLength of 0 ends the stream.
+//
+// Encoded blocks are sequences of: token (high nibble literal length, low nibble match
+// length - 4), extra literal length bytes, literals, 2-byte little endian match offset,
+// extra match length bytes. Lengths of 15 and more continue in bytes of 255 plus a
+// remainder. The last sequence of a block has literals only.
+class LzCodec {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 13;
+    private static final int MAX_OFFSET = 65535;
+
+    // Returns the encoded length, or 0 if the block would not shrink
+    static int compressBlock(byte[] src, int length, byte[] dst) {
+        int[] table = new int[1 << HASH_BITS];
+        java.util.Arrays.fill(table, -1);
+
+        int i = 0;
+        int anchor = 0;
+        int op = 0;
+        int limit = length - MIN_MATCH;
+
+        while (i < limit) {
+            int sequence = readInt(src, i);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = i;
+
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                i++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+
+            while (i + matchLength < length && src[ref + matchLength] == src[i + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, i - anchor, dst, op, i - ref, matchLength);
+
+            if (op < 0) {
+                return 0;
+            }
+
+            i += matchLength;
+            anchor = i;
+        }
+
+        op = writeSequence(src, anchor, length - anchor, dst, op, 0, 0);
+        return op < 0 || op >= length ? 0 : op;
+    }
+
+    // Writes one sequence. A matchLength of 0 writes the final literal-only sequence.
+    // Returns the new output position, or -1 if dst is too small.
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op,
+            int offset, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+
+        if (op + 1 + literalLength / 255 + 1 + literalLength + 2 + matchCode / 255 + 1 > dst.length) {
+            return -1;
+        }
+
+        dst[op++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+
+        if (matchLength == 0) {
+            return op;
+        }
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(dst, op, matchCode);
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < 15) {
+            return op;
+        }
+
+        length -= 15;
+
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    static void decompressBlock(byte[] src, int encodedLength, byte[] dst, int rawLength) throws IOException {
+        int ip = 0;
+        int op = 0;
+
+        try {
+            while (ip < encodedLength) {
+                int token = src[ip++] & 0xFF;
+                int literalLength = token >>> 4;
+
+                if (literalLength == 15) {
+                    int extra;
+
+                    do {
+                        extra = src[ip++] & 0xFF;
+                        literalLength += extra;
+                    } while (extra == 255);
+                }
+
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+
+                if (ip >= encodedLength) {
+                    break;
+                }
+
+                int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+                int matchLength = token & 0x0F;
+
+                if (matchLength == 15) {
+                    int extra;
+
+                    do {
+                        extra = src[ip++] & 0xFF;
+                        matchLength += extra;
+                    } while (extra == 255);
+                }
+
+                matchLength += MIN_MATCH;
+
+                // Byte by byte since the match may overlap what it is copying
+                for (int k = 0; k < matchLength; k++) {
+                    dst[op + k] = dst[op - offset + k];
+                }
+
+                op += matchLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ block");
+        }
+
+        if (op != rawLength) {
+            throw new IOException("Corrupt LZ block");
+        }
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 3] & 0xFF) << 24);
+    }
+}
+
+class LzOutputStream extends FilterOutputStream {
+    private final byte[] block = new byte[LzCodec.BLOCK_SIZE];
+    private final byte[] encoded = new byte[LzCodec.BLOCK_SIZE];
+    private final DataOutputStream out;
+    private int count = 0;
+
+    public LzOutputStream(OutputStream out) {
+        super(out);
+        this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+
+        if (count == block.length) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+
+            if (count == block.length) {
+                flushBlock();
+            }
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        int encodedLength = LzCodec.compressBlock(block, count, encoded);
+        out.writeInt(count);
+        out.writeInt(encodedLength);
+
+        if (encodedLength == 0) {
+            out.write(block, 0, count);
+        } else {
+            out.write(encoded, 0, encodedLength);
+        }
+
+        count = 0;
+    }
+
+    // Writes the last block and the end marker without closing the underlying stream
+    public void finish() throws IOException {
+        flushBlock();
+        out.writeInt(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
+
+class LzInputStream extends InputStream {
+    private final DataInputStream in;
+    private final byte[] encoded = new byte[LzCodec.BLOCK_SIZE];
+    private final byte[] block = new byte[LzCodec.BLOCK_SIZE];
+    private int position = 0;
+    private int count = 0;
+    private boolean finished = false;
+
+    public LzInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(len, count - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private boolean fill() throws IOException {
+        while (position == count) {
+            if (finished) {
+                return false;
+            }
+
+            int rawLength = in.readInt();
+
+            if (rawLength == 0) {
+                finished = true;
+                return false;
+            }
+
+            if (rawLength > block.length) {
+                throw new IOException("Corrupt LZ stream");
+            }
+
+            int encodedLength = in.readInt();
+
+            if (encodedLength == 0) {
+                in.readFully(block, 0, rawLength);
+            } else {
+                in.readFully(encoded, 0, encodedLength);
+                LzCodec.decompressBlock(encoded, encodedLength, block, rawLength);
+            }
+
+            position = 0;
+            count = rawLength;
+        }
+
+        return true;
+    }
+}
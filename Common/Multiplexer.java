@@ -0,0 +1,807 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+// Carries many streams over one connection, so a client can keep many transfers going without
+// a TCP handshake and slow start for each. The client opens with the line "MUX/1" and an empty
+// line, which a server without multiplexing answers at once like any HTTP request it does not
+// understand. After that both sides send frames:
+//
+//     int length, byte type, byte flags, int stream, then length bytes of payload
+//
+//     SETTINGS  stream 0, sent first by both sides: int version, int stream window,
+//               int connection window, int max streams
+//     OPEN      the client starts a stream. Client streams have odd ids and are never reused.
+//     DATA      bytes of a stream. END_STREAM ends the sender's half, like closing a socket.
+//     WINDOW    int bytes the receiver has consumed, for a stream or for the connection (stream 0)
+//     RESET     abandons a stream in both directions
+//
+// Each stream carries what a socket would: a mode line, the request, the replies, and
+// END_STREAM where the socket used to be closed. A sender may only have as many unacknowledged
+// DATA bytes in flight as the receiver's windows for the stream and for the connection allow,
+// so a stream whose reader is slow stops at its window instead of stalling the others. Frames
+// are at most MAX_FRAME bytes and streams take turns on the wire, so a large download does not
+// hold up the small requests next to it.
+//
+// Frames are read by one thread per connection, which never writes: WINDOW and RESET frames go
+// out through a control thread, and DATA from the thread writing to the stream.
+class Multiplexer {
+    static final String PREFACE = "MUX/1";
+    static final int VERSION = 1;
+
+    static final byte SETTINGS = 0;
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte WINDOW = 3;
+    static final byte RESET = 4;
+    static final byte END_STREAM = 1;
+
+    static final int MAX_FRAME = 32 * 1024;
+    static final int STREAM_WINDOW = 1024 * 1024;
+    static final int CONNECTION_WINDOW = 8 * 1024 * 1024;
+    static final int MAX_STREAMS = 100;
+
+    private static final int HEADER = 10;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final byte[] NONE = new byte[0];
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final boolean client;
+    private final ConcurrentHashMap<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<byte[]> control = new LinkedBlockingQueue<>();
+    private final Object writeLock = new Object();
+    private final byte[] header = new byte[HEADER];
+
+    // The rest is guarded by this
+    private int peerStreamWindow;
+    private int peerMaxStreams;
+    // Bytes this side may still send, raised by the peer's WINDOW frames for stream 0
+    private long sendWindow;
+    // Bytes the peer may still send, and bytes read since the last WINDOW frame for stream 0
+    private long receiveWindow = CONNECTION_WINDOW;
+    private long unacknowledged = 0;
+    private int nextStreamId = 1;
+    private Semaphore streamSlots;
+    private boolean closed = false;
+
+    private Multiplexer(Socket socket, InputStream in, OutputStream out, boolean client) {
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(out, HEADER + MAX_FRAME);
+        this.client = client;
+    }
+
+    // Client side. Returns null when the server does not speak the protocol, in which case the
+    // caller closes the socket.
+    static Multiplexer connect(Socket socket) throws IOException {
+        Multiplexer mux = new Multiplexer(socket, new BufferedInputStream(socket.getInputStream(), HEADER + MAX_FRAME),
+                socket.getOutputStream(), true);
+        mux.out.write((PREFACE + "\n\n").getBytes(StandardCharsets.ISO_8859_1));
+        mux.writeSettings();
+
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+        try {
+            if (!mux.readSettings()) {
+                return null;
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+
+        mux.streamSlots = new Semaphore(mux.peerMaxStreams);
+        mux.startControl();
+
+        Thread reader = new Thread(() -> mux.readFrames(null), "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return mux;
+    }
+
+    // Server side, after the preface line has been read from in
+    static Multiplexer accept(Socket socket, InputStream in, OutputStream out) throws IOException {
+        if (in.read() != '\n') {
+            throw new IOException("Malformed multiplexing preface");
+        }
+
+        Multiplexer mux = new Multiplexer(socket, in, out, false);
+        mux.writeSettings();
+
+        if (!mux.readSettings()) {
+            throw new IOException("Client sent no multiplexing settings");
+        }
+
+        return mux;
+    }
+
+    // Server side. Reads frames on the calling thread until the connection closes and passes
+    // every stream the client opens to handler, which must not block.
+    void serve(Consumer<MuxStream> handler) {
+        startControl();
+        readFrames(handler);
+    }
+
+    // Client side. Opens a stream, waiting while the server's MAX_STREAMS are in use.
+    MuxStream open() throws IOException {
+        try {
+            streamSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        MuxStream stream;
+
+        synchronized (this) {
+            if (closed) {
+                streamSlots.release();
+                throw new IOException("Multiplexed connection closed");
+            }
+
+            stream = new MuxStream(this, nextStreamId, peerStreamWindow);
+            nextStreamId += 2;
+            streams.put(stream.id, stream);
+        }
+
+        // Written by this thread before any of the stream's DATA
+        writeFrame(OPEN, (byte) 0, stream.id, NONE, 0, 0);
+        return stream;
+    }
+
+    // A stream as a Socket, for code written against sockets
+    Socket openSocket() throws IOException {
+        return new MuxSocket(open(), socket.getInetAddress());
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            notifyAll();
+        }
+
+        for (MuxStream stream : streams.values()) {
+            stream.reset();
+        }
+
+        control.add(NONE); // Stops the control thread
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Sends len bytes of b on stream as DATA frames, each once both windows have room for it.
+    // end marks the last frame END_STREAM, and with len == 0 sends an empty one.
+    void sendData(MuxStream stream, byte[] b, int off, int len, boolean end) throws IOException {
+        do {
+            int length = reserve(stream, len);
+            len -= length;
+            writeFrame(DATA, end && len == 0 ? END_STREAM : 0, stream.id, b, off, length);
+            off += length;
+        } while (len > 0);
+    }
+
+    // Called as the reader of a stream consumes bytes, and for bytes that were dropped
+    void consumed(int bytes) {
+        long credit = 0;
+
+        synchronized (this) {
+            unacknowledged += bytes;
+
+            if (unacknowledged >= CONNECTION_WINDOW / 4) {
+                credit = unacknowledged;
+                receiveWindow += credit;
+                unacknowledged = 0;
+            }
+        }
+
+        if (credit > 0) {
+            sendControl(WINDOW, 0, (int) credit);
+        }
+    }
+
+    void sendControl(byte type, int stream, int value) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + (type == WINDOW ? 4 : 0));
+        frame.putInt(frame.capacity() - HEADER).put(type).put((byte) 0).putInt(stream);
+
+        if (type == WINDOW) {
+            frame.putInt(value);
+        }
+
+        control.add(frame.array());
+    }
+
+    // Called by a stream that was closed locally
+    void remove(MuxStream stream) {
+        if (streams.remove(stream.id, stream) && client) {
+            streamSlots.release();
+        }
+    }
+
+    synchronized void wakeSenders() {
+        notifyAll();
+    }
+
+    private synchronized int reserve(MuxStream stream, int len) throws IOException {
+        while (true) {
+            if (closed) {
+                throw new IOException("Multiplexed connection closed");
+            }
+
+            if (stream.isReset()) {
+                throw new IOException("Stream reset");
+            }
+
+            long available = Math.min(sendWindow, stream.sendWindow);
+
+            if (len == 0 || available > 0) {
+                int length = (int) Math.min(Math.min(len, MAX_FRAME), available);
+                sendWindow -= length;
+                stream.sendWindow -= length;
+                return length;
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void writeFrame(byte type, byte flags, int stream, byte[] payload, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            try {
+                ByteBuffer.wrap(header).putInt(len).put(type).put(flags).putInt(stream);
+                out.write(header);
+                out.write(payload, off, len);
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(16);
+        settings.putInt(VERSION).putInt(STREAM_WINDOW).putInt(CONNECTION_WINDOW).putInt(MAX_STREAMS);
+        writeFrame(SETTINGS, (byte) 0, 0, settings.array(), 0, 16);
+    }
+
+    // False when the peer answered with anything but a SETTINGS frame of this version
+    private boolean readSettings() throws IOException {
+        try {
+            int length = in.readInt();
+            byte type = in.readByte();
+            in.readByte();
+            int stream = in.readInt();
+
+            if (type != SETTINGS || stream != 0 || length != 16 || in.readInt() != VERSION) {
+                return false;
+            }
+
+            peerStreamWindow = in.readInt();
+            sendWindow = in.readInt();
+            peerMaxStreams = in.readInt();
+            return peerStreamWindow > 0 && sendWindow > 0 && peerMaxStreams > 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void startControl() {
+        Thread thread = new Thread(this::writeControl, "mux-control");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void writeControl() {
+        try {
+            while (true) {
+                byte[] frame = control.take();
+
+                if (frame.length == 0) {
+                    return;
+                }
+
+                synchronized (writeLock) {
+                    out.write(frame);
+
+                    if (control.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            close();
+        }
+    }
+
+    private void readFrames(Consumer<MuxStream> handler) {
+        try {
+            while (true) {
+                int length = in.readInt();
+                byte type = in.readByte();
+                byte flags = in.readByte();
+                int id = in.readInt();
+
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Frame of " + length + " bytes");
+                }
+
+                byte[] payload = length == 0 ? NONE : new byte[length];
+                in.readFully(payload);
+                MuxStream stream = streams.get(id);
+
+                if (type == OPEN) {
+                    if (client || id % 2 == 0 || stream != null) {
+                        throw new IOException("Unexpected OPEN of stream " + id);
+                    }
+
+                    // The client frees a slot when it closes its end, which can be before this side
+                    // has closed its own, so some streams over the limit are still fine
+                    if (streams.size() >= 2 * MAX_STREAMS) {
+                        sendControl(RESET, id, 0);
+                        continue;
+                    }
+
+                    synchronized (this) {
+                        stream = new MuxStream(this, id, peerStreamWindow);
+                    }
+
+                    streams.put(id, stream);
+                    handler.accept(stream);
+                } else if (type == DATA) {
+                    synchronized (this) {
+                        receiveWindow -= length;
+
+                        if (receiveWindow < 0) {
+                            throw new IOException("Connection window exceeded");
+                        }
+                    }
+
+                    // Data for a stream closed on this side is dropped but still credited
+                    if (stream == null || !stream.receive(payload, (flags & END_STREAM) != 0)) {
+                        consumed(length);
+                    }
+                } else if (type == WINDOW && length == 4) {
+                    int credit = ByteBuffer.wrap(payload).getInt();
+
+                    synchronized (this) {
+                        if (id == 0) {
+                            sendWindow += credit;
+                        } else if (stream != null) {
+                            stream.sendWindow += credit;
+                        }
+
+                        notifyAll();
+                    }
+                } else if (type == RESET && stream != null) {
+                    stream.reset();
+                }
+                // Other frame types are ignored, so later versions can add some
+            }
+        } catch (IOException e) {
+            // Connection closed
+        } finally {
+            close();
+        }
+    }
+}
+
+// One stream of a Multiplexer, read and written like the streams of a socket
+class MuxStream {
+    final int id;
+    private final Multiplexer mux;
+    private final InputStream input = new StreamInput();
+    private final OutputStream output = new StreamOutput();
+
+    // Bytes this side may still send, guarded by mux
+    long sendWindow;
+
+    // Received DATA not read yet, guarded by this
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int readOffset = 0;
+    private int receiveWindow = Multiplexer.STREAM_WINDOW;
+    private int unacknowledged = 0;
+    private boolean inputEnded = false;
+    private boolean inputClosed = false;
+    private boolean reset = false;
+    private int readTimeout = 0;
+
+    // Written bytes held back until a frame is full, the stream is flushed or its reader has
+    // to wait for input, guarded by output
+    private final byte[] pending = new byte[Multiplexer.MAX_FRAME];
+    private int pendingLength = 0;
+    private boolean outputClosed = false;
+
+    MuxStream(Multiplexer mux, int id, int sendWindow) {
+        this.mux = mux;
+        this.id = id;
+        this.sendWindow = sendWindow;
+    }
+
+    InputStream input() {
+        return input;
+    }
+
+    OutputStream output() {
+        return output;
+    }
+
+    synchronized boolean isReset() {
+        return reset;
+    }
+
+    synchronized boolean isClosed() {
+        return inputClosed && outputClosed;
+    }
+
+    synchronized void setReadTimeout(int millis) {
+        readTimeout = millis;
+    }
+
+    synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+
+    // Called by the reading thread. Returns false when the data was dropped.
+    synchronized boolean receive(byte[] data, boolean end) throws IOException {
+        if (inputClosed || reset) {
+            return false;
+        }
+
+        receiveWindow -= data.length;
+
+        if (receiveWindow < 0) {
+            throw new IOException("Window of stream " + id + " exceeded");
+        }
+
+        if (data.length > 0) {
+            received.add(data);
+        }
+
+        inputEnded |= end;
+        notifyAll();
+        return true;
+    }
+
+    // Reads fail once buffered data runs out and writes fail right away
+    void reset() {
+        synchronized (this) {
+            reset = true;
+            notifyAll();
+        }
+
+        mux.wakeSenders();
+    }
+
+    // Ends this side's output like Socket.shutdownOutput()
+    void shutdownOutput() throws IOException {
+        synchronized (output) {
+            if (!outputClosed) {
+                outputClosed = true;
+                mux.sendData(this, pending, 0, pendingLength, true);
+                pendingLength = 0;
+            }
+        }
+    }
+
+    // Like closing a socket: ends the output, drops unread input and resets the stream if the
+    // peer was still sending
+    void close() {
+        try {
+            if (!isReset()) {
+                shutdownOutput();
+            }
+        } catch (IOException e) {
+            // The connection is gone, nothing left to tell the peer
+        } finally {
+            synchronized (output) {
+                outputClosed = true;
+            }
+        }
+
+        int dropped = 0;
+        boolean abandoned;
+
+        synchronized (this) {
+            if (inputClosed) {
+                return;
+            }
+
+            for (byte[] data : received) {
+                dropped += data.length;
+            }
+
+            dropped -= readOffset;
+            received.clear();
+            abandoned = !inputEnded && !reset;
+            inputClosed = true;
+            notifyAll();
+        }
+
+        if (abandoned) {
+            mux.sendControl(Multiplexer.RESET, id, 0);
+        }
+
+        mux.consumed(dropped);
+        mux.remove(this);
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        // A reply cannot come before the request it answers has left
+        if (!hasInput()) {
+            output.flush();
+        }
+
+        int length;
+        int credit = 0;
+
+        synchronized (this) {
+            long deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : 0;
+
+            while (received.isEmpty() && !inputEnded && !reset && !inputClosed) {
+                long wait = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+
+                if (deadline > 0 && wait <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (received.isEmpty()) {
+                if (inputClosed) {
+                    throw new SocketException("Stream closed");
+                }
+
+                if (reset && !inputEnded) {
+                    throw new SocketException("Stream reset");
+                }
+
+                return -1;
+            }
+
+            byte[] data = received.peek();
+            length = Math.min(len, data.length - readOffset);
+            System.arraycopy(data, readOffset, b, off, length);
+            readOffset += length;
+
+            if (readOffset == data.length) {
+                received.poll();
+                readOffset = 0;
+            }
+
+            unacknowledged += length;
+
+            if (unacknowledged >= Multiplexer.STREAM_WINDOW / 4 && !inputEnded) {
+                credit = unacknowledged;
+                receiveWindow += credit;
+                unacknowledged = 0;
+            }
+        }
+
+        if (credit > 0) {
+            mux.sendControl(Multiplexer.WINDOW, id, credit);
+        }
+
+        mux.consumed(length);
+        return length;
+    }
+
+    private synchronized boolean hasInput() {
+        return !received.isEmpty() || inputEnded || reset;
+    }
+
+    private synchronized int available() {
+        int available = -readOffset;
+
+        for (byte[] data : received) {
+            available += data.length;
+        }
+
+        return Math.max(available, 0);
+    }
+
+    private class StreamInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MuxStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return MuxStream.this.available();
+        }
+
+        @Override
+        public void close() {
+            MuxStream.this.close();
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (outputClosed) {
+                throw new SocketException("Stream output closed");
+            }
+
+            // Whole frames need no copy
+            if (pendingLength == 0 && len >= pending.length) {
+                mux.sendData(MuxStream.this, b, off, len, false);
+                return;
+            }
+
+            while (len > 0) {
+                int length = Math.min(len, pending.length - pendingLength);
+                System.arraycopy(b, off, pending, pendingLength, length);
+                pendingLength += length;
+                off += length;
+                len -= length;
+
+                if (pendingLength == pending.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (pendingLength > 0 && !outputClosed) {
+                mux.sendData(MuxStream.this, pending, 0, pendingLength, false);
+                pendingLength = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            shutdownOutput();
+        }
+    }
+}
+
+// A stream posing as a Socket, so the code that serves and makes connections runs unchanged
+// over a Multiplexer. It has no channel: getChannel() is null as for any plain Socket.
+class MuxSocket extends Socket {
+    private final MuxStream stream;
+    private final InetAddress peer;
+
+    MuxSocket(MuxStream stream, InetAddress peer) throws SocketException {
+        super((SocketImpl) null);
+        this.stream = stream;
+        this.peer = peer;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return stream.input();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return stream.output();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        stream.shutdownOutput();
+    }
+
+    @Override
+    public synchronized void close() {
+        stream.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return stream.isClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return peer;
+    }
+
+    @Override
+    public synchronized void setSoTimeout(int timeout) {
+        stream.setReadTimeout(timeout);
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+        return stream.getReadTimeout();
+    }
+
+    // Nagle and socket buffers belong to the shared connection
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public synchronized void setSendBufferSize(int size) {
+    }
+
+    @Override
+    public synchronized int getSendBufferSize() {
+        return Multiplexer.STREAM_WINDOW;
+    }
+
+    @Override
+    public synchronized void setReceiveBufferSize(int size) {
+    }
+
+    @Override
+    public synchronized int getReceiveBufferSize() {
+        return Multiplexer.STREAM_WINDOW;
+    }
+
+    @Override
+    public String toString() {
+        return "MuxSocket[stream=" + stream.id + ",addr=" + peer + "]";
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Weak and strong block checksums for delta downloads, as in rsync. The weak checksum keeps
+// a, the byte sum, and b, the sum of the running values of a, both mod 2^16, so the window
+// can slide one byte at a time in constant time. Blocks whose weak checksums agree are
+// confirmed with MD5.
+class RollingChecksum {
+    private final int length;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int length) {
+        this.length = length;
+    }
+
+    public static int of(byte[] data, int offset, int length) {
+        return of(ByteBuffer.wrap(data), offset, length);
+    }
+
+    public static int of(ByteBuffer data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+
+    // Computes the checksum of the window starting at offset from scratch
+    public void reset(ByteBuffer data, int offset) {
+        a = 0;
+        b = 0;
+
+        for (int i = 0; i < length; i++) {
+            int x = data.get(offset + i) & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    // Continues from a previously computed value, e.g. one read from a signature cache
+    public void set(int value) {
+        a = value & 0xFFFF;
+        b = value >>> 16;
+    }
+
+    // Slides the window one byte: out leaves at the front, in enters at the back
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+    }
+
+    public int value() {
+        return a | (b << 16);
+    }
+
+    public static byte[] strong(byte[] data, int offset, int length) {
+        return strong(ByteBuffer.wrap(data), offset, length);
+    }
+
+    public static byte[] strong(ByteBuffer data, int offset, int length) {
+        ByteBuffer block = data.duplicate();
+        block.limit(offset + length).position(offset);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(block);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM ships MD5
+        }
+    }
+}
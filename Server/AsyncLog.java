@@ -0,0 +1,58 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Progress lines written by a background thread so transfer loops never block on the
+// console. At most MAX_LINES_PER_SECOND lines are accepted across all connections, and a
+// full queue drops lines instead of waiting. Dropped lines are counted in /metrics.
+class AsyncLog {
+    private static final int QUEUE_SIZE = 1024;
+    private static final int MAX_LINES_PER_SECOND = 200;
+
+    static final AsyncLog shared = new AsyncLog();
+
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    // Current second in the high bits, lines accepted during it in the low 20 bits
+    private final AtomicLong window = new AtomicLong();
+    final LongAdder dropped = new LongAdder();
+
+    private AsyncLog() {
+        Thread writer = new Thread(this::drain, "async-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void log(String line) {
+        if (!admit() || !lines.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    private boolean admit() {
+        long second = System.currentTimeMillis() / 1000;
+
+        while (true) {
+            long current = window.get();
+            long count = current >>> 20 == second ? current & 0xFFFFF : 0;
+
+            if (count >= MAX_LINES_PER_SECOND) {
+                return false;
+            }
+
+            if (window.compareAndSet(current, second << 20 | (count + 1))) {
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            try {
+                System.out.println(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
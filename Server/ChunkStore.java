@@ -0,0 +1,314 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// A file kept in the ChunkStore: its SHA-256 and the hashes of its chunks in order
+class Recipe {
+    final String name;
+    final long length;
+    final long lastModified;
+    final String hash;
+    final String[] chunks;
+    // offsets[i] is where chunk i starts in the file, offsets[chunks.length] is the length
+    final long[] offsets;
+
+    Recipe(String name, long lastModified, String hash, String[] chunks, long[] offsets) {
+        this.name = name;
+        this.length = offsets[chunks.length];
+        this.lastModified = lastModified;
+        this.hash = hash;
+        this.chunks = chunks;
+        this.offsets = offsets;
+    }
+
+    // Index of the chunk holding the byte at position, which must be less than length
+    int chunkAt(long position) {
+        int found = Arrays.binarySearch(offsets, 0, chunks.length, position);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(lastModified);
+        out.writeUTF(hash);
+        out.writeInt(chunks.length);
+
+        for (int i = 0; i < chunks.length; i++) {
+            out.writeUTF(chunks[i]);
+            out.writeInt((int) (offsets[i + 1] - offsets[i]));
+        }
+    }
+
+    static Recipe read(String name, DataInputStream in) throws IOException {
+        long lastModified = in.readLong();
+        String hash = in.readUTF();
+        int count = in.readInt();
+        String[] chunks = new String[count];
+        long[] offsets = new long[count + 1];
+
+        for (int i = 0; i < count; i++) {
+            chunks[i] = in.readUTF();
+            offsets[i + 1] = offsets[i] + in.readInt();
+        }
+
+        return new Recipe(name, lastModified, hash, chunks, offsets);
+    }
+}
+
+// Content-addressed storage behind uploads when STORAGE=dedup. Every distinct chunk, as cut by
+// the ContentChunker, is kept once under Store/chunks/<first two hex digits>/<SHA-256>, and
+// each file is a Recipe under Store/recipes/<name> listing its chunks. Chunks go through the
+// UploadCommitter and the recipe is only published once they are all on disk, so a recipe
+// never names a missing chunk. Chunks are never deleted since the protocol cannot remove a
+// file. Recipes are loaded at startup and served from memory.
+class ChunkStore {
+    private final Path chunkDirectory = Paths.get("Store", "chunks");
+    private final Path recipeDirectory = Paths.get("Store", "recipes");
+    private final UploadCommitter committer;
+    private final ConcurrentHashMap<String, Recipe> recipes = new ConcurrentHashMap<>();
+
+    final LongAdder chunksStored = new LongAdder();
+    final LongAdder chunksReused = new LongAdder();
+    final LongAdder bytesStored = new LongAdder();
+    final LongAdder bytesReused = new LongAdder();
+
+    public ChunkStore(UploadCommitter committer) {
+        this.committer = committer;
+    }
+
+    // Loads the recipes left by earlier runs. Runs in either STORAGE mode so files stored
+    // before switching back to STORAGE=files can still be downloaded.
+    public void start(int debugFlag) {
+        if (!Files.isDirectory(recipeDirectory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> stored = Files.newDirectoryStream(recipeDirectory)) {
+            for (Path path : stored) {
+                String name = path.getFileName().toString();
+
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+                    recipes.put(name, Recipe.read(name, in));
+                } catch (IOException e) {
+                    System.out.println("ERROR: Could not read recipe " + path + ". " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not list " + recipeDirectory + ". " + e);
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Loaded " + recipes.size() + " stored file(s) from " + recipeDirectory);
+        }
+    }
+
+    // The stored file with this name, or null
+    public Recipe get(String name) {
+        return recipes.get(name);
+    }
+
+    // Stored files sorted by name
+    public List<Recipe> list() {
+        List<Recipe> listing = new ArrayList<>(recipes.values());
+        listing.sort((a, b) -> a.name.compareTo(b.name));
+        return listing;
+    }
+
+    // Forgets a stored file. Its chunks stay, other files may share them.
+    public void remove(String name) throws IOException {
+        if (recipes.remove(name) != null) {
+            Files.deleteIfExists(recipeDirectory.resolve(name));
+        }
+    }
+
+    public boolean hasChunk(String hash) {
+        return Files.exists(chunkPath(hash));
+    }
+
+    public Path chunkPath(String hash) {
+        return chunkDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public Writer writer(String name) throws IOException {
+        return new Writer(name);
+    }
+
+    // Stores a finished upload's temp file by chunking it here. The client sent every byte, so
+    // this saves disk but not bandwidth. The caller still owns and removes the temp file.
+    public Recipe ingest(String name, Path file) throws IOException {
+        Writer writer = new Writer(name);
+
+        try (InputStream in = Files.newInputStream(file)) {
+            ContentChunker chunker = new ContentChunker(in);
+            byte[] chunk;
+
+            while ((chunk = chunker.next()) != null) {
+                writer.add(ContentChunker.hash(chunk), chunk);
+            }
+        }
+
+        return writer.commit();
+    }
+
+    // Builds one stored file from its chunks in order and publishes its recipe at the end. The
+    // file's SHA-256 is computed along the way, from the stored copy for chunks the client did
+    // not send.
+    class Writer {
+        private final String name;
+        private final MessageDigest digest;
+        private final List<String> chunks = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        // Chunks of this file still being committed, by hash
+        private final Map<String, CompletableFuture<Void>> pending = new LinkedHashMap<>();
+        private long length = 0;
+        private String fileHash;
+
+        private Writer(String name) throws IOException {
+            this.name = name;
+            this.offsets.add(0L);
+
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        // Adds a chunk the store already holds, or that an earlier part of this file stored
+        public void addStored(String hash) throws IOException {
+            CompletableFuture<Void> storing = pending.get(hash);
+
+            if (storing != null) {
+                UploadCommitter.await(storing);
+            }
+
+            byte[] data = Files.readAllBytes(chunkPath(hash));
+            append(hash, data);
+            chunksReused.increment();
+            bytesReused.add(data.length);
+        }
+
+        // Adds a chunk with its bytes, storing them unless an identical chunk is already there
+        public void add(String hash, byte[] data) throws IOException {
+            append(hash, data);
+            Path target = chunkPath(hash);
+
+            if (pending.containsKey(hash) || Files.exists(target)) {
+                chunksReused.increment();
+                bytesReused.add(data.length);
+                return;
+            }
+
+            Files.createDirectories(target.getParent());
+            IncomingUpload upload = new IncomingUpload(hash);
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+
+                while (buffer.hasRemaining()) {
+                    upload.channel.write(buffer);
+                }
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+
+            pending.put(hash, committer.submitAsync(upload.channel, upload.temp, target).handle((done, error) -> {
+                if (error != null) {
+                    upload.abort();
+
+                    // Stored meanwhile by another upload of the same content
+                    if (!(error instanceof FileAlreadyExistsException)) {
+                        throw new CompletionException(error);
+                    }
+                }
+
+                return null;
+            }));
+            chunksStored.increment();
+            bytesStored.add(data.length);
+        }
+
+        public long length() {
+            return length;
+        }
+
+        // SHA-256 of the whole file, once every chunk has been added
+        public String hash() {
+            if (fileHash == null) {
+                StringBuilder hex = new StringBuilder();
+
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+
+                fileHash = hex.toString();
+            }
+
+            return fileHash;
+        }
+
+        // Waits for the chunks to be on disk, then publishes the recipe. Fails with
+        // FileAlreadyExistsException if the name was stored in the meantime.
+        public Recipe commit() throws IOException {
+            for (CompletableFuture<Void> chunk : pending.values()) {
+                UploadCommitter.await(chunk);
+            }
+
+            long[] chunkOffsets = new long[offsets.size()];
+
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = offsets.get(i);
+            }
+
+            Recipe recipe = new Recipe(name, System.currentTimeMillis(), hash(), chunks.toArray(new String[0]),
+                    chunkOffsets);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            recipe.write(new DataOutputStream(encoded));
+
+            Files.createDirectories(recipeDirectory);
+            IncomingUpload upload = new IncomingUpload(name);
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(encoded.toByteArray());
+
+                while (buffer.hasRemaining()) {
+                    upload.channel.write(buffer);
+                }
+
+                committer.commit(upload.channel, upload.temp, recipeDirectory.resolve(name));
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+
+            recipes.put(name, recipe);
+            return recipe;
+        }
+
+        private void append(String hash, byte[] data) {
+            digest.update(data);
+            length += data.length;
+            chunks.add(hash);
+            offsets.add(length);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// This node's view of a cluster started with CLUSTER=host:port,... Every node is given the
+// same list, and a ClusterRing over it names the REPLICAS owners of each file. An upload is
+// stored where it arrives and copied to the file's other owners before the client is told it
+// is complete. A request for a file this node does not hold is served by relaying it from an
+// owner that does. Lookups only ask the owners, so their cost does not grow with the cluster,
+// use short timeouts, skip nodes that just failed to answer and remember misses for a
+// moment. Requests between nodes carry the 'r' flag and are only answered from the node's
+// own files, so they never travel further.
+class Cluster {
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int PEER_TIMEOUT = 30000;
+    // Lookups are on the path of every request for a file this node does not hold
+    private static final int LOOKUP_TIMEOUT = 500;
+    // How long a miss is remembered and a node that did not answer is skipped
+    private static final long MISS_MILLIS = 1000;
+    private static final long DOWN_MILLIS = 2000;
+    private static final int MAX_MISSES = 10000;
+
+    final ClusterRing ring;
+    final String self;
+    private final File directory = new File("Files");
+    private final ChunkStore chunkStore;
+    // Names no owner had, and nodes that did not answer, with when to ask again
+    private final ConcurrentHashMap<String, Long> misses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> down = new ConcurrentHashMap<>();
+
+    final LongAdder replicasSent = new LongAdder();
+    final LongAdder replicaFailures = new LongAdder();
+    final LongAdder relayedReads = new LongAdder();
+    final LongAdder redirects = new LongAdder();
+
+    public Cluster(ServerConfig config, ChunkStore chunkStore) {
+        this.ring = new ClusterRing(config.clusterNodes, config.replicas);
+        this.self = config.self;
+        this.chunkStore = chunkStore;
+    }
+
+    public void start(int debugFlag) {
+        if (debugFlag == 1) {
+            System.out.println("Node " + self + " of a cluster of " + ring.nodes.size() + ", " + ring.replicas
+                    + " copies of every file");
+        }
+    }
+
+    public boolean owns(String name) {
+        return ring.owners(name).contains(self);
+    }
+
+    // Copies a file this node just stored to its other owners. Returns how many copies failed,
+    // which are reported but do not undo the upload.
+    public int replicate(String name) {
+        int failed = 0;
+        misses.remove(name);
+
+        for (String node : ring.owners(name)) {
+            if (node.equals(self)) {
+                continue;
+            }
+
+            try {
+                sendReplica(node, name);
+                replicasSent.increment();
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not copy " + name + " to " + node + ". " + e);
+                replicaFailures.increment();
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+
+    private void sendReplica(String node, String name) throws IOException {
+        try (Socket socket = connect(node, PEER_TIMEOUT)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("1" + ConnectionManager.PEER_FLAG + "\n"); // Write mode, stored without passing it on
+            out.writeUTF(name);
+            out.flush();
+
+            String status = in.readUTF();
+
+            if (status.compareTo("ErrFileExists") == 0) {
+                return; // Copied there earlier
+            }
+
+            expect(status, "OkToWrite");
+            sendLocal(name, out);
+            out.flush();
+            socket.shutdownOutput(); // The end of the file
+            expect(in.readUTF(), "OkUploadComplete");
+        }
+    }
+
+    // Writes this node's copy of a file, from Files/ or assembled from the ChunkStore
+    private void sendLocal(String name, OutputStream out) throws IOException {
+        File file = new File(directory, name);
+
+        if (file.isFile()) {
+            Files.copy(file.toPath(), out);
+            return;
+        }
+
+        Recipe recipe = chunkStore.get(name);
+
+        if (recipe == null) {
+            throw new FileNotFoundException(name);
+        }
+
+        for (String hash : recipe.chunks) {
+            Files.copy(chunkStore.chunkPath(hash), out);
+        }
+    }
+
+    // The owner holding a file this one does not, and the file's length there, or null when
+    // none has it or none answers
+    public Located locate(String name) {
+        long now = System.currentTimeMillis();
+        Long missUntil = misses.get(name);
+
+        if (missUntil != null && missUntil > now) {
+            return null;
+        }
+
+        for (String node : ring.owners(name)) {
+            Long downUntil = down.get(node);
+
+            if (node.equals(self) || (downUntil != null && downUntil > now)) {
+                continue;
+            }
+
+            try (Socket socket = connect(node, LOOKUP_TIMEOUT)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF("2" + ConnectionManager.PEER_FLAG + "\n"); // Size mode
+                out.writeUTF(name);
+                out.flush();
+                expect(in.readUTF(), "OkToRead");
+                return new Located(node, in.readLong());
+            } catch (FileNotFoundException e) {
+                // Not on this owner
+            } catch (IOException e) {
+                down.put(node, now + DOWN_MILLIS);
+            }
+        }
+
+        if (misses.size() >= MAX_MISSES) {
+            misses.clear(); // Cheaper than sweeping, misses are only a shortcut
+        }
+
+        misses.put(name, now + MISS_MILLIS);
+        return null;
+    }
+
+    // Bytes [position, position + count) of a located file, read from its node. Closing the
+    // stream closes the connection.
+    public InputStream openRange(Located at, String name, ByteRange range) throws IOException {
+        Socket socket = connect(at.node, PEER_TIMEOUT);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("0" + ConnectionManager.PEER_FLAG + "\n"); // Read mode
+            out.writeUTF(name);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+
+            out.writeLong(range.position);
+            out.writeLong(range.position + range.count);
+            out.flush();
+
+            if (range.position + range.count > 0) {
+                expect(in.readUTF(), "OkToRead"); // The range still fits the file
+            }
+
+            relayedReads.increment();
+            return in;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // This node's listing merged with every other node's, so -sync against any node mirrors
+    // the whole cluster
+    public List<ManifestEntry> list(List<ManifestEntry> local) {
+        Map<String, ManifestEntry> merged = new LinkedHashMap<>();
+
+        for (ManifestEntry entry : local) {
+            merged.put(entry.name, entry);
+        }
+
+        for (String node : ring.nodes) {
+            if (node.equals(self)) {
+                continue;
+            }
+
+            try (Socket socket = connect(node, PEER_TIMEOUT)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF("6" + ConnectionManager.PEER_FLAG + "\n"); // List mode
+                out.writeUTF("");
+                out.flush();
+                expect(in.readUTF(), "OkList");
+
+                int count = in.readInt();
+
+                for (int i = 0; i < count; i++) {
+                    ManifestEntry entry = new ManifestEntry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+                    merged.putIfAbsent(entry.name, entry);
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not list the files of " + node + ". " + e);
+            }
+        }
+
+        List<ManifestEntry> listing = new ArrayList<>(merged.values());
+        listing.sort((a, b) -> a.name.compareTo(b.name));
+        return listing;
+    }
+
+    private static Socket connect(String node, int readTimeout) throws IOException {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(ClusterRing.host(node), ClusterRing.port(node)),
+                    Math.min(CONNECT_TIMEOUT, readTimeout));
+            socket.setSoTimeout(readTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void expect(String status, String expected) throws IOException {
+        if (status.compareTo("ErrFileDoesNotExist") == 0) {
+            throw new FileNotFoundException();
+        }
+
+        if (status.compareTo(expected) != 0) {
+            throw new IOException("Node answered " + status);
+        }
+    }
+
+    // Where a file missing from this node can be read
+    static class Located {
+        final String node;
+        final long length;
+
+        Located(String node, long length) {
+            this.node = node;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content encodings the server can apply to a download. Custom protocol clients ask for one
+// with a letter after the mode digit ("0g\n" is a gzip READ), HTTP clients with Accept-Encoding.
+class Compression {
+    static final String IDENTITY = "identity";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final String LZ = "lz"; // LzCodec, only offered to the custom protocol
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Formats that are already compressed gain nothing from another pass
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList("png", "jpg", "jpeg",
+            "gif", "webp", "ico", "mp3", "mp4", "mkv", "mov", "avi", "ogg", "zip", "gz", "tgz", "bz2", "xz", "7z",
+            "rar", "jar", "pdf", "woff", "woff2"));
+
+    // Returns the encoding for a mode line flag. Unknown letters get identity so the client
+    // is still told how the body is encoded.
+    public static String forFlag(char flag) {
+        switch (flag) {
+        case 'g':
+            return GZIP;
+        case 'd':
+            return DEFLATE;
+        case 'l':
+            return LZ;
+        default:
+            return IDENTITY;
+        }
+    }
+
+    public static boolean isCompressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    // Picks gzip or deflate from an Accept-Encoding header, preferring gzip on equal weight.
+    // Returns null when neither is acceptable.
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        double gzipWeight = -1;
+        double deflateWeight = -1;
+        double wildcardWeight = -1;
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.trim().split(";");
+            String name = params[0].trim().toLowerCase();
+            double weight = 1;
+
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+
+                if (param.startsWith("q=")) {
+                    try {
+                        weight = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        weight = 0;
+                    }
+                }
+            }
+
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzipWeight = weight;
+            } else if (name.equals(DEFLATE)) {
+                deflateWeight = weight;
+            } else if (name.equals("*")) {
+                wildcardWeight = weight;
+            }
+        }
+
+        if (gzipWeight < 0) {
+            gzipWeight = wildcardWeight;
+        }
+
+        if (deflateWeight < 0) {
+            deflateWeight = wildcardWeight;
+        }
+
+        if (gzipWeight <= 0 && deflateWeight <= 0) {
+            return null;
+        }
+
+        return gzipWeight >= deflateWeight ? GZIP : DEFLATE;
+    }
+
+    // Wraps out in an encoder. Call finish() when done, the underlying stream is left open.
+    public static OutputStream encoder(String encoding, OutputStream out) throws IOException {
+        OutputStream buffered = new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+
+        switch (encoding) {
+        case GZIP:
+            return new GZIPOutputStream(buffered, STREAM_BUFFER_SIZE);
+        case DEFLATE:
+            return new DeflaterOutputStream(buffered, new Deflater(), STREAM_BUFFER_SIZE);
+        case LZ:
+            return new LzOutputStream(buffered);
+        default:
+            throw new IOException("Unknown encoding " + encoding);
+        }
+    }
+
+    public static void finish(OutputStream encoder) throws IOException {
+        if (encoder instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) encoder).finish(); // Also covers GZIPOutputStream
+        } else if (encoder instanceof LzOutputStream) {
+            ((LzOutputStream) encoder).finish();
+        }
+
+        encoder.flush();
+    }
+
+    public static byte[] compress(String encoding, ByteBuffer content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.remaining() / 2 + 64);
+        OutputStream encoder = encoder(encoding, compressed);
+        byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+
+        while (content.hasRemaining()) {
+            int n = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, n);
+            encoder.write(chunk, 0, n);
+        }
+
+        finish(encoder);
+        return compressed.toByteArray();
+    }
+}
+
+// Compressed copies of whole files, one per file and encoding, so a popular file is only
+// compressed once. Variants are checked against the source's size and mtime on every lookup.
+// Files that do not shrink are remembered too so they are sent as is without retrying.
+// Requests for a variant that is being compressed wait for that compression instead of
+// starting their own, and count as hits, so misses is the number of compressions run.
+class CompressedCache {
+    // Larger files are compressed while streaming instead of being held in memory
+    static final long MAX_SOURCE_SIZE = 16 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Variant> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    // Compressions running, by key plus the source's size and mtime
+    private final ConcurrentHashMap<String, CompletableFuture<Variant>> compressing = new ConcurrentHashMap<>();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    static class Variant {
+        final byte[] content; // null when compression did not pay off
+        final long length;
+        final long lastModified;
+
+        Variant(byte[] content, long length, long lastModified) {
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        long size() {
+            return content != null ? content.length : 0;
+        }
+    }
+
+    public CompressedCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns the encoded variant of file, compressing it on the caller's thread on a miss.
+    // cached may be null. Returns null when the file is too large to hold compressed or the
+    // cache is disabled.
+    public Variant get(File file, FileMeta meta, FileCache.Entry cached, String encoding) throws IOException {
+        CompletableFuture<Variant> variant = get(file, meta, cached, encoding, Runnable::run);
+
+        if (variant == null) {
+            return null;
+        }
+
+        try {
+            return variant.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Like get(), but a miss is compressed on executor. For the NIO event loops, which must not
+    // spend their time compressing.
+    public CompletableFuture<Variant> get(File file, FileMeta meta, FileCache.Entry cached, String encoding,
+            Executor executor) {
+        long length = cached != null ? cached.length : meta.length;
+        long lastModified = cached != null ? cached.lastModified : meta.lastModified;
+
+        if (maxBytes <= 0 || length > MAX_SOURCE_SIZE) {
+            return null;
+        }
+
+        String key = file.getPath() + "|" + encoding;
+        Variant variant = lookup(key, length, lastModified);
+
+        if (variant != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(variant);
+        }
+
+        String version = key + "|" + length + "|" + lastModified;
+        CompletableFuture<Variant> created = new CompletableFuture<>();
+        CompletableFuture<Variant> running = compressing.computeIfAbsent(version, k -> created);
+
+        if (running != created) {
+            hits.incrementAndGet();
+            return running;
+        }
+
+        executor.execute(() -> {
+            try {
+                // Another compression may have finished between the lookup and computeIfAbsent()
+                Variant finished = lookup(key, length, lastModified);
+
+                if (finished == null) {
+                    misses.incrementAndGet();
+                    finished = compress(file, cached, length, lastModified, encoding);
+                    put(key, finished);
+                } else {
+                    hits.incrementAndGet();
+                }
+
+                created.complete(finished);
+            } catch (IOException | RuntimeException e) {
+                created.completeExceptionally(e);
+            } finally {
+                compressing.remove(version, created);
+            }
+        });
+
+        return created;
+    }
+
+    // The variant of file when it is already cached, without compressing anything. Returns
+    // null on a miss. Not counted, the lookup that got the variant cached was.
+    public Variant cached(File file, FileMeta meta, FileCache.Entry cached, String encoding) {
+        long length = cached != null ? cached.length : meta.length;
+        long lastModified = cached != null ? cached.lastModified : meta.lastModified;
+        return lookup(file.getPath() + "|" + encoding, length, lastModified);
+    }
+
+    private synchronized Variant lookup(String key, long length, long lastModified) {
+        Variant variant = entries.get(key);
+        return variant != null && variant.length == length && variant.lastModified == lastModified ? variant : null;
+    }
+
+    private static Variant compress(File file, FileCache.Entry cached, long length, long lastModified,
+            String encoding) throws IOException {
+        ByteBuffer source = cached != null ? cached.slice(0, cached.length)
+                : ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        byte[] compressed = Compression.compress(encoding, source);
+
+        // Less than a 10% saving is not worth the client's decode time
+        return new Variant(compressed.length < length * 0.9 ? compressed : null, length, lastModified);
+    }
+
+    public String stats() {
+        synchronized (this) {
+            return "compressed_entries " + entries.size() + "\n"
+                    + "compressed_bytes " + currentBytes + "\n"
+                    + "compressed_hits " + hits.get() + "\n"
+                    + "compressed_misses " + misses.get() + "\n"
+                    + "compressed_evictions " + evictions.get() + "\n";
+        }
+    }
+
+    private synchronized void put(String key, Variant variant) {
+        Variant previous = entries.put(key, variant);
+
+        if (previous != null) {
+            currentBytes -= previous.size();
+        }
+
+        currentBytes += variant.size();
+
+        Iterator<Map.Entry<String, Variant>> eldest = entries.entrySet().iterator();
+
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Variant> evicted = eldest.next();
+
+            if (evicted.getValue() == variant) {
+                continue;
+            }
+
+            currentBytes -= evicted.getValue().size();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Weak and strong checksums of the block-aligned windows of one server file
+class BlockSignatures {
+    final int blockSize;
+    final long length;
+    final long lastModified;
+    final int[] weak;
+    final byte[][] strong;
+    final String hash; // SHA-256 of the whole file, for the client's final check
+
+    BlockSignatures(int blockSize, long length, long lastModified, int[] weak, byte[][] strong, String hash) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.weak = weak;
+        this.strong = strong;
+        this.hash = hash;
+    }
+
+    // Around sqrt(length) as in rsync, rounded to a power of two so signatures of nearby
+    // versions of a file usually share a block size
+    static int blockSizeFor(long length) {
+        int size = Integer.highestOneBit((int) Math.max(1, Math.sqrt(length)));
+        return Math.max(2048, Math.min(64 * 1024, size));
+    }
+}
+
+// Block signatures of served files by path. They are reused only while the file keeps the
+// length and mtime they were built from. A file with a new mtime whose SHA-256 is unchanged,
+// e.g. one that was touched or uploaded again, keeps its block checksums. Otherwise the weak
+// and strong checksums of every block are recomputed: a block whose weak checksum matches
+// still needs its MD5 to show it is unchanged, since a changed block can keep its weak
+// checksum and a stale MD5 would send the client its old bytes.
+class SignatureCache {
+    private final ConcurrentHashMap<String, BlockSignatures> signatures = new ConcurrentHashMap<>();
+
+    public BlockSignatures get(File file, ByteBuffer data, long length, long lastModified) {
+        String key = file.getPath();
+        BlockSignatures previous = signatures.get(key);
+
+        if (previous != null && previous.length == length && previous.lastModified == lastModified) {
+            return previous;
+        }
+
+        int blockSize = BlockSignatures.blockSizeFor(length);
+        String hash = sha256(data);
+        BlockSignatures updated;
+
+        if (previous != null && previous.length == length && previous.hash.equals(hash)) {
+            updated = new BlockSignatures(blockSize, length, lastModified, previous.weak, previous.strong, hash);
+        } else {
+            int blockCount = (int) (length / blockSize);
+            int[] weak = new int[blockCount];
+            byte[][] strong = new byte[blockCount][];
+
+            for (int k = 0; k < blockCount; k++) {
+                weak[k] = RollingChecksum.of(data, k * blockSize, blockSize);
+                strong[k] = RollingChecksum.strong(data, k * blockSize, blockSize);
+            }
+
+            updated = new BlockSignatures(blockSize, length, lastModified, weak, strong, hash);
+        }
+
+        signatures.put(key, updated);
+        return updated;
+    }
+
+    // Hashed from the same bytes the instructions are built from, so a file edited between
+    // the two can never pass the client's check
+    private static String sha256(ByteBuffer data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// Scans a server file against the client's block signatures and writes the instructions that
+// rebuild it on the client:
+//   'C' int firstBlock int blockCount : copy consecutive blocks of the client's old copy
+//   'L' int length bytes               : literal data
+// The caller ends the stream with 'E' and the file's hash.
+class DeltaEncoder {
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final ByteBuffer data;
+    private final int length;
+    private final BlockSignatures serverSignatures;
+    private final byte[][] clientStrong;
+    private final Map<Integer, List<Integer>> clientBlocks = new HashMap<>();
+    private final DataOutputStream out;
+    private int copyStart = -1;
+    private int copyCount = 0;
+
+    long copiedBytes = 0;
+    long literalBytes = 0;
+
+    public DeltaEncoder(ByteBuffer data, BlockSignatures serverSignatures, int[] clientWeak, byte[][] clientStrong,
+            DataOutputStream out) {
+        this.data = data;
+        this.length = (int) serverSignatures.length;
+        this.serverSignatures = serverSignatures;
+        this.clientStrong = clientStrong;
+        this.out = out;
+
+        for (int i = 0; i < clientWeak.length; i++) {
+            clientBlocks.computeIfAbsent(clientWeak[i], weak -> new ArrayList<>()).add(i);
+        }
+    }
+
+    public void encode() throws IOException {
+        int blockSize = serverSignatures.blockSize;
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        boolean rolling = false;
+        int position = 0;
+        int literalStart = 0;
+
+        while (position + blockSize <= length) {
+            // Block-aligned windows come straight from the signature cache without touching
+            // the file, so unchanged stretches of a file are never read
+            boolean aligned = position % blockSize == 0;
+            int alignedBlock = position / blockSize;
+
+            if (!rolling) {
+                if (aligned) {
+                    checksum.set(serverSignatures.weak[alignedBlock]);
+                } else {
+                    checksum.reset(data, position);
+                }
+
+                rolling = true;
+            }
+
+            int match = findClientBlock(checksum.value(), position, aligned ? alignedBlock : -1);
+
+            if (match >= 0) {
+                writeLiteral(literalStart, position);
+                writeCopy(match);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+
+            if (position + blockSize < length) {
+                checksum.roll(data.get(position), data.get(position + blockSize));
+            }
+
+            position++;
+
+            if (position - literalStart >= MAX_LITERAL) {
+                writeLiteral(literalStart, position);
+                literalStart = position;
+            }
+        }
+
+        writeLiteral(literalStart, length);
+        flushCopy();
+    }
+
+    private int findClientBlock(int weak, int position, int alignedBlock) {
+        List<Integer> candidates = clientBlocks.get(weak);
+
+        if (candidates == null) {
+            return -1;
+        }
+
+        byte[] strong = alignedBlock >= 0 ? serverSignatures.strong[alignedBlock]
+                : RollingChecksum.strong(data, position, serverSignatures.blockSize);
+
+        // Prefer the block after the last copy so runs of blocks coalesce
+        if (copyStart >= 0 && candidates.contains(copyStart + copyCount)
+                && Arrays.equals(clientStrong[copyStart + copyCount], strong)) {
+            return copyStart + copyCount;
+        }
+
+        for (int candidate : candidates) {
+            if (Arrays.equals(clientStrong[candidate], strong)) {
+                return candidate;
+            }
+        }
+
+        return -1;
+    }
+
+    private void writeCopy(int block) throws IOException {
+        if (copyStart >= 0 && block == copyStart + copyCount) {
+            copyCount++;
+        } else {
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+
+        copiedBytes += serverSignatures.blockSize;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyStart < 0) {
+            return;
+        }
+
+        out.writeByte('C');
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyStart = -1;
+        copyCount = 0;
+    }
+
+    private void writeLiteral(int start, int end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+
+        flushCopy();
+
+        byte[] literal = new byte[end - start];
+        ByteBuffer view = data.duplicate();
+        view.position(start);
+        view.get(literal);
+
+        out.writeByte('L');
+        out.writeInt(literal.length);
+        out.write(literal);
+        literalBytes += literal.length;
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Read-through cache in front of an origin Server, for ORIGIN=host:port. Files/ holds what was
+// fetched so far and is served as usual, memory cache included. A request for a file that is
+// not there starts a Fill: the origin is asked for the length and the bytes are streamed into a
+// temp file under Uploads/. Requests for the same file while it is being fetched join that Fill
+// instead of asking the origin again, and are sent the bytes as they arrive. A fetch cut off
+// midway resumes with a byte range request. The finished file is published into Files/ like an
+// upload, and the least recently requested files are deleted while Files/ holds more than
+// EDGE_CACHE_MB.
+class EdgeCache {
+    private static final int ORIGIN_TIMEOUT = 30000;
+    private static final int ATTEMPTS = 3;
+
+    private final String originHost;
+    private final int originPort;
+    private final long budgetBytes;
+    private final File directory = new File("Files");
+    private final FileIndex fileIndex;
+    private final FileCache fileCache;
+    private final UploadCommitter committer;
+    private final ConcurrentHashMap<String, Fill> fills = new ConcurrentHashMap<>();
+    private final ExecutorService fetchers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "edge-fill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Cached files and their lengths, least recently requested first. Guarded by this.
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder originBytes = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    public EdgeCache(ServerConfig config, FileIndex fileIndex, FileCache fileCache, UploadCommitter committer) {
+        this.originHost = config.originHost;
+        this.originPort = config.originPort;
+        this.budgetBytes = config.edgeCacheBytes;
+        this.fileIndex = fileIndex;
+        this.fileCache = fileCache;
+        this.committer = committer;
+    }
+
+    // Takes over the files left in Files/ by earlier runs, oldest first
+    public void start(int debugFlag) {
+        List<FileMeta> listing = fileIndex.list();
+        listing.sort((a, b) -> Long.compare(a.lastModified, b.lastModified));
+
+        for (FileMeta meta : listing) {
+            record(meta.name, meta.length);
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Caching files of " + originHost + ":" + originPort + ", " + listing.size()
+                    + " file(s) in " + directory);
+        }
+    }
+
+    // Returns the Fill bringing the file in from the origin, or null when it is in Files/ or
+    // the origin does not have it either, so the caller answers as for any local file
+    public Fill lookup(String name) throws IOException {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals(".") || name.equals("..")) {
+            return null;
+        }
+
+        FileMeta meta = fileIndex.get(new File(directory, name));
+
+        if (meta != null) {
+            touch(name, meta.length);
+            hits.increment();
+            return null;
+        }
+
+        boolean[] started = new boolean[1];
+        Fill fill = fills.computeIfAbsent(name, key -> {
+            started[0] = true;
+            return new Fill(key);
+        });
+
+        if (started[0]) {
+            misses.increment();
+            fetchers.execute(() -> fetch(fill));
+        } else {
+            coalesced.increment();
+        }
+
+        return fill.awaitLength() && !fill.isDone() ? fill : null;
+    }
+
+    // The origin's manifest, so -sync against the edge mirrors the origin
+    public List<ManifestEntry> originList() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("6\n"); // List mode
+            out.writeUTF("");
+            out.flush();
+            expect(in.readUTF(), "OkList");
+
+            int count = in.readInt();
+            List<ManifestEntry> listing = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                listing.add(new ManifestEntry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF()));
+            }
+
+            return listing;
+        }
+    }
+
+    private void fetch(Fill fill) {
+        File target = new File(directory, fill.name);
+        IncomingUpload upload = null;
+
+        try {
+            // Published by the Fill before this one while the request was looking
+            if (fileIndex.get(target) != null) {
+                fill.finish();
+                return;
+            }
+
+            long length = originSize(fill.name);
+            upload = new IncomingUpload(fill.name);
+            fill.begin(upload.temp, length);
+            long position = 0;
+            int failures = 0;
+
+            while (position < length) {
+                try {
+                    position = readFromOrigin(fill, upload.channel, position);
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (++failures >= ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+
+            upload.temp.toFile().setLastModified(fill.lastModified); // Keeps the ETag waiters were sent
+
+            try {
+                committer.commit(upload.channel, upload.temp, target.toPath());
+            } catch (FileAlreadyExistsException e) {
+                upload.abort(); // Another copy got there first
+            }
+
+            fileIndex.refresh(target);
+            record(fill.name, length);
+            fill.finish();
+        } catch (IOException e) {
+            if (upload != null) {
+                upload.abort();
+            }
+
+            if (!(e instanceof FileNotFoundException)) {
+                System.out.println("ERROR: Could not fetch " + fill.name + " from " + originHost + ":" + originPort
+                        + ". " + e);
+            }
+
+            fill.fail(e);
+        } finally {
+            fills.remove(fill.name, fill);
+        }
+    }
+
+    // Length of the file at the origin. FileNotFoundException when it has no such file.
+    private long originSize(String name) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("2\n"); // Size mode
+            out.writeUTF(name);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+            return in.readLong();
+        }
+    }
+
+    // Asks the origin for bytes [position, length) and writes them into place as they come.
+    // Returns how far the file got, which is short of length when the connection broke.
+    private long readFromOrigin(Fill fill, FileChannel channel, long position) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("0\n"); // Read mode
+            out.writeUTF(fill.name);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+
+            out.writeLong(position);
+            out.writeLong(fill.length());
+            out.flush();
+            expect(in.readUTF(), "OkToRead"); // The range still fits the file
+
+            SocketChannel source = socket.getChannel();
+            ByteBuffer chunk = BufferPool.shared.acquire(256 * 1024);
+
+            try {
+                while (position < fill.length()) {
+                    chunk.clear();
+                    int read = source.read(chunk);
+
+                    if (read < 0) {
+                        break;
+                    }
+
+                    chunk.flip();
+
+                    while (chunk.hasRemaining()) {
+                        position += channel.write(chunk, position);
+                    }
+
+                    originBytes.add(read);
+                    fill.advance(position);
+                }
+            } finally {
+                BufferPool.shared.release(chunk);
+            }
+
+            return position;
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = SocketChannel.open(new InetSocketAddress(originHost, originPort)).socket();
+        socket.setSoTimeout(ORIGIN_TIMEOUT);
+        return socket;
+    }
+
+    private static void expect(String status, String expected) throws IOException {
+        if (status.compareTo("ErrFileDoesNotExist") == 0) {
+            throw new FileNotFoundException();
+        }
+
+        if (status.compareTo(expected) != 0) {
+            throw new IOException("Origin answered " + status);
+        }
+    }
+
+    private void touch(String name, long length) {
+        synchronized (this) {
+            if (files.get(name) != null) {
+                return;
+            }
+        }
+
+        record(name, length); // Put into Files/ by hand
+    }
+
+    // Adds a cached file and deletes the least recently requested ones over the budget
+    private void record(String name, long length) {
+        List<String> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            Long previous = files.put(name, length);
+            cachedBytes += length - (previous != null ? previous : 0);
+
+            for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); cachedBytes > budgetBytes
+                    && it.hasNext();) {
+                Map.Entry<String, Long> entry = it.next();
+
+                if (!entry.getKey().equals(name)) {
+                    it.remove();
+                    cachedBytes -= entry.getValue();
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+
+        for (String evictedName : evicted) {
+            File file = new File(directory, evictedName);
+
+            try {
+                // Transfers that already opened the file finish from the open channel
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not evict " + file + ". " + e);
+            }
+
+            fileCache.invalidate(file);
+            fileIndex.refresh(file);
+            evictions.increment();
+        }
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // One file being fetched from the origin, shared by every request that wants it meanwhile.
+    // Readers send from the temp file up to the bytes written so far.
+    static class Fill {
+        final String name;
+        final long lastModified = System.currentTimeMillis();
+        private Path temp;
+        private long length = -1;
+        private long written = 0;
+        private boolean done = false;
+        private IOException failure;
+
+        Fill(String name) {
+            this.name = name;
+        }
+
+        synchronized long length() {
+            return length;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized void begin(Path temp, long length) {
+            this.temp = temp;
+            this.length = length;
+            notifyAll();
+        }
+
+        synchronized void advance(long written) {
+            this.written = written;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            written = Math.max(written, length);
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            failure = e;
+            notifyAll();
+        }
+
+        // Waits for the origin's answer. False when it does not have the file.
+        synchronized boolean awaitLength() throws IOException {
+            while (length < 0 && !done && failure == null) {
+                waitForProgress();
+            }
+
+            if (failure instanceof FileNotFoundException) {
+                return false;
+            }
+
+            if (failure != null) {
+                throw new IOException("Could not fetch " + name + " from origin", failure);
+            }
+
+            return true;
+        }
+
+        // Blocks until the bytes at position have arrived and returns how far the file is
+        // written. Fails if the fetch does before getting there.
+        synchronized long await(long position) throws IOException {
+            while (written <= position && !done && failure == null) {
+                waitForProgress();
+            }
+
+            if (written <= position && !done) {
+                throw new IOException("Could not fetch " + name + " from origin", failure);
+            }
+
+            return written;
+        }
+
+        // Blocks until the file is published in Files/
+        synchronized void awaitDone() throws IOException {
+            while (!done && failure == null) {
+                waitForProgress();
+            }
+
+            if (!done) {
+                throw new IOException("Could not fetch " + name + " from origin", failure);
+            }
+        }
+
+        // The temp file, or the published file once the temp name is gone
+        FileChannel open() throws IOException {
+            try {
+                return FileChannel.open(temp, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return FileChannel.open(new File("Files", name).toPath(), StandardOpenOption.READ);
+            }
+        }
+
+        private void waitForProgress() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
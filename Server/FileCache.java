@@ -0,0 +1,203 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-bounded LRU cache of file contents shared by every connection. Small files are copied
+// into direct buffers, larger ones are memory-mapped. Entries are dropped when the server
+// finishes an upload to the same name, and are re-checked against the file's size and mtime
+// in the FileIndex once they are older than the revalidate interval so edits made on disk are
+// picked up.
+class FileCache {
+    // Files up to this size are copied off-heap, larger ones are mapped
+    private static final long DIRECT_COPY_LIMIT = 256 * 1024;
+
+    private final long maxBytes;
+    private final long revalidateMillis;
+    private final FileIndex index;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong invalidations = new AtomicLong();
+
+    static class Entry {
+        final ByteBuffer content;
+        final long length;
+        final long lastModified;
+        final boolean mapped;
+        volatile long checkedAt;
+
+        Entry(ByteBuffer content, long length, long lastModified, boolean mapped) {
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.mapped = mapped;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        // Independent view so concurrent readers do not share a position
+        ByteBuffer slice(long position, long count) {
+            ByteBuffer view = content.duplicate();
+            view.position((int) position);
+            view.limit((int) (position + count));
+            return view;
+        }
+    }
+
+    public FileCache(long maxBytes, long revalidateMillis, FileIndex index) {
+        this.maxBytes = maxBytes;
+        this.revalidateMillis = revalidateMillis;
+        this.index = index;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // Returns the cached contents of file, loading them on a miss. Returns null when the file
+    // does not exist or cannot be cached (too large for the budget).
+    public Entry get(File file) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String key = file.getPath();
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+
+            if (now - entry.checkedAt < revalidateMillis) {
+                hits.incrementAndGet();
+                return entry;
+            }
+
+            FileMeta meta = index.get(file);
+
+            if (meta != null && meta.lastModified == entry.lastModified && meta.length == entry.length) {
+                entry.checkedAt = now;
+                hits.incrementAndGet();
+                return entry;
+            }
+
+            remove(key, entry);
+        }
+
+        misses.incrementAndGet();
+        entry = load(file);
+
+        if (entry != null) {
+            put(key, entry);
+        }
+
+        return entry;
+    }
+
+    public void invalidate(File file) {
+        String key = file.getPath();
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    public synchronized long bytes() {
+        return currentBytes;
+    }
+
+    public String stats() {
+        synchronized (this) {
+            return "entries " + entries.size() + "\n"
+                    + "bytes " + currentBytes + "\n"
+                    + "max_bytes " + maxBytes + "\n"
+                    + "hits " + hits.get() + "\n"
+                    + "misses " + misses.get() + "\n"
+                    + "evictions " + evictions.get() + "\n"
+                    + "invalidations " + invalidations.get() + "\n";
+        }
+    }
+
+    private Entry load(File file) {
+        FileMeta meta = index.get(file);
+
+        if (meta == null) {
+            return null;
+        }
+
+        long lastModified = meta.lastModified;
+        long length = meta.length;
+
+        if (length > maxBytes || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (length <= DIRECT_COPY_LIMIT) {
+                ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+
+                while (content.hasRemaining() && channel.read(content) >= 0) {
+                }
+
+                content.flip();
+                return new Entry(content, content.limit(), lastModified, false);
+            }
+
+            // The mapping stays valid after the channel is closed
+            ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new Entry(content, length, lastModified, true);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not cache " + file + ". " + e);
+            return null;
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+
+        currentBytes += entry.length;
+
+        // Least recently used entries come first in an access-ordered LinkedHashMap
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+
+            if (evicted.getValue() == entry) {
+                continue;
+            }
+
+            currentBytes -= evicted.getValue().length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+            currentBytes -= entry.length;
+            invalidations.incrementAndGet();
+        }
+    }
+}
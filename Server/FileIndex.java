@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// What a request needs to know about a served file without touching the disk
+class FileMeta {
+    final String name;
+    final long length;
+    final long lastModified;
+    final String contentType;
+    final String etag;
+
+    FileMeta(String name, long length, long lastModified) {
+        this.name = name;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentType = ContentTypes.forName(name);
+        this.etag = HttpHandler.etag(length, lastModified);
+    }
+
+    // One stat of the file. Returns null when it is missing or not a regular file.
+    static FileMeta stat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+
+            return new FileMeta(file.getName(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
+
+// Size, mtime, content type and ETag of every file in Files/, so request paths answer "does it
+// exist and how long is it" from memory. Built by a scan at startup and kept current by a
+// WatchService thread and by refresh() calls for uploads the server completes itself, which
+// must be visible before the watcher gets to them. If the directory cannot be watched the
+// index is not trusted and every lookup stats the file as before.
+class FileIndex {
+    private final File directory;
+    private final ConcurrentHashMap<String, FileMeta> entries = new ConcurrentHashMap<>();
+    private volatile boolean watching = false;
+
+    public FileIndex(File directory) {
+        this.directory = directory;
+    }
+
+    public void start(int debugFlag) {
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            // Scanned after registering so nothing changed in between is missed
+            rescan();
+            watching = true;
+
+            Thread thread = new Thread(() -> watch(watcher), "file-index");
+            thread.setDaemon(true);
+            thread.start();
+
+            if (debugFlag == 1) {
+                System.out.println("Indexed " + entries.size() + " file(s) in " + directory);
+            }
+        } catch (IOException e) {
+            System.out.println("** Could not watch " + directory + ". File metadata is read from disk. " + e);
+        }
+    }
+
+    // Looks a file up by path. Files outside the indexed directory, e.g. in subdirectories, are
+    // stat-ed directly.
+    public FileMeta get(File file) {
+        File parent = file.getParentFile();
+
+        if (!watching || parent == null || !parent.getPath().equals(directory.getPath())) {
+            return FileMeta.stat(file);
+        }
+
+        return entries.get(file.getName());
+    }
+
+    // Re-reads one file. Called after the server itself writes or renames a file.
+    public void refresh(File file) {
+        if (watching) {
+            refresh(file.getName());
+        }
+    }
+
+    // Indexed files sorted by name
+    public List<FileMeta> list() {
+        if (!watching) {
+            return listFromDisk();
+        }
+
+        List<FileMeta> listing = new ArrayList<>(entries.values());
+        listing.sort((a, b) -> a.name.compareTo(b.name));
+        return listing;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void refresh(String name) {
+        // compute() runs one stat per name at a time, so the newest stat is the one kept
+        entries.compute(name, (key, previous) -> FileMeta.stat(new File(directory, key)));
+    }
+
+    private void rescan() {
+        Set<String> present = new HashSet<>();
+
+        for (FileMeta meta : listFromDisk()) {
+            present.add(meta.name);
+            entries.put(meta.name, meta);
+        }
+
+        entries.keySet().retainAll(present);
+    }
+
+    private List<FileMeta> listFromDisk() {
+        List<FileMeta> listing = new ArrayList<>();
+
+        try (Stream<Path> paths = Files.list(directory.toPath())) {
+            paths.sorted().forEach(path -> {
+                FileMeta meta = FileMeta.stat(path.toFile());
+
+                if (meta != null) {
+                    listing.add(meta);
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not list " + directory + ". " + e);
+        }
+
+        return listing;
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan(); // Events were dropped
+                    } else {
+                        refresh(((Path) event.context()).toString());
+                    }
+                }
+
+                if (!key.reset()) {
+                    System.out.println("** " + directory + " is no longer watched. File metadata is read from disk.");
+                    watching = false;
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            watching = false;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// A parsed HTTP request line plus headers. Header names are stored lower case.
+class HttpRequest {
+    // Longest request or header line and most header lines read before the request is turned
+    // away, so a client cannot make the server buffer without end
+    static final int MAX_LINE = 8192;
+    static final int MAX_HEADERS = 100;
+
+    String method;
+    String path;
+    String version;
+    Map<String, String> headers = new LinkedHashMap<>();
+
+    public static HttpRequest parse(String requestLine, List<String> headerLines) {
+        HttpRequest request = new HttpRequest();
+        String[] requestParam = requestLine.trim().split(" ");
+
+        request.method = requestParam[0];
+        request.path = requestParam.length > 1 ? requestParam[1] : null;
+        request.version = requestParam.length > 2 ? requestParam[2] : "HTTP/1.0";
+
+        for (String line : headerLines) {
+            int colon = line.indexOf(':');
+
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        return request;
+    }
+
+    public String header(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    // HTTP/1.1 connections are persistent unless the client opts out, HTTP/1.0 ones only if it opts in
+    public boolean isKeepAlive() {
+        String connection = header("Connection");
+
+        if (version.equals("HTTP/1.1")) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+}
+
+// Status, headers and an optional body, either a file region or an in-memory buffer. The
+// body is sent by the caller so each server mode can use its own transfer path.
+class HttpResponse {
+    String status;
+    Map<String, String> headers = new LinkedHashMap<>();
+    File bodyFile;
+    ByteBuffer bodyBuffer;
+    // A file still arriving from the origin, sent as its bytes come in
+    EdgeCache.Fill bodyFill;
+    long bodyPosition = 0;
+    long bodyLength = 0;
+    boolean keepAlive = false;
+
+    public HttpResponse(String status) {
+        this.status = status;
+        headers.put("Content-Type", "text/html");
+        headers.put("Content-Length", "0");
+    }
+
+    public void setBody(File file, long position, long length) {
+        bodyFile = file;
+        bodyPosition = position;
+        bodyLength = length;
+        headers.put("Content-Length", Long.toString(length));
+    }
+
+    public void setBody(EdgeCache.Fill fill, long position, long length) {
+        bodyFill = fill;
+        bodyPosition = position;
+        bodyLength = length;
+        headers.put("Content-Length", Long.toString(length));
+    }
+
+    public void setBody(ByteBuffer content) {
+        bodyBuffer = content;
+        headers.put("Content-Length", Integer.toString(content.remaining()));
+    }
+
+    // Answer to HEAD: the headers of the GET response, Content-Length included, without its body
+    public void removeBody() {
+        bodyFile = null;
+        bodyBuffer = null;
+        bodyFill = null;
+    }
+
+    // 304 responses carry validators only
+    public void removeBodyHeaders() {
+        headers.remove("Content-Type");
+        headers.remove("Content-Length");
+    }
+
+    public byte[] headerBytes(ServerConfig config) {
+        StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+
+        if (keepAlive) {
+            header.append("Connection: keep-alive\r\n");
+            header.append("Keep-Alive: timeout=").append(config.keepAliveTimeout / 1000).append(", max=")
+                    .append(config.maxKeepAliveRequests).append("\r\n");
+        } else {
+            header.append("Connection: close\r\n");
+        }
+
+        header.append("\r\n");
+        return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
+
+// Maps a request onto a file in Files/. Shared by ConnectionManager and NioConnection.
+class HttpHandler {
+    private static final ByteRange UNSATISFIABLE = new ByteRange(-1, 0);
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    // Reports the file cache counters so the cache budget can be sized
+    private static final String CACHE_STATS_PATH = "/_cache";
+    // Server metrics in the Prometheus text exposition format
+    private static final String METRICS_PATH = "/metrics";
+
+    public static HttpResponse respond(HttpRequest request, ServerContext context, int debugFlag) {
+        return respond(request, context, debugFlag, true);
+    }
+
+    // With compressMisses false a compressed variant that is not cached is not made here and
+    // the file is sent identity. See compressAhead().
+    public static HttpResponse respond(HttpRequest request, ServerContext context, int debugFlag,
+            boolean compressMisses) {
+        HttpResponse response = respondToGet(request, context, debugFlag, compressMisses);
+
+        if ("HEAD".equals(request.method)) {
+            response.removeBody();
+        }
+
+        return response;
+    }
+
+    // Starts compressing the variant request is going to be answered with, on executor, when it
+    // is not cached yet. Returns null when there is nothing to wait for. The NIO event loops
+    // answer the request once the future completes, so they never compress a file themselves.
+    public static CompletableFuture<CompressedCache.Variant> compressAhead(HttpRequest request, ServerContext context,
+            Executor executor) {
+        if (request.path == null || !(request.method.equals("GET") || request.method.equals("HEAD"))
+                || request.header("Range") != null) {
+            return null;
+        }
+
+        String path = request.path;
+        int query = path.indexOf('?');
+
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        String encoding = Compression.negotiate(request.header("Accept-Encoding"));
+
+        if (encoding == null || path.equals("/") || path.contains("..") || !Compression.isCompressible(path)) {
+            return null;
+        }
+
+        // Read from disk by the worker rather than through the FileCache, so the request is
+        // counted by the FileCache once, when it is answered
+        File file = new File("Files/" + path);
+        FileMeta meta = context.fileIndex.get(file);
+
+        if (meta == null) {
+            return null;
+        }
+
+        CompletableFuture<CompressedCache.Variant> variant = context.compressedCache.get(file, meta, null, encoding,
+                executor);
+        return variant != null && !variant.isDone() ? variant : null;
+    }
+
+    // The response to request as a GET. HEAD requests get the same one without its body.
+    private static HttpResponse respondToGet(HttpRequest request, ServerContext context, int debugFlag,
+            boolean compressMisses) {
+        FileCache fileCache = context.fileCache;
+
+        if (request.path == null) {
+            return new HttpResponse("400 Bad Request");
+        }
+
+        if (!request.method.equals("GET") && !request.method.equals("HEAD")) {
+            return new HttpResponse("501 Not Implemented");
+        }
+
+        String path = request.path;
+        int query = path.indexOf('?');
+
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        if (path.equals("/") || path.contains("..")) {
+            return new HttpResponse("404 Not Found");
+        }
+
+        if (path.equals(CACHE_STATS_PATH)) {
+            HttpResponse response = new HttpResponse("200 OK");
+            String stats = fileCache.stats() + context.compressedCache.stats();
+            response.setBody(ByteBuffer.wrap(stats.getBytes(StandardCharsets.UTF_8)));
+            response.headers.put("Content-Type", "text/plain; charset=utf-8");
+            return response;
+        }
+
+        if (path.equals(METRICS_PATH)) {
+            HttpResponse response = new HttpResponse("200 OK");
+            String metrics = context.metrics.render(context);
+            response.setBody(ByteBuffer.wrap(metrics.getBytes(StandardCharsets.UTF_8)));
+            response.headers.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            return response;
+        }
+
+        if (context.edge != null) {
+            try {
+                EdgeCache.Fill fill = context.edge.lookup(path.substring(1));
+
+                if (fill != null) {
+                    return respondFromFill(request, fill);
+                }
+            } catch (IOException e) {
+                return new HttpResponse("502 Bad Gateway");
+            }
+        }
+
+        File file = new File("Files/" + path);
+        FileCache.Entry cached = fileCache.get(file);
+        FileMeta meta = context.fileIndex.get(file);
+
+        if (meta == null && cached == null) {
+            // Another node of the cluster holds it
+            Cluster.Located elsewhere = context.cluster != null ? context.cluster.locate(path.substring(1)) : null;
+
+            if (elsewhere != null) {
+                context.cluster.redirects.increment();
+                HttpResponse response = new HttpResponse("307 Temporary Redirect");
+                response.headers.put("Location", "http://" + elsewhere.node + path);
+                return response;
+            }
+
+            if (debugFlag == 1) {
+                System.out.println("File not in server: " + path);
+            }
+
+            return new HttpResponse("404 Not Found"); // the file does not exist
+        }
+
+        long length = cached != null ? cached.length : meta.length;
+        long lastModified = cached != null ? cached.lastModified : meta.lastModified;
+        boolean compressible = Compression.isCompressible(file.getName());
+        CompressedCache.Variant variant = null;
+        String encoding = null;
+
+        // Ranges are always served from the identity bytes. Files too large for the compressed
+        // variant cache are sent identity too since their encoded length is not known upfront.
+        if (compressible && request.header("Range") == null) {
+            encoding = Compression.negotiate(request.header("Accept-Encoding"));
+
+            if (encoding != null) {
+                try {
+                    variant = compressMisses ? context.compressedCache.get(file, meta, cached, encoding)
+                            : context.compressedCache.cached(file, meta, cached, encoding);
+                } catch (IOException e) {
+                    System.out.println("ERROR: Could not compress " + file + ". " + e);
+                }
+
+                if (variant == null || variant.content == null) {
+                    encoding = null;
+                }
+            }
+        }
+
+        // Each encoding is a different representation, so it gets its own validator
+        String etag;
+
+        if (encoding != null) {
+            etag = encodedEtag(length, lastModified, encoding);
+        } else if (meta != null && meta.length == length && meta.lastModified == lastModified) {
+            etag = meta.etag; // Built once when the file was indexed
+        } else {
+            etag = etag(length, lastModified);
+        }
+        HttpResponse response;
+
+        if (isNotModified(request, etag, lastModified)) {
+            response = new HttpResponse("304 Not Modified");
+            response.removeBodyHeaders();
+        } else {
+            ByteRange range = rangeFor(request, etag, length);
+
+            if (range == UNSATISFIABLE) {
+                response = new HttpResponse("416 Range Not Satisfiable");
+                response.headers.put("Content-Range", "bytes */" + length);
+                return response;
+            }
+
+            if (range != null) {
+                response = new HttpResponse("206 Partial Content");
+                setBody(response, file, cached, range.position, range.count);
+                response.headers.put("Content-Range", "bytes " + range.position + "-" + range.last() + "/" + length);
+            } else if (encoding != null) {
+                response = new HttpResponse("200 OK");
+                response.setBody(ByteBuffer.wrap(variant.content));
+                response.headers.put("Content-Encoding", encoding);
+            } else {
+                response = new HttpResponse("200 OK");
+                setBody(response, file, cached, 0, length);
+            }
+
+            response.headers.put("Content-Type", meta != null ? meta.contentType : ContentTypes.forName(file.getName()));
+            response.headers.put("Accept-Ranges", "bytes");
+        }
+
+        if (compressible) {
+            response.headers.put("Vary", "Accept-Encoding");
+        }
+
+        response.headers.put("ETag", etag);
+        response.headers.put("Last-Modified", formatDate(lastModified));
+        return response;
+    }
+
+    // A file the edge is still fetching. Sent as is, since its compressed variant needs the
+    // whole file.
+    private static HttpResponse respondFromFill(HttpRequest request, EdgeCache.Fill fill) {
+        long length = fill.length();
+        String etag = etag(length, fill.lastModified);
+        HttpResponse response;
+
+        if (isNotModified(request, etag, fill.lastModified)) {
+            response = new HttpResponse("304 Not Modified");
+            response.removeBodyHeaders();
+        } else {
+            ByteRange range = rangeFor(request, etag, length);
+
+            if (range == UNSATISFIABLE) {
+                response = new HttpResponse("416 Range Not Satisfiable");
+                response.headers.put("Content-Range", "bytes */" + length);
+                return response;
+            }
+
+            if (range != null) {
+                response = new HttpResponse("206 Partial Content");
+                response.setBody(fill, range.position, range.count);
+                response.headers.put("Content-Range", "bytes " + range.position + "-" + range.last() + "/" + length);
+            } else {
+                response = new HttpResponse("200 OK");
+                response.setBody(fill, 0, length);
+            }
+
+            response.headers.put("Content-Type", ContentTypes.forName(fill.name));
+            response.headers.put("Accept-Ranges", "bytes");
+        }
+
+        response.headers.put("ETag", etag);
+        response.headers.put("Last-Modified", formatDate(fill.lastModified));
+        return response;
+    }
+
+    private static void setBody(HttpResponse response, File file, FileCache.Entry cached, long position, long count) {
+        if (cached != null) {
+            response.setBody(cached.slice(position, count));
+        } else {
+            response.setBody(file, position, count);
+        }
+    }
+
+    static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    static String encodedEtag(long length, long lastModified, String encoding) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "-" + encoding + "\"";
+    }
+
+    static String formatDate(long millis) {
+        return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since when both are sent
+    private static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.header("If-None-Match");
+
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        String ifModifiedSince = request.header("If-Modified-Since");
+
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+                return lastModified / 1000 <= since / 1000; // HTTP dates have second precision
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    // Returns null when the whole file should be sent: no Range header, a stale If-Range, or a
+    // form we do not serve partially (multiple ranges, malformed values, an end before the start).
+    private static ByteRange rangeFor(HttpRequest request, String etag, long length) {
+        String header = request.header("Range");
+
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+
+        String ifRange = request.header("If-Range");
+
+        if (ifRange != null && !ifRange.equals(etag)) {
+            return null;
+        }
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+
+        if (spec.contains(",") || dash < 0) {
+            return null;
+        }
+
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+
+            if (start.isEmpty()) {
+                long suffix = Long.parseLong(end); // bytes=-N is the last N bytes
+
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(start);
+
+                if (!end.isEmpty() && Long.parseLong(end) < first) {
+                    return null; // Not a valid range, so the header is ignored
+                }
+
+                last = end.isEmpty() ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+            }
+
+            if (first >= length || last < first) {
+                return UNSATISFIABLE;
+            }
+
+            // Same resolution as the custom protocol's -s/-e fields
+            return ByteRange.fromSkipAndEnd(first, last + 1, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
+
+// Content-Type by file extension
+class ContentTypes {
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("htm", "text/html; charset=utf-8");
+        TYPES.put("txt", "text/plain; charset=utf-8");
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("csv", "text/csv; charset=utf-8");
+        TYPES.put("js", "application/javascript");
+        TYPES.put("json", "application/json");
+        TYPES.put("xml", "application/xml");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("webp", "image/webp");
+        TYPES.put("pdf", "application/pdf");
+        TYPES.put("zip", "application/zip");
+        TYPES.put("gz", "application/gzip");
+        TYPES.put("mp4", "video/mp4");
+        TYPES.put("mp3", "audio/mpeg");
+    }
+
+    public static String forName(String name) {
+        int dot = name.lastIndexOf('.');
+
+        if (dot < 0) {
+            return "application/octet-stream";
+        }
+
+        return TYPES.getOrDefault(name.substring(dot + 1).toLowerCase(), "application/octet-stream");
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Listening sockets for the acceptor threads. With SO_REUSEPORT several sockets bind the same
+// port and the kernel spreads new connections across them, so every acceptor has its own accept
+// queue and the acceptors never contend for a lock. Where the option is missing a single socket
+// is opened and one acceptor serves everything.
+class Listeners {
+    public static List<ServerSocketChannel> open(int port, int count, int backlog) throws IOException {
+        boolean reusePort = count > 1 && supportsReusePort();
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+
+        if (reusePort) {
+            // SO_REUSEPORT would also let a second server share the port without notice. A plain
+            // bind first fails as it always did when the port is taken.
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                probe.bind(new InetSocketAddress(port));
+            }
+        }
+
+        try {
+            for (int i = 0; i < (reusePort ? count : 1); i++) {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listeners.add(listener);
+
+                if (reusePort) {
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+
+                listener.bind(new InetSocketAddress(port), backlog);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+
+            throw e;
+        }
+
+        return listeners;
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+}
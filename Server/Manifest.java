@@ -0,0 +1,93 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One file in the served directory as reported to syncing clients
+class ManifestEntry {
+    final String name;
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    public ManifestEntry(String name, long size, long lastModified, String hash) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+}
+
+// Builds the listing of Files/ from the FileIndex, followed by the files kept in the ChunkStore
+// under other names, whose recipes carry their hash. Content hashes of Files/ are remembered
+// by name and only recomputed when a file's size or mtime changes, so repeated listings do
+// not re-read every file.
+class Manifest {
+    private final ConcurrentHashMap<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+
+    public List<ManifestEntry> list(FileIndex index, ChunkStore store) throws IOException {
+        List<ManifestEntry> listing = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+
+        for (FileMeta meta : index.list()) {
+            names.add(meta.name);
+
+            // Hidden files such as .DS_Store are not served content
+            if (meta.name.startsWith(".")) {
+                continue;
+            }
+
+            listing.add(entryFor(meta));
+        }
+
+        for (Recipe recipe : store.list()) {
+            // A file in Files/ is served in place of a stored one with the same name
+            if (!names.contains(recipe.name)) {
+                listing.add(new ManifestEntry(recipe.name, recipe.length, recipe.lastModified, recipe.hash));
+            }
+        }
+
+        return listing;
+    }
+
+    // Size, mtime and SHA-256 of one file in Files/, hashed once per version
+    public ManifestEntry entryFor(FileMeta meta) throws IOException {
+        ManifestEntry entry = entries.get(meta.name);
+
+        if (entry == null || entry.size != meta.length || entry.lastModified != meta.lastModified) {
+            entry = new ManifestEntry(meta.name, meta.length, meta.lastModified, sha256(new File("Files", meta.name)));
+            entries.put(meta.name, entry);
+        }
+
+        return entry;
+    }
+
+    static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytes;
+
+            while ((bytes = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytes);
+            }
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
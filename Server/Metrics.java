@@ -0,0 +1,262 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the whole server, rendered in Prometheus text format at
+// GET /metrics. Everything on the request path is a LongAdder (striped, so threads do not
+// contend on one cache line) or a single atomic increment into a histogram bucket.
+class Metrics {
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder acceptedConnections = new LongAdder();
+    final RateMeter acceptRate = new RateMeter();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder multiplexedConnections = new LongAdder();
+    final LongAdder multiplexedStreams = new LongAdder();
+
+    private final ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> httpResponses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> totalTime = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> firstByteTime = new ConcurrentHashMap<>();
+
+    public void connectionOpened() {
+        activeConnections.increment();
+        acceptedConnections.increment();
+        acceptRate.mark();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    // code is the status string sent to the client, e.g. ErrFileDoesNotExist, or "exception"
+    public void error(String code) {
+        errors.computeIfAbsent(code, name -> new LongAdder()).increment();
+    }
+
+    public void httpResponse(String status) {
+        int space = status.indexOf(' ');
+        String code = space > 0 ? status.substring(0, space) : status;
+        httpResponses.computeIfAbsent(code, name -> new LongAdder()).increment();
+    }
+
+    // Times are System.nanoTime() values. firstByteNanos is 0 when nothing was sent back.
+    public void operation(String operation, long startNanos, long firstByteNanos, long endNanos) {
+        requests.computeIfAbsent(operation, name -> new LongAdder()).increment();
+        totalTime.computeIfAbsent(operation, name -> new LatencyHistogram()).record((endNanos - startNanos) / 1000);
+
+        if (firstByteNanos > 0) {
+            firstByteTime.computeIfAbsent(operation, name -> new LatencyHistogram())
+                    .record((firstByteNanos - startNanos) / 1000);
+        }
+    }
+
+    public String render(ServerContext context) {
+        StringBuilder text = new StringBuilder();
+
+        gauge(text, "fileserver_connections_active", "Connections currently open", activeConnections.sum());
+        counter(text, "fileserver_connections_accepted_total", "Connections accepted", acceptedConnections.sum());
+        gauge(text, "fileserver_connections_accepted_per_second", "Connections accepted during the last full second",
+                acceptRate.lastSecond());
+        counter(text, "fileserver_multiplexed_connections_total", "Connections that carried multiplexed streams",
+                multiplexedConnections.sum());
+        counter(text, "fileserver_multiplexed_streams_total", "Streams opened on multiplexed connections",
+                multiplexedStreams.sum());
+        counter(text, "fileserver_bytes_received_total", "Bytes read from client sockets", bytesIn.sum());
+        counter(text, "fileserver_bytes_sent_total", "Bytes written to client sockets", bytesOut.sum());
+        labelled(text, "fileserver_requests_total", "Requests served by operation", "operation", requests);
+        labelled(text, "fileserver_errors_total", "Error replies and failed connections by code", "code", errors);
+        labelled(text, "fileserver_http_responses_total", "HTTP responses by status code", "status", httpResponses);
+        histograms(text, "fileserver_request_duration_seconds", "Time from request to the last byte of the reply",
+                totalTime);
+        histograms(text, "fileserver_time_to_first_byte_seconds",
+                "Time from request to the first response byte (HTTP) or first file byte (custom protocol)",
+                firstByteTime);
+
+        FileCache fileCache = context.fileCache;
+        counter(text, "fileserver_cache_hits_total", "File cache hits", fileCache.hits.get());
+        counter(text, "fileserver_cache_misses_total", "File cache misses", fileCache.misses.get());
+        counter(text, "fileserver_cache_evictions_total", "File cache evictions", fileCache.evictions.get());
+        counter(text, "fileserver_cache_invalidations_total", "File cache invalidations", fileCache.invalidations.get());
+        gauge(text, "fileserver_cache_bytes", "Bytes held by the file cache", fileCache.bytes());
+
+        CompressedCache compressedCache = context.compressedCache;
+        counter(text, "fileserver_compressed_cache_hits_total", "Compressed variant cache hits",
+                compressedCache.hits.get());
+        counter(text, "fileserver_compressed_cache_misses_total", "Compressed variant cache misses",
+                compressedCache.misses.get());
+        counter(text, "fileserver_compressed_cache_evictions_total", "Compressed variant cache evictions",
+                compressedCache.evictions.get());
+
+        counter(text, "fileserver_upload_commits_total", "Uploads, stored chunks and recipes published to disk",
+                context.committer.commits.sum());
+        counter(text, "fileserver_upload_commit_batches_total",
+                "Groups of uploads flushed to disk together, fewer than commits when uploads overlap",
+                context.committer.batches.sum());
+        counter(text, "fileserver_upload_progress_flushes_total",
+                "Temp file flushes before upload progress is saved, fewer than chunks when chunks overlap",
+                context.committer.progressFlushes.sum());
+
+        ChunkStore chunkStore = context.chunkStore;
+        counter(text, "fileserver_store_chunks_written_total", "New chunks written to the chunk store",
+                chunkStore.chunksStored.sum());
+        counter(text, "fileserver_store_chunks_reused_total", "Chunks of stored files already in the chunk store",
+                chunkStore.chunksReused.sum());
+        counter(text, "fileserver_store_bytes_written_total", "Bytes of new chunks written to the chunk store",
+                chunkStore.bytesStored.sum());
+        counter(text, "fileserver_store_bytes_reused_total", "Bytes of stored files not written again",
+                chunkStore.bytesReused.sum());
+
+        EdgeCache edge = context.edge;
+
+        if (edge != null) {
+            counter(text, "fileserver_edge_hits_total", "Requests for files already cached from the origin",
+                    edge.hits.sum());
+            counter(text, "fileserver_edge_misses_total", "Files fetched from the origin", edge.misses.sum());
+            counter(text, "fileserver_edge_coalesced_total",
+                    "Requests that joined a fetch from the origin already under way", edge.coalesced.sum());
+            counter(text, "fileserver_edge_origin_bytes_total", "Bytes read from the origin", edge.originBytes.sum());
+            counter(text, "fileserver_edge_evictions_total", "Cached files deleted to stay within EDGE_CACHE_MB",
+                    edge.evictions.sum());
+            gauge(text, "fileserver_edge_cached_bytes", "Bytes of files cached from the origin", edge.cachedBytes());
+        }
+
+        Cluster cluster = context.cluster;
+
+        if (cluster != null) {
+            counter(text, "fileserver_cluster_replicas_sent_total", "Uploads copied to another owner",
+                    cluster.replicasSent.sum());
+            counter(text, "fileserver_cluster_replica_failures_total", "Copies to another owner that failed",
+                    cluster.replicaFailures.sum());
+            counter(text, "fileserver_cluster_relayed_reads_total", "Reads passed through from the node holding the file",
+                    cluster.relayedReads.sum());
+            counter(text, "fileserver_cluster_redirects_total", "HTTP requests redirected to the node holding the file",
+                    cluster.redirects.sum());
+        }
+
+        counter(text, "fileserver_log_lines_dropped_total", "Progress lines dropped by the rate-limited logger",
+                AsyncLog.shared.dropped.sum());
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void labelled(StringBuilder text, String name, String help, String label,
+            Map<String, LongAdder> values) {
+        header(text, name, help, "counter");
+
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(values).entrySet()) {
+            text.append(name).append('{').append(label).append("=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void histograms(StringBuilder text, String name, String help,
+            Map<String, LatencyHistogram> histograms) {
+        header(text, name, help, "histogram");
+
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            entry.getValue().render(text, name, "operation=\"" + entry.getKey() + "\"");
+        }
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
+
+// Events in the last full second, from two per-second slots that are reused alternately.
+// Approximate: an event racing with the switch to a new second may be lost.
+class RateMeter {
+    private final AtomicLongArray counts = new AtomicLongArray(2);
+    private final AtomicLongArray seconds = new AtomicLongArray(2);
+
+    public void mark() {
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second & 1);
+        long seen = seconds.get(slot);
+
+        if (seen != second && seconds.compareAndSet(slot, seen, second)) {
+            counts.set(slot, 0);
+        }
+
+        counts.incrementAndGet(slot);
+    }
+
+    public long lastSecond() {
+        long previous = System.currentTimeMillis() / 1000 - 1;
+        int slot = (int) (previous & 1);
+        return seconds.get(slot) == previous ? counts.get(slot) : 0;
+    }
+}
+
+// Adds every byte that passes through to a counter
+class MeteredInputStream extends FilterInputStream {
+    private final LongAdder counter;
+
+    public MeteredInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+
+        if (b >= 0) {
+            counter.increment();
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+
+        if (read > 0) {
+            counter.add(read);
+        }
+
+        return read;
+    }
+}
+
+class MeteredOutputStream extends FilterOutputStream {
+    private final LongAdder counter;
+
+    public MeteredOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+    }
+
+    // FilterOutputStream would write byte by byte
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
@@ -0,0 +1,1020 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Non-blocking server mode. Acceptors hand connections round-robin to a fixed set of event
+// loops so the number of clients is not tied to the number of threads. With several
+// SO_REUSEPORT listeners the loops are split into one group per acceptor, so acceptors never
+// share a loop or a lock.
+// Downloads, legacy uploads, size queries and HTTP run on the loops. The chunked upload
+// and later protocol modes are handed to a worker pool running ConnectionManager, and the
+// same workers compress files for HTTP responses.
+class NioServer {
+    private final int port;
+    private final int debugFlag;
+    private final ServerContext context;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, ServerContext context) throws IOException {
+        this.port = port;
+        this.debugFlag = context.config.debugFlag;
+        this.context = context;
+        this.loops = new EventLoop[context.config.eventLoops];
+        ExecutorService workers = Executors.newCachedThreadPool();
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(context, workers);
+        }
+    }
+
+    public void start() throws IOException {
+        // Bound before any loop thread starts so a taken port ends the server
+        List<ServerSocketChannel> listeners = Listeners.open(port, Math.min(context.config.acceptors, loops.length),
+                context.config.backlog);
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Serving connections from " + loops.length + " event loop(s)");
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Accepting connections on " + listeners.size() + " socket(s)");
+        }
+
+        // The first acceptor runs on this thread
+        for (int i = listeners.size() - 1; i >= 0; i--) {
+            ServerSocketChannel listener = listeners.get(i);
+            EventLoop[] group = Arrays.copyOfRange(loops, i * loops.length / listeners.size(),
+                    (i + 1) * loops.length / listeners.size());
+
+            if (i == 0) {
+                accept(listener, group);
+            } else {
+                Thread thread = new Thread(() -> accept(listener, group), "nio-acceptor-" + i);
+                thread.start();
+            }
+        }
+    }
+
+    // Waits for connections and hands each to the next event loop of the group
+    private void accept(ServerSocketChannel serverChannel, EventLoop[] group) {
+        int nextLoop = 0;
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept(); // Block for connection request
+
+                // Over MAX_CONNECTIONS the client is told the server is busy instead of waiting
+                if (!context.shaper.tryAdmit()) {
+                    context.rejector.reject(channel.socket());
+                    continue;
+                }
+
+                group[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % group.length;
+            } catch (IOException ex) {
+                System.out.println("Error: " + ex);
+            }
+        }
+    }
+}
+
+class EventLoop implements Runnable {
+    // How often idle keep-alive connections are looked for
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    // Work other threads hand back to the loop, run between selects
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ServerContext context;
+    private final ExecutorService workers;
+    private final List<NioConnection> handoffs = new ArrayList<>();
+    // Connections the traffic shaper is holding back until their resume time
+    private final List<NioConnection> held = new ArrayList<>();
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    public EventLoop(ServerContext context, ExecutorService workers) throws IOException {
+        this.selector = Selector.open();
+        this.context = context;
+        this.workers = workers;
+    }
+
+    // Called from the acceptor thread. The channel is registered by the loop itself
+    // since registering blocks while another thread is inside select().
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    // Blocking work of the loop's connections runs here
+    public ExecutorService workers() {
+        return workers;
+    }
+
+    // Runs task on the loop thread, the only one that may touch the loop's connections
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select(selectTimeout());
+                registerPending();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        connection.handle(key);
+
+                        if (connection.isHandedOff()) {
+                            handoffs.add(connection);
+                        }
+                    } catch (Exception e) {
+                        context.metrics.error("exception");
+                        System.out.println("ERROR: Error in NioConnection. " + e);
+                        connection.close();
+                    }
+                }
+
+                handOffConnections();
+
+                resumeHeldConnections();
+
+                closeIdleConnections();
+            } catch (IOException e) {
+                System.out.println("ERROR: Event loop failure. " + e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                context.metrics.error("exception");
+                System.out.println("ERROR: Error in event loop task. " + e);
+            }
+        }
+    }
+
+    // Called by a connection of this loop that has to wait before sending more
+    public void hold(NioConnection connection) {
+        held.add(connection);
+    }
+
+    // Wakes up in time for the earliest held connection
+    private long selectTimeout() {
+        long timeout = IDLE_CHECK_INTERVAL;
+        long now = System.nanoTime();
+
+        for (NioConnection connection : held) {
+            long millis = (connection.resumeAt() - now + 999_999) / 1_000_000;
+            timeout = Math.min(timeout, Math.max(1, millis));
+        }
+
+        return timeout;
+    }
+
+    private void resumeHeldConnections() {
+        if (held.isEmpty()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Iterator<NioConnection> connections = held.iterator();
+
+        while (connections.hasNext()) {
+            NioConnection connection = connections.next();
+
+            if (connection.resumeAt() - now <= 0) {
+                connections.remove();
+                connection.resume();
+            }
+        }
+    }
+
+    // A channel can only switch back to blocking mode once its cancelled key has been
+    // flushed out of the selector, which the selectNow() does.
+    private void handOffConnections() throws IOException {
+        if (handoffs.isEmpty()) {
+            return;
+        }
+
+        selector.selectNow();
+
+        for (NioConnection connection : handoffs) {
+            try {
+                connection.handOff(context, workers);
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not hand off connection. " + e);
+                connection.close();
+            }
+        }
+
+        handoffs.clear();
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        if (now - lastIdleCheck < IDLE_CHECK_INTERVAL) {
+            return;
+        }
+
+        lastIdleCheck = now;
+
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+
+            if (connection != null && connection.isIdle(now)) {
+                connection.close();
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, context, this));
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not register connection. " + e);
+                context.shaper.release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
+
+// Drives one client through the same protocol as ConnectionManager without blocking.
+// Each call to handle() consumes whatever is available and returns.
+class NioConnection {
+    private enum State {
+        READ_REQUEST_LINE, READ_HTTP_HEADERS, READ_FILENAME, READ_RANGE, COMPRESSING, SEND_FILE, RECEIVE_FILE,
+        HANDED_OFF, CLOSING
+    }
+
+    // Large enough for a request line plus typical browser headers
+    private static final int BUFFER_SIZE = 16384;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final ServerContext context;
+    private final ServerConfig config;
+    private final FileCache fileCache;
+    private final FileIndex fileIndex;
+    private final Metrics metrics;
+    private final ClientShaper shaper;
+    private final int debugFlag;
+    // Borrowed from the shared pool for the connection's lifetime, null once returned
+    private ByteBuffer in = BufferPool.shared.acquire(BUFFER_SIZE);
+    private ByteBuffer out;
+    private State state = State.READ_REQUEST_LINE;
+    // Client mode 0 = READ
+    // Client mode 1 = WRITE
+    private int clientMode = 0;
+    private String filename;
+    private boolean httpMode = false;
+    private String requestLine;
+    private final List<String> headerLines = new ArrayList<>();
+    private int requestsServed = 0;
+    private boolean keepAlive = false;
+    private long lastActivity = System.currentTimeMillis();
+    // When the connection began waiting for its first request line, or for the headers of the
+    // request being read
+    private long requestBegan = System.currentTimeMillis();
+    private File file;
+    private FileCache.Entry cached;
+    private FileMeta meta;
+    private FileChannel fileChannel;
+    // Temp file of a legacy WRITE in progress
+    private IncomingUpload upload;
+    private ByteBuffer bodyBuffer;
+    private long filePosition;
+    private long fileRemaining;
+    // System.nanoTime() when the current request was read and when its first reply byte went
+    // out, 0 until then
+    private long requestStart;
+    private long firstByteAt;
+    private boolean closed = false;
+    // System.nanoTime() at which a connection held back by the shaper may send again
+    private long resumeAt;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, ServerContext context, EventLoop loop) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.context = context;
+        this.config = context.config;
+        this.fileCache = context.fileCache;
+        this.fileIndex = context.fileIndex;
+        this.metrics = context.metrics;
+        this.shaper = context.shaper.forClient(channel.socket().getInetAddress());
+        this.debugFlag = config.debugFlag;
+        metrics.connectionOpened();
+    }
+
+    // A keep-alive connection waiting for its next request longer than the timeout, or one
+    // that has not sent its first request line or a request's headers in REQUEST_TIMEOUT
+    public boolean isIdle(long now) {
+        if (httpMode && state == State.READ_REQUEST_LINE) {
+            return now - lastActivity > config.keepAliveTimeout;
+        }
+
+        return (state == State.READ_REQUEST_LINE || state == State.READ_HTTP_HEADERS)
+                && now - requestBegan > ConnectionManager.REQUEST_TIMEOUT;
+    }
+
+    public boolean isHandedOff() {
+        return state == State.HANDED_OFF;
+    }
+
+    // Continues this connection on a blocking worker. Bytes already read past the mode line
+    // are passed along so nothing the client sent is lost.
+    public void handOff(ServerContext context, ExecutorService workers) throws IOException {
+        channel.configureBlocking(true);
+
+        in.flip();
+        byte[] pendingInput = new byte[in.remaining()];
+        in.get(pendingInput);
+        releaseInput();
+
+        ConnectionManager manager = new ConnectionManager(channel.socket(), context, requestLine, pendingInput);
+        workers.execute(() -> {
+            try {
+                manager.run();
+            } finally {
+                context.shaper.release();
+            }
+        });
+        closed = true; // The worker closes the connection and counts it closed
+    }
+
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            onReadable();
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            onWritable();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        if (in == null) {
+            return; // Already closed
+        }
+
+        int read = channel.read(in);
+        lastActivity = System.currentTimeMillis();
+
+        if (read > 0) {
+            metrics.bytesIn.add(read);
+        }
+
+        if (state == State.RECEIVE_FILE) {
+            in.flip();
+            writeToFile();
+            in.clear();
+
+            if (read < 0) {
+                finishUpload();
+            }
+            return;
+        }
+
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        in.flip();
+        processInput();
+        in.compact();
+
+        if (state == State.READ_HTTP_HEADERS && !in.hasRemaining()) {
+            rejectHTTPRequest("431 Request Header Fields Too Large"); // Larger than the buffer
+        } else if (state == State.READ_REQUEST_LINE && !in.hasRemaining()) {
+            close();
+        }
+    }
+
+    private void processInput() throws IOException {
+        boolean progressed = true;
+
+        while (progressed && state != State.CLOSING) {
+            switch (state) {
+            case READ_REQUEST_LINE:
+                progressed = readRequestLine();
+                break;
+            case READ_HTTP_HEADERS:
+                progressed = readHttpHeaders();
+                break;
+            case READ_FILENAME:
+                progressed = readFilename();
+                break;
+            case READ_RANGE:
+                progressed = readRange();
+                break;
+            case RECEIVE_FILE:
+                writeToFile();
+                progressed = false;
+                break;
+            default:
+                progressed = false;
+                break;
+            }
+        }
+    }
+
+    // The next whole line, or null until its '\n' arrives. Lines over HttpRequest.MAX_LINE
+    // are not waited for.
+    private String readLine() throws RequestTooLargeException {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                if (i - in.position() > HttpRequest.MAX_LINE + 1) { // Allowing for the '\r'
+                    throw new RequestTooLargeException("Line longer than " + HttpRequest.MAX_LINE + " bytes");
+                }
+
+                byte[] line = new byte[i - in.position()];
+                in.get(line);
+                in.get(); // Consume '\n'
+                return new String(line, StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        if (in.remaining() > HttpRequest.MAX_LINE + 1) {
+            throw new RequestTooLargeException("Line longer than " + HttpRequest.MAX_LINE + " bytes");
+        }
+
+        return null;
+    }
+
+    private boolean readRequestLine() throws IOException {
+        String request;
+
+        try {
+            request = readLine();
+        } catch (RequestTooLargeException e) {
+            rejectHTTPRequest("400 Bad Request");
+            return false;
+        }
+
+        if (request == null) {
+            return false;
+        }
+
+        if (httpMode && request.trim().isEmpty()) {
+            return true; // Tolerate stray CRLF between requests
+        }
+
+        requestStart = System.nanoTime();
+        firstByteAt = 0;
+        shaper.startResponse();
+
+        // A file missing from a caching proxy blocks on the origin, and one missing from a cluster
+        // node on the other nodes, so workers serve everything
+        if (!httpMode && (context.edge != null || context.cluster != null)) {
+            requestLine = request;
+            state = State.HANDED_OFF;
+            key.cancel();
+            return false;
+        }
+
+        if (!httpMode && ConnectionManager.isClientModeLine(request.trim())) {
+            clientMode = ConnectionManager.parseClientMode(request.trim());
+            requestLine = request;
+
+            // Compressed downloads are encoded by a blocking worker as well, and so are uploads
+            // that are chunked into the ChunkStore
+            if (clientMode > ConnectionManager.MODE_SIZE || request.trim().length() > 1
+                    || (clientMode == ConnectionManager.MODE_WRITE && config.storage == StorageMode.dedup)) {
+                state = State.HANDED_OFF;
+                key.cancel();
+                return false;
+            }
+
+            state = State.READ_FILENAME;
+        } else if (!httpMode && Multiplexer.PREFACE.equals(request.trim())) {
+            // A multiplexed connection keeps a worker for as long as it is open, and its streams
+            // are served by blocking ConnectionManagers like any handed-off request
+            requestLine = request;
+            state = State.HANDED_OFF;
+            key.cancel();
+            return false;
+        } else {
+            if (!httpMode) {
+                // As in ConnectionManager, a small body must not wait for the ACK of the headers
+                channel.socket().setTcpNoDelay(true);
+            }
+
+            httpMode = true;
+            requestLine = request;
+            requestBegan = System.currentTimeMillis();
+            headerLines.clear();
+            state = State.READ_HTTP_HEADERS;
+        }
+
+        return true;
+    }
+
+    private boolean readHttpHeaders() throws IOException {
+        try {
+            String line;
+
+            while ((line = readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    processHTTPGetRequest();
+                    return true;
+                }
+
+                if (headerLines.size() >= HttpRequest.MAX_HEADERS) {
+                    throw new RequestTooLargeException("More than " + HttpRequest.MAX_HEADERS + " header lines");
+                }
+
+                headerLines.add(line.trim());
+            }
+        } catch (RequestTooLargeException e) {
+            rejectHTTPRequest("431 Request Header Fields Too Large");
+        }
+
+        return false;
+    }
+
+    private boolean readFilename() throws IOException {
+        if (in.remaining() < 2) {
+            return false;
+        }
+
+        int length = in.getShort(in.position()) & 0xFFFF;
+
+        if (in.remaining() < 2 + length) {
+            return false;
+        }
+
+        int filenameStart = in.position();
+        byte[] utf = new byte[2 + length];
+        in.get(utf);
+        filename = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+        file = new File("Files/" + filename);
+
+        if (debugFlag == 1) {
+            if (clientMode == ConnectionManager.MODE_WRITE) {
+                System.out.println("Receiving " + filename + " from " + channel.socket().getInetAddress());
+            } else if (clientMode == ConnectionManager.MODE_SIZE) {
+                System.out.println("Sending size of " + filename + " to " + channel.socket().getInetAddress());
+            } else {
+                System.out.println("Sending " + filename + " to " + channel.socket().getInetAddress());
+            }
+        }
+
+        if (clientMode == ConnectionManager.MODE_SIZE) {
+            cached = fileCache.get(file);
+            meta = cached == null ? fileIndex.get(file) : null;
+
+            if (cached == null && meta == null && context.chunkStore.get(filename) != null) {
+                return handOffFrom(filenameStart);
+            }
+
+            if (cached == null && meta == null) {
+                replyError("ErrFileDoesNotExist");
+                return false;
+            }
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            DataOutputStream replyOut = new DataOutputStream(reply);
+            replyOut.writeUTF("OkToRead");
+            replyOut.writeLong(cached != null ? cached.length : meta.length);
+            sendAndClose(reply.toByteArray());
+            metrics.operation("size", requestStart, 0, System.nanoTime());
+            return false;
+        }
+
+        if (clientMode != ConnectionManager.MODE_WRITE) {
+            cached = fileCache.get(file);
+            meta = cached == null ? fileIndex.get(file) : null;
+
+            if (cached == null && meta == null && context.chunkStore.get(filename) != null) {
+                return handOffFrom(filenameStart);
+            }
+
+            if (cached == null && meta == null) {
+                if (debugFlag == 1) {
+                    System.out.println("** File with name: " + filename + " does not exist.");
+                    System.out.println("   Please ensure file is in Files/ directory of Server");
+                }
+                replyError("ErrFileDoesNotExist");
+                return false;
+            }
+
+            queue(utf("OkToRead"));
+            state = State.READ_RANGE;
+        } else {
+            if (fileIndex.get(file) != null || context.chunkStore.get(filename) != null) {
+                if (debugFlag == 1) {
+                    System.out.println("** File " + filename + " already exists. Aborting upload.");
+                }
+                replyError("ErrFileExists");
+                return false;
+            }
+
+            queue(utf("OkToWrite"));
+            upload = new IncomingUpload(filename);
+            fileChannel = upload.channel;
+            state = State.RECEIVE_FILE;
+        }
+
+        return true;
+    }
+
+    // Files kept in the ChunkStore are streamed chunk by chunk by a blocking worker. The
+    // filename is put back so the worker reads the request from there.
+    private boolean handOffFrom(int filenameStart) {
+        in.position(filenameStart);
+        state = State.HANDED_OFF;
+        key.cancel();
+        return false;
+    }
+
+    private boolean readRange() throws IOException {
+        if (in.remaining() < 16) {
+            return false;
+        }
+
+        long skipItems = in.getLong();
+        long endByteIndex = in.getLong();
+        long fileLength = cached != null ? cached.length : meta.length;
+        ByteRange range = ByteRange.fromSkipAndEnd(skipItems, endByteIndex, fileLength);
+
+        if (endByteIndex > 0) {
+            if (range != null) {
+                queue(utf("OkToRead"));
+            } else {
+                if (debugFlag == 1) {
+                    System.out.println("** Invalid byte range specified");
+                }
+                replyError("ErrInvalidByteRange");
+                return false;
+            }
+        }
+
+        if (cached != null) {
+            startBufferTransfer(cached.slice(range.position, range.count));
+        } else {
+            startFileTransfer(range.position, range.count);
+        }
+        return false;
+    }
+
+    private void processHTTPGetRequest() throws IOException {
+        HttpRequest request = HttpRequest.parse(requestLine, headerLines);
+        requestsServed++;
+
+        keepAlive = request.isKeepAlive() && requestsServed < config.maxKeepAliveRequests;
+
+        // A compressed variant that is not cached yet is made by a worker. The loop stops
+        // watching the connection until it is ready and then answers from the cache.
+        CompletableFuture<CompressedCache.Variant> compressing = HttpHandler.compressAhead(request, context,
+                loop.workers());
+
+        if (compressing != null) {
+            state = State.COMPRESSING;
+            key.interestOps(0);
+            compressing.whenComplete((variant, error) -> loop.execute(() -> compressed(request)));
+            return;
+        }
+
+        respondToHTTPGetRequest(request);
+    }
+
+    private void compressed(HttpRequest request) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            respondToHTTPGetRequest(request);
+        } catch (IOException e) {
+            System.out.println("ERROR: Error in NioConnection. " + e);
+            close();
+        }
+    }
+
+    // A failed compression leaves no variant in the cache, and the file is sent identity
+    private void respondToHTTPGetRequest(HttpRequest request) throws IOException {
+        HttpResponse response = HttpHandler.respond(request, context, debugFlag, false);
+        response.keepAlive = keepAlive;
+        sendHTTPResponse(response);
+    }
+
+    // Answers a request that was not read to the end, after which the connection is closed
+    private void rejectHTTPRequest(String status) throws IOException {
+        if (state == State.READ_REQUEST_LINE) {
+            requestStart = System.nanoTime();
+            firstByteAt = 0;
+        }
+
+        httpMode = true;
+        keepAlive = false;
+        sendHTTPResponse(new HttpResponse(status));
+
+        if (debugFlag == 1) {
+            System.out.println("Rejected request from " + channel.socket().getInetAddress() + ": " + status);
+        }
+    }
+
+    private void sendHTTPResponse(HttpResponse response) throws IOException {
+        metrics.httpResponse(response.status);
+        queue(response.headerBytes(config));
+
+        if (response.bodyBuffer != null) {
+            startBufferTransfer(response.bodyBuffer);
+            return;
+        }
+
+        file = response.bodyFile;
+        startFileTransfer(response.bodyPosition, file != null ? response.bodyLength : 0);
+    }
+
+    private void startBufferTransfer(ByteBuffer content) {
+        bodyBuffer = content;
+        fileRemaining = 0;
+        state = State.SEND_FILE;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void startFileTransfer(long position, long count) throws IOException {
+        fileChannel = file != null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+        filePosition = position;
+        fileRemaining = count;
+        state = State.SEND_FILE;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void onWritable() throws IOException {
+        long wait = 0;
+
+        if (out != null && out.hasRemaining()) {
+            int sent = channel.write(out);
+            metrics.bytesOut.add(sent);
+            wait = shaper.charge(sent);
+
+            // An HTTP reply's first byte is its status line, a download's is the file's first byte
+            if (httpMode && sent > 0) {
+                markFirstByte();
+            }
+
+            if (out.hasRemaining()) {
+                holdOff(wait);
+                return;
+            }
+        }
+
+        if (state == State.SEND_FILE) {
+            if (wait > 0) {
+                holdOff(wait);
+                return;
+            }
+
+            if (bodyBuffer != null) {
+                int limit = bodyBuffer.limit();
+                bodyBuffer.limit(bodyBuffer.position() + (int) shaper.chunk(bodyBuffer.remaining()));
+                int sent = channel.write(bodyBuffer);
+                bodyBuffer.limit(limit);
+                metrics.bytesOut.add(sent);
+                wait = shaper.charge(sent);
+
+                if (sent > 0) {
+                    markFirstByte();
+                }
+
+                if (bodyBuffer.hasRemaining()) {
+                    holdOff(wait);
+                    return;
+                }
+            } else if (fileRemaining > 0) {
+                long sent = fileChannel.transferTo(filePosition, shaper.chunk(fileRemaining), channel);
+                metrics.bytesOut.add(sent);
+                wait = shaper.charge(sent);
+
+                if (sent > 0) {
+                    markFirstByte();
+                }
+
+                filePosition += sent;
+                fileRemaining -= sent;
+
+                if (sent == 0 && filePosition >= fileChannel.size()) {
+                    fileRemaining = 0; // File shrank underneath us
+                }
+            }
+
+            if (fileRemaining <= 0) {
+                finishResponse();
+            } else {
+                holdOff(wait);
+            }
+        } else if (state == State.CLOSING) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // A download ends the connection. An HTTP response either ends it or goes back to reading
+    // the next request, which may already be sitting in the buffer if the client pipelined it.
+    private void finishResponse() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+        }
+
+        bodyBuffer = null;
+        cached = null;
+        meta = null;
+        metrics.operation(httpMode ? "http" : "read", requestStart, firstByteAt, System.nanoTime());
+
+        if (!httpMode) {
+            if (debugFlag == 1) {
+                System.out.println("Finished sending " + filename + " to " + channel.socket().getInetAddress());
+            }
+            close();
+            return;
+        }
+
+        if (!keepAlive) {
+            close();
+            return;
+        }
+
+        state = State.READ_REQUEST_LINE;
+        lastActivity = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+
+        in.flip();
+        processInput();
+        in.compact();
+    }
+
+    private void writeToFile() throws IOException {
+        while (in.hasRemaining()) {
+            fileChannel.write(in);
+        }
+    }
+
+    // The commit may wait for a disk flush, so the loop stops watching the connection until the
+    // committer reports the file published. The connection is then finished on the loop thread.
+    private void finishUpload() {
+        IncomingUpload finished = upload;
+        upload = null;
+        fileChannel = null; // Closed by the committer
+        key.interestOps(0);
+
+        context.committer.submitAsync(finished.channel, finished.temp, file.toPath()).whenComplete(
+                (done, error) -> loop.execute(() -> uploadCommitted(finished, error)));
+    }
+
+    private void uploadCommitted(IncomingUpload finished, Throwable error) {
+        if (error != null) {
+            System.out.println("ERROR: Could not store " + filename + ". " + error);
+            finished.abort();
+        } else {
+            fileCache.invalidate(file);
+            fileIndex.refresh(file);
+            metrics.operation("write", requestStart, 0, System.nanoTime());
+
+            if (debugFlag == 1) {
+                System.out.println("Finished receiving " + filename + " from " + channel.socket().getInetAddress());
+            }
+        }
+
+        close();
+    }
+
+    private void queue(byte[] data) {
+        if (out == null || !out.hasRemaining()) {
+            out = ByteBuffer.wrap(data);
+        } else {
+            ByteBuffer merged = ByteBuffer.allocate(out.remaining() + data.length);
+            merged.put(out).put(data).flip();
+            out = merged;
+        }
+
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    // Stops writing until the shaper's wait is over. The event loop turns OP_WRITE back on.
+    private void holdOff(long wait) {
+        if (wait <= 0) {
+            return;
+        }
+
+        resumeAt = System.nanoTime() + wait;
+        key.interestOps(0);
+        loop.hold(this);
+    }
+
+    public long resumeAt() {
+        return resumeAt;
+    }
+
+    public void resume() {
+        if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void markFirstByte() {
+        if (firstByteAt == 0) {
+            firstByteAt = System.nanoTime();
+        }
+    }
+
+    // Sends an Err status, counts it in the metrics and closes
+    private void replyError(String code) throws IOException {
+        metrics.error(code);
+        sendAndClose(utf(code));
+    }
+
+    private void sendAndClose(byte[] data) {
+        queue(data);
+        state = State.CLOSING;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private static byte[] utf(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message);
+        return bytes.toByteArray();
+    }
+
+    public void close() {
+        state = State.CLOSING;
+        key.cancel();
+        releaseInput();
+
+        if (!closed) {
+            closed = true;
+            metrics.connectionClosed();
+            context.shaper.release();
+        }
+
+        // An upload cut short is not published
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+            fileChannel = null;
+        }
+
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not access socket.");
+        }
+    }
+
+    private void releaseInput() {
+        if (in != null) {
+            BufferPool.shared.release(in);
+            in = null;
+        }
+    }
+}
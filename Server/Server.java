@@ -1,7 +1,24 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 // PLEASE ADJUST PORT NUMBER HERE AS NEEDED
@@ -11,71 +28,309 @@ class Port {
 }
 
 public class Server {
-    private Socket connection;
-    private ServerSocket socket;
-    private ExecutorService executorService;
-
     public Server() {
     }
 
-    public void start(int port, int debugFlag) {
+    public void start(int port, ServerConfig config) {
+        int debugFlag = config.debugFlag;
+        ServerContext context = new ServerContext(config);
+        context.fileIndex.start(debugFlag);
+        IncomingUpload.removeLeftovers();
+        context.chunkStore.start(debugFlag);
+
+        if (context.edge != null) {
+            context.edge.start(debugFlag);
+        }
+
+        if (context.cluster != null) {
+            context.cluster.start(debugFlag);
+        }
+
         if (debugFlag == 1) {
             System.out.println("Server running on port: " + port);
         }
 
-        executorService = Executors.newCachedThreadPool();
+        if (config.mode == ServerMode.nio) {
+            try {
+                new NioServer(port, context).start();
+            } catch (IOException i) {
+                System.out.println("Error: " + i);
+            }
+            return;
+        }
+
+        List<ServerSocketChannel> listeners;
 
         try {
-            socket = new ServerSocket(port);
-            // Wait for connection and process it
-            while (true) {
-                try {
-                    connection = socket.accept(); // Block for connection request
-                    executorService.execute(new ConnectionManager(connection, debugFlag));
+            listeners = Listeners.open(port, config.acceptors, config.backlog);
+        } catch (IOException i) {
+            System.out.println("Error: " + i);
+            return;
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Accepting connections on " + listeners.size() + " socket(s)");
+        }
+
+        // Each acceptor runs its own executor, the first one on this thread
+        for (int i = 1; i < listeners.size(); i++) {
+            ServerSocketChannel listener = listeners.get(i);
+            Thread thread = new Thread(() -> acceptConnections(listener, context), "acceptor-" + i);
+            thread.start();
+        }
+
+        acceptConnections(listeners.get(0), context);
+    }
 
-                } catch (Exception ex) {
-                    System.out.println("Error: " + ex);
+    // Opened through a channel so accepted sockets expose getChannel() for transferTo
+    private static void acceptConnections(ServerSocketChannel serverChannel, ServerContext context) {
+        ExecutorService executorService = createExecutorService(context.config);
+
+        // Wait for connection and process it
+        while (serverChannel.isOpen()) {
+            try {
+                Socket connection = serverChannel.accept().socket(); // Block for connection request
+
+                // Over MAX_CONNECTIONS the client is told the server is busy instead of waiting
+                if (!context.shaper.tryAdmit()) {
+                    context.rejector.reject(connection);
+                    continue;
+                }
+
+                ConnectionManager manager = new ConnectionManager(connection, context);
+
+                try {
+                    executorService.execute(() -> {
+                        try {
+                            manager.run();
+                        } finally {
+                            context.shaper.release();
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    context.shaper.release();
+                    connection.close();
+                    throw ex;
                 }
+            } catch (Exception ex) {
+                System.out.println("Error: " + ex);
             }
-        } catch (IOException i) {
-            System.out.println("Error: " + i);
         }
 
         executorService.shutdown();
     }
 
+    // Virtual threads need Java 21+. They are looked up reflectively so the server still
+    // compiles and runs on older JDKs, falling back to the cached thread pool.
+    static ExecutorService createExecutorService(ServerConfig config) {
+        if (config.executor == ExecutorKind.virtual) {
+            try {
+                Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+                if (config.debugFlag == 1) {
+                    System.out.println("Serving connections on virtual threads (max " + config.maxConnections + ")");
+                }
+
+                return (ExecutorService) executor;
+            } catch (ReflectiveOperationException e) {
+                System.out.println("** Virtual threads are not available on this JVM. Using cached thread pool.");
+            }
+        }
+
+        return Executors.newCachedThreadPool();
+    }
+
     public static void main(String[] args) {
         try {
-            int debugFlag = parseCommandLineArgument(args);
+            ServerConfig config = parseCommandLineArguments(args);
             Server server = new Server();
-            server.start(Port.port, debugFlag);
+            server.start(config.port, config);
         } catch (InvalidArgumentException e) {
             System.out.println(e.getMessage().isEmpty() ? "ERROR: INVALID ARGUMENTS" : e.getMessage());
             System.out.println();
             System.out.println("Please run as:");
             System.out.println();
-            System.out.println("  `java Server` or `java Server DEBUG=1`");
+            System.out.println("  `java Server [KEY=VALUE ...]`, for example `java Server DEBUG=1 MODE=nio`");
+            System.out.println();
+            System.out.println("  DEBUG : 0 or 1. Prints connection and transfer details when set to 1");
+            System.out.println("  MODE  : threads (default) serves each connection on its own thread,");
+            System.out.println("          nio serves all connections from a fixed set of selector event loops");
+            System.out.println("  LOOPS : Number of event loop threads in nio mode. Defaults to available processors");
+            System.out.println("  ACCEPTORS : Threads accepting connections, each on its own SO_REUSEPORT socket. Defaults to");
+            System.out.println("              available processors, at most 4. One when SO_REUSEPORT is not supported");
+            System.out.println("  EXECUTOR : cached (default) or virtual. Executor used by threads mode");
+            System.out.println("  MAX_CONNECTIONS : Connections served at once, extra ones are answered busy. Defaults to 10000");
+            System.out.println("  BACKLOG : Length of the listen queue for connections not yet accepted. Defaults to 128");
+            System.out.println("  RATE_LIMIT_KB : KB/s sent to each client address. Defaults to 0, unlimited");
+            System.out.println("  GLOBAL_RATE_LIMIT_KB : KB/s sent to all clients together. Defaults to 0, unlimited");
+            System.out.println("  SMALL_RESPONSE_KB : First KB of every response sent ahead of the rate limits. Defaults to 64");
+            System.out.println("  FSYNC : group (default) flushes uploads to disk before publishing them, batching");
+            System.out.println("          concurrent uploads into one flush. off publishes without flushing");
+            System.out.println("  STORAGE : files (default) stores uploads in Files/. dedup stores them as content-defined");
+            System.out.println("            chunks under Store/, keeping each distinct chunk once");
+            System.out.println("  KEEP_ALIVE_TIMEOUT : Milliseconds an idle HTTP connection stays open. Defaults to 5000");
+            System.out.println("  MAX_KEEP_ALIVE_REQUESTS : HTTP requests served per connection. Defaults to 100");
+            System.out.println("  CACHE_MB : Memory budget of the file content cache. Defaults to 64, 0 disables it");
+            System.out.println("  CACHE_REVALIDATE : Milliseconds a cached file is trusted before checking the disk. Defaults to 1000");
+            System.out.println("  COMPRESSED_CACHE_MB : Memory budget of compressed file variants. Defaults to 32, 0 disables it");
+            System.out.println("  PORT : Port to listen on. Defaults to " + Port.port);
+            System.out.println("  ORIGIN : host:port of a Server to cache. Downloads and GETs are served from Files/ and");
+            System.out.println("           missing files are fetched from the origin. Uploads are refused");
+            System.out.println("  EDGE_CACHE_MB : Disk budget of Files/ with ORIGIN set. Defaults to 1024");
+            System.out.println("  CLUSTER : host:port of every node of a cluster, comma separated, the same on each node");
+            System.out.println("  SELF : host:port of this node in CLUSTER. Defaults to localhost:PORT");
+            System.out.println("  REPLICAS : Nodes holding a copy of each file with CLUSTER set. Defaults to 2");
         }
     }
 
-    public static int parseCommandLineArgument(String[] args) throws InvalidArgumentException {
-        if (args.length <= 0)
-            return 0;
+    public static ServerConfig parseCommandLineArguments(String[] args) throws InvalidArgumentException {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            String[] splitByEqual = arg.split("=");
+
+            if (splitByEqual.length < 2) {
+                throw new InvalidArgumentException();
+            }
+
+            String key = splitByEqual[0].toUpperCase();
+            String value = splitByEqual[1];
+
+            switch (key) {
+            case "DEBUG":
+                config.debugFlag = parseDebugFlag(value);
+                break;
+            case "MODE":
+                try {
+                    config.mode = ServerMode.valueOf(value.toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidArgumentException("ERROR: UNKNOWN MODE. MUST BE threads OR nio");
+                }
+                break;
+            case "LOOPS":
+                config.eventLoops = parsePositiveInt(key, value);
+                break;
+            case "ACCEPTORS":
+                config.acceptors = parsePositiveInt(key, value);
+                break;
+            case "EXECUTOR":
+                try {
+                    config.executor = ExecutorKind.valueOf(value.toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidArgumentException("ERROR: UNKNOWN EXECUTOR. MUST BE cached OR virtual");
+                }
+                break;
+            case "MAX_CONNECTIONS":
+                config.maxConnections = parsePositiveInt(key, value);
+                break;
+            case "BACKLOG":
+                config.backlog = parsePositiveInt(key, value);
+                break;
+            case "RATE_LIMIT_KB":
+                config.rateLimitKBps = parseNonNegativeInt(key, value);
+                break;
+            case "GLOBAL_RATE_LIMIT_KB":
+                config.globalRateLimitKBps = parseNonNegativeInt(key, value);
+                break;
+            case "SMALL_RESPONSE_KB":
+                config.smallResponseKB = parseNonNegativeInt(key, value);
+                break;
+            case "FSYNC":
+                try {
+                    config.fsync = FsyncMode.valueOf(value.toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidArgumentException("ERROR: UNKNOWN FSYNC. MUST BE group OR off");
+                }
+                break;
+            case "STORAGE":
+                try {
+                    config.storage = StorageMode.valueOf(value.toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidArgumentException("ERROR: UNKNOWN STORAGE. MUST BE files OR dedup");
+                }
+                break;
+            case "KEEP_ALIVE_TIMEOUT":
+                config.keepAliveTimeout = parsePositiveInt(key, value);
+                break;
+            case "MAX_KEEP_ALIVE_REQUESTS":
+                config.maxKeepAliveRequests = parsePositiveInt(key, value);
+                break;
+            case "CACHE_MB":
+                config.cacheBytes = parseNonNegativeInt(key, value) * 1024L * 1024L;
+                break;
+            case "CACHE_REVALIDATE":
+                config.cacheRevalidateMillis = parseNonNegativeInt(key, value);
+                break;
+            case "COMPRESSED_CACHE_MB":
+                config.compressedCacheBytes = parseNonNegativeInt(key, value) * 1024L * 1024L;
+                break;
+            case "PORT":
+                config.port = parsePositiveInt(key, value);
+                break;
+            case "ORIGIN":
+                int colon = value.lastIndexOf(':');
+
+                if (colon <= 0) {
+                    throw new InvalidArgumentException("ERROR: CANNOT PARSE ORIGIN ARGUMENT. MUST BE host:port");
+                }
+
+                config.originHost = value.substring(0, colon);
+                config.originPort = parsePositiveInt(key, value.substring(colon + 1));
+                break;
+            case "EDGE_CACHE_MB":
+                config.edgeCacheBytes = parsePositiveInt(key, value) * 1024L * 1024L;
+                break;
+            case "CLUSTER":
+                config.clusterNodes = new ArrayList<>();
+
+                for (String node : value.split(",")) {
+                    config.clusterNodes.add(parseNode(key, node.trim()));
+                }
+                break;
+            case "SELF":
+                config.self = parseNode(key, value);
+                break;
+            case "REPLICAS":
+                config.replicas = parsePositiveInt(key, value);
+                break;
+            default:
+                throw new InvalidArgumentException();
+            }
+        }
+
+        if (config.clusterNodes != null) {
+            if (config.originHost != null) {
+                throw new InvalidArgumentException("ERROR: ORIGIN AND CLUSTER CANNOT BE USED TOGETHER");
+            }
 
-        String[] splitByEqual = args[0].split("=");
+            if (config.self == null) {
+                config.self = "localhost:" + config.port;
+            }
 
-        if (splitByEqual.length < 2) {
-            throw new InvalidArgumentException();
+            if (!config.clusterNodes.contains(config.self)) {
+                throw new InvalidArgumentException("ERROR: SELF " + config.self + " IS NOT ONE OF THE CLUSTER NODES");
+            }
         }
 
-        if (splitByEqual[0].compareTo("DEBUG") != 0 && splitByEqual[0].compareTo("debug") != 0) {
-            throw new InvalidArgumentException();
+        return config;
+    }
+
+    // A cluster node as host:port
+    private static String parseNode(String key, String value) throws InvalidArgumentException {
+        int colon = value.lastIndexOf(':');
+
+        if (colon <= 0) {
+            throw new InvalidArgumentException("ERROR: CANNOT PARSE " + key + " ARGUMENT. MUST BE host:port");
         }
 
+        return value.substring(0, colon) + ":" + parsePositiveInt(key, value.substring(colon + 1));
+    }
+
+    private static int parseDebugFlag(String value) throws InvalidArgumentException {
         int debugFlag = 0;
 
         try {
-            int parsedDebugFlag = Integer.parseInt(splitByEqual[1]);
+            int parsedDebugFlag = Integer.parseInt(value);
 
             if (parsedDebugFlag != 0 && parsedDebugFlag != 1) {
                 throw new NumberFormatException();
@@ -89,6 +344,111 @@ public class Server {
 
         return debugFlag;
     }
+
+    static int parseNonNegativeInt(String key, String value) throws InvalidArgumentException {
+        try {
+            int parsed = Integer.parseInt(value);
+
+            if (parsed < 0) {
+                throw new NumberFormatException();
+            }
+
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new InvalidArgumentException("ERROR: CANNOT PARSE " + key + " ARGUMENT. MUST BE A NUMBER NOT LESS THAN 0");
+        }
+    }
+
+    static int parsePositiveInt(String key, String value) throws InvalidArgumentException {
+        try {
+            int parsed = Integer.parseInt(value);
+
+            if (parsed < 1) {
+                throw new NumberFormatException();
+            }
+
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new InvalidArgumentException("ERROR: CANNOT PARSE " + key + " ARGUMENT. MUST BE A NUMBER GREATER THAN 0");
+        }
+    }
+}
+
+enum ServerMode {
+    threads, nio
+}
+
+enum ExecutorKind {
+    cached, virtual
+}
+
+enum FsyncMode {
+    group, off
+}
+
+enum StorageMode {
+    files, dedup
+}
+
+// Startup options parsed from `KEY=VALUE` command line arguments
+class ServerConfig {
+    int debugFlag = 0;
+    ServerMode mode = ServerMode.threads;
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+    int acceptors = Math.min(4, Runtime.getRuntime().availableProcessors());
+    ExecutorKind executor = ExecutorKind.cached;
+    int maxConnections = 10000;
+    int backlog = 128;
+    int rateLimitKBps = 0; // Per client address, 0 is unlimited
+    int globalRateLimitKBps = 0;
+    int smallResponseKB = 64; // Head of every response that is never held back by the rate limits
+    FsyncMode fsync = FsyncMode.group;
+    StorageMode storage = StorageMode.files;
+    int keepAliveTimeout = 5000; // Milliseconds an idle HTTP connection is kept open
+    int maxKeepAliveRequests = 100;
+    long cacheBytes = 64L * 1024 * 1024; // Budget of the in-memory file cache, 0 disables it
+    int cacheRevalidateMillis = 1000; // How long a cached entry is trusted before re-checking the file
+    long compressedCacheBytes = 32L * 1024 * 1024; // Budget for compressed variants, 0 compresses every time
+    int port = Port.port;
+    String originHost = null; // Set when running as a caching proxy of another Server
+    int originPort = 0;
+    long edgeCacheBytes = 1024L * 1024 * 1024; // Disk budget of Files/ when caching an origin
+    List<String> clusterNodes = null; // host:port of every node when running in a cluster
+    String self = null; // This node among clusterNodes
+    int replicas = 2; // Owners of each file in a cluster
+}
+
+// Config plus the services shared by every connection
+class ServerContext {
+    final ServerConfig config;
+    final FileIndex fileIndex = new FileIndex(new File("Files"));
+    final FileCache fileCache;
+    final CompressedCache compressedCache;
+    final UploadSessions uploadSessions;
+    final Manifest manifest = new Manifest();
+    final SignatureCache signatureCache = new SignatureCache();
+    final Metrics metrics = new Metrics();
+    final TrafficShaper shaper;
+    final Rejector rejector;
+    final UploadCommitter committer;
+    final ChunkStore chunkStore;
+    // Null unless ORIGIN is set
+    final EdgeCache edge;
+    // Null unless CLUSTER is set
+    final Cluster cluster;
+
+    public ServerContext(ServerConfig config) {
+        this.config = config;
+        this.shaper = new TrafficShaper(config);
+        this.rejector = new Rejector(metrics);
+        this.committer = new UploadCommitter(config.fsync == FsyncMode.group);
+        this.chunkStore = new ChunkStore(committer);
+        this.uploadSessions = new UploadSessions(committer);
+        this.fileCache = new FileCache(config.cacheBytes, config.cacheRevalidateMillis, fileIndex);
+        this.compressedCache = new CompressedCache(config.compressedCacheBytes);
+        this.edge = config.originHost != null ? new EdgeCache(config, fileIndex, fileCache, committer) : null;
+        this.cluster = config.clusterNodes != null ? new Cluster(config, chunkStore) : null;
+    }
 }
 
 class InvalidArgumentException extends Exception {
@@ -109,49 +469,251 @@ class InvalidArgumentException extends Exception {
     private static final long serialVersionUID = 1L;
 }
 
+// A resolved [position, position + count) slice of a file. Both the custom protocol's
+// -s/-e fields and HTTP Range headers resolve to this before any bytes are sent.
+class ByteRange {
+    final long position;
+    final long count;
+
+    public ByteRange(long position, long count) {
+        this.position = position;
+        this.count = count;
+    }
+
+    // skipItems is the 0-based first byte and endByteIndex the exclusive end, or <= 0 for the
+    // whole file. Returns null when the range is longer than the file.
+    public static ByteRange fromSkipAndEnd(long skipItems, long endByteIndex, long fileLength) {
+        long available = Math.max(0, fileLength - skipItems);
+
+        if (endByteIndex <= 0) {
+            return new ByteRange(skipItems, available);
+        }
+
+        long lengthOfBytesToRead = endByteIndex - skipItems;
+
+        if (fileLength < lengthOfBytesToRead) {
+            return null;
+        }
+
+        return new ByteRange(skipItems, Math.min(available, lengthOfBytesToRead));
+    }
+
+    public long last() {
+        return position + count - 1;
+    }
+}
+
+// Destination of a receive loop, e.g. a FileChannel at an offset or an upload session
+interface ChunkWriter {
+    void write(ByteBuffer data, long position) throws IOException;
+}
+
+// Tells how many bytes are buffered, so a receive loop knows when it can read the socket
+// channel directly without skipping anything
+class PeekableInputStream extends BufferedInputStream {
+    public PeekableInputStream(InputStream in) {
+        super(in);
+    }
+
+    public synchronized int buffered() {
+        return count - pos;
+    }
+
+    // A line ended by "\n", "\r\n" or "\r" as DataInputStream.readLine reads it, or null at the
+    // end of the stream. Throws RequestTooLargeException rather than hold more than maxLength
+    // bytes of one line.
+    public synchronized String readLine(int maxLength) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = read()) != -1 && c != '\n') {
+            if (c == '\r') {
+                mark(1);
+
+                if (read() != '\n') {
+                    reset(); // A lone '\r' ends the line too
+                }
+                break;
+            }
+
+            if (line.length() >= maxLength) {
+                throw new RequestTooLargeException("Line longer than " + maxLength + " bytes");
+            }
+
+            line.append((char) c);
+        }
+
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+}
+
+class RequestTooLargeException extends IOException {
+    public RequestTooLargeException(String message) {
+        super(message);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
+
 class ConnectionManager implements Runnable {
     private Socket connection;
-    private final int BUFFER_SIZE = 4096;
     private DataInputStream socketIn;
     private DataOutputStream socketOut;
-    private FileInputStream fileIn;
-    private FileOutputStream fileOut;
     private String filename;
-    private int bytes;
-    private byte[] buffer = new byte[BUFFER_SIZE];
+    private PeekableInputStream bufferedIn;
+    // Heap scratch for bytes bufferedIn already holds when a receive loop starts, allocated on first use
+    private byte[] drainBuffer;
+    // Progress of the current receiveChunks call, kept if the client disconnects midway
+    private long bytesReceived;
     private int debugFlag = 0;
+    private ServerContext context;
+    private ServerConfig config;
+    private FileCache fileCache;
+    private FileIndex fileIndex;
+    private Metrics metrics;
+    // System.nanoTime() when the current request was read and when its first reply byte went
+    // out, 0 until then
+    private long requestStart;
+    private long firstByteAt;
     private long percentageTransferred = 0;
     // Client mode 0 = READ
     // Client mode 1 = WRITE
+    // Client mode 2 = SIZE (reply with the file length so the client can split a download)
+    // Client mode 3 = OPEN_UPLOAD (start a chunked upload of a declared size)
+    // Client mode 4 = UPLOAD_CHUNK (write one chunk of an open upload at an offset)
+    // Client mode 5 = UPLOAD_STATUS (report the ranges an open upload is still missing)
+    // Client mode 6 = LIST (report name, size, mtime and hash of every file)
+    // Client mode 7 = BATCH_READ (send several files over one connection)
+    // Client mode 8 = DELTA_READ (send only what differs from the client's block signatures)
+    // Client mode 9 = DEDUP_UPLOAD (take chunk hashes first, then only the chunks not yet stored)
+    static final int MODE_READ = 0;
+    static final int MODE_WRITE = 1;
+    static final int MODE_SIZE = 2;
+    static final int MODE_OPEN_UPLOAD = 3;
+    static final int MODE_UPLOAD_CHUNK = 4;
+    static final int MODE_UPLOAD_STATUS = 5;
+    static final int MODE_LIST = 6;
+    static final int MODE_BATCH_READ = 7;
+    static final int MODE_DELTA_READ = 8;
+    static final int MODE_DEDUP_UPLOAD = 9;
     private int clientMode = 0;
+    // Encoding asked for by a letter after the mode digit, or null for plain bytes
+    private String requestedEncoding;
+    // The letter after the mode digit, 0 if none. 'h' on OPEN_UPLOAD declares a SHA-256.
+    private char requestFlag;
+    // Flag of requests from another node of the cluster. They are answered from this node's
+    // own files, and a WRITE is not copied further and is answered once stored.
+    static final char PEER_FLAG = 'r';
+    // Flag on LIST asking for the cluster's node list instead of the files
+    static final char MAP_FLAG = 'm';
+    // How long a new connection may take to send its first request line, and an HTTP request
+    // its headers, before the worker gives up on it
+    static final int REQUEST_TIMEOUT = 10000;
+    // Flag on SIZE asking for the mtime and SHA-256 too, so a client can tell whether a partial
+    // download is of the same version
+    static final char INFO_FLAG = 'i';
+    private UploadSessions uploadSessions;
+    private Manifest manifest;
+    // Set when an NIO event loop hands over a connection it has already started reading
+    private String handedOffRequest;
+    private byte[] handedOffInput;
+    private ByteArrayInputStream handedOffStream;
+    // Set for a stream of a multiplexed connection. The connection itself is counted, metered
+    // and shaped, so its streams are not.
+    private boolean multiplexed = false;
+    // Bandwidth share of this client, see TrafficShaper
+    private final ClientShaper clientShaper;
 
-    public ConnectionManager(Socket serverSocket, int debugFlag) {
+    public ConnectionManager(Socket serverSocket, ServerContext context) {
         connection = serverSocket;
-        this.debugFlag = debugFlag;
+        this.context = context;
+        this.config = context.config;
+        this.fileCache = context.fileCache;
+        this.fileIndex = context.fileIndex;
+        this.uploadSessions = context.uploadSessions;
+        this.manifest = context.manifest;
+        this.metrics = context.metrics;
+        this.clientShaper = context.shaper.forClient(serverSocket.getInetAddress());
+        this.debugFlag = config.debugFlag;
+    }
+
+    // Continues a connection whose mode line, and possibly more, was already read elsewhere
+    public ConnectionManager(Socket serverSocket, ServerContext context, String request, byte[] pendingInput) {
+        this(serverSocket, context);
+        this.handedOffRequest = request;
+        this.handedOffInput = pendingInput;
+    }
+
+    // Serves one stream of a multiplexed connection
+    public ConnectionManager(MuxSocket stream, ServerContext context) {
+        this((Socket) stream, context);
+        this.multiplexed = true;
     }
 
     public void run() {
+        // A connection handed over by an NIO event loop was counted when the loop accepted it
+        if (handedOffRequest == null && !multiplexed) {
+            metrics.connectionOpened();
+        }
+
         try {
             try {
-                socketIn = new DataInputStream(connection.getInputStream()); // Read data from client
+                InputStream input = multiplexed ? connection.getInputStream()
+                        : new MeteredInputStream(connection.getInputStream(), metrics.bytesIn);
+
+                if (handedOffInput != null) {
+                    handedOffStream = new ByteArrayInputStream(handedOffInput);
+                    input = new SequenceInputStream(handedOffStream, input);
+                }
+
+                // Buffered so request and header lines are not read a byte per syscall
+                bufferedIn = new PeekableInputStream(input);
+                socketIn = new DataInputStream(bufferedIn); // Read data from client
+
+                String request = handedOffRequest;
 
-                @SuppressWarnings("deprecation")
-                String request = socketIn.readLine(); // Now you get GET index.html HTTP/1.1
+                if (request == null) {
+                    connection.setSoTimeout(REQUEST_TIMEOUT);
 
-                if (request.trim().length() == 1) {
-                    clientMode = request.trim().equals("1") ? 1 : 0;
-                    socketOut = new DataOutputStream(connection.getOutputStream()); // Write data to client
+                    try {
+                        request = bufferedIn.readLine(HttpRequest.MAX_LINE); // Now you get GET index.html HTTP/1.1
+                    } catch (RequestTooLargeException e) {
+                        rejectHTTPRequest("400 Bad Request");
+                        return;
+                    }
+                }
+
+                requestStart = System.nanoTime();
+
+                if (isClientModeLine(request.trim())) {
+                    if (handedOffRequest == null) {
+                        connection.setSoTimeout(0); // Transfers wait on the client as long as it likes
+                    }
+
+                    clientMode = parseClientMode(request.trim());
+                    requestFlag = request.trim().length() > 1 ? request.trim().charAt(1) : 0;
+                    requestedEncoding = request.trim().length() > 1 && requestFlag != PEER_FLAG
+                            ? Compression.forFlag(request.trim().charAt(1)) : null;
+                    // Write data to client
+                    socketOut = new DataOutputStream(replyStream());
+                    clientShaper.startResponse();
                     processClientRequest(debugFlag);
+                    metrics.operation(operationName(clientMode), requestStart, firstByteAt, System.nanoTime());
                     System.out.println();
+                } else if (!multiplexed && Multiplexer.PREFACE.equals(request.trim())) {
+                    processMultiplexedConnection();
                 } else {
-                    String[] requestParam = request.split(" ");
-                    String path = requestParam[1];
-                    processHTTPGetRequest(path);
+                    processHTTPConnection(request);
                     System.out.println();
                 }
             } catch (Exception e) {
+                metrics.error("exception");
                 System.out.println("ERROR: Error in ConnectionManager. " + e);
             } finally {
+                if (!multiplexed) {
+                    metrics.connectionClosed();
+                }
+
                 connection.close();
             }
         } catch (Exception e) {
@@ -159,118 +721,1106 @@ class ConnectionManager implements Runnable {
         }
     }
 
+    private OutputStream replyStream() throws IOException {
+        if (multiplexed) {
+            return connection.getOutputStream();
+        }
+
+        return new ShapedOutputStream(new MeteredOutputStream(connection.getOutputStream(), metrics.bytesOut),
+                clientShaper);
+    }
+
+    // Hands every stream the client opens to a ConnectionManager of its own, which serves it
+    // as it would a connection. Returns when the client closes the connection.
+    private void processMultiplexedConnection() throws IOException {
+        // Frames are written whole, a small reply must not wait for the ACK of the one before
+        connection.setTcpNoDelay(true);
+        Multiplexer mux = Multiplexer.accept(connection, bufferedIn, replyStream());
+        ExecutorService streams = Server.createExecutorService(config);
+        metrics.multiplexedConnections.increment();
+
+        if (debugFlag == 1) {
+            System.out.println("Multiplexed connection from " + connection.getInetAddress());
+        }
+
+        try {
+            mux.serve(stream -> {
+                metrics.multiplexedStreams.increment();
+
+                try {
+                    streams.execute(new ConnectionManager(new MuxSocket(stream, connection.getInetAddress()), context));
+                } catch (IOException e) {
+                    stream.close();
+                }
+            });
+        } finally {
+            mux.close();
+            streams.shutdown();
+        }
+    }
+
+    // A mode digit, optionally followed by a compression letter. HTTP request lines are longer.
+    static boolean isClientModeLine(String line) {
+        return line.length() == 1 || (line.length() == 2 && Character.isDigit(line.charAt(0)));
+    }
+
+    // Unknown mode digits fall back to READ, as before modes other than 0 and 1 existed
+    static int parseClientMode(String mode) {
+        return Character.isDigit(mode.charAt(0)) ? mode.charAt(0) - '0' : MODE_READ;
+    }
+
     private void processClientRequest(int debugFlag) throws IOException, FileNotFoundException {
         filename = socketIn.readUTF(); // Read filename from client
         if (debugFlag == 1) {
-            if (clientMode == 0) {
-                System.out.println("Sending " + filename + " to " + connection.getInetAddress());
-            } else {
-                System.out.println("Receiving " + filename + " from " + connection.getInetAddress());
-            }
+            System.out.println(describeRequest(clientMode, filename) + " " + connection.getInetAddress());
         }
-        if (clientMode == 0) {
-            processClientDownload();
-        } else {
+
+        // A caching proxy only mirrors its origin
+        if (context.edge != null && isUpload(clientMode)) {
+            replyError("ErrReadOnly");
+            return;
+        }
+
+        switch (clientMode) {
+        case MODE_WRITE:
             processClientUpload();
+            break;
+        case MODE_SIZE:
+            processClientSize();
+            break;
+        case MODE_OPEN_UPLOAD:
+            processClientOpenUpload();
+            break;
+        case MODE_UPLOAD_CHUNK:
+            processClientUploadChunk();
+            break;
+        case MODE_UPLOAD_STATUS:
+            processClientUploadStatus();
+            break;
+        case MODE_LIST:
+            processClientList();
+            break;
+        case MODE_BATCH_READ:
+            processClientBatchDownload();
+            break;
+        case MODE_DELTA_READ:
+            processClientDeltaDownload();
+            break;
+        case MODE_DEDUP_UPLOAD:
+            processClientDedupUpload();
+            break;
+        default:
+            processClientDownload();
+            break;
         }
     }
 
-    private long totalBytesTransferred = 0;
+    static boolean isUpload(int clientMode) {
+        return clientMode == MODE_WRITE || clientMode == MODE_OPEN_UPLOAD || clientMode == MODE_UPLOAD_CHUNK
+                || clientMode == MODE_UPLOAD_STATUS || clientMode == MODE_DEDUP_UPLOAD;
+    }
 
-    private void processClientDownload() throws IOException, FileNotFoundException {
-        File fileInFiles = new File("Files/" + filename);
+    // Label of a client mode in the metrics
+    static String operationName(int clientMode) {
+        switch (clientMode) {
+        case MODE_WRITE:
+            return "write";
+        case MODE_SIZE:
+            return "size";
+        case MODE_OPEN_UPLOAD:
+            return "open_upload";
+        case MODE_UPLOAD_CHUNK:
+            return "upload_chunk";
+        case MODE_UPLOAD_STATUS:
+            return "upload_status";
+        case MODE_LIST:
+            return "list";
+        case MODE_BATCH_READ:
+            return "batch_read";
+        case MODE_DELTA_READ:
+            return "delta_read";
+        case MODE_DEDUP_UPLOAD:
+            return "dedup_upload";
+        default:
+            return "read";
+        }
+    }
+
+    static String describeRequest(int clientMode, String filename) {
+        switch (clientMode) {
+        case MODE_WRITE:
+            return "Receiving " + filename + " from";
+        case MODE_SIZE:
+            return "Sending size of " + filename + " to";
+        case MODE_OPEN_UPLOAD:
+            return "Opening upload of " + filename + " from";
+        case MODE_UPLOAD_CHUNK:
+            return "Receiving chunk of " + filename + " from";
+        case MODE_UPLOAD_STATUS:
+            return "Sending upload status of " + filename + " to";
+        case MODE_LIST:
+            return "Sending file list to";
+        case MODE_BATCH_READ:
+            return "Sending batch starting with " + filename + " to";
+        case MODE_DELTA_READ:
+            return "Sending delta of " + filename + " to";
+        case MODE_DEDUP_UPLOAD:
+            return "Receiving new chunks of " + filename + " from";
+        default:
+            return "Sending " + filename + " to";
+        }
+    }
 
-        if (!fileInFiles.exists()) {
+    // Size, then with the 'h' flag the hex SHA-256 the finished file must match
+    private void processClientOpenUpload() throws IOException {
+        long totalSize = socketIn.readLong();
+        String expectedHash = requestFlag == 'h' ? socketIn.readUTF() : null;
+        File fileToWrite = new File("Files/" + filename);
+
+        if (isTaken(fileToWrite)) {
             if (debugFlag == 1) {
-                System.out.println("** File with name: " + filename + " does not exist.");
-                System.out.println("   Please ensure file is in Files/ directory of Server");
+                System.out.println("** File " + filename + " already exists. Aborting upload.");
             }
-            socketOut.writeUTF("ErrFileDoesNotExist");
+            replyError("ErrFileExists");
             return;
-        } else {
-            socketOut.writeUTF("OkToRead");
         }
 
-        long skipItems = socketIn.readLong();
-        long endByteIndex = socketIn.readLong();
-        long lengthOfBytesToRead = endByteIndex - skipItems;
-        fileIn = new FileInputStream(fileInFiles);
-        fileIn.skip(skipItems);
-        long totalFileByteSize = fileInFiles.length();
+        if (totalSize < 0 || filename.contains("/") || filename.contains("\\")) {
+            replyError("ErrInvalidByteRange");
+            return;
+        }
 
-        if (endByteIndex > 0) {
-            if (totalFileByteSize >= lengthOfBytesToRead) {
-                totalFileByteSize = lengthOfBytesToRead;
-                socketOut.writeUTF("OkToRead");
-            } else {
-                if (debugFlag == 1) {
-                    System.out.println("** Invalid byte range specified");
-                }
-                socketOut.writeUTF("ErrInvalidByteRange");
-                return;
+        UploadSession session = uploadSessions.open(filename, totalSize, expectedHash);
+
+        if (session == null) {
+            if (debugFlag == 1) {
+                System.out.println("** Upload of " + filename + " already in progress with a different size or hash.");
             }
+            replyError("ErrUploadInProgress");
+            return;
         }
 
-        int bufferSize = totalFileByteSize > BUFFER_SIZE ? BUFFER_SIZE : (int) totalFileByteSize;
+        socketOut.writeUTF("OkToWrite");
 
-        buffer = new byte[bufferSize];
-
-        while (true) {
-            if (bufferSize > (totalFileByteSize - totalBytesTransferred)) {
-                bufferSize = (int) (totalFileByteSize - totalBytesTransferred);
+        if (session.markReceived(0, 0)) {
+            // Empty files are complete as soon as they are opened
+            if (commitUpload(session) == null) {
+                replicate(filename);
             }
+        }
+    }
 
-            bytes = fileIn.read(buffer, 0, bufferSize); // Read from file
+    // Chunk header is offset and length. The server answers OkToWrite before the client sends
+    // the bytes, then OkChunkReceived, or OkUploadComplete for the chunk that finishes the file.
+    private void processClientUploadChunk() throws IOException {
+        long offset = socketIn.readLong();
+        long length = socketIn.readLong();
+        UploadSession session = uploadSessions.get(filename);
 
-            if (bytes <= 0)
-                break; // Check for end of file
+        if (session == null) {
+            replyError("ErrNoUploadSession");
+            return;
+        }
 
-            totalBytesTransferred += bytes;
+        if (offset < 0 || length < 0 || offset + length > session.totalSize) {
+            if (debugFlag == 1) {
+                System.out.println("** Invalid byte range specified");
+            }
+            replyError("ErrInvalidByteRange");
+            return;
+        }
 
-            socketOut.write(buffer, 0, bytes); // Write bytes to socket
-            printTransferProgress(totalFileByteSize, totalFileByteSize - totalBytesTransferred);
+        socketOut.writeUTF("OkToWrite");
 
-            if (totalBytesTransferred >= totalFileByteSize) {
-                totalBytesTransferred = 0;
-                break;
+        try {
+            receiveChunks(session::write, offset, length);
+        } finally {
+            if (bytesReceived < length) {
+                // Keep what arrived before the connection dropped so a resume only sends the rest
+                session.markReceived(offset, offset + bytesReceived);
+                session.saveProgress();
             }
         }
 
-        fileIn.close();
+        if (bytesReceived < length) {
+            return;
+        }
+
+        boolean completed = session.markReceived(offset, offset + length);
 
-        if (debugFlag == 1) {
-            System.out.println("Finished sending " + filename + " to " + connection.getInetAddress());
+        if (!completed) {
+            session.saveProgress();
         }
-    }
+
+        if (completed) {
+            String problem = commitUpload(session);
+
+            if (problem == null) {
+                replicate(session.filename);
+                socketOut.writeUTF("OkUploadComplete");
+            } else {
+                replyError(problem);
+            }
+        } else {
+            socketOut.writeUTF("OkChunkReceived");
+        }
+    }
+
+    // Lets a client resume an interrupted chunked upload. Replies with the declared size, the
+    // bytes already held and the list of missing [start, end) ranges.
+    private void processClientUploadStatus() throws IOException {
+        UploadSession session = uploadSessions.get(filename);
+
+        if (session == null) {
+            replyError(isTaken(new File("Files/" + filename)) ? "ErrFileExists" : "ErrNoUploadSession");
+            return;
+        }
+
+        // The bytes held are counted from the same copy of the ranges, so the two agree while
+        // chunks of the upload are still arriving
+        List<long[]> missing = session.missingRanges();
+        long held = session.totalSize;
+
+        for (long[] range : missing) {
+            held -= range[1] - range[0];
+        }
+
+        socketOut.writeUTF("OkUploadInProgress");
+        socketOut.writeLong(session.totalSize);
+        socketOut.writeLong(held);
+        socketOut.writeInt(missing.size());
+
+        for (long[] range : missing) {
+            socketOut.writeLong(range[0]);
+            socketOut.writeLong(range[1]);
+        }
+    }
+
+    // Verifies and publishes a finished upload. Returns null, or the error code to reply with.
+    // A file that fails verification is dropped so the client can upload it again.
+    private String commitUpload(UploadSession session) throws IOException {
+        File fileToWrite = new File("Files/" + session.filename);
+        uploadSessions.remove(session);
+        String problem = session.verify();
+
+        if (problem != null) {
+            if (debugFlag == 1) {
+                System.out.println("** Upload of " + session.filename + " failed verification: " + problem);
+            }
+            session.abort();
+            return problem;
+        }
+
+        try {
+            if (config.storage == StorageMode.dedup) {
+                session.store(context.chunkStore);
+            } else {
+                session.commit(fileToWrite, context.committer);
+            }
+        } catch (FileAlreadyExistsException e) {
+            session.abort();
+            return "ErrFileExists";
+        }
+
+        fileCache.invalidate(fileToWrite);
+        fileIndex.refresh(fileToWrite);
+
+        if (debugFlag == 1) {
+            System.out.println("Finished receiving " + session.filename + " from " + connection.getInetAddress());
+        }
+
+        return null;
+    }
+
+    private void processClientList() throws IOException {
+        if (requestFlag == MAP_FLAG) {
+            processClusterMap();
+            return;
+        }
+
+        List<ManifestEntry> listing = context.edge != null ? context.edge.originList()
+                : manifest.list(fileIndex, context.chunkStore);
+
+        if (context.cluster != null && requestFlag != PEER_FLAG) {
+            listing = context.cluster.list(listing);
+        }
+
+        socketOut.writeUTF("OkList");
+        socketOut.writeInt(listing.size());
+
+        for (ManifestEntry entry : listing) {
+            socketOut.writeUTF(entry.name);
+            socketOut.writeLong(entry.size);
+            socketOut.writeLong(entry.lastModified);
+            socketOut.writeUTF(entry.hash);
+        }
+    }
+
+    // The node list and replica count, from which the client works out the owners of a file
+    private void processClusterMap() throws IOException {
+        if (context.cluster == null) {
+            replyError("ErrNotClustered");
+            return;
+        }
+
+        socketOut.writeUTF("OkClusterMap");
+        context.cluster.ring.write(socketOut);
+    }
+
+    // Serves files one after another on the same connection. Each reply is OkToRead plus the
+    // length and the bytes, or ErrFileDoesNotExist. The client ends the batch with an empty name.
+    private void processClientBatchDownload() throws IOException {
+        while (!filename.isEmpty()) {
+            awaitFromOrigin(filename);
+            File fileInFiles = new File("Files/" + filename);
+            FileCache.Entry cached = fileCache.get(fileInFiles);
+            FileMeta meta = cached == null ? fileIndex.get(fileInFiles) : null;
+            Recipe stored = cached == null && meta == null ? context.chunkStore.get(filename) : null;
+            Cluster.Located elsewhere = cached == null && meta == null && stored == null ? fromCluster(filename)
+                    : null;
+
+            if (elsewhere != null) {
+                socketOut.writeUTF("OkToRead");
+                socketOut.writeLong(elsewhere.length);
+                sendRelayed(elsewhere, new ByteRange(0, elsewhere.length));
+            } else if (cached == null && meta == null && stored == null) {
+                replyError("ErrFileDoesNotExist");
+            } else if (cached != null) {
+                socketOut.writeUTF("OkToRead");
+                socketOut.writeLong(cached.length);
+                transferBuffer(cached.slice(0, cached.length));
+            } else if (stored != null) {
+                socketOut.writeUTF("OkToRead");
+                socketOut.writeLong(stored.length);
+                sendStored(stored, new ByteRange(0, stored.length));
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(fileInFiles.toPath(), StandardOpenOption.READ)) {
+                    long length = fileChannel.size();
+                    socketOut.writeUTF("OkToRead");
+                    socketOut.writeLong(length);
+                    transferFile(fileChannel, 0, length);
+                }
+            }
+
+            percentageTransferred = 0;
+            clientShaper.startResponse();
+            filename = socketIn.readUTF(); // Next file, or empty to finish
+        }
+    }
+
+    // Replies with the file length and the block size the client should sign its old copy
+    // with, reads the client's signatures and answers with copy and literal instructions
+    // followed by 'E' and the file's SHA-256 so the client can check what it rebuilt.
+    private void processClientDeltaDownload() throws IOException {
+        awaitFromOrigin(filename);
+        File fileInFiles = new File("Files/" + filename);
+        FileCache.Entry cached = fileCache.get(fileInFiles);
+        // The scan reads the whole file, so this one checks the disk rather than the index.
+        // Reading a mapping past the end of a file that was truncated since faults.
+        FileMeta meta = FileMeta.stat(fileInFiles);
+
+        if (meta == null) {
+            // Stored files have no block signatures, nor do files on other nodes. The client falls
+            // back to a full download.
+            replyError(context.chunkStore.get(filename) != null || fromCluster(filename) != null
+                    ? "ErrDeltaUnsupported" : "ErrFileDoesNotExist");
+            return;
+        }
+
+        if (cached != null && (meta.length != cached.length || meta.lastModified != cached.lastModified)) {
+            fileCache.invalidate(fileInFiles);
+            cached = fileCache.get(fileInFiles);
+        }
+
+        long length = cached != null ? cached.length : meta.length;
+        long lastModified = cached != null ? cached.lastModified : meta.lastModified;
+
+        // The scan indexes the file with int offsets
+        if (length > Integer.MAX_VALUE) {
+            replyError("ErrDeltaUnsupported");
+            return;
+        }
+
+        ByteBuffer data;
+
+        if (cached != null) {
+            data = cached.slice(0, cached.length);
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(fileInFiles.toPath(), StandardOpenOption.READ)) {
+                data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+        }
+
+        BlockSignatures signatures = context.signatureCache.get(fileInFiles, data, length, lastModified);
+        socketOut.writeUTF("OkToRead");
+        socketOut.writeLong(length);
+        socketOut.writeInt(signatures.blockSize);
+
+        int blockCount = socketIn.readInt();
+
+        if (blockCount < 0 || blockCount > Integer.MAX_VALUE / signatures.blockSize) {
+            throw new IOException("Invalid block count " + blockCount);
+        }
+
+        int[] clientWeak = new int[blockCount];
+        byte[][] clientStrong = new byte[blockCount][16];
+
+        for (int i = 0; i < blockCount; i++) {
+            clientWeak[i] = socketIn.readInt();
+            socketIn.readFully(clientStrong[i]);
+        }
+
+        DataOutputStream deltaOut = new DataOutputStream(new BufferedOutputStream(socketOut, 64 * 1024));
+        DeltaEncoder encoder = new DeltaEncoder(data, signatures, clientWeak, clientStrong, deltaOut);
+        encoder.encode();
+        deltaOut.writeByte('E');
+        deltaOut.writeUTF(signatures.hash);
+        deltaOut.flush();
+
+        if (debugFlag == 1) {
+            System.out.println("Sent delta of " + filename + ": " + encoder.copiedBytes + " bytes reused, "
+                    + encoder.literalBytes + " bytes sent");
+        }
+    }
+
+    // The client sends the file's size and SHA-256, then the hash and length of each chunk the
+    // ContentChunker cut. The reply is OkToWrite and the indexes of the chunks the store does not
+    // hold, which the client then sends in order. The file is stored as a recipe once the chunks
+    // and the whole file match their hashes: OkUploadComplete, else ErrChecksumMismatch or
+    // ErrSizeMismatch. Chunks that did arrive are kept for later uploads. Only served with
+    // STORAGE=dedup, elsewhere the reply is ErrDedupUnsupported and the client uploads as usual.
+    private void processClientDedupUpload() throws IOException {
+        long totalSize = socketIn.readLong();
+        String expectedHash = socketIn.readUTF();
+        int chunkCount = socketIn.readInt();
+
+        // Every chunk but the last is at least MIN_SIZE long
+        if (totalSize < 0 || chunkCount < 0 || chunkCount > totalSize / ContentChunker.MIN_SIZE + 1) {
+            replyError("ErrInvalidByteRange");
+            return;
+        }
+
+        String[] hashes = new String[chunkCount];
+        int[] lengths = new int[chunkCount];
+        long declaredSize = 0;
+        boolean valid = true;
+
+        for (int i = 0; i < chunkCount; i++) {
+            hashes[i] = socketIn.readUTF();
+            lengths[i] = socketIn.readInt();
+            declaredSize += lengths[i];
+            // Hashes become file names in the store
+            valid &= hashes[i].matches("[0-9a-f]{64}") && lengths[i] > 0 && lengths[i] <= ContentChunker.MAX_SIZE;
+        }
+
+        if (config.storage != StorageMode.dedup) {
+            replyError("ErrDedupUnsupported");
+            return;
+        }
+
+        if (isTaken(new File("Files/" + filename))) {
+            if (debugFlag == 1) {
+                System.out.println("** File " + filename + " already exists. Aborting upload.");
+            }
+            replyError("ErrFileExists");
+            return;
+        }
+
+        if (!valid || declaredSize != totalSize || filename.contains("/") || filename.contains("\\")) {
+            replyError("ErrInvalidByteRange");
+            return;
+        }
+
+        // A chunk repeated within the file is asked for once
+        boolean[] wanted = new boolean[chunkCount];
+        Set<String> requested = new HashSet<>();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream replyOut = new DataOutputStream(reply);
+        int wantedCount = 0;
+
+        for (int i = 0; i < chunkCount; i++) {
+            wanted[i] = !context.chunkStore.hasChunk(hashes[i]) && requested.add(hashes[i]);
+            wantedCount += wanted[i] ? 1 : 0;
+        }
+
+        replyOut.writeUTF("OkToWrite");
+        replyOut.writeInt(wantedCount);
+
+        for (int i = 0; i < chunkCount; i++) {
+            if (wanted[i]) {
+                replyOut.writeInt(i);
+            }
+        }
+
+        socketOut.write(reply.toByteArray());
+
+        ChunkStore.Writer writer = context.chunkStore.writer(filename);
+        boolean corrupt = false;
+        long bytesReceived = 0;
+
+        for (int i = 0; i < chunkCount; i++) {
+            if (!wanted[i]) {
+                if (!corrupt) {
+                    writer.addStored(hashes[i]);
+                }
+                continue;
+            }
+
+            byte[] chunk = new byte[lengths[i]];
+            socketIn.readFully(chunk);
+            bytesReceived += chunk.length;
+            // A bad chunk is not stored, the rest are still read so the client gets the reply
+            corrupt |= !ContentChunker.hash(chunk).equals(hashes[i]);
+
+            if (!corrupt) {
+                writer.add(hashes[i], chunk);
+            }
+        }
+
+        if (corrupt || !writer.hash().equalsIgnoreCase(expectedHash)) {
+            replyError("ErrChecksumMismatch");
+            return;
+        }
+
+        try {
+            writer.commit();
+        } catch (FileAlreadyExistsException e) {
+            replyError("ErrFileExists");
+            return;
+        }
+
+        replicate(filename);
+        socketOut.writeUTF("OkUploadComplete");
+
+        if (debugFlag == 1) {
+            System.out.println("Stored " + filename + ": " + wantedCount + " of " + chunkCount + " chunks sent, "
+                    + (totalSize - bytesReceived) + " bytes already held");
+        }
+    }
+
+    private void processClientSize() throws IOException {
+        EdgeCache.Fill fill = fromOrigin(filename);
+
+        if (fill != null) {
+            socketOut.writeUTF("OkToRead");
+            socketOut.writeLong(fill.length());
+            return;
+        }
+
+        File fileInFiles = new File("Files/" + filename);
+        FileCache.Entry cached = fileCache.get(fileInFiles);
+        FileMeta meta = cached == null ? fileIndex.get(fileInFiles) : null;
+        Recipe stored = cached == null && meta == null ? context.chunkStore.get(filename) : null;
+        Cluster.Located elsewhere = cached == null && meta == null && stored == null ? fromCluster(filename) : null;
+
+        if (elsewhere != null) {
+            socketOut.writeUTF("OkToRead");
+            socketOut.writeLong(elsewhere.length);
+            return;
+        }
+
+        if (cached == null && meta == null && stored == null) {
+            replyError("ErrFileDoesNotExist");
+            return;
+        }
+
+        if (requestFlag == INFO_FLAG) {
+            FileMeta indexed = meta != null ? meta : fileIndex.get(fileInFiles);
+            ManifestEntry entry = stored != null
+                    ? new ManifestEntry(filename, stored.length, stored.lastModified, stored.hash)
+                    : indexed != null ? manifest.entryFor(indexed) : null;
+
+            if (entry != null) {
+                socketOut.writeUTF("OkFileInfo");
+                socketOut.writeLong(entry.size);
+                socketOut.writeLong(entry.lastModified);
+                socketOut.writeUTF(entry.hash);
+                return;
+            }
+        }
+
+        // Also the answer to INFO_FLAG for files being fetched or held by other nodes, whose
+        // version is not known here
+        socketOut.writeUTF("OkToRead");
+        socketOut.writeLong(cached != null ? cached.length : meta != null ? meta.length : stored.length);
+    }
+
+    private void processClientDownload() throws IOException, FileNotFoundException {
+        EdgeCache.Fill fill = fromOrigin(filename);
+
+        if (fill != null) {
+            processFillDownload(fill);
+            return;
+        }
+
+        File fileInFiles = new File("Files/" + filename);
+        FileCache.Entry cached = fileCache.get(fileInFiles);
+        FileMeta meta = cached == null ? fileIndex.get(fileInFiles) : null;
+        Recipe stored = cached == null && meta == null ? context.chunkStore.get(filename) : null;
+        Cluster.Located elsewhere = cached == null && meta == null && stored == null ? fromCluster(filename) : null;
+
+        if (elsewhere != null) {
+            processRelayedDownload(elsewhere);
+            return;
+        }
+
+        if (cached == null && meta == null && stored == null) {
+            if (debugFlag == 1) {
+                System.out.println("** File with name: " + filename + " does not exist.");
+                System.out.println("   Please ensure file is in Files/ directory of Server");
+            }
+            replyError("ErrFileDoesNotExist");
+            return;
+        } else {
+            socketOut.writeUTF("OkToRead");
+        }
+
+        long skipItems = socketIn.readLong();
+        long endByteIndex = socketIn.readLong();
+        long fileLength = cached != null ? cached.length : meta != null ? meta.length : stored.length;
+        ByteRange range = ByteRange.fromSkipAndEnd(skipItems, endByteIndex, fileLength);
+
+        if (endByteIndex > 0) {
+            if (range != null) {
+                socketOut.writeUTF("OkToRead");
+            } else {
+                if (debugFlag == 1) {
+                    System.out.println("** Invalid byte range specified");
+                }
+                replyError("ErrInvalidByteRange");
+                return;
+            }
+        }
+
+        if (stored != null) {
+            if (requestedEncoding != null) {
+                socketOut.writeUTF(Compression.IDENTITY); // Chunks are streamed as stored
+            }
+            sendStored(stored, range);
+        } else if (requestedEncoding != null) {
+            sendCompressed(fileInFiles, meta, cached, range, fileLength);
+        } else {
+            sendRange(fileInFiles, cached, range);
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Finished sending " + filename + " to " + connection.getInetAddress());
+        }
+    }
+
+    // With ORIGIN set: the Fill of a file that is being fetched, or null when it is in Files/
+    // or not at the origin either
+    private EdgeCache.Fill fromOrigin(String name) throws IOException {
+        return context.edge != null ? context.edge.lookup(name) : null;
+    }
+
+    // For requests that need the whole file in place first
+    private void awaitFromOrigin(String name) throws IOException {
+        EdgeCache.Fill fill = fromOrigin(name);
+
+        if (fill != null) {
+            fill.awaitDone();
+        }
+    }
+
+    // The replies of processClientDownload for a file still arriving from the origin. The body is
+    // sent as is even if compression was asked for.
+    private void processFillDownload(EdgeCache.Fill fill) throws IOException {
+        socketOut.writeUTF("OkToRead");
+
+        long skipItems = socketIn.readLong();
+        long endByteIndex = socketIn.readLong();
+        ByteRange range = ByteRange.fromSkipAndEnd(skipItems, endByteIndex, fill.length());
+
+        if (endByteIndex > 0) {
+            if (range == null) {
+                replyError("ErrInvalidByteRange");
+                return;
+            }
+
+            socketOut.writeUTF("OkToRead");
+        }
+
+        if (requestedEncoding != null) {
+            socketOut.writeUTF(Compression.IDENTITY);
+        }
+
+        sendFill(fill, range.position, range.count);
+    }
+
+    // With CLUSTER set: the node to read a file from that this node does not hold, or null.
+    // Requests from other nodes are only answered from here.
+    private Cluster.Located fromCluster(String name) {
+        if (context.cluster == null || requestFlag == PEER_FLAG) {
+            return null;
+        }
+
+        return context.cluster.locate(name);
+    }
+
+    // Copies an upload this node just stored to the file's owners, unless it is itself a copy
+    // sent by another node. A node that is not an owner drops its own copy once every owner has
+    // one, so each file is kept REPLICAS times. If a copy failed it keeps the file instead.
+    private void replicate(String name) throws IOException {
+        if (context.cluster == null || requestFlag == PEER_FLAG) {
+            return;
+        }
+
+        if (context.cluster.replicate(name) == 0 && !context.cluster.owns(name)) {
+            File file = new File("Files/" + name);
+            Files.deleteIfExists(file.toPath());
+            context.chunkStore.remove(name);
+            fileCache.invalidate(file);
+            fileIndex.refresh(file);
+
+            if (debugFlag == 1) {
+                System.out.println("Handed " + name + " to its owners " + context.cluster.ring.owners(name));
+            }
+        }
+    }
+
+    // The replies of processClientDownload for a file held by another node, whose bytes are
+    // passed through as they come. The body is sent as is even if compression was asked for.
+    private void processRelayedDownload(Cluster.Located at) throws IOException {
+        socketOut.writeUTF("OkToRead");
+
+        long skipItems = socketIn.readLong();
+        long endByteIndex = socketIn.readLong();
+        ByteRange range = ByteRange.fromSkipAndEnd(skipItems, endByteIndex, at.length);
+
+        if (endByteIndex > 0) {
+            if (range == null) {
+                replyError("ErrInvalidByteRange");
+                return;
+            }
+
+            socketOut.writeUTF("OkToRead");
+        }
+
+        if (requestedEncoding != null) {
+            socketOut.writeUTF(Compression.IDENTITY);
+        }
+
+        sendRelayed(at, range);
+
+        if (debugFlag == 1) {
+            System.out.println("Finished relaying " + filename + " from " + at.node + " to " + connection.getInetAddress());
+        }
+    }
+
+    private void sendRelayed(Cluster.Located at, ByteRange range) throws IOException {
+        ByteBuffer chunk = BufferPool.shared.acquire(64 * 1024);
+
+        try (ReadableByteChannel source = Channels.newChannel(context.cluster.openRange(at, filename, range))) {
+            long left = range.count;
+
+            while (left > 0) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), left));
+
+                if (source.read(chunk) < 0) {
+                    throw new EOFException("Could not read " + filename + " from " + at.node);
+                }
+
+                chunk.flip();
+                left -= chunk.remaining();
+                transferBuffer(chunk);
+            }
+        } finally {
+            BufferPool.shared.release(chunk);
+        }
+    }
+
+    // Sends bytes of a Fill as the origin delivers them
+    private void sendFill(EdgeCache.Fill fill, long position, long count) throws IOException {
+        long end = position + count;
+
+        try (FileChannel fileChannel = fill.open()) {
+            while (position < end) {
+                long available = Math.min(end, fill.await(position));
+                long sent = transferFile(fileChannel, position, available - position);
+
+                if (sent <= 0) {
+                    throw new EOFException("Could not read " + fill.name + " while fetching it");
+                }
+
+                position += sent;
+            }
+        }
+    }
+
+    private void sendRange(File fileInFiles, FileCache.Entry cached, ByteRange range) throws IOException {
+        if (cached != null) {
+            transferBuffer(cached.slice(range.position, range.count));
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(fileInFiles.toPath(), StandardOpenOption.READ)) {
+                // The requested range maps directly onto the channel position and count
+                transferFile(fileChannel, range.position, range.count);
+            }
+        }
+    }
+
+    // Streams a range of a file kept in the ChunkStore, one chunk file after the other
+    private void sendStored(Recipe recipe, ByteRange range) throws IOException {
+        long position = range.position;
+        long end = range.position + range.count;
+        int i = position < end ? recipe.chunkAt(position) : recipe.chunks.length;
+
+        for (; position < end; i++) {
+            long chunkEnd = Math.min(end, recipe.offsets[i + 1]);
+            Path chunkPath = context.chunkStore.chunkPath(recipe.chunks[i]);
+
+            try (FileChannel chunk = FileChannel.open(chunkPath, StandardOpenOption.READ)) {
+                if (transferFile(chunk, position - recipe.offsets[i], chunkEnd - position) < chunkEnd - position) {
+                    throw new IOException("Stored chunk " + chunkPath + " is truncated");
+                }
+            }
+
+            position = chunkEnd;
+        }
+    }
+
+    // Replies with the encoding actually used, then the encoded range. Whole files come from the
+    // compressed variant cache, ranges and files too large to cache are encoded while streaming.
+    // Already-compressed formats and files that do not shrink are sent as identity.
+    private void sendCompressed(File fileInFiles, FileMeta meta, FileCache.Entry cached, ByteRange range,
+            long fileLength) throws IOException {
+        String encoding = Compression.isCompressible(filename) ? requestedEncoding : Compression.IDENTITY;
+        CompressedCache.Variant variant = null;
+
+        if (!encoding.equals(Compression.IDENTITY) && range.position == 0 && range.count == fileLength) {
+            variant = context.compressedCache.get(fileInFiles, meta, cached, encoding);
+
+            if (variant != null && variant.content == null) {
+                encoding = Compression.IDENTITY;
+            }
+        }
+
+        socketOut.writeUTF(encoding);
+
+        if (encoding.equals(Compression.IDENTITY)) {
+            sendRange(fileInFiles, cached, range);
+            return;
+        }
+
+        if (debugFlag == 1) {
+            System.out.println("Encoding " + filename + " as " + encoding);
+        }
+
+        if (variant != null) {
+            transferBuffer(ByteBuffer.wrap(variant.content));
+            return;
+        }
+
+        OutputStream encoder = Compression.encoder(encoding, socketOut);
+        byte[] chunk = new byte[64 * 1024];
+        long bytesLeft = range.count;
+
+        if (cached != null) {
+            ByteBuffer content = cached.slice(range.position, range.count);
+
+            while (content.hasRemaining()) {
+                int n = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, n);
+                encoder.write(chunk, 0, n);
+                markFirstByte();
+                bytesLeft -= n;
+                printTransferProgress(range.count, bytesLeft);
+            }
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(fileInFiles.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+                long position = range.position;
+
+                while (bytesLeft > 0) {
+                    chunkBuffer.clear().limit((int) Math.min(chunk.length, bytesLeft));
+                    int n = fileChannel.read(chunkBuffer, position);
+
+                    if (n <= 0)
+                        break; // Check for end of file
+
+                    encoder.write(chunk, 0, n);
+                    markFirstByte();
+                    position += n;
+                    bytesLeft -= n;
+                    printTransferProgress(range.count, bytesLeft);
+                }
+            }
+        }
+
+        Compression.finish(encoder);
+    }
+
+    // Moves length bytes from the client to writer, starting at position, or everything until the
+    // client closes the connection when length is negative. Bytes go through a pooled direct
+    // buffer sized by a ChunkSizer, read straight from the socket channel once the bytes the
+    // stream had already buffered are drained. Progress is kept in bytesReceived.
+    private void receiveChunks(ChunkWriter writer, long position, long length) throws IOException {
+        ChunkSizer sizer = new ChunkSizer(length < 0 ? BufferPool.MAX_SIZE : length, connection, false);
+        ByteBuffer chunk = BufferPool.shared.acquire(sizer.size());
+        bytesReceived = 0;
+
+        try {
+            while (length < 0 || bytesReceived < length) {
+                if (chunk.capacity() < sizer.size()) {
+                    BufferPool.shared.release(chunk);
+                    chunk = BufferPool.shared.acquire(sizer.size());
+                }
+
+                chunk.clear().limit(sizer.next(length < 0 ? chunk.capacity() : length - bytesReceived));
+                long start = System.nanoTime();
+                int read = readChunk(chunk);
+
+                if (read <= 0)
+                    break; // Check for end of file
+
+                sizer.record(read, System.nanoTime() - start);
+                chunk.flip();
+                writer.write(chunk, position + bytesReceived);
+                bytesReceived += read;
+            }
+        } finally {
+            BufferPool.shared.release(chunk);
+        }
+    }
+
+    private int readChunk(ByteBuffer target) throws IOException {
+        SocketChannel channel = connection.getChannel();
+        boolean streamHasInput = bufferedIn.buffered() > 0
+                || (handedOffStream != null && handedOffStream.available() > 0);
+
+        if (channel != null && !streamHasInput) {
+            int read = channel.read(target);
+
+            if (read > 0) {
+                metrics.bytesIn.add(read);
+            }
+
+            return read;
+        }
+
+        if (drainBuffer == null) {
+            drainBuffer = new byte[8192];
+        }
+
+        int read = socketIn.read(drainBuffer, 0, Math.min(drainBuffer.length, target.remaining()));
+
+        if (read > 0) {
+            target.put(drainBuffer, 0, read);
+        }
+
+        return read;
+    }
+
+    // Sends count bytes of the file starting at position. When the socket has a channel the
+    // copy happens in the kernel (sendfile) instead of through a heap buffer.
+    private long transferFile(FileChannel fileChannel, long position, long count) throws IOException {
+        socketOut.flush();
+
+        WritableByteChannel target = connection.getChannel() != null ? connection.getChannel()
+                : Channels.newChannel(socketOut);
+        ChunkSizer sizer = new ChunkSizer(count, connection, true);
+        long totalBytesTransferred = 0;
+
+        while (totalBytesTransferred < count) {
+            long start = System.nanoTime();
+            long sent = fileChannel.transferTo(position + totalBytesTransferred,
+                    clientShaper.chunk(sizer.next(count - totalBytesTransferred)), target);
+
+            if (sent <= 0)
+                break; // Check for end of file
+
+            sizer.record(sent, System.nanoTime() - start);
+            recordSent(target, sent);
+            totalBytesTransferred += sent;
+            printTransferProgress(count, count - totalBytesTransferred);
+        }
+
+        return totalBytesTransferred;
+    }
+
+    // Bytes written to the socket channel bypass the metered and shaped socketOut
+    private void recordSent(WritableByteChannel target, long sent) throws IOException {
+        if (target == connection.getChannel()) {
+            metrics.bytesOut.add(sent);
+            clientShaper.sent(sent);
+        }
+
+        markFirstByte();
+    }
+
+    private void markFirstByte() {
+        if (firstByteAt == 0) {
+            firstByteAt = System.nanoTime();
+        }
+    }
+
+    // Sends an Err status and counts it in the metrics
+    private void replyError(String code) throws IOException {
+        metrics.error(code);
+        socketOut.writeUTF(code);
+    }
+
+    // Sends a cached file body straight from its off-heap or mapped buffer
+    private void transferBuffer(ByteBuffer content) throws IOException {
+        socketOut.flush();
+
+        WritableByteChannel target = connection.getChannel() != null ? connection.getChannel()
+                : Channels.newChannel(socketOut);
+        long count = content.remaining();
+        ChunkSizer sizer = new ChunkSizer(count, connection, true);
+
+        while (content.hasRemaining()) {
+            int limit = content.limit();
+            content.limit(content.position() + (int) clientShaper.chunk(sizer.next(content.remaining())));
+            long start = System.nanoTime();
+            int sent = target.write(content);
+            sizer.record(sent, System.nanoTime() - start);
+            recordSent(target, sent);
+            content.limit(limit);
+            printTransferProgress(count, content.remaining());
+        }
+    }
 
     private void processClientUpload() throws FileNotFoundException, IOException {
         try {
             File fileToWrite = new File("Files/" + filename);
 
-            if (fileToWrite.exists()) {
+            if (isTaken(fileToWrite)) {
                 if (debugFlag == 1) {
                     System.out.println("** File " + filename + " already exists. Aborting upload.");
                 }
 
-                socketOut.writeUTF("ErrFileExists");
+                replyError("ErrFileExists");
                 return;
             } else {
                 socketOut.writeUTF("OkToWrite");
             }
 
-            fileOut = new FileOutputStream(fileToWrite);
+            // Read file contents from client until it closes the connection. The commit still
+            // refuses a file made on disk after the index was last updated.
+            IncomingUpload upload = new IncomingUpload(filename);
 
-            // Read file contents from server
-            while (true) {
-                bytes = socketIn.read(buffer, 0, BUFFER_SIZE); // Read from socket
-                if (bytes <= 0)
-                    break; // Check for end of file
-
-                // Write
-                fileOut.write(buffer, 0, bytes);
+            try {
+                receiveChunks((data, position) -> {
+                    while (data.hasRemaining()) {
+                        position += upload.channel.write(data, position);
+                    }
+                }, 0, -1);
+                store(upload, fileToWrite);
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
             }
 
-            fileOut.close();
+            fileCache.invalidate(fileToWrite);
+            fileIndex.refresh(fileToWrite);
+
+            if (requestFlag == PEER_FLAG) {
+                socketOut.writeUTF("OkUploadComplete"); // The sending node waits for its copy to be stored
+            } else {
+                replicate(filename);
+            }
 
             if (debugFlag == 1) {
                 System.out.println("Finished receiving " + filename + " from " + connection.getInetAddress());
@@ -281,49 +1831,128 @@ class ConnectionManager implements Runnable {
         }
     }
 
-    private void processHTTPGetRequest(String path) {
-        try {
-            PrintStream out = new PrintStream(connection.getOutputStream(), true);
+    // Publishes a received legacy upload into Files/, or into the ChunkStore with STORAGE=dedup
+    private void store(IncomingUpload upload, File target) throws IOException {
+        if (config.storage == StorageMode.dedup) {
+            context.chunkStore.ingest(target.getName(), upload.temp);
+            upload.abort(); // Only the chunks are kept
+        } else {
+            context.committer.commit(upload.channel, upload.temp, target.toPath());
+        }
+    }
 
-            if (path.equals("/")) {
-                out.println("HTTP/1.1 404 Not Found");
-                out.println("Content-Type: text/html");
-                out.println();
-                return;
+    // A name is taken by a file in Files/ or by one kept in the ChunkStore, and with CLUSTER set
+    // by a file on another node
+    private boolean isTaken(File file) {
+        return fileIndex.get(file) != null || context.chunkStore.get(file.getName()) != null
+                || fromCluster(file.getName()) != null;
+    }
+
+    // Serves requests on one connection until the client closes it, asks to close, goes idle
+    // for longer than the keep-alive timeout or reaches the per-connection request limit.
+    // Pipelined requests are simply read in order from the buffered stream, so responses go
+    // out in the same order.
+    private void processHTTPConnection(String requestLine) throws IOException {
+        // Headers and body go out in separate writes. With Nagle's algorithm on, a small body
+        // waits for the client's delayed ACK of the headers, about 40 ms per request.
+        connection.setTcpNoDelay(true);
+        socketOut = new DataOutputStream(new BufferedOutputStream(replyStream()));
+        int requestsServed = 0;
+
+        while (requestLine != null) {
+            if (requestLine.trim().isEmpty()) {
+                requestLine = readNextRequestLine(); // Tolerate stray CRLF between requests
+                continue;
             }
 
-            File file = new File("Files/" + path);
+            HttpRequest request;
 
-            if (!file.exists()) {
-                if (debugFlag == 1) {
-                    System.out.println("File not in server: " + path);
-                }
+            try {
+                request = HttpRequest.parse(requestLine, readHeaderLines());
+            } catch (RequestTooLargeException e) {
+                rejectHTTPRequest("431 Request Header Fields Too Large");
+                break;
+            }
 
-                out.println("HTTP/1.1 404 Not Found");
-                out.println("Content-Type: text/html");
-                out.println();
-                return; // the file does not exist
+            requestsServed++;
+            firstByteAt = 0;
+            clientShaper.startResponse();
+
+            boolean keepAlive = request.isKeepAlive() && requestsServed < config.maxKeepAliveRequests;
+            processHTTPGetRequest(request, keepAlive);
+
+            if (!keepAlive) {
+                break;
             }
 
-            FileReader fr = new FileReader(file);
-            BufferedReader bfr = new BufferedReader(fr);
-            String line;
-            out.println("HTTP/1.1 200 OK\r");
-            out.println("Content-Type: text/html\r");
-            out.println("Content-Length: " + file.length() + "\r");
-            out.println("Connection: Closed\r");
-            out.println();
-            out.println();
-            while ((line = bfr.readLine()) != null) {
-                out.println(line + "\r");
+            requestLine = readNextRequestLine();
+            requestStart = System.nanoTime();
+        }
+    }
+
+    private String readNextRequestLine() throws IOException {
+        connection.setSoTimeout(config.keepAliveTimeout);
+
+        try {
+            return bufferedIn.readLine(HttpRequest.MAX_LINE);
+        } catch (SocketTimeoutException e) {
+            return null; // Idle keep-alive connection
+        } catch (RequestTooLargeException e) {
+            rejectHTTPRequest("400 Bad Request");
+            return null;
+        }
+    }
+
+    private List<String> readHeaderLines() throws IOException {
+        List<String> headerLines = new ArrayList<>();
+        String line;
+
+        while ((line = bufferedIn.readLine(HttpRequest.MAX_LINE)) != null && !line.isEmpty()) {
+            if (headerLines.size() >= HttpRequest.MAX_HEADERS) {
+                throw new RequestTooLargeException("More than " + HttpRequest.MAX_HEADERS + " header lines");
             }
 
-            bfr.close();
-            out.close();
-        } catch (Exception e) {
-            System.out.print("** ERROR: Can't access outputStream");
-            System.out.print("   " + e);
+            headerLines.add(line);
         }
+
+        return headerLines;
+    }
+
+    // Answers a request that was not read to the end, after which the connection is closed
+    private void rejectHTTPRequest(String status) throws IOException {
+        if (socketOut == null) {
+            socketOut = new DataOutputStream(new BufferedOutputStream(replyStream()));
+        }
+
+        socketOut.write(new HttpResponse(status).headerBytes(config));
+        socketOut.flush();
+        metrics.httpResponse(status);
+
+        if (debugFlag == 1) {
+            System.out.println("Rejected request from " + connection.getInetAddress() + ": " + status);
+        }
+    }
+
+    private void processHTTPGetRequest(HttpRequest request, boolean keepAlive) throws IOException {
+        HttpResponse response = HttpHandler.respond(request, context, debugFlag);
+        response.keepAlive = keepAlive;
+
+        socketOut.write(response.headerBytes(config));
+
+        if (response.bodyBuffer != null) {
+            transferBuffer(response.bodyBuffer);
+        } else if (response.bodyFile != null) {
+            try (FileChannel fileChannel = FileChannel.open(response.bodyFile.toPath(), StandardOpenOption.READ)) {
+                transferFile(fileChannel, response.bodyPosition, response.bodyLength);
+            }
+        } else if (response.bodyFill != null) {
+            sendFill(response.bodyFill, response.bodyPosition, response.bodyLength);
+        }
+
+        socketOut.flush();
+        markFirstByte(); // Responses without a body go out with this flush
+        metrics.httpResponse(response.status);
+        metrics.operation("http", requestStart, firstByteAt, System.nanoTime());
     }
 
     private void printTransferProgress(long totalBytes, long bytesLeft) {
@@ -334,7 +1963,7 @@ class ConnectionManager implements Runnable {
         long roundedPercentage = Math.round(percentage / 10.0) * 10;
 
         for (long i = percentageTransferred + 10; i <= roundedPercentage; i += 10) {
-            System.out.println("Sent " + i + "% of " + filename);
+            AsyncLog.shared.log("Sent " + i + "% of " + filename);
         }
 
         percentageTransferred = roundedPercentage;
@@ -0,0 +1,294 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Token bucket in reservation form: senders are charged after a chunk goes out and the bucket
+// may go into debt. The returned delay is how long the sender must pause for the debt to be
+// paid back. Because every charge queues behind the debt already taken, senders that each
+// charge one small chunk at a time are served round-robin in arrival order.
+class TokenBucket {
+    private final double bytesPerNano;
+    private final long burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.burst = Math.max(TrafficShaper.QUANTUM, bytesPerSecond / 10); // 100 ms worth
+        this.tokens = burst;
+    }
+
+    // Takes bytes from the bucket and returns the nanoseconds to wait before sending more
+    public synchronized long charge(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / bytesPerNano);
+    }
+
+    // A bucket that has been full for a while holds no state worth keeping
+    public synchronized boolean isIdle(long now, long idleNanos) {
+        return now - lastRefill > idleNanos && tokens + (now - lastRefill) * bytesPerNano >= burst;
+    }
+}
+
+// Server-wide admission control and bandwidth shaping. Connections beyond MAX_CONNECTIONS are
+// answered busy and closed right away instead of queueing. Response bytes are charged to a
+// global bucket and to one bucket per client address. The first SMALL_RESPONSE_KB of every
+// response is charged without waiting, so small files and HTTP pages go out immediately while
+// bulk transfers take turns in QUANTUM-sized chunks. Client buckets left full for a minute are
+// dropped by a sweep every SWEEP_MILLIS, off the accept path.
+class TrafficShaper {
+    static final int QUANTUM = 64 * 1024;
+    private static final long IDLE_BUCKET_NANOS = 60_000_000_000L;
+    private static final long SWEEP_MILLIS = 10_000;
+
+    private final Semaphore slots;
+    private final TokenBucket global;
+    private final long perClientBytesPerSecond;
+    private final long smallResponseBytes;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+
+    public TrafficShaper(ServerConfig config) {
+        this.slots = new Semaphore(config.maxConnections);
+        this.global = config.globalRateLimitKBps > 0 ? new TokenBucket(config.globalRateLimitKBps * 1024L) : null;
+        this.perClientBytesPerSecond = config.rateLimitKBps * 1024L;
+        this.smallResponseBytes = config.smallResponseKB * 1024L;
+
+        if (perClientBytesPerSecond > 0) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "shaper-sweep");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweepIdleClients, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Takes a connection slot. Every successful call is paired with release().
+    public boolean tryAdmit() {
+        return slots.tryAcquire();
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    long smallResponseBytes() {
+        return smallResponseBytes;
+    }
+
+    public boolean isShaping() {
+        return global != null || perClientBytesPerSecond > 0;
+    }
+
+    public ClientShaper forClient(InetAddress address) {
+        if (!isShaping()) {
+            return new ClientShaper(this, null);
+        }
+
+        TokenBucket bucket = null;
+
+        if (perClientBytesPerSecond > 0) {
+            bucket = clients.computeIfAbsent(address, key -> new TokenBucket(perClientBytesPerSecond));
+        }
+
+        return new ClientShaper(this, bucket);
+    }
+
+    private void sweepIdleClients() {
+        long now = System.nanoTime();
+        clients.values().removeIf(idle -> idle.isIdle(now, IDLE_BUCKET_NANOS));
+    }
+
+    long charge(TokenBucket client, long bytes) {
+        long globalWait = global != null ? global.charge(bytes) : 0;
+        long clientWait = client != null ? client.charge(bytes) : 0;
+        return Math.max(globalWait, clientWait);
+    }
+}
+
+// Shaping state of one connection: its client's bucket and how much of the current response
+// has been sent
+class ClientShaper {
+    private final TrafficShaper shaper;
+    private final TokenBucket bucket;
+    private long responseBytes = 0;
+
+    ClientShaper(TrafficShaper shaper, TokenBucket bucket) {
+        this.shaper = shaper;
+        this.bucket = bucket;
+    }
+
+    public void startResponse() {
+        responseBytes = 0;
+    }
+
+    // Caps a chunk so shaped transfers interleave finely
+    public long chunk(long size) {
+        return shaper.isShaping() ? Math.min(size, TrafficShaper.QUANTUM) : size;
+    }
+
+    // Charges bytes that were just sent. Returns the nanoseconds to hold off before sending more.
+    public long charge(long bytes) {
+        if (!shaper.isShaping() || bytes <= 0) {
+            return 0;
+        }
+
+        boolean small = responseBytes < shaper.smallResponseBytes();
+        responseBytes += bytes;
+        long wait = shaper.charge(bucket, bytes);
+        return small ? 0 : wait;
+    }
+
+    // Blocking form of charge() for the thread-per-connection paths
+    public void sent(long bytes) throws InterruptedIOException {
+        long wait = charge(bytes);
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
+
+// Shapes everything written through the stream, e.g. status replies and encoded bodies.
+// Single bytes, as DataOutputStream.writeInt writes them, are charged together at the next
+// array write or flush instead of one charge, and possibly one sleep, per byte.
+class ShapedOutputStream extends FilterOutputStream {
+    private final ClientShaper shaper;
+    private long uncharged = 0;
+
+    public ShapedOutputStream(OutputStream out, ClientShaper shaper) {
+        super(out);
+        this.shaper = shaper;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+
+        if (++uncharged >= TrafficShaper.QUANTUM) {
+            chargeUncharged();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        chargeUncharged();
+    }
+
+    private void chargeUncharged() throws IOException {
+        if (uncharged > 0) {
+            long bytes = uncharged;
+            uncharged = 0;
+            shaper.sent(bytes);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        chargeUncharged();
+
+        while (len > 0) {
+            int n = (int) shaper.chunk(len);
+            out.write(b, off, n);
+            shaper.sent(n);
+            off += n;
+            len -= n;
+        }
+    }
+}
+
+// Turns away connections over the limit. A single thread waits briefly for the request line
+// so the client learns why: ErrServerBusy for the custom protocol, 503 for HTTP. When even its
+// queue is full the connection is simply closed.
+class Rejector {
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_LINE = 8192;
+
+    private final Metrics metrics;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(256));
+
+    public Rejector(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void reject(Socket socket) {
+        metrics.error("ErrServerBusy");
+
+        try {
+            executor.execute(() -> answer(socket));
+        } catch (RejectedExecutionException e) {
+            close(socket);
+        }
+    }
+
+    private void answer(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            InputStream in = socket.getInputStream();
+            String line = readLine(in);
+            OutputStream out = socket.getOutputStream();
+
+            if (line != null && ConnectionManager.isClientModeLine(line.trim())) {
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                new DataOutputStream(reply).writeUTF("ErrServerBusy");
+                out.write(reply.toByteArray());
+            } else if (line != null) {
+                out.write(("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            out.flush();
+
+            // Closing with unread input would reset the connection before the reply is read
+            in.skip(in.available());
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // Client gave up or sent nothing in time
+        } finally {
+            close(socket);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+
+        while ((b = in.read()) >= 0 && b != '\n' && line.length() < MAX_LINE) {
+            line.append((char) b);
+        }
+
+        return b < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Moves finished uploads from their temp file to their name in Files/, or in the ChunkStore.
+// With FSYNC=group the file's data is flushed first and the directory entry after, so a
+// committed upload survives a crash. Each upload flushes its own data on its own thread, so
+// concurrent uploads flush in parallel and the file system can merge them in its journal.
+// Uploads whose data is on disk queue up and are renamed together by one thread, sharing a
+// single directory flush instead of paying one per file (group commit). With FSYNC=off the
+// move happens right away on the caller's thread. The same goes for the flushes that come
+// before an upload session saves its progress: see GroupFlush.
+class UploadCommitter {
+    private static class Commit {
+        final FileChannel data;
+        final Path temp;
+        final Path target;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Commit(FileChannel data, Path temp, Path target) {
+            this.data = data;
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    private final boolean durable;
+    private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    // Flushes data for callers that must not block, null with FSYNC=off
+    private final ExecutorService flushers;
+
+    final LongAdder commits = new LongAdder();
+    final LongAdder batches = new LongAdder();
+    final LongAdder progressFlushes = new LongAdder();
+
+    public UploadCommitter(boolean durable) {
+        this.durable = durable;
+        this.flushers = durable ? Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "upload-flush");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+
+        if (durable) {
+            Thread thread = new Thread(this::run, "upload-commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Closes data and publishes temp as target once it is durable. The data is flushed on the
+    // caller's thread. Completes exceptionally with FileAlreadyExistsException if target was
+    // taken in the meantime. The caller removes temp when the commit fails.
+    public CompletableFuture<Void> submit(FileChannel data, Path temp, Path target) {
+        Commit commit = new Commit(data, temp, target);
+
+        if (durable) {
+            flushAndQueue(commit);
+        } else {
+            List<Commit> batch = new ArrayList<>();
+            batch.add(commit);
+            commitBatch(batch);
+        }
+
+        return commit.done;
+    }
+
+    // Like submit(), but the flush runs on a pool thread. For the NIO event loops and for
+    // callers that keep several commits in flight.
+    public CompletableFuture<Void> submitAsync(FileChannel data, Path temp, Path target) {
+        if (!durable) {
+            return submit(data, temp, target);
+        }
+
+        Commit commit = new Commit(data, temp, target);
+        flushers.execute(() -> flushAndQueue(commit));
+        return commit.done;
+    }
+
+    private void flushAndQueue(Commit commit) {
+        try {
+            commit.data.force(false);
+            queue.add(commit);
+        } catch (IOException e) {
+            close(commit.data);
+            commit.done.completeExceptionally(e);
+        }
+    }
+
+    // The flush an upload session runs before saving its progress. Does nothing with FSYNC=off.
+    public GroupFlush groupFlush(FileChannel data) {
+        return new GroupFlush(durable ? data : null, progressFlushes);
+    }
+
+    // Blocking form of submit() for the thread-per-connection paths
+    public void commit(FileChannel data, Path temp, Path target) throws IOException {
+        await(submit(data, temp, target));
+    }
+
+    // Waits for a submitted commit and rethrows its failure
+    static void await(CompletableFuture<Void> commit) throws IOException {
+        try {
+            commit.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void run() {
+        List<Commit> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            queue.drainTo(batch); // Everything flushed during the previous directory flush
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void commitBatch(List<Commit> batch) {
+        List<Commit> published = new ArrayList<>();
+        Set<Path> directories = new HashSet<>();
+
+        for (Commit commit : batch) {
+            try {
+                commit.data.close(); // Flushed before it was queued
+                publish(commit.temp, commit.target);
+                published.add(commit);
+                directories.add(commit.target.toAbsolutePath().getParent());
+            } catch (IOException e) {
+                close(commit.data);
+                commit.done.completeExceptionally(e);
+            }
+        }
+
+        if (durable) {
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+
+        for (Commit commit : published) {
+            commit.done.complete(null);
+        }
+
+        commits.add(published.size());
+        batches.increment();
+    }
+
+    // rename() silently replaces a file that appeared in the meantime. A hard link fails
+    // instead, so the name is claimed atomically and the temp name is dropped afterwards.
+    static void publish(Path temp, Path target) throws IOException {
+        try {
+            Files.createLink(target, temp);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // No hard links on this file system
+            if (Files.exists(target)) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+
+        Files.delete(temp);
+    }
+
+    // Flushes new directory entries. Not every platform can open a directory, there the
+    // file system's own ordering has to do.
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
+
+// Flushes one temp file for the chunks written to it. A caller that finds a flush running
+// cannot count on it, its chunk may have been written after the flush started, so it waits for
+// the next one. That next flush is run once for every caller that arrived in the meantime, so
+// chunks of one upload finishing together share a flush instead of queueing one each.
+class GroupFlush {
+    // Null when nothing has to be flushed
+    private final FileChannel data;
+    private final LongAdder flushes;
+    private long requested = 0;
+    private long flushed = 0;
+    private boolean flushing = false;
+
+    GroupFlush(FileChannel data, LongAdder flushes) {
+        this.data = data;
+        this.flushes = flushes;
+    }
+
+    // Returns once everything written before the call is on disk
+    public void flush() throws IOException {
+        if (data == null) {
+            return;
+        }
+
+        long covered;
+
+        synchronized (this) {
+            long ticket = ++requested;
+
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (flushed >= ticket) {
+                return; // Flushed by the caller that went first
+            }
+
+            flushing = true;
+            covered = requested;
+        }
+
+        boolean done = false;
+
+        try {
+            data.force(false);
+            flushes.increment();
+            done = true;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+
+                if (done) {
+                    flushed = covered;
+                }
+
+                // On a failure the waiting callers flush again themselves
+                notifyAll();
+            }
+        }
+    }
+}
+
+// A legacy WRITE being received. Its size is only known when the client closes the stream, so
+// the bytes go to a temp file in Uploads/ and are published by the UploadCommitter at the end.
+// A reader never sees a half-written file and a crash leaves no partial file in Files/.
+class IncomingUpload {
+    private static final String SUFFIX = ".incoming";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    final Path temp;
+    final FileChannel channel;
+
+    public IncomingUpload(String filename) throws IOException {
+        Path directory = Paths.get(UploadSession.UPLOAD_DIRECTORY);
+        Files.createDirectories(directory);
+        // Created like any other file so the published copy gets the usual permissions
+        this.temp = directory.resolve(filename + "." + Long.toHexString(System.nanoTime()) + "."
+                + SEQUENCE.incrementAndGet() + SUFFIX);
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not remove " + temp + ". " + e);
+        }
+    }
+
+    // Streams cut off by a crash cannot be resumed, unlike chunked upload sessions
+    public static void removeLeftovers() {
+        Path directory = Paths.get(UploadSession.UPLOAD_DIRECTORY);
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not clean up " + directory + ". " + e);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A chunked upload in progress. Chunks arrive at arbitrary offsets, possibly over several
+// connections at once, and are written positionally into a temp file preallocated to the
+// declared size. Once every byte has arrived the size, and the SHA-256 when the client
+// declared one, are checked and the UploadCommitter publishes the temp file into Files/.
+// The received ranges are saved next to the temp file after every chunk so an interrupted
+// upload can be resumed, even after a server restart. With FSYNC=group the temp file is
+// flushed before they are saved, see saveProgress().
+class UploadSession {
+    // Temp files live outside Files/ so partial uploads are never served
+    static final String UPLOAD_DIRECTORY = "Uploads";
+
+    final String filename;
+    final long totalSize;
+    // Hex SHA-256 the client declared for the whole file, or null
+    private volatile String expectedHash;
+    private final Path tempPath;
+    private final Path progressPath;
+    private final FileChannel channel;
+    private final GroupFlush flush;
+    // Received byte ranges, start -> end (exclusive). Adjacent and overlapping ranges are merged.
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private boolean committed = false;
+
+    private UploadSession(String filename, long totalSize, String expectedHash, UploadCommitter committer)
+            throws IOException {
+        this.filename = filename;
+        this.totalSize = totalSize;
+        this.expectedHash = expectedHash;
+        this.tempPath = Paths.get(UPLOAD_DIRECTORY, filename + ".part");
+        this.progressPath = Paths.get(UPLOAD_DIRECTORY, filename + ".progress");
+        this.channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.flush = committer.groupFlush(channel);
+    }
+
+    public static UploadSession create(String filename, long totalSize, String expectedHash,
+            UploadCommitter committer) throws IOException {
+        Files.createDirectories(Paths.get(UPLOAD_DIRECTORY));
+
+        try (RandomAccessFile preallocated = new RandomAccessFile(
+                Paths.get(UPLOAD_DIRECTORY, filename + ".part").toFile(), "rw")) {
+            preallocated.setLength(totalSize);
+        }
+
+        UploadSession session = new UploadSession(filename, totalSize, expectedHash, committer);
+        session.saveProgress();
+        return session;
+    }
+
+    // Rebuilds a session left behind by an earlier server run. Returns null if there is none.
+    public static UploadSession recover(String filename, UploadCommitter committer) {
+        Path progressPath = Paths.get(UPLOAD_DIRECTORY, filename + ".progress");
+
+        if (!Files.exists(progressPath) || !Files.exists(Paths.get(UPLOAD_DIRECTORY, filename + ".part"))) {
+            return null;
+        }
+
+        try (DataInputStream progressIn = new DataInputStream(new FileInputStream(progressPath.toFile()))) {
+            long totalSize = progressIn.readLong();
+            int rangeCount = progressIn.readInt();
+            TreeMap<Long, Long> received = new TreeMap<>();
+
+            for (int i = 0; i < rangeCount; i++) {
+                received.put(progressIn.readLong(), progressIn.readLong());
+            }
+
+            // Progress files written before hashes were declared end here
+            String expectedHash = progressIn.available() > 0 ? progressIn.readUTF() : "";
+            UploadSession session = new UploadSession(filename, totalSize,
+                    expectedHash.isEmpty() ? null : expectedHash, committer);
+            session.received.putAll(received);
+            return session;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not recover upload of " + filename + ". " + e);
+            return null;
+        }
+    }
+
+    // Positional writes on a FileChannel are safe from several threads at once
+    public void write(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    // Records [start, end) as received. Returns true for the one call that completes the file.
+    public synchronized boolean markReceived(long start, long end) {
+        if (end > start) {
+            Map.Entry<Long, Long> before = received.floorEntry(start);
+
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+
+            Map.Entry<Long, Long> after;
+
+            while ((after = received.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                received.remove(after.getKey());
+            }
+
+            received.put(start, end);
+        }
+
+        if (!committed && isComplete()) {
+            committed = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    // Whether a client opening an upload with this size and hash is continuing this session.
+    // A missing hash on either side does not conflict.
+    public boolean matches(long size, String hash) {
+        return totalSize == size && (expectedHash == null || hash == null || expectedHash.equalsIgnoreCase(hash));
+    }
+
+    // A session opened without a hash takes the first one a resuming client declares
+    public synchronized void declareHash(String hash) throws IOException {
+        if (expectedHash == null && hash != null) {
+            expectedHash = hash;
+            saveProgress();
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        if (totalSize == 0) {
+            return true;
+        }
+
+        Map.Entry<Long, Long> first = received.firstEntry();
+        return first != null && first.getKey() == 0 && first.getValue() >= totalSize;
+    }
+
+    public synchronized long receivedBytes() {
+        long total = 0;
+
+        for (Map.Entry<Long, Long> range : received.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+
+        return total;
+    }
+
+    // Gaps between the received ranges, as {start, end} pairs
+    public synchronized List<long[]> missingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+
+        for (Map.Entry<Long, Long> range : received.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[] { position, range.getKey() });
+            }
+
+            position = Math.max(position, range.getValue());
+        }
+
+        if (position < totalSize) {
+            missing.add(new long[] { position, totalSize });
+        }
+
+        return missing;
+    }
+
+    // With FSYNC=group the temp file is flushed before the ranges are saved, so after a crash
+    // every byte the progress file claims is on disk. Ranges are copied first: their bytes were
+    // written before they were marked, so the flush covers them even while other chunks arrive,
+    // and chunks saved together share it. With FSYNC=off nothing is flushed. The copy is
+    // written to a side file and renamed over the old one so a crash never leaves it torn.
+    public void saveProgress() throws IOException {
+        TreeMap<Long, Long> saved;
+
+        synchronized (this) {
+            saved = new TreeMap<>(received);
+        }
+
+        flush.flush();
+        writeProgress(saved);
+    }
+
+    private synchronized void writeProgress(TreeMap<Long, Long> saved) throws IOException {
+        Path written = Paths.get(UPLOAD_DIRECTORY, filename + ".progress.tmp");
+
+        try (DataOutputStream progressOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(written.toFile())))) {
+            progressOut.writeLong(totalSize);
+            progressOut.writeInt(saved.size());
+
+            for (Map.Entry<Long, Long> range : saved.entrySet()) {
+                progressOut.writeLong(range.getKey());
+                progressOut.writeLong(range.getValue());
+            }
+
+            progressOut.writeUTF(expectedHash != null ? expectedHash : "");
+        }
+
+        Files.move(written, progressPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Checks the finished temp file against what the client declared. Returns the error code
+    // to reply with, or null when it matches.
+    public String verify() throws IOException {
+        if (channel.size() != totalSize) {
+            return "ErrSizeMismatch";
+        }
+
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(Manifest.sha256(tempPath.toFile()))) {
+            return "ErrChecksumMismatch";
+        }
+
+        return null;
+    }
+
+    // Publishes the finished temp file under its final name once it is on disk. Fails with
+    // FileAlreadyExistsException if the name was taken by another upload in the meantime.
+    public void commit(File target, UploadCommitter committer) throws IOException {
+        committer.commit(channel, tempPath, target.toPath());
+        Files.deleteIfExists(progressPath);
+    }
+
+    // Hands the finished temp file to the ChunkStore instead, with STORAGE=dedup. Fails with
+    // FileAlreadyExistsException like commit().
+    public void store(ChunkStore store) throws IOException {
+        channel.close();
+        store.ingest(filename, tempPath);
+        Files.deleteIfExists(tempPath);
+        Files.deleteIfExists(progressPath);
+    }
+
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(tempPath);
+            Files.deleteIfExists(progressPath);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not remove " + tempPath + ". " + e);
+        }
+    }
+}
+
+// Upload sessions by filename. Sessions from an earlier server run are picked up from
+// Uploads/ the first time their filename is seen.
+class UploadSessions {
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final UploadCommitter committer;
+
+    public UploadSessions(UploadCommitter committer) {
+        this.committer = committer;
+    }
+
+    // Returns the session for filename, creating it if needed. Returns null when a session
+    // with a different declared size is in progress. A leftover session from an earlier run
+    // with a different size is discarded.
+    public synchronized UploadSession open(String filename, long totalSize, String expectedHash) throws IOException {
+        UploadSession session = sessions.get(filename);
+
+        if (session == null) {
+            session = UploadSession.recover(filename, committer);
+
+            if (session != null && !session.matches(totalSize, expectedHash)) {
+                session.abort();
+                session = null;
+            }
+
+            if (session == null) {
+                session = UploadSession.create(filename, totalSize, expectedHash, committer);
+            }
+
+            sessions.put(filename, session);
+        }
+
+        if (!session.matches(totalSize, expectedHash)) {
+            return null;
+        }
+
+        session.declareHash(expectedHash);
+        return session;
+    }
+
+    public synchronized UploadSession get(String filename) {
+        UploadSession session = sessions.get(filename);
+
+        if (session == null) {
+            session = UploadSession.recover(filename, committer);
+
+            if (session != null) {
+                sessions.put(filename, session);
+            }
+        }
+
+        return session;
+    }
+
+    public void remove(UploadSession session) {
+        sessions.remove(session.filename, session);
+    }
+}
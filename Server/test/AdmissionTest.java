@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class AdmissionTest {
+    private static final byte[] CONTENT = "admitted".getBytes();
+
+    @BeforeAll
+    static void createFile() throws Exception {
+        new File("Files").mkdirs();
+        Files.write(new File("Files/admission.txt").toPath(), CONTENT);
+    }
+
+    @Test
+    void parsesExecutorAndConnectionCap() throws Exception {
+        ServerConfig config = Server.parseCommandLineArguments(new String[] { "EXECUTOR=virtual", "MAX_CONNECTIONS=3" });
+
+        assertEquals(ExecutorKind.virtual, config.executor);
+        assertEquals(3, config.maxConnections);
+        assertThrows(InvalidArgumentException.class,
+                () -> Server.parseCommandLineArguments(new String[] { "EXECUTOR=forkjoin" }));
+        assertThrows(InvalidArgumentException.class,
+                () -> Server.parseCommandLineArguments(new String[] { "MAX_CONNECTIONS=0" }));
+    }
+
+    // Without Java 21 the virtual executor falls back to the cached pool and still serves
+    @Test
+    void virtualExecutorServesConnections() throws Exception {
+        TestServer server = TestServer.start("EXECUTOR=virtual");
+
+        assertArrayEquals(CONTENT, server.download("admission.txt"));
+    }
+
+    // With MAX_CONNECTIONS=1 a second client is told the server is busy instead of waiting,
+    // and is served once the first is done
+    @Test
+    void connectionsOverTheCapAreTurnedAway() throws Exception {
+        TestServer server = TestServer.start("MAX_CONNECTIONS=1");
+
+        try (Socket first = admitted(server)) {
+            try (Socket second = server.connect()) {
+                DataOutputStream out = new DataOutputStream(second.getOutputStream());
+                out.writeUTF("0\n");
+                out.writeUTF("admission.txt");
+
+                assertEquals("ErrServerBusy", new DataInputStream(second.getInputStream()).readUTF());
+            }
+
+            assertTrue(server.http("GET /admission.txt HTTP/1.0\r\n\r\n").startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (true) {
+            try {
+                assertArrayEquals(CONTENT, server.download("admission.txt"));
+                return;
+            } catch (IOException e) {
+                // The first connection's slot is freed just after it closes
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // A connection left waiting for the range of its download. Retried while the slot of the
+    // startup check is still taken.
+    private static Socket admitted(TestServer server) throws Exception {
+        while (true) {
+            Socket socket = server.connect();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("0\n");
+            out.writeUTF("admission.txt");
+
+            if (new DataInputStream(socket.getInputStream()).readUTF().equals("OkToRead")) {
+                return socket;
+            }
+
+            socket.close();
+            Thread.sleep(20);
+        }
+    }
+}
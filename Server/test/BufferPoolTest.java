@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+    @Test
+    void roundsUpToSizeClasses() {
+        assertEquals(4096, BufferPool.shared.acquire(1).capacity());
+        assertEquals(4096, BufferPool.shared.acquire(4096).capacity());
+        assertEquals(8192, BufferPool.shared.acquire(4097).capacity());
+        assertEquals(BufferPool.MAX_SIZE, BufferPool.shared.acquire(10 * 1024 * 1024).capacity());
+        assertTrue(BufferPool.shared.acquire(100).isDirect());
+    }
+
+    @Test
+    void reusesReleasedBuffers() {
+        ByteBuffer buffer = BufferPool.shared.acquire(40000);
+        buffer.putLong(42).flip();
+        BufferPool.shared.release(buffer);
+
+        ByteBuffer again = BufferPool.shared.acquire(33000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    void ignoresBuffersItDidNotHandOut() {
+        ByteBuffer heap = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer odd = ByteBuffer.allocateDirect(64 * 1024 + 1);
+        BufferPool.shared.release(heap);
+        BufferPool.shared.release(odd);
+
+        ByteBuffer acquired = BufferPool.shared.acquire(64 * 1024);
+        assertNotSame(heap, acquired);
+        assertNotSame(odd, acquired);
+        BufferPool.shared.release(acquired);
+    }
+
+    @Test
+    void firstChunkFollowsTheTransferSize() {
+        assertEquals(BufferPool.MIN_SIZE, new ChunkSizer(10, null, true).size());
+        assertEquals(128 * 1024, new ChunkSizer(100000, null, true).size());
+        assertEquals(256 * 1024, new ChunkSizer(1L << 40, null, false).size());
+        assertEquals(1000, new ChunkSizer(1L << 40, null, false).next(1000));
+    }
+
+    @Test
+    void growsOnFastFullChunksAndShrinksOnSlowOrShortOnes() {
+        ChunkSizer sizer = new ChunkSizer(64 * 1024, null, true);
+
+        sizer.record(64 * 1024, 1_000_000);
+        assertEquals(128 * 1024, sizer.size());
+
+        sizer.record(128 * 1024, 100_000_000); // Slow
+        assertEquals(64 * 1024, sizer.size());
+
+        sizer.record(1024, 1_000_000); // Mostly empty read
+        assertEquals(32 * 1024, sizer.size());
+
+        sizer.record(20 * 1024, 10_000_000); // Neither, stays
+        assertEquals(32 * 1024, sizer.size());
+    }
+
+    @Test
+    void staysWithinThePoolSizes() {
+        ChunkSizer sizer = new ChunkSizer(1L << 40, null, true);
+
+        for (int i = 0; i < 20; i++) {
+            sizer.record(sizer.size(), 1);
+        }
+
+        assertEquals(BufferPool.MAX_SIZE, sizer.size());
+
+        for (int i = 0; i < 20; i++) {
+            sizer.record(0, 1);
+        }
+
+        assertEquals(BufferPool.MIN_SIZE, sizer.size());
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ClusterRingTest {
+    private static final int FILES = 10000;
+    private static final List<String> NODES = Arrays.asList("10.0.0.1:2296", "10.0.0.2:2296", "10.0.0.3:2296",
+            "10.0.0.4:2296");
+
+    @Test
+    void ownersAreDistinctAndAsManyAsReplicas() {
+        ClusterRing ring = new ClusterRing(NODES, 2);
+
+        for (int i = 0; i < FILES; i++) {
+            List<String> owners = ring.owners("file-" + i);
+            assertEquals(2, owners.size());
+            assertEquals(2, new HashSet<>(owners).size());
+            assertTrue(NODES.containsAll(owners));
+        }
+    }
+
+    @Test
+    void replicasAreCappedAtTheNumberOfNodes() {
+        ClusterRing ring = new ClusterRing(NODES.subList(0, 2), 3);
+
+        assertEquals(2, ring.replicas);
+        assertEquals(new HashSet<>(NODES.subList(0, 2)), new HashSet<>(ring.owners("report.pdf")));
+    }
+
+    @Test
+    void filesSpreadEvenlyOverTheNodes() {
+        ClusterRing ring = new ClusterRing(NODES, 1);
+        Map<String, Integer> primaries = new HashMap<>();
+
+        for (int i = 0; i < FILES; i++) {
+            primaries.merge(ring.owners("file-" + i).get(0), 1, Integer::sum);
+        }
+
+        int fairShare = FILES / NODES.size();
+
+        for (String node : NODES) {
+            int owned = primaries.getOrDefault(node, 0);
+            assertTrue(owned > fairShare / 2 && owned < fairShare * 3 / 2, node + " owns " + owned + " files");
+        }
+    }
+
+    @Test
+    void addingANodeOnlyMovesFilesToIt() {
+        ClusterRing before = new ClusterRing(NODES, 2);
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("10.0.0.5:2296");
+        ClusterRing after = new ClusterRing(grown, 2);
+        int moved = 0;
+
+        for (int i = 0; i < FILES; i++) {
+            List<String> oldOwners = before.owners("file-" + i);
+            List<String> newOwners = after.owners("file-" + i);
+
+            for (String owner : newOwners) {
+                if (!oldOwners.contains(owner)) {
+                    assertEquals("10.0.0.5:2296", owner);
+                    moved++;
+                }
+            }
+        }
+
+        // Two copies of every file, and the new node should take about a fifth of them
+        double share = moved / (2.0 * FILES);
+        assertTrue(share > 0.1 && share < 0.3, "new node took " + share + " of the copies");
+    }
+
+    @Test
+    void ringsBuiltFromTheSameListAgree() throws Exception {
+        ClusterRing ring = new ClusterRing(NODES, 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ring.write(new DataOutputStream(bytes));
+        ClusterRing copy = ClusterRing.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(ring.nodes, copy.nodes);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.owners("file-" + i), copy.owners("file-" + i));
+        }
+    }
+
+    @Test
+    void parsesHostAndPort() {
+        assertEquals("10.0.0.1", ClusterRing.host("10.0.0.1:2296"));
+        assertEquals(2296, ClusterRing.port("10.0.0.1:2296"));
+    }
+}
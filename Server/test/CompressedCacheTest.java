@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class CompressedCacheTest {
+    private static byte[] content;
+
+    @BeforeAll
+    static void createFiles() throws Exception {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            text.append("line ").append(i % 50).append(" of a file that compresses well\n");
+        }
+
+        content = text.toString().getBytes("UTF-8");
+        new File("Files").mkdirs();
+
+        for (String name : new String[] { "compress-shared.txt", "compress-async.txt", "compress-nio.txt" }) {
+            Files.write(new File("Files/" + name).toPath(), content);
+        }
+    }
+
+    // Requests that miss together wait for one compression
+    @Test
+    void concurrentMissesCompressOnce() throws Exception {
+        CompressedCache cache = new CompressedCache(1024 * 1024);
+        File file = new File("Files/compress-shared.txt");
+        FileMeta meta = FileMeta.stat(file);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<CompressedCache.Variant>> variants = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            variants.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                    return cache.get(file, meta, null, Compression.GZIP);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (CompletableFuture<CompressedCache.Variant> variant : variants) {
+            assertSame(variants.get(0).get(), variant.get());
+        }
+
+        assertEquals(1, cache.misses.get());
+        assertEquals(7, cache.hits.get());
+        assertArrayEquals(content, gunzip(variants.get(0).get().content));
+    }
+
+    // A miss is compressed by the executor it is handed, not by the caller
+    @Test
+    void missIsCompressedOnTheExecutor() throws Exception {
+        CompressedCache cache = new CompressedCache(1024 * 1024);
+        File file = new File("Files/compress-async.txt");
+        FileMeta meta = FileMeta.stat(file);
+        List<Runnable> tasks = new ArrayList<>();
+
+        CompletableFuture<CompressedCache.Variant> variant = cache.get(file, meta, null, Compression.GZIP, tasks::add);
+        CompletableFuture<CompressedCache.Variant> joined = cache.get(file, meta, null, Compression.GZIP, tasks::add);
+
+        assertSame(variant, joined);
+        assertEquals(1, tasks.size());
+        assertFalse(variant.isDone());
+        assertNull(cache.cached(file, meta, null, Compression.GZIP));
+
+        tasks.get(0).run();
+
+        assertTrue(variant.isDone());
+        assertSame(variant.get(), cache.cached(file, meta, null, Compression.GZIP));
+        assertTrue(cache.get(file, meta, null, Compression.GZIP, tasks::add).isDone());
+        assertEquals(1, tasks.size());
+    }
+
+    // The event loop answers a first gzip request once a worker has compressed the file
+    @Test
+    void nioModeCompressesOnWorkers() throws Exception {
+        TestServer server = TestServer.start("MODE=nio", "LOOPS=1");
+
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = server.connect()) {
+                TestServer.send(socket.getOutputStream(),
+                        "GET /compress-nio.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+                TestServer.HttpReply reply = TestServer.readResponse(socket.getInputStream(), false);
+
+                assertEquals("HTTP/1.1 200 OK", reply.status);
+                assertEquals("gzip", reply.header("Content-Encoding"));
+                assertArrayEquals(content, gunzip(reply.body));
+            }
+        }
+
+        String stats = server.http("GET /_cache HTTP/1.0\r\n\r\n");
+        assertNotNull(stats);
+        assertTrue(stats.contains("compressed_misses 1\n"), stats);
+        assertTrue(stats.contains("compressed_hits 1\n"), stats);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws Exception {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return TestServer.readToEnd(in);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class ContentChunkerTest {
+    private static final int LENGTH = 4 * 1024 * 1024;
+
+    @Test
+    void chunksRebuildTheInputWithinTheSizeBounds() throws Exception {
+        byte[] data = random(LENGTH, 1);
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(data));
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+
+        for (int i = 0; i < chunks.size(); i++) {
+            int size = chunks.get(i).length;
+            assertTrue(size <= ContentChunker.MAX_SIZE, "chunk " + i + " has " + size + " bytes");
+            assertTrue(size >= ContentChunker.MIN_SIZE || i == chunks.size() - 1, "chunk " + i + " has " + size + " bytes");
+            joined.write(chunks.get(i));
+        }
+
+        assertArrayEquals(data, joined.toByteArray());
+
+        // Normalized chunking keeps the average near AVERAGE_SIZE
+        int average = LENGTH / chunks.size();
+        assertTrue(average > ContentChunker.AVERAGE_SIZE / 2 && average < ContentChunker.AVERAGE_SIZE * 2,
+                "average chunk of " + average + " bytes");
+    }
+
+    @Test
+    void emptyAndSmallInputs() throws Exception {
+        assertNull(new ContentChunker(new ByteArrayInputStream(new byte[0])).next());
+
+        byte[] small = random(1000, 2);
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(small));
+        assertEquals(1, chunks.size());
+        assertArrayEquals(small, chunks.get(0));
+    }
+
+    @Test
+    void uniformInputIsCutAtTheMaximum() throws Exception {
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(new byte[3 * ContentChunker.MAX_SIZE]));
+
+        assertEquals(3, chunks.size());
+        assertEquals(ContentChunker.MAX_SIZE, chunks.get(0).length);
+    }
+
+    @Test
+    void boundariesDoNotDependOnHowTheStreamIsRead() throws Exception {
+        byte[] data = random(LENGTH, 3);
+
+        assertEquals(hashes(new ByteArrayInputStream(data)), hashes(new TrickleInputStream(data)));
+    }
+
+    @Test
+    void insertionOnlyChangesTheChunksAroundIt() throws Exception {
+        byte[] data = random(LENGTH, 4);
+        byte[] inserted = random(100, 5);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(data, 0, 1000000);
+        edited.write(inserted);
+        edited.write(data, 1000000, data.length - 1000000);
+
+        assertMostChunksShared(data, edited.toByteArray());
+    }
+
+    @Test
+    void deletionOnlyChangesTheChunksAroundIt() throws Exception {
+        byte[] data = random(LENGTH, 6);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(data, 0, 2000000);
+        edited.write(data, 2000500, data.length - 2000500);
+
+        assertMostChunksShared(data, edited.toByteArray());
+    }
+
+    private static void assertMostChunksShared(byte[] original, byte[] edited) throws IOException {
+        List<String> before = hashes(new ByteArrayInputStream(original));
+        Set<String> after = new HashSet<>(hashes(new ByteArrayInputStream(edited)));
+        int changed = 0;
+
+        for (String hash : before) {
+            if (!after.contains(hash)) {
+                changed++;
+            }
+        }
+
+        // The edited chunk, and at most one more if the edit moved a boundary
+        assertTrue(changed >= 1 && changed <= 2, changed + " of " + before.size() + " chunks changed");
+    }
+
+    private static List<byte[]> chunk(InputStream in) throws IOException {
+        ContentChunker chunker = new ContentChunker(in);
+        List<byte[]> chunks = new ArrayList<>();
+        byte[] chunk;
+
+        while ((chunk = chunker.next()) != null) {
+            chunks.add(chunk);
+        }
+
+        return chunks;
+    }
+
+    private static List<String> hashes(InputStream in) throws IOException {
+        List<String> hashes = new ArrayList<>();
+
+        for (byte[] chunk : chunk(in)) {
+            hashes.add(ContentChunker.hash(chunk));
+        }
+
+        return hashes;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Hands out at most 1000 bytes per read, like a slow socket
+    private static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+}
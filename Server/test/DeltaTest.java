@@ -0,0 +1,218 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class DeltaTest {
+    private static final File FILE = new File("Files/delta.bin");
+
+    @Test
+    void rollingMatchesRecomputingEveryWindow() {
+        byte[] data = random(10000, 1);
+        int window = 512;
+        RollingChecksum rolling = new RollingChecksum(window);
+        rolling.reset(ByteBuffer.wrap(data), 0);
+
+        for (int position = 0; position + window < data.length; position++) {
+            assertEquals(RollingChecksum.of(data, position, window), rolling.value(), "at " + position);
+            rolling.roll(data[position], data[position + window]);
+        }
+    }
+
+    @Test
+    void rollingContinuesFromASavedValue() {
+        byte[] data = random(4096, 2);
+        RollingChecksum rolling = new RollingChecksum(2048);
+        rolling.set(RollingChecksum.of(data, 0, 2048));
+        rolling.roll(data[0], data[2048]);
+
+        assertEquals(RollingChecksum.of(data, 1, 2048), rolling.value());
+    }
+
+    @Test
+    void strongChecksumIsTheBlocksMd5() throws Exception {
+        byte[] data = random(4096, 3);
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(data, 1024, 3072));
+
+        assertArrayEquals(md5, RollingChecksum.strong(data, 1024, 2048));
+    }
+
+    @Test
+    void unchangedFileIsCopiedWhole() throws Exception {
+        byte[] data = random(200000, 4);
+        Delta delta = encode(data, data, 1);
+
+        assertArrayEquals(data, delta.apply());
+        assertEquals(data.length % delta.blockSize, delta.encoder.literalBytes); // Only the partial last block
+    }
+
+    @Test
+    void insertedBytesAreTheOnlyLiteral() throws Exception {
+        byte[] old = random(200000, 5);
+        byte[] inserted = random(100, 6);
+        byte[] current = new byte[old.length + inserted.length];
+        System.arraycopy(old, 0, current, 0, 70000);
+        System.arraycopy(inserted, 0, current, 70000, inserted.length);
+        System.arraycopy(old, 70000, current, 70000 + inserted.length, old.length - 70000);
+
+        Delta delta = encode(old, current, 1);
+
+        assertArrayEquals(current, delta.apply());
+        // The inserted bytes plus at most the block they broke and the unaligned tail
+        assertTrue(delta.encoder.literalBytes < inserted.length + 2 * delta.blockSize,
+                delta.encoder.literalBytes + " literal bytes");
+    }
+
+    @Test
+    void unrelatedOrMissingOldCopyIsSentAsLiterals() throws Exception {
+        byte[] current = random(100000, 7);
+
+        Delta unrelated = encode(random(100000, 8), current, 1);
+        assertArrayEquals(current, unrelated.apply());
+        assertEquals(current.length, unrelated.encoder.literalBytes);
+
+        Delta empty = encode(new byte[0], current, 1);
+        assertArrayEquals(current, empty.apply());
+        assertEquals(0, empty.encoder.copiedBytes);
+    }
+
+    @Test
+    void shrunkFileRoundTrips() throws Exception {
+        byte[] old = random(100000, 9);
+        byte[] current = Arrays.copyOf(old, 30000);
+
+        assertArrayEquals(current, encode(old, current, 1).apply());
+    }
+
+    // +1, -2, +1 on three neighbouring bytes leaves both sums of the weak checksum unchanged,
+    // so only the strong checksum tells the two versions of the block apart
+    @Test
+    void changedBlockWithTheSameWeakChecksumIsResent() throws Exception {
+        byte[] old = new byte[20000];
+        Arrays.fill(old, (byte) 10);
+        byte[] current = old.clone();
+        current[100] = 11;
+        current[101] = 8;
+        current[102] = 11;
+        SignatureCache cache = new SignatureCache();
+        BlockSignatures before = cache.get(FILE, ByteBuffer.wrap(old), old.length, 1);
+        BlockSignatures after = cache.get(FILE, ByteBuffer.wrap(current), current.length, 2);
+
+        assertEquals(before.weak[0], after.weak[0]);
+        assertFalse(Arrays.equals(before.strong[0], after.strong[0]));
+
+        Delta delta = encode(old, current, 2, cache);
+        assertArrayEquals(current, delta.apply());
+    }
+
+    @Test
+    void signaturesAreReusedWhileTheFileIsUnchanged() {
+        byte[] data = random(50000, 10);
+        SignatureCache cache = new SignatureCache();
+        BlockSignatures first = cache.get(FILE, ByteBuffer.wrap(data), data.length, 1);
+
+        assertTrue(first == cache.get(FILE, ByteBuffer.wrap(data), data.length, 1));
+        assertFalse(first == cache.get(FILE, ByteBuffer.wrap(data), data.length, 2));
+    }
+
+    // A new mtime with the same content keeps the block checksums, new content does not
+    @Test
+    void touchedFileKeepsItsBlockChecksums() {
+        byte[] data = random(50000, 11);
+        SignatureCache cache = new SignatureCache();
+        BlockSignatures first = cache.get(FILE, ByteBuffer.wrap(data), data.length, 1);
+        BlockSignatures touched = cache.get(FILE, ByteBuffer.wrap(data.clone()), data.length, 2);
+
+        assertEquals(2, touched.lastModified);
+        assertTrue(first.strong == touched.strong);
+
+        data[0]++;
+        BlockSignatures changed = cache.get(FILE, ByteBuffer.wrap(data), data.length, 3);
+
+        assertFalse(first.strong == changed.strong);
+        assertFalse(Arrays.equals(first.strong[0], changed.strong[0]));
+        assertArrayEquals(first.strong[1], changed.strong[1]);
+    }
+
+    private static Delta encode(byte[] old, byte[] current, long lastModified) throws IOException {
+        return encode(old, current, lastModified, new SignatureCache());
+    }
+
+    // Signs the client's old copy with the server's block size, as the client does, and
+    // encodes the current version against it
+    private static Delta encode(byte[] old, byte[] current, long lastModified, SignatureCache cache)
+            throws IOException {
+        BlockSignatures server = cache.get(FILE, ByteBuffer.wrap(current), current.length, lastModified);
+        int blockSize = server.blockSize;
+        int blocks = old.length / blockSize;
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][];
+
+        for (int k = 0; k < blocks; k++) {
+            weak[k] = RollingChecksum.of(old, k * blockSize, blockSize);
+            strong[k] = RollingChecksum.strong(old, k * blockSize, blockSize);
+        }
+
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        DeltaEncoder encoder = new DeltaEncoder(ByteBuffer.wrap(current), server, weak, strong,
+                new DataOutputStream(instructions));
+        encoder.encode();
+        return new Delta(old, blockSize, instructions.toByteArray(), encoder);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Instructions from one encode, and the client's side of applying them
+    private static class Delta {
+        final byte[] old;
+        final int blockSize;
+        final byte[] instructions;
+        final DeltaEncoder encoder;
+
+        Delta(byte[] old, int blockSize, byte[] instructions, DeltaEncoder encoder) {
+            this.old = old;
+            this.blockSize = blockSize;
+            this.instructions = instructions;
+            this.encoder = encoder;
+        }
+
+        byte[] apply() throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(instructions));
+            ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+
+            while (in.available() > 0) {
+                int instruction = in.readByte();
+
+                if (instruction == 'C') {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    rebuilt.write(old, first * blockSize, count * blockSize);
+                } else {
+                    assertEquals('L', instruction);
+                    byte[] literal = new byte[in.readInt()];
+                    in.readFully(literal);
+                    rebuilt.write(literal);
+                }
+            }
+
+            return rebuilt.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// A Server with ORIGIN set in front of a stand-in origin that keeps its files in memory. The
+// edge shares Files/ with the other tests, so every file here has a name of its own.
+class EdgeCacheTest {
+    private static final Map<String, byte[]> originFiles = new ConcurrentHashMap<>();
+    // "<mode> <filename> <skip>" of every request the origin got
+    private static final List<String> originRequests = new CopyOnWriteArrayList<>();
+    // Held closed to keep the origin from sending file bodies
+    private static volatile CountDownLatch bodies = new CountDownLatch(0);
+    // Names whose first body the origin cuts off halfway
+    private static final Map<String, Boolean> cutOnce = new ConcurrentHashMap<>();
+
+    private static ServerSocket origin;
+    private static TestServer edge;
+    private static TestServer nioEdge;
+
+    @BeforeAll
+    static void start() throws Exception {
+        origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(EdgeCacheTest::acceptOrigin, "fake-origin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        edge = TestServer.start("ORIGIN=127.0.0.1:" + origin.getLocalPort());
+        nioEdge = TestServer.start("ORIGIN=127.0.0.1:" + origin.getLocalPort(), "MODE=nio");
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        origin.close();
+    }
+
+    @Test
+    void missIsFetchedOnceAndThenServedFromFiles() throws Exception {
+        byte[] content = originFile("edge-miss.bin", 300 * 1024);
+
+        assertArrayEquals(content, edge.download("edge-miss.bin"));
+        assertArrayEquals(content, Files.readAllBytes(new File("Files/edge-miss.bin").toPath()));
+        assertEquals(2, requestsFor("edge-miss.bin")); // Size, then the bytes
+
+        assertArrayEquals(content, edge.download("edge-miss.bin"));
+        assertArrayEquals(slice(content, 100, 200), edge.download("edge-miss.bin", 100, 200));
+        assertEquals(2, requestsFor("edge-miss.bin"));
+        assertTrue(metric("fileserver_edge_hits_total") >= 2);
+    }
+
+    // Misses block on the origin, so the event loop passes edge requests to a worker
+    @Test
+    void nioModeServesMissesAndHits() throws Exception {
+        byte[] content = originFile("edge-nio.bin", 300 * 1024);
+
+        assertArrayEquals(content, nioEdge.download("edge-nio.bin"));
+        assertArrayEquals(slice(content, 1000, 5000), nioEdge.download("edge-nio.bin", 1000, 5000));
+        assertEquals(2, requestsFor("edge-nio.bin"));
+    }
+
+    // Requests arriving while a file is being fetched are sent its bytes from the same fetch
+    @Test
+    void concurrentMissesShareOneFetch() throws Exception {
+        byte[] content = originFile("edge-shared.bin", 200 * 1024);
+        long coalescedBefore = metric("fileserver_edge_coalesced_total");
+        bodies = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(5);
+
+        try {
+            List<Future<byte[]>> downloads = new ArrayList<>();
+
+            for (int i = 0; i < 5; i++) {
+                downloads.add(clients.submit(() -> edge.download("edge-shared.bin")));
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (metric("fileserver_edge_coalesced_total") < coalescedBefore + 4
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+
+            bodies.countDown();
+
+            for (Future<byte[]> download : downloads) {
+                assertArrayEquals(content, download.get());
+            }
+        } finally {
+            bodies.countDown();
+            clients.shutdownNow();
+        }
+
+        assertEquals(2, requestsFor("edge-shared.bin"));
+    }
+
+    // A transfer from the origin that breaks off is picked up where it stopped
+    @Test
+    void brokenOriginTransferResumes() throws Exception {
+        byte[] content = originFile("edge-resumed.bin", 100 * 1024);
+        cutOnce.put("edge-resumed.bin", true);
+
+        assertArrayEquals(content, edge.download("edge-resumed.bin"));
+        assertTrue(originRequests.contains("0 edge-resumed.bin " + content.length / 2), originRequests.toString());
+    }
+
+    // The edge answers conditional GETs for its copy without asking the origin
+    @Test
+    void cachedCopyIsRevalidatedByETag() throws Exception {
+        byte[] content = originFile("edge-page.html", 1000);
+
+        TestServer.HttpReply first = get("GET /edge-page.html HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        assertEquals("HTTP/1.1 200 OK", first.status);
+        assertArrayEquals(content, first.body);
+        String etag = first.header("ETag");
+
+        TestServer.HttpReply second = get("GET /edge-page.html HTTP/1.1\r\nHost: test\r\nIf-None-Match: " + etag
+                + "\r\nConnection: close\r\n\r\n");
+        assertEquals("HTTP/1.1 304 Not Modified", second.status);
+        assertEquals(etag, second.header("ETag"));
+        assertEquals(2, requestsFor("edge-page.html"));
+    }
+
+    @Test
+    void fileMissingAtTheOriginIsMissingHere() throws Exception {
+        assertThrows(FileNotFoundException.class, () -> edge.download("edge-nowhere.bin"));
+        assertFalse(new File("Files/edge-nowhere.bin").exists());
+        assertTrue(get("GET /edge-nowhere.bin HTTP/1.0\r\n\r\n").status.startsWith("HTTP/1.1 404"));
+    }
+
+    @Test
+    void uploadsAreRefused() throws Exception {
+        try (Socket socket = edge.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("1\n");
+            out.writeUTF("edge-upload.bin");
+
+            assertEquals("ErrReadOnly", new DataInputStream(socket.getInputStream()).readUTF());
+        }
+
+        assertFalse(new File("Files/edge-upload.bin").exists());
+    }
+
+    private static TestServer.HttpReply get(String request) throws IOException {
+        try (Socket socket = edge.connect()) {
+            TestServer.send(socket.getOutputStream(), request);
+            return TestServer.readResponse(socket.getInputStream(), false);
+        }
+    }
+
+    private static long metric(String name) throws IOException {
+        String text = new String(get("GET /metrics HTTP/1.0\r\n\r\n").body, "UTF-8");
+        Matcher sample = Pattern.compile("(?m)^" + Pattern.quote(name) + " (\\d+)$").matcher(text);
+        assertTrue(sample.find(), name + " missing from\n" + text);
+        return Long.parseLong(sample.group(1));
+    }
+
+    private static byte[] originFile(String name, int length) {
+        byte[] content = new byte[length];
+        new Random(name.hashCode()).nextBytes(content);
+        originFiles.put(name, content);
+        return content;
+    }
+
+    private static long requestsFor(String name) {
+        return originRequests.stream().filter(request -> request.split(" ")[1].equals(name)).count();
+    }
+
+    private static byte[] slice(byte[] content, int from, int to) {
+        byte[] part = new byte[to - from];
+        System.arraycopy(content, from, part, 0, part.length);
+        return part;
+    }
+
+    private static void acceptOrigin() {
+        while (!origin.isClosed()) {
+            try {
+                Socket socket = origin.accept();
+                Thread thread = new Thread(() -> serveOrigin(socket));
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    // Size (mode 2) and ranged reads (mode 0), the two requests an edge sends
+    private static void serveOrigin(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            String mode = in.readUTF().trim();
+            String name = in.readUTF();
+            byte[] content = originFiles.get(name);
+
+            if (content == null) {
+                originRequests.add(mode + " " + name);
+                out.writeUTF("ErrFileDoesNotExist");
+                return;
+            }
+
+            out.writeUTF("OkToRead");
+
+            if (mode.equals("2")) {
+                originRequests.add(mode + " " + name);
+                out.writeLong(content.length);
+                return;
+            }
+
+            int skip = (int) in.readLong();
+            int end = (int) in.readLong();
+            originRequests.add(mode + " " + name + " " + skip);
+            out.writeUTF("OkToRead");
+            bodies.await();
+
+            if (cutOnce.remove(name) != null) {
+                end = skip + (end - skip) / 2;
+            }
+
+            out.write(content, skip, end - skip);
+        } catch (IOException | InterruptedException e) {
+            // The edge went away
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class FileCacheTest {
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void servesRepeatedReadsFromMemory() throws Exception {
+        File file = write("a.txt", 10);
+        FileCache cache = cache(1024, NEVER);
+
+        FileCache.Entry first = cache.get(file);
+        assertSame(first, cache.get(file));
+
+        assertEquals(1, cache.misses.get());
+        assertEquals(1, cache.hits.get());
+        assertFalse(first.mapped);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), bytes(first.slice(0, first.length)));
+        assertArrayEquals(new byte[] { 3, 4 }, bytes(first.slice(3, 2)));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedFile() throws Exception {
+        File a = write("a.txt", 40);
+        File b = write("b.txt", 40);
+        File c = write("c.txt", 40);
+        FileCache cache = cache(100, NEVER);
+
+        cache.get(a);
+        cache.get(b);
+        cache.get(a); // b is now the least recently used
+        cache.get(c);
+
+        assertEquals(1, cache.evictions.get());
+        assertTrue(cache.stats().contains("bytes 80\n"), cache.stats());
+
+        long misses = cache.misses.get();
+        cache.get(a);
+        cache.get(c);
+        assertEquals(misses, cache.misses.get());
+        cache.get(b);
+        assertEquals(misses + 1, cache.misses.get());
+    }
+
+    @Test
+    void skipsFilesOverTheBudgetAndMissingFiles() throws Exception {
+        FileCache cache = cache(100, NEVER);
+
+        assertNull(cache.get(write("big.bin", 101)));
+        assertNull(cache.get(new File(directory.toFile(), "missing.txt")));
+        assertNull(cache(0, NEVER).get(write("small.txt", 1)));
+    }
+
+    @Test
+    void mapsLargeFiles() throws Exception {
+        File file = write("large.bin", 300 * 1024);
+        FileCache.Entry entry = cache(1024 * 1024, NEVER).get(file);
+
+        assertTrue(entry.mapped);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), bytes(entry.slice(0, entry.length)));
+    }
+
+    @Test
+    void invalidateDropsTheEntry() throws Exception {
+        File file = write("a.txt", 10);
+        FileCache cache = cache(1024, NEVER);
+        cache.get(file);
+
+        Files.write(file.toPath(), new byte[] { 9, 9 });
+        assertEquals(10, cache.get(file).length); // Not checked against the disk yet
+
+        cache.invalidate(file);
+        assertEquals(1, cache.invalidations.get());
+        assertArrayEquals(new byte[] { 9, 9 }, bytes(cache.get(file).content.duplicate()));
+    }
+
+    // Past the revalidate interval a changed size or mtime reloads the file
+    @Test
+    void revalidatesAgainstTheFile() throws Exception {
+        File file = write("a.txt", 10);
+        FileCache cache = cache(1024, 0);
+        FileCache.Entry first = cache.get(file);
+
+        assertSame(first, cache.get(file));
+
+        Files.write(file.toPath(), new byte[] { 9, 9 });
+        FileCache.Entry reloaded = cache.get(file);
+        assertEquals(2, reloaded.length);
+        assertEquals(1, cache.invalidations.get());
+
+        Files.delete(file.toPath());
+        assertNull(cache.get(file));
+    }
+
+    // A file deleted on disk and uploaded again under the same name must not be served from
+    // the copy cached before, even inside the revalidate interval
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void uploadReplacesTheCachedCopy(String mode) throws Exception {
+        TestServer server = TestServer.start("MODE=" + mode, "CACHE_MB=1", "CACHE_REVALIDATE=600000");
+        String name = "cache-upload-" + mode + ".txt";
+        File file = new File("Files", name);
+        Files.write(file.toPath(), "old".getBytes());
+
+        awaitListed(server, name, true);
+        assertArrayEquals("old".getBytes(), server.download(name));
+
+        Files.delete(file.toPath());
+        awaitListed(server, name, false);
+        server.upload(name, "new content".getBytes());
+
+        assertArrayEquals("new content".getBytes(), server.download(name));
+        assertTrue(server.http("GET /" + name + " HTTP/1.0\r\n\r\n").endsWith("\r\n\r\nnew content"));
+    }
+
+    // Files changed behind the server's back reach its FileIndex through the watcher, a little
+    // later. Waits until the server's LIST shows name, or no longer shows it.
+    private static void awaitListed(TestServer server, String name, boolean present) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (listed(server, name) != present) {
+            assertTrue(System.currentTimeMillis() < deadline, name + " not picked up by the index");
+            Thread.sleep(20);
+        }
+    }
+
+    private static boolean listed(TestServer server, String name) throws Exception {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("6\n");
+            out.writeUTF("");
+            assertEquals("OkList", in.readUTF());
+            boolean found = false;
+
+            for (int count = in.readInt(); count > 0; count--) {
+                found |= in.readUTF().equals(name);
+                in.readLong(); // Size
+                in.readLong(); // Last modified
+                in.readUTF(); // Hash
+            }
+
+            return found;
+        }
+    }
+
+    private FileCache cache(long maxBytes, long revalidateMillis) {
+        return new FileCache(maxBytes, revalidateMillis, new FileIndex(directory.toFile()));
+    }
+
+    private File write(String name, int length) throws Exception {
+        byte[] content = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+
+        File file = new File(directory.toFile(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        return content;
+    }
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileIndexTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void scansTheDirectoryAtStart() throws Exception {
+        write("b.txt", "bb");
+        write("a.html", "a");
+        Files.createDirectory(directory.resolve("sub"));
+        FileIndex index = started();
+
+        assertEquals(2, index.size());
+        assertEquals("a.html", index.list().get(0).name);
+        assertEquals("b.txt", index.list().get(1).name);
+
+        FileMeta meta = index.get(file("a.html"));
+        assertEquals(1, meta.length);
+        assertEquals(file("a.html").lastModified(), meta.lastModified);
+        assertEquals("text/html", meta.contentType.split(";")[0]);
+        assertEquals(HttpHandler.etag(meta.length, meta.lastModified), meta.etag);
+        assertNull(index.get(file("sub"))); // Not a regular file
+    }
+
+    // Files created, changed and deleted by something other than the server show up through
+    // the watcher
+    @Test
+    void followsChangesMadeOnDisk() throws Exception {
+        FileIndex index = started();
+
+        // Created empty and then written, so the first event may show no bytes yet
+        write("new.txt", "new");
+        await(() -> index.get(file("new.txt")) != null && index.get(file("new.txt")).length == 3);
+
+        write("new.txt", "longer");
+        await(() -> index.get(file("new.txt")).length == 6);
+
+        Files.delete(file("new.txt").toPath());
+        await(() -> index.get(file("new.txt")) == null);
+        assertEquals(0, index.size());
+    }
+
+    // refresh() makes the server's own writes visible before the watcher sees them
+    @Test
+    void refreshIsImmediate() throws Exception {
+        FileIndex index = started();
+
+        write("uploaded.txt", "data");
+        index.refresh(file("uploaded.txt"));
+
+        assertEquals(4, index.get(file("uploaded.txt")).length);
+    }
+
+    // Without start() and for paths outside the directory every lookup stats the file
+    @Test
+    void statsWhatItDoesNotWatch() throws Exception {
+        FileIndex index = new FileIndex(directory.toFile());
+        write("a.txt", "a");
+
+        assertNotNull(index.get(file("a.txt")));
+        assertEquals(1, index.list().size());
+
+        Files.createDirectory(directory.resolve("sub"));
+        File nested = new File(directory.toFile(), "sub/c.txt");
+        Files.write(nested.toPath(), "c".getBytes());
+        assertNotNull(started().get(nested));
+    }
+
+    private FileIndex started() {
+        FileIndex index = new FileIndex(directory.toFile());
+        index.start(0);
+        return index;
+    }
+
+    private File file(String name) {
+        return new File(directory.toFile(), name);
+    }
+
+    private void write(String name, String content) throws Exception {
+        Files.write(file(name).toPath(), content.getBytes());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Index did not catch up");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+}
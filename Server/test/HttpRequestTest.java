@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class HttpRequestTest {
+    private static final String NAME = "range-test.bin";
+    private static final long LAST_MODIFIED = 1_600_000_000_000L; // Sun, 13 Sep 2020 12:26:40 GMT
+    private static ServerContext context;
+    private static String etag;
+
+    @BeforeAll
+    static void createFile() throws Exception {
+        File file = new File("Files", NAME);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), new byte[1000]);
+        assertTrue(file.setLastModified(LAST_MODIFIED));
+
+        ServerConfig config = new ServerConfig();
+        config.cacheBytes = 0; // Bodies stay file regions, so their offsets can be checked
+        context = new ServerContext(config);
+        etag = HttpHandler.etag(1000, LAST_MODIFIED);
+    }
+
+    @Test
+    void parsesRequestLineAndHeaders() {
+        HttpRequest request = HttpRequest.parse("GET /index.html HTTP/1.1",
+                Arrays.asList("Host: example.com", "RANGE:  bytes=0-9 ", "not a header"));
+
+        assertEquals("GET", request.method);
+        assertEquals("/index.html", request.path);
+        assertEquals("HTTP/1.1", request.version);
+        assertEquals("bytes=0-9", request.header("Range"));
+        assertEquals("example.com", request.header("host"));
+        assertEquals(2, request.headers.size());
+    }
+
+    @Test
+    void shortRequestLinesGetDefaults() {
+        HttpRequest request = HttpRequest.parse("GET", Arrays.asList());
+
+        assertNull(request.path);
+        assertEquals("HTTP/1.0", request.version);
+        assertEquals("400 Bad Request", HttpHandler.respond(request, context, 0).status);
+    }
+
+    @Test
+    void keepAliveFollowsTheVersionDefault() {
+        assertTrue(HttpRequest.parse("GET / HTTP/1.1", Arrays.asList()).isKeepAlive());
+        assertFalse(HttpRequest.parse("GET / HTTP/1.1", Arrays.asList("Connection: close")).isKeepAlive());
+        assertFalse(HttpRequest.parse("GET / HTTP/1.0", Arrays.asList()).isKeepAlive());
+        assertTrue(HttpRequest.parse("GET / HTTP/1.0", Arrays.asList("Connection: Keep-Alive")).isKeepAlive());
+    }
+
+    @Test
+    void byteRangeFromSkipAndEnd() {
+        ByteRange whole = ByteRange.fromSkipAndEnd(0, 0, 1000);
+        assertEquals(0, whole.position);
+        assertEquals(1000, whole.count);
+        assertEquals(999, whole.last());
+
+        ByteRange tail = ByteRange.fromSkipAndEnd(400, -1, 1000);
+        assertEquals(400, tail.position);
+        assertEquals(600, tail.count);
+
+        ByteRange middle = ByteRange.fromSkipAndEnd(100, 200, 1000);
+        assertEquals(100, middle.position);
+        assertEquals(100, middle.count);
+        assertEquals(199, middle.last());
+
+        assertNull(ByteRange.fromSkipAndEnd(0, 1001, 1000));
+    }
+
+    @Test
+    void satisfiableRanges() {
+        assertPartial("bytes=0-99", 0, 99);
+        assertPartial("bytes=900-", 900, 999);
+        assertPartial("bytes=-100", 900, 999); // The last 100 bytes
+        assertPartial("bytes=-5000", 0, 999);
+        assertPartial("bytes=500-2000", 500, 999); // Clamped to the file
+        assertPartial("bytes= 10 - 19 ", 10, 19);
+    }
+
+    @Test
+    void unsatisfiableRanges() {
+        for (String range : new String[] { "bytes=1000-", "bytes=1000-2000", "bytes=-0" }) {
+            HttpResponse response = get("Range: " + range);
+
+            assertEquals("416 Range Not Satisfiable", response.status, range);
+            assertEquals("bytes */1000", response.headers.get("Content-Range"), range);
+        }
+    }
+
+    @Test
+    void rangesNotServedPartiallyGetTheWholeFile() {
+        for (String range : new String[] { "bytes=0-9,20-29", "bytes=a-b", "bytes=10", "items=0-9", "bytes=500-100" }) {
+            HttpResponse response = get("Range: " + range);
+
+            assertEquals("200 OK", response.status, range);
+            assertEquals("1000", response.headers.get("Content-Length"), range);
+        }
+    }
+
+    @Test
+    void ifRangeOnlyAppliesToTheCurrentVersion() {
+        assertEquals("206 Partial Content", get("Range: bytes=0-9", "If-Range: " + etag).status);
+        assertEquals("200 OK", get("Range: bytes=0-9", "If-Range: \"0-0\"").status);
+    }
+
+    @Test
+    void ifNoneMatchAnswersNotModified() {
+        for (String match : new String[] { etag, "W/" + etag, "\"other\", " + etag, "*" }) {
+            HttpResponse response = get("If-None-Match: " + match);
+
+            assertEquals("304 Not Modified", response.status, match);
+            assertNull(response.headers.get("Content-Length"), match);
+            assertNull(response.bodyFile, match);
+            assertEquals(etag, response.headers.get("ETag"));
+        }
+
+        assertEquals("200 OK", get("If-None-Match: \"other\"").status);
+    }
+
+    @Test
+    void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+        HttpResponse response = get("If-None-Match: \"other\"", "If-Modified-Since: Fri, 01 Jan 2100 00:00:00 GMT");
+
+        assertEquals("200 OK", response.status);
+    }
+
+    @Test
+    void ifModifiedSinceComparesWholeSeconds() {
+        assertEquals("304 Not Modified", get("If-Modified-Since: Sun, 13 Sep 2020 12:26:40 GMT").status);
+        assertEquals("200 OK", get("If-Modified-Since: Sun, 13 Sep 2020 12:26:39 GMT").status);
+        assertEquals("200 OK", get("If-Modified-Since: yesterday").status);
+    }
+
+    @Test
+    void headKeepsTheLengthButSendsNoBody() {
+        HttpResponse response = HttpHandler.respond(HttpRequest.parse("HEAD /" + NAME + " HTTP/1.1", Arrays.asList()),
+                context, 0);
+
+        assertEquals("200 OK", response.status);
+        assertEquals("1000", response.headers.get("Content-Length"));
+        assertNull(response.bodyFile);
+    }
+
+    private static void assertPartial(String range, long first, long last) {
+        HttpResponse response = get("Range: " + range);
+
+        assertEquals("206 Partial Content", response.status, range);
+        assertEquals("bytes " + first + "-" + last + "/1000", response.headers.get("Content-Range"), range);
+        assertEquals(Long.toString(last - first + 1), response.headers.get("Content-Length"), range);
+        assertEquals(first, response.bodyPosition, range);
+        assertEquals(last - first + 1, response.bodyLength, range);
+    }
+
+    private static HttpResponse get(String... headerLines) {
+        return HttpHandler.respond(HttpRequest.parse("GET /" + NAME + " HTTP/1.1", Arrays.asList(headerLines)),
+                context, 0);
+    }
+}
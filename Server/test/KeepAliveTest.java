@@ -0,0 +1,173 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// Both modes with at most 3 requests per connection and a 500 ms idle timeout
+class KeepAliveTest {
+    private static TestServer threads;
+    private static TestServer nio;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        new File("Files").mkdirs();
+        Files.write(new File("Files/keep-a.txt").toPath(), "first".getBytes());
+        Files.write(new File("Files/keep-b.txt").toPath(), "second file".getBytes());
+        String[] options = { "KEEP_ALIVE_TIMEOUT=500", "MAX_KEEP_ALIVE_REQUESTS=3" };
+        threads = TestServer.start(options);
+        nio = TestServer.start(with(options, "MODE=nio", "LOOPS=1"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void pipelinedRequestsAreAnsweredInOrder(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), get("/keep-a.txt") + get("/keep-missing.txt") + get("/keep-b.txt"));
+            InputStream in = socket.getInputStream();
+
+            TestServer.HttpReply first = TestServer.readResponse(in, false);
+            assertEquals("HTTP/1.1 200 OK", first.status);
+            assertEquals("keep-alive", first.header("Connection"));
+            assertEquals("first", first.text());
+
+            TestServer.HttpReply missing = TestServer.readResponse(in, false);
+            assertEquals("HTTP/1.1 404 Not Found", missing.status);
+            assertEquals("keep-alive", missing.header("Connection"));
+
+            // The third request is the last one MAX_KEEP_ALIVE_REQUESTS allows
+            TestServer.HttpReply last = TestServer.readResponse(in, false);
+            assertEquals("second file", last.text());
+            assertEquals("close", last.header("Connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void connectionCloseEndsTheConnection(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), "GET /keep-a.txt HTTP/1.1\r\nConnection: close\r\n\r\n");
+            InputStream in = socket.getInputStream();
+
+            TestServer.HttpReply reply = TestServer.readResponse(in, false);
+            assertEquals("close", reply.header("Connection"));
+            assertEquals("first", reply.text());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void http10IsPersistentOnlyWhenAsked(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), "GET /keep-a.txt HTTP/1.0\r\n\r\n");
+            InputStream in = socket.getInputStream();
+
+            assertEquals("close", TestServer.readResponse(in, false).header("Connection"));
+            assertEquals(-1, in.read());
+        }
+
+        try (Socket socket = server(mode).connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            TestServer.send(out, "GET /keep-a.txt HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+            assertEquals("keep-alive", TestServer.readResponse(in, false).header("Connection"));
+
+            TestServer.send(out, "GET /keep-b.txt HTTP/1.0\r\n\r\n");
+            assertEquals("second file", TestServer.readResponse(in, false).text());
+        }
+    }
+
+    // HEAD sends the headers of the GET without the body, so the next response follows directly
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void headLeavesTheConnectionUsable(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), "HEAD /keep-b.txt HTTP/1.1\r\n\r\n" + get("/keep-a.txt"));
+            InputStream in = socket.getInputStream();
+
+            TestServer.HttpReply head = TestServer.readResponse(in, true);
+            assertEquals("HTTP/1.1 200 OK", head.status);
+            assertEquals("11", head.header("Content-Length"));
+
+            assertEquals("first", TestServer.readResponse(in, false).text());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void idleConnectionsAreClosed(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            TestServer.send(out, get("/keep-a.txt"));
+            TestServer.readResponse(in, false);
+
+            // Still open shortly after a response
+            Thread.sleep(100);
+            TestServer.send(out, get("/keep-b.txt"));
+            assertEquals("second file", TestServer.readResponse(in, false).text());
+
+            long idleFrom = System.currentTimeMillis();
+            assertEquals(-1, in.read());
+            assertTrue(System.currentTimeMillis() - idleFrom >= 400);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void oversizedRequestLineIsRefused(String mode) throws Exception {
+        StringBuilder path = new StringBuilder("/");
+
+        while (path.length() <= HttpRequest.MAX_LINE) {
+            path.append("long-name/");
+        }
+
+        assertRefused(mode, "GET " + path + " HTTP/1.1\r\n\r\n", "HTTP/1.1 400 Bad Request");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void tooManyHeadersAreRefused(String mode) throws Exception {
+        StringBuilder request = new StringBuilder("GET /keep-a.txt HTTP/1.1\r\n");
+
+        for (int i = 0; i <= HttpRequest.MAX_HEADERS; i++) {
+            request.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+        }
+
+        assertRefused(mode, request.append("\r\n").toString(), "HTTP/1.1 431 Request Header Fields Too Large");
+    }
+
+    private static void assertRefused(String mode, String request, String status) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), request);
+            InputStream in = socket.getInputStream();
+
+            assertEquals(status, TestServer.readResponse(in, false).status);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static String get(String path) {
+        return "GET " + path + " HTTP/1.1\r\nHost: test\r\n\r\n";
+    }
+
+    private static TestServer server(String mode) {
+        return mode.equals("nio") ? nio : threads;
+    }
+
+    private static String[] with(String[] options, String... more) {
+        String[] all = new String[options.length + more.length];
+        System.arraycopy(options, 0, all, 0, options.length);
+        System.arraycopy(more, 0, all, options.length, more.length);
+        return all;
+    }
+}
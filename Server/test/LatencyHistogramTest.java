@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int micros = 0; micros < 16; micros++) {
+            histogram.record(micros);
+        }
+
+        assertEquals(16, histogram.count());
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(15, histogram.percentile(1.0));
+        assertEquals(0, histogram.percentile(0.0));
+    }
+
+    @Test
+    void bucketsAreWithinASixteenthOfTheValue() {
+        for (long value = 1; value < (1L << 36); value = value * 3 + 1) {
+            int index = LatencyHistogram.indexFor(value);
+            long upper = LatencyHistogram.upperBoundOf(index);
+
+            assertTrue(upper > value, "bucket of " + value + " ends at " + upper);
+            assertTrue(index == 0 || LatencyHistogram.upperBoundOf(index - 1) <= value, "bucket of " + value);
+            assertTrue(upper - 1 <= value + value / 16, "bucket of " + value + " ends at " + upper);
+        }
+    }
+
+    @Test
+    void percentilesOfAUniformSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros);
+        }
+
+        assertWithinBucket(5000, histogram.percentile(0.5));
+        assertWithinBucket(9900, histogram.percentile(0.99));
+        assertWithinBucket(10000, histogram.percentile(1.0));
+    }
+
+    @Test
+    void emptyAndOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(1.0));
+    }
+
+    @Test
+    void addMergesCounts() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+
+        for (int micros = 1; micros <= 100; micros++) {
+            first.record(micros);
+            second.record(micros + 100);
+        }
+
+        first.add(second);
+
+        assertEquals(200, first.count());
+        assertWithinBucket(100, first.percentile(0.5));
+        assertWithinBucket(200, first.percentile(1.0));
+    }
+
+    @Test
+    void rendersCumulativePrometheusBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(300); // 0.3 ms
+        histogram.record(2000); // 2 ms
+        histogram.record(2_000_000); // 2 s
+
+        StringBuilder text = new StringBuilder();
+        histogram.render(text, "latency_seconds", "operation=\"read\"");
+        String rendered = text.toString();
+
+        assertTrue(rendered.contains("latency_seconds_bucket{operation=\"read\",le=\"0.0005\"} 1\n"), rendered);
+        assertTrue(rendered.contains("latency_seconds_bucket{operation=\"read\",le=\"0.001\"} 1\n"), rendered);
+        assertTrue(rendered.contains("latency_seconds_bucket{operation=\"read\",le=\"0.0025\"} 2\n"), rendered);
+        assertTrue(rendered.contains("latency_seconds_bucket{operation=\"read\",le=\"2.5\"} 3\n"), rendered);
+        assertTrue(rendered.contains("latency_seconds_bucket{operation=\"read\",le=\"+Inf\"} 3\n"), rendered);
+        assertTrue(rendered.contains("latency_seconds_sum{operation=\"read\"} 2.0023\n"), rendered);
+        assertTrue(rendered.endsWith("latency_seconds_count{operation=\"read\"} 3\n"), rendered);
+    }
+
+    // Percentiles are rounded up to the end of the value's bucket
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16, expected + " reported as " + actual);
+    }
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ListenersTest {
+    // On Linux, which has SO_REUSEPORT, the kernel spreads connections over every listener
+    @Test
+    void spreadsConnectionsOverTheListeners() throws Exception {
+        List<ServerSocketChannel> listeners = Listeners.open(freePort(), 4, 128);
+        List<Socket> clients = new ArrayList<>();
+
+        try {
+            assertEquals(4, listeners.size());
+
+            for (int i = 0; i < 64; i++) {
+                clients.add(new Socket(InetAddress.getLoopbackAddress(), listeners.get(0).socket().getLocalPort()));
+            }
+
+            int accepted = 0;
+            int used = 0;
+
+            for (ServerSocketChannel listener : listeners) {
+                listener.configureBlocking(false);
+                int before = accepted;
+                SocketChannel channel;
+
+                while ((channel = listener.accept()) != null) {
+                    channel.close();
+                    accepted++;
+                }
+
+                used += accepted > before ? 1 : 0;
+            }
+
+            assertEquals(64, accepted);
+            assertTrue(used > 1, "all connections went to one listener");
+        } finally {
+            close(listeners, clients);
+        }
+    }
+
+    @Test
+    void oneListenerWhenOneAcceptorIsAsked() throws Exception {
+        List<ServerSocketChannel> listeners = Listeners.open(freePort(), 1, 128);
+        close(listeners, new ArrayList<>());
+
+        assertEquals(1, listeners.size());
+    }
+
+    // SO_REUSEPORT must not let a second server share a port that is already taken
+    @Test
+    void portInUseStillFails() throws Exception {
+        try (ServerSocket taken = new ServerSocket()) {
+            taken.bind(new InetSocketAddress(freePort()));
+
+            assertThrows(IOException.class, () -> Listeners.open(taken.getLocalPort(), 4, 128));
+            assertThrows(IOException.class, () -> Listeners.open(taken.getLocalPort(), 1, 128));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void serverAcceptsOnEveryListener(String mode) throws Exception {
+        new File("Files").mkdirs();
+        Files.write(new File("Files/listeners.txt").toPath(), "accepted".getBytes());
+        TestServer server = TestServer.start("MODE=" + mode, "ACCEPTORS=4", "LOOPS=4");
+
+        for (int i = 0; i < 32; i++) {
+            assertArrayEquals("accepted".getBytes(), server.download("listeners.txt"));
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void close(List<ServerSocketChannel> listeners, List<Socket> clients) throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+
+        for (ServerSocketChannel listener : listeners) {
+            listener.close();
+        }
+    }
+}
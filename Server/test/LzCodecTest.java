@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LzCodecTest {
+    @Test
+    void emptyInputIsJustTheEndMarker() throws Exception {
+        byte[] compressed = compress(new byte[0]);
+
+        assertArrayEquals(new byte[4], compressed);
+        assertArrayEquals(new byte[0], decompress(compressed));
+    }
+
+    @Test
+    void incompressibleBlocksAreStoredAsIs() throws Exception {
+        byte[] data = random(3 * LzCodec.BLOCK_SIZE + 1000, 1);
+        byte[] compressed = compress(data);
+
+        assertArrayEquals(data, decompress(compressed));
+        // Four blocks, each with its two lengths, then the end marker
+        assertEquals(data.length + 4 * 8 + 4, compressed.length);
+
+        DataInputStream blocks = new DataInputStream(new ByteArrayInputStream(compressed));
+        assertEquals(LzCodec.BLOCK_SIZE, blocks.readInt());
+        assertEquals(0, blocks.readInt());
+    }
+
+    @Test
+    void repetitiveInputShrinksAndRoundTrips() throws Exception {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            text.append("GET /files/report-").append(i % 37).append(".pdf HTTP/1.1\r\n");
+        }
+
+        byte[] data = text.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] compressed = compress(data);
+
+        assertArrayEquals(data, decompress(compressed));
+        assertTrue(compressed.length < data.length / 4, compressed.length + " of " + data.length);
+    }
+
+    @Test
+    void longRunsAndLongLiteralsRoundTrip() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[100000]); // Overlapping matches one byte back
+        data.write(random(300, 2)); // Literal run longer than 255
+        byte[] repeated = random(20, 3);
+
+        for (int i = 0; i < 1000; i++) {
+            data.write(repeated);
+        }
+
+        data.write(random(3, 4)); // Shorter than a match at the very end
+
+        assertArrayEquals(data.toByteArray(), decompress(compress(data.toByteArray())));
+    }
+
+    @Test
+    void inputsAroundTheBlockSizeRoundTrip() throws Exception {
+        for (int length : new int[] { 1, 3, 4, 5, LzCodec.BLOCK_SIZE - 1, LzCodec.BLOCK_SIZE, LzCodec.BLOCK_SIZE + 1 }) {
+            byte[] data = new byte[length];
+
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i % 7);
+            }
+
+            assertArrayEquals(data, decompress(compress(data)), "length " + length);
+        }
+    }
+
+    @Test
+    void singleByteWritesMatchArrayWrites() throws Exception {
+        byte[] data = random(LzCodec.BLOCK_SIZE + 10, 5);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (LzOutputStream out = new LzOutputStream(compressed)) {
+            for (byte b : data) {
+                out.write(b);
+            }
+        }
+
+        assertArrayEquals(compress(data), compressed.toByteArray());
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try (LzOutputStream out = new LzOutputStream(compressed)) {
+            out.write(data, 0, data.length);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        try (InputStream in = new LzInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
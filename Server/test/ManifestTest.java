@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// The LIST reply sync compares against, and the BATCH_READ sync downloads with
+class ManifestTest {
+    // SHA-256 of "abc"
+    private static final String ABC_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static TestServer server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        new File("Files").mkdirs();
+        Files.write(new File("Files/manifest-abc.txt").toPath(), "abc".getBytes());
+        Files.write(new File("Files/manifest-changing.txt").toPath(), "abc".getBytes());
+        Files.write(new File("Files/.manifest-hidden").toPath(), "hidden".getBytes());
+        server = TestServer.start();
+    }
+
+    @Test
+    void hashesFileContents() throws Exception {
+        assertEquals(ABC_HASH, Manifest.sha256(new File("Files/manifest-abc.txt")));
+    }
+
+    @Test
+    void listsSizeMtimeAndHash() throws Exception {
+        Map<String, String[]> listing = list();
+        String[] entry = listing.get("manifest-abc.txt");
+
+        assertEquals("3", entry[0]);
+        assertEquals(String.valueOf(new File("Files/manifest-abc.txt").lastModified()), entry[1]);
+        assertEquals(ABC_HASH, entry[2]);
+        assertFalse(listing.containsKey(".manifest-hidden"));
+    }
+
+    // The hash is remembered per version of a file and recomputed when the file changes
+    @Test
+    void followsChangedFiles() throws Exception {
+        File file = new File("Files/manifest-changing.txt");
+        assertEquals(ABC_HASH, list().get(file.getName())[2]);
+
+        Files.write(file.toPath(), "abcd".getBytes());
+        file.setLastModified(file.lastModified() + 2000);
+        long deadline = System.currentTimeMillis() + 10000;
+        String[] entry;
+
+        while ((entry = list().get(file.getName()))[0].equals("3") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertEquals("4", entry[0]);
+        assertEquals(Manifest.sha256(file), entry[2]);
+    }
+
+    @Test
+    void batchReadSendsEachFileWithItsLength() throws Exception {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("7\n");
+            out.writeUTF("manifest-abc.txt");
+
+            assertEquals("OkToRead", in.readUTF());
+            assertEquals(3, in.readLong());
+            byte[] body = new byte[3];
+            in.readFully(body);
+            assertArrayEquals("abc".getBytes(), body);
+
+            out.writeUTF("manifest-missing.txt");
+            assertEquals("ErrFileDoesNotExist", in.readUTF());
+
+            out.writeUTF(""); // Done
+            assertEquals(-1, in.read());
+        }
+    }
+
+    // Name to size, mtime and hash
+    private static Map<String, String[]> list() throws Exception {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("6\n");
+            out.writeUTF("");
+            assertEquals("OkList", in.readUTF());
+
+            Map<String, String[]> listing = new LinkedHashMap<>();
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                listing.put(name, new String[] { String.valueOf(in.readLong()), String.valueOf(in.readLong()), in.readUTF() });
+            }
+
+            assertTrue(listing.containsKey("manifest-abc.txt"));
+            return listing;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class MetricsTest {
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void countsRequestsErrorsAndBytes(String mode) throws Exception {
+        new File("Files").mkdirs();
+        Files.write(new File("Files/metrics.txt").toPath(), "hello".getBytes());
+        TestServer server = TestServer.start("MODE=" + mode);
+
+        server.download("metrics.txt");
+        assertThrows(FileNotFoundException.class, () -> server.download("metrics-missing.txt"));
+        server.http("GET /metrics.txt HTTP/1.0\r\n\r\n");
+
+        String response = server.http("GET /metrics HTTP/1.0\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+        assertTrue(response.contains("\r\nContent-Type: text/plain; version=0.0.4"), response);
+
+        String text = response.substring(response.indexOf("\r\n\r\n") + 4);
+        assertTrue(value(text, "fileserver_requests_total{operation=\"read\"}") >= 1);
+        assertEquals(1, value(text, "fileserver_requests_total{operation=\"http\"}"));
+        assertEquals(1, value(text, "fileserver_errors_total{code=\"ErrFileDoesNotExist\"}"));
+        assertEquals(1, value(text, "fileserver_http_responses_total{status=\"200\"}"));
+        assertTrue(value(text, "fileserver_bytes_sent_total") >= 10);
+        assertTrue(value(text, "fileserver_connections_accepted_total") >= 4);
+        assertTrue(value(text, "fileserver_connections_active") >= 1);
+        assertEquals(1, value(text, "fileserver_request_duration_seconds_count{operation=\"http\"}"));
+        assertEquals(1, value(text, "fileserver_request_duration_seconds_bucket{operation=\"http\",le=\"+Inf\"}"));
+        assertTrue(text.contains("# TYPE fileserver_request_duration_seconds histogram\n"), text);
+    }
+
+    // The endpoints answer HEAD like any file: the GET response's headers and no body
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void headOfEndpointsHasNoBody(String mode) throws Exception {
+        TestServer server = TestServer.start("MODE=" + mode);
+
+        for (String path : new String[] { "/metrics", "/_cache" }) {
+            String response = server.http("HEAD " + path + " HTTP/1.0\r\n\r\n");
+
+            assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+            assertTrue(response.endsWith("\r\n\r\n"), response);
+            assertTrue(Pattern.compile("\r\nContent-Length: [1-9]").matcher(response).find(), response);
+        }
+    }
+
+    // Value of the sample called name, which has to be there
+    private static long value(String text, String name) {
+        Matcher sample = Pattern.compile("(?m)^" + Pattern.quote(name) + " (\\d+)$").matcher(text);
+        assertTrue(sample.find(), name + " missing from\n" + text);
+        return Long.parseLong(sample.group(1));
+    }
+}
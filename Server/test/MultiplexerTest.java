@@ -0,0 +1,272 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class MultiplexerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private ServerSocket listener;
+    private Socket clientSocket;
+    private Multiplexer client;
+
+    @AfterEach
+    void closeConnection() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    @Test
+    void framesFollowTheWireFormat() throws Exception {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        CompletableFuture<List<int[]>> frames = CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = listener.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                byte[] preface = new byte[Multiplexer.PREFACE.length() + 2];
+                in.readFully(preface);
+                assertEquals(Multiplexer.PREFACE + "\n\n", new String(preface, StandardCharsets.ISO_8859_1));
+
+                out.writeInt(16);
+                out.writeByte(Multiplexer.SETTINGS);
+                out.writeByte(0);
+                out.writeInt(0);
+                out.writeInt(Multiplexer.VERSION);
+                out.writeInt(Multiplexer.STREAM_WINDOW);
+                out.writeInt(Multiplexer.CONNECTION_WINDOW);
+                out.writeInt(Multiplexer.MAX_STREAMS);
+
+                // length, type, flags, stream and the first payload byte of the client's frames
+                List<int[]> read = new ArrayList<>();
+
+                for (int i = 0; i < 4; i++) {
+                    int[] frame = { in.readInt(), in.readByte(), in.readByte(), in.readInt(), -1 };
+                    byte[] payload = new byte[frame[0]];
+                    in.readFully(payload);
+                    frame[4] = payload.length > 0 ? payload[0] : -1;
+                    read.add(frame);
+                }
+
+                return read;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        client = Multiplexer.connect(clientSocket);
+        MuxStream stream = client.open();
+        stream.output().write("hello".getBytes(StandardCharsets.US_ASCII));
+        stream.output().flush();
+        stream.shutdownOutput();
+
+        List<int[]> read = frames.get();
+        assertArrayEquals(new int[] { 16, Multiplexer.SETTINGS, 0, 0, 0 }, read.get(0));
+        assertArrayEquals(new int[] { 0, Multiplexer.OPEN, 0, 1, -1 }, read.get(1));
+        assertArrayEquals(new int[] { 5, Multiplexer.DATA, 0, 1, 'h' }, read.get(2));
+        assertArrayEquals(new int[] { 0, Multiplexer.DATA, Multiplexer.END_STREAM, 1, -1 }, read.get(3));
+    }
+
+    @Test
+    void serverWithoutMultiplexingIsDetected() throws Exception {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        CompletableFuture.runAsync(() -> {
+            try (Socket socket = listener.accept()) {
+                socket.getOutputStream().write("HTTP/1.1 400 Bad Request\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            } catch (IOException ignored) {
+            }
+        });
+
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        assertNull(Multiplexer.connect(clientSocket));
+    }
+
+    @Test
+    void concurrentStreamsCarryTheirOwnBytes() throws Exception {
+        connect(stream -> new Thread(() -> echo(stream)).start());
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            List<CompletableFuture<Void>> transfers = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                byte[] data = random(100000 + i * 5000, i);
+                MuxStream stream = client.open();
+                transfers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> send(stream, data));
+                        assertArrayEquals(data, stream.input().readAllBytes());
+                        writer.join();
+                        stream.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+
+            CompletableFuture.allOf(transfers.toArray(new CompletableFuture[0])).join();
+        });
+    }
+
+    @Test
+    void unreadStreamStopsAtItsWindowWithoutStallingOthers() throws Exception {
+        CountDownLatch startReading = new CountDownLatch(1);
+        connect(stream -> new Thread(() -> {
+            if (stream.id == 1) {
+                try {
+                    startReading.await();
+                    stream.input().readAllBytes();
+                    stream.close();
+                } catch (Exception e) {
+                    stream.reset();
+                }
+            } else {
+                echo(stream);
+            }
+        }).start());
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            MuxStream stalled = client.open();
+            AtomicLong written = new AtomicLong();
+            int total = 3 * Multiplexer.STREAM_WINDOW;
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                try {
+                    byte[] chunk = new byte[4096];
+
+                    while (written.get() < total) {
+                        stalled.output().write(chunk);
+                        written.addAndGet(chunk.length);
+                    }
+
+                    stalled.shutdownOutput();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            waitUntilSteady(written);
+            long atWindow = written.get();
+            assertTrue(atWindow >= Multiplexer.STREAM_WINDOW
+                    && atWindow <= Multiplexer.STREAM_WINDOW + Multiplexer.MAX_FRAME, atWindow + " bytes written");
+
+            // Another stream on the same connection goes through meanwhile
+            MuxStream other = client.open();
+            byte[] data = random(50000, 99);
+            send(other, data);
+            assertArrayEquals(data, other.input().readAllBytes());
+
+            // Reading the stalled stream returns the window and the rest goes out
+            startReading.countDown();
+            writer.join();
+            assertEquals(total, written.get());
+        });
+    }
+
+    @Test
+    void streamClosedByThePeerFailsTheWriter() throws Exception {
+        connect(MuxStream::close);
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            MuxStream stream = client.open();
+            byte[] data = new byte[2 * Multiplexer.STREAM_WINDOW];
+
+            assertThrows(IOException.class, () -> stream.output().write(data));
+        });
+    }
+
+    // Starts a multiplexing server on a loopback port whose streams go to handler, and connects
+    // the client to it
+    private void connect(Consumer<MuxStream> handler) throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread server = new Thread(() -> {
+            try {
+                Socket socket = listener.accept();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                byte[] preface = new byte[Multiplexer.PREFACE.length() + 1];
+                new DataInputStream(in).readFully(preface); // The line, up to the blank one
+                Multiplexer.accept(socket, in, socket.getOutputStream()).serve(handler);
+            } catch (IOException ignored) {
+                // Closed by the test
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        client = Multiplexer.connect(clientSocket);
+    }
+
+    private static void echo(MuxStream stream) {
+        try {
+            InputStream in = stream.input();
+            OutputStream out = stream.output();
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+
+            stream.close();
+        } catch (IOException e) {
+            stream.reset();
+        }
+    }
+
+    private static void send(MuxStream stream, byte[] data) {
+        try {
+            stream.output().write(data);
+            stream.shutdownOutput();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns once the count has not moved for a while
+    private static void waitUntilSteady(AtomicLong count) throws InterruptedException {
+        long last = -1;
+
+        while (count.get() != last || last == 0) {
+            last = count.get();
+            Thread.sleep(200);
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,186 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// MODE=nio with a single event loop, so every connection in these tests shares one selector
+class NioServerTest {
+    private static TestServer server;
+    private static byte[] content;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        content = new byte[300 * 1024]; // Several socket buffers, so sends go through OP_WRITE
+        new Random(1).nextBytes(content);
+        new File("Files").mkdirs();
+        Files.write(new File("Files/nio-download.bin").toPath(), content);
+        Files.write(new File("Files/nio-page.html").toPath(), "<p>hello</p>".getBytes("UTF-8"));
+        server = TestServer.start("MODE=nio", "LOOPS=1");
+    }
+
+    @Test
+    void downloadsWholeFilesAndRanges() throws Exception {
+        assertArrayEquals(content, server.download("nio-download.bin"));
+        assertArrayEquals(slice(1000, 5000), server.download("nio-download.bin", 1000, 5000));
+        assertArrayEquals(slice(content.length - 10, content.length),
+                server.download("nio-download.bin", content.length - 10, 0));
+    }
+
+    @Test
+    void missingFileIsReported() {
+        assertThrows(FileNotFoundException.class, () -> server.download("nio-missing.bin"));
+    }
+
+    @Test
+    void uploadsAreStoredInFiles() throws Exception {
+        byte[] upload = new byte[200 * 1024];
+        new Random(2).nextBytes(upload);
+
+        server.upload("nio-upload.bin", upload);
+
+        assertArrayEquals(upload, Files.readAllBytes(new File("Files/nio-upload.bin").toPath()));
+        assertArrayEquals(upload, server.download("nio-upload.bin"));
+    }
+
+    @Test
+    void servesHttpGet() throws Exception {
+        String response = server.http("GET /nio-page.html HTTP/1.0\r\nHost: test\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+        assertTrue(response.endsWith("\r\n\r\n<p>hello</p>"), response);
+        assertTrue(server.http("GET /nio-missing.html HTTP/1.0\r\n\r\n").startsWith("HTTP/1.1 404 Not Found\r\n"));
+    }
+
+    // The state machine has to pick up a request line, filename and range that arrive a few
+    // bytes per read
+    @Test
+    void requestSplitAcrossReadsIsReassembled() throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream requestOut = new DataOutputStream(request);
+        requestOut.writeUTF("0\n");
+        requestOut.writeUTF("nio-download.bin");
+        byte[] head = request.toByteArray();
+
+        try (Socket socket = server.connect()) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            for (byte b : head) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(5);
+            }
+
+            assertEquals("OkToRead", in.readUTF());
+
+            ByteArrayOutputStream range = new ByteArrayOutputStream();
+            new DataOutputStream(range).writeLong(10);
+            new DataOutputStream(range).writeLong(20);
+
+            for (byte b : range.toByteArray()) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(5);
+            }
+
+            assertEquals("OkToRead", in.readUTF());
+            assertArrayEquals(slice(10, 20), TestServer.readToEnd(in));
+        }
+    }
+
+    // A client that stops halfway through its request must not hold up the loop
+    @Test
+    void stalledClientDoesNotBlockOthers() throws Exception {
+        try (Socket stalled = server.connect()) {
+            stalled.getOutputStream().write(new byte[] { 0, 2, '0' });
+            stalled.getOutputStream().flush();
+
+            assertArrayEquals(content, server.download("nio-download.bin"));
+        }
+    }
+
+    @Test
+    void servesManyConcurrentConnections() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(64);
+
+        try {
+            List<Future<byte[]>> downloads = new ArrayList<>();
+
+            for (int i = 0; i < 200; i++) {
+                int start = i * 1000;
+                downloads.add(clients.submit(() -> server.download("nio-download.bin", start, start + 1000)));
+            }
+
+            for (int i = 0; i < downloads.size(); i++) {
+                assertArrayEquals(slice(i * 1000, i * 1000 + 1000), downloads.get(i).get());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    // Chunked uploads are served by a blocking worker. The chunk request and its bytes are sent
+    // in one write, so whatever the loop read past the mode line has to reach the worker too.
+    @Test
+    void chunkedUploadIsHandedToWorkers() throws Exception {
+        byte[] upload = new byte[100 * 1024];
+        new Random(3).nextBytes(upload);
+
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("3\n");
+            out.writeUTF("nio-chunked.bin");
+            out.writeLong(upload.length);
+            assertEquals("OkToWrite", in.readUTF());
+        }
+
+        int half = upload.length / 2;
+        assertEquals("OkChunkReceived", sendChunk("nio-chunked.bin", upload, half, upload.length - half));
+        assertEquals("OkUploadComplete", sendChunk("nio-chunked.bin", upload, 0, half));
+
+        assertArrayEquals(upload, server.download("nio-chunked.bin"));
+    }
+
+    private static String sendChunk(String name, byte[] upload, int offset, int length) throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream requestOut = new DataOutputStream(request);
+        requestOut.writeUTF("4\n");
+        requestOut.writeUTF(name);
+        requestOut.writeLong(offset);
+        requestOut.writeLong(length);
+        requestOut.write(upload, offset, length);
+
+        try (Socket socket = server.connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            socket.getOutputStream().write(request.toByteArray());
+            assertEquals("OkToWrite", in.readUTF());
+            return in.readUTF();
+        }
+    }
+
+    private static byte[] slice(int from, int to) {
+        byte[] part = new byte[to - from];
+        System.arraycopy(content, from, part, 0, part.length);
+        return part;
+    }
+}
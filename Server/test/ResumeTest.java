@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// The server side of resuming: what an interrupted chunk leaves behind, the status a client
+// resumes from, and the tail download of a partial file
+class ResumeTest {
+    private static final int SIZE = 100 * 1024;
+    private static byte[] content;
+    private static TestServer threads;
+    private static TestServer nio;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        content = new byte[SIZE];
+        new Random(5).nextBytes(content);
+        new File("Files").mkdirs();
+        Files.write(new File("Files/resume-download.bin").toPath(), content);
+        threads = TestServer.start();
+        nio = TestServer.start("MODE=nio", "LOOPS=1");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void interruptedChunkKeepsWhatArrived(String mode) throws Exception {
+        TestServer server = mode.equals("nio") ? nio : threads;
+        String name = "resume-upload-" + mode + ".bin";
+        assertEquals("OkToWrite", openUpload(server, name, SIZE));
+
+        // The connection drops 30000 bytes into a chunk of the whole file
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = chunkHeader(socket, name, 0, SIZE);
+            assertEquals("OkToWrite", new DataInputStream(socket.getInputStream()).readUTF());
+            out.write(content, 0, 30000);
+            out.flush();
+        }
+
+        long[] status = awaitReceived(server, name, 30000);
+        assertEquals(SIZE, status[0]);
+        assertEquals(1, status[2]);
+        assertEquals(30000, status[3]);
+        assertEquals(SIZE, status[4]);
+
+        assertEquals("OkUploadComplete", sendChunk(server, name, 30000, SIZE - 30000));
+        assertArrayEquals(content, server.download(name));
+
+        try (DataInputStream in = status(server, name)) {
+            assertEquals("ErrFileExists", in.readUTF());
+        }
+    }
+
+    // Received ranges are saved to Uploads/, so another server run picks the upload up
+    @Test
+    void progressOutlivesTheServer() throws Exception {
+        String name = "resume-restart.bin";
+        assertEquals("OkToWrite", openUpload(threads, name, SIZE));
+        assertEquals("OkChunkReceived", sendChunk(threads, name, 50000, 20000));
+
+        TestServer restarted = TestServer.start();
+        long[] status = awaitReceived(restarted, name, 20000);
+        assertEquals(2, status[2]);
+        assertEquals(0, status[3]);
+        assertEquals(50000, status[4]);
+        assertEquals(70000, status[5]);
+        assertEquals(SIZE, status[6]);
+    }
+
+    @Test
+    void statusOfUnknownUpload() throws Exception {
+        try (DataInputStream in = status(threads, "resume-unknown.bin")) {
+            assertEquals("ErrNoUploadSession", in.readUTF());
+        }
+    }
+
+    // What a client with a partial download asks for: everything from its length on
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void sendsTheTailOfAFile(String mode) throws Exception {
+        TestServer server = mode.equals("nio") ? nio : threads;
+        byte[] tail = new byte[SIZE - 12345];
+        System.arraycopy(content, 12345, tail, 0, tail.length);
+
+        assertArrayEquals(tail, server.download("resume-download.bin", 12345, -1));
+    }
+
+    private static String openUpload(TestServer server, String name, long size) throws IOException {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("3\n");
+            out.writeUTF(name);
+            out.writeLong(size);
+            return new DataInputStream(socket.getInputStream()).readUTF();
+        }
+    }
+
+    private static String sendChunk(TestServer server, String name, int offset, int length) throws IOException {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = chunkHeader(socket, name, offset, length);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals("OkToWrite", in.readUTF());
+            out.write(content, offset, length);
+            return in.readUTF();
+        }
+    }
+
+    private static DataOutputStream chunkHeader(Socket socket, String name, long offset, long length)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF("4\n");
+        out.writeUTF(name);
+        out.writeLong(offset);
+        out.writeLong(length);
+        return out;
+    }
+
+    // The reply of UPLOAD_STATUS. Closing it closes the connection.
+    private static DataInputStream status(TestServer server, String name) throws IOException {
+        Socket socket = server.connect();
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF("5\n");
+        out.writeUTF(name);
+        return new DataInputStream(socket.getInputStream());
+    }
+
+    // Size, received bytes, range count and the ranges, once the server has taken in the
+    // bytes of a dropped connection
+    private static long[] awaitReceived(TestServer server, String name, long received) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (true) {
+            try (DataInputStream in = status(server, name)) {
+                assertEquals("OkUploadInProgress", in.readUTF());
+                long size = in.readLong();
+                long held = in.readLong();
+                int count = in.readInt();
+                long[] status = new long[3 + 2 * count];
+                status[0] = size;
+                status[1] = held;
+                status[2] = count;
+
+                for (int i = 3; i < status.length; i++) {
+                    status[i] = in.readLong();
+                }
+
+                if (held == received || System.currentTimeMillis() > deadline) {
+                    assertEquals(received, held);
+                    return status;
+                }
+            }
+
+            Thread.sleep(20);
+        }
+    }
+}
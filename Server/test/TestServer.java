@@ -0,0 +1,190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A Server started in the test JVM on a free port, serving Files/ of the directory the tests
+// run in. Its threads keep running until the JVM exits.
+class TestServer {
+    private static final int TIMEOUT = 30000;
+
+    final int port;
+
+    private TestServer(int port) {
+        this.port = port;
+    }
+
+    // args are the KEY=VALUE options of the command line
+    static TestServer start(String... args) throws Exception {
+        ServerConfig config = Server.parseCommandLineArguments(args);
+        new File("Files").mkdirs();
+        int port;
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        Thread thread = new Thread(() -> new Server().start(port, config), "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        TestServer server = new TestServer(port);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (true) {
+            try {
+                server.connect().close();
+                return server;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(TIMEOUT);
+        return socket;
+    }
+
+    // Mode 0 for the whole file
+    byte[] download(String name) throws IOException {
+        return download(name, 0, 0);
+    }
+
+    // Mode 0 with the -s/-e fields: skip is the 0-based first byte, end the exclusive end or 0
+    byte[] download(String name, long skip, long end) throws IOException {
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("0\n");
+            out.writeUTF(name);
+            expect(in.readUTF(), "OkToRead", name);
+            out.writeLong(skip);
+            out.writeLong(end);
+
+            if (end > 0) {
+                expect(in.readUTF(), "OkToRead", name);
+            }
+
+            return readToEnd(in);
+        }
+    }
+
+    // Mode 1. Returns once the server has stored the file and closed the connection.
+    void upload(String name, byte[] content) throws IOException {
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("1\n");
+            out.writeUTF(name);
+            expect(in.readUTF(), "OkToWrite", name);
+            out.write(content);
+            socket.shutdownOutput();
+            readToEnd(in);
+        }
+    }
+
+    // Sends request as is and returns everything the server sends back before closing
+    String http(String request) throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return new String(readToEnd(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    static void send(OutputStream out, String request) throws IOException {
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    // One response, read up to the end of its body so the connection can carry the next one
+    static HttpReply readResponse(InputStream in, boolean head) throws IOException {
+        HttpReply reply = new HttpReply();
+        reply.status = readLine(in);
+
+        if (reply.status == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+
+        String line;
+
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            reply.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        String length = reply.headers.get("content-length");
+        reply.body = new byte[head || length == null ? 0 : Integer.parseInt(length)];
+        new DataInputStream(in).readFully(reply.body);
+        return reply;
+    }
+
+    static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return line.length() == 0 ? null : line.toString();
+            }
+
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.toString();
+    }
+
+    private static void expect(String status, String expected, String name) throws IOException {
+        if (status.equals("ErrFileDoesNotExist")) {
+            throw new FileNotFoundException(name);
+        }
+
+        if (!status.equals(expected)) {
+            throw new IOException("Server answered " + status + " for " + name);
+        }
+    }
+
+    static class HttpReply {
+        String status;
+        Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body;
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
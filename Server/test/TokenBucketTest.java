@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+    private static final long RATE = 1024 * 1024; // Bytes per second
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burstGoesOutWithoutWaiting() {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        assertEquals(0, bucket.charge(RATE / 10)); // 100 ms worth
+    }
+
+    @Test
+    void debtIsPaidBackAtTheRate() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.charge(RATE / 10);
+
+        long wait = bucket.charge(RATE);
+        assertTrue(wait > SECOND * 9 / 10 && wait <= SECOND, "waited " + wait);
+    }
+
+    @Test
+    void chargesQueueBehindEarlierDebt() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.charge(RATE / 10);
+
+        long first = bucket.charge(RATE / 2);
+        long second = bucket.charge(RATE / 2);
+        assertTrue(second - first > SECOND * 4 / 10, first + " then " + second);
+    }
+
+    @Test
+    void bucketIsIdleOnceRefilled() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        bucket.charge(RATE);
+
+        assertFalse(bucket.isIdle(now + SECOND / 2, SECOND / 10)); // Still paying back 0.9 s of debt
+        assertTrue(bucket.isIdle(now + 2 * SECOND, SECOND / 10));
+        assertFalse(bucket.isIdle(now + 2 * SECOND, 3 * SECOND)); // Refilled, but not for long enough
+    }
+
+    @Test
+    void headOfEveryResponseIsNeverHeldBack() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.rateLimitKBps = (int) (RATE / 1024);
+        ClientShaper shaper = new TrafficShaper(config).forClient(InetAddress.getLoopbackAddress());
+
+        assertEquals(0, shaper.charge(config.smallResponseKB * 1024L));
+        assertTrue(shaper.charge(RATE) > 0); // Past the head, into the bucket's debt
+
+        shaper.startResponse();
+        assertEquals(0, shaper.charge(1024));
+    }
+
+    @Test
+    void unshapedServerNeverWaits() throws Exception {
+        ClientShaper shaper = new TrafficShaper(new ServerConfig()).forClient(InetAddress.getLoopbackAddress());
+
+        assertEquals(0, shaper.charge(100 * RATE));
+        assertEquals(Long.MAX_VALUE, shaper.chunk(Long.MAX_VALUE));
+    }
+}
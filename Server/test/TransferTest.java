@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// File bodies are sent with transferTo in both modes. A file of a few MB takes several calls,
+// each of which may send less than asked.
+class TransferTest {
+    private static byte[] content;
+    private static TestServer threads;
+    private static TestServer nio;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(4).nextBytes(content);
+        new File("Files").mkdirs();
+        Files.write(new File("Files/transfer.bin").toPath(), content);
+        threads = TestServer.start();
+        nio = TestServer.start("MODE=nio", "LOOPS=1");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void sendsWholeFile(String mode) throws Exception {
+        assertArrayEquals(content, server(mode).download("transfer.bin"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void sendsRanges(String mode) throws Exception {
+        assertArrayEquals(slice(1, 2), server(mode).download("transfer.bin", 1, 2));
+        assertArrayEquals(slice(12345, 2000001), server(mode).download("transfer.bin", 12345, 2000001));
+        assertArrayEquals(slice(content.length - 1000, content.length),
+                server(mode).download("transfer.bin", content.length - 1000, 0));
+    }
+
+    // The HTTP body is the file's bytes, not text
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void sendsHttpBody(String mode) throws Exception {
+        try (Socket socket = server(mode).connect()) {
+            TestServer.send(socket.getOutputStream(), "GET /transfer.bin HTTP/1.0\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            TestServer.HttpReply reply = TestServer.readResponse(in, false);
+
+            assertEquals("HTTP/1.1 200 OK", reply.status);
+            assertEquals(String.valueOf(content.length), reply.header("Content-Length"));
+            assertArrayEquals(content, reply.body);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static TestServer server(String mode) {
+        return mode.equals("nio") ? nio : threads;
+    }
+
+    private static byte[] slice(int from, int to) {
+        byte[] part = new byte[to - from];
+        System.arraycopy(content, from, part, 0, part.length);
+        return part;
+    }
+}
@@ -0,0 +1,191 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class UploadCommitterTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    void publishesTheTempFile(boolean durable) throws Exception {
+        UploadCommitter committer = new UploadCommitter(durable);
+        Path temp = directory.resolve("upload.tmp");
+        Path target = directory.resolve("upload.txt");
+
+        committer.commit(written(temp, "content"), temp, target);
+
+        assertArrayEquals("content".getBytes(), Files.readAllBytes(target));
+        assertFalse(Files.exists(temp));
+        assertEquals(1, committed(committer, 1));
+    }
+
+    // An upload never replaces a file that appeared while it was being received
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    void refusesANameThatIsTaken(boolean durable) throws Exception {
+        UploadCommitter committer = new UploadCommitter(durable);
+        Path temp = directory.resolve("upload.tmp");
+        Path target = directory.resolve("taken.txt");
+        Files.write(target, "first".getBytes());
+        FileChannel data = written(temp, "second");
+
+        assertThrows(FileAlreadyExistsException.class, () -> committer.commit(data, temp, target));
+
+        assertArrayEquals("first".getBytes(), Files.readAllBytes(target));
+        assertTrue(Files.exists(temp)); // Left for the caller to remove
+        assertEquals(0, committer.commits.sum());
+    }
+
+    @Test
+    void commitsUploadsSubmittedTogether() throws Exception {
+        UploadCommitter committer = new UploadCommitter(true);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            Path temp = directory.resolve(i + ".tmp");
+            pending.add(committer.submit(written(temp, "file " + i), temp, directory.resolve(i + ".txt")));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            pending.get(i).get();
+            assertArrayEquals(("file " + i).getBytes(), Files.readAllBytes(directory.resolve(i + ".txt")));
+        }
+
+        assertEquals(20, committed(committer, 20));
+        assertTrue(committer.batches.sum() >= 1 && committer.batches.sum() <= 20);
+    }
+
+    // Legacy WRITE temp files cannot be resumed after a crash. Chunked session files can.
+    @Test
+    void startupRemovesOnlyLegacyLeftovers() throws Exception {
+        IncomingUpload crashed = new IncomingUpload("crashed.bin");
+        crashed.channel.close();
+        Path session = Paths.get(UploadSession.UPLOAD_DIRECTORY, "leftover-session.bin.progress");
+        Files.write(session, new byte[0]);
+
+        IncomingUpload.removeLeftovers();
+
+        assertFalse(Files.exists(crashed.temp));
+        assertTrue(Files.exists(session));
+        Files.delete(session);
+    }
+
+    @Test
+    void abortRemovesTheTempFile() throws Exception {
+        IncomingUpload upload = new IncomingUpload("aborted.bin");
+        upload.abort();
+
+        assertFalse(Files.exists(upload.temp));
+    }
+
+    // A legacy WRITE is not visible in Files/ until the client has sent all of it
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void legacyWriteAppearsWhole(String mode) throws Exception {
+        TestServer server = TestServer.start("MODE=" + mode);
+        File target = new File("Files/commit-legacy-" + mode + ".bin");
+
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("1\n");
+            out.writeUTF(target.getName());
+            assertEquals("OkToWrite", in.readUTF());
+            out.write(new byte[100000]);
+            out.flush();
+            Thread.sleep(200);
+
+            assertFalse(target.exists());
+
+            socket.shutdownOutput();
+            TestServer.readToEnd(in);
+        }
+
+        assertEquals(100000, target.length());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "threads", "nio" })
+    void chunkedUploadIsVerifiedAgainstItsHash(String mode) throws Exception {
+        TestServer server = TestServer.start("MODE=" + mode, "FSYNC=group");
+        String name = "commit-verified-" + mode + ".txt";
+        String wrongHash = hash("other content");
+
+        assertEquals("ErrChecksumMismatch", upload(server, name, "uploaded", wrongHash));
+        assertFalse(new File("Files/" + name).exists());
+
+        // The failed upload is dropped, so the client can send it again
+        assertEquals("OkUploadComplete", upload(server, name, "uploaded", hash("uploaded")));
+        assertArrayEquals("uploaded".getBytes(), Files.readAllBytes(new File("Files/" + name).toPath()));
+    }
+
+    // OPEN_UPLOAD with a hash, then the whole file as one chunk
+    private static String upload(TestServer server, String name, String content, String hash) throws Exception {
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("3h\n");
+            out.writeUTF(name);
+            out.writeLong(content.length());
+            out.writeUTF(hash);
+            assertEquals("OkToWrite", new DataInputStream(socket.getInputStream()).readUTF());
+        }
+
+        try (Socket socket = server.connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("4\n");
+            out.writeUTF(name);
+            out.writeLong(0);
+            out.writeLong(content.length());
+            assertEquals("OkToWrite", in.readUTF());
+            out.write(content.getBytes());
+            return in.readUTF();
+        }
+    }
+
+    // The counters are updated just after the uploads of a batch are released
+    private static long committed(UploadCommitter committer, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (committer.commits.sum() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        return committer.commits.sum();
+    }
+
+    private String hash(String content) throws Exception {
+        Path file = directory.resolve("hashed");
+        Files.write(file, content.getBytes());
+        return Manifest.sha256(file.toFile());
+    }
+
+    private static FileChannel written(Path path, String content) throws Exception {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(content.getBytes()));
+        return channel;
+    }
+}
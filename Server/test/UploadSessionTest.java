@@ -0,0 +1,188 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class UploadSessionTest {
+    // FSYNC=off
+    private static final UploadCommitter COMMITTER = new UploadCommitter(false);
+
+    private UploadSession session;
+
+    @AfterEach
+    void removeSession() {
+        if (session != null) {
+            session.abort();
+        }
+    }
+
+    @Test
+    void adjacentAndOverlappingRangesMerge() throws Exception {
+        session = UploadSession.create("merge.bin", 100, null, COMMITTER);
+
+        session.markReceived(0, 10);
+        session.markReceived(20, 30);
+        session.markReceived(10, 20); // Fills the gap exactly
+        session.markReceived(25, 50); // Overlaps the end
+        session.markReceived(45, 60);
+
+        assertEquals(60, session.receivedBytes());
+        assertRanges(session.missingRanges(), new long[] { 60, 100 });
+    }
+
+    @Test
+    void rangeCoveringSeveralOthersReplacesThem() throws Exception {
+        session = UploadSession.create("cover.bin", 100, null, COMMITTER);
+
+        session.markReceived(10, 20);
+        session.markReceived(30, 40);
+        session.markReceived(50, 60);
+        session.markReceived(5, 55);
+
+        assertEquals(55, session.receivedBytes());
+        assertRanges(session.missingRanges(), new long[] { 0, 5 }, new long[] { 60, 100 });
+    }
+
+    @Test
+    void missingRangesAreTheGaps() throws Exception {
+        session = UploadSession.create("gaps.bin", 100, null, COMMITTER);
+
+        assertRanges(session.missingRanges(), new long[] { 0, 100 });
+
+        session.markReceived(10, 20);
+        session.markReceived(50, 100);
+
+        assertRanges(session.missingRanges(), new long[] { 0, 10 }, new long[] { 20, 50 });
+    }
+
+    @Test
+    void onlyTheCompletingChunkReportsCompletion() throws Exception {
+        session = UploadSession.create("complete.bin", 30, null, COMMITTER);
+
+        assertFalse(session.markReceived(10, 30));
+        assertFalse(session.isComplete());
+        assertTrue(session.markReceived(0, 10));
+        assertTrue(session.isComplete());
+        assertFalse(session.markReceived(0, 30)); // A retried chunk
+        assertTrue(session.missingRanges().isEmpty());
+    }
+
+    @Test
+    void emptyUploadIsCompleteAtOnce() throws Exception {
+        session = UploadSession.create("empty.bin", 0, null, COMMITTER);
+
+        assertTrue(session.isComplete());
+        assertTrue(session.missingRanges().isEmpty());
+    }
+
+    @Test
+    void progressSurvivesARestart() throws Exception {
+        session = UploadSession.create("restart.bin", 100, "ab12", COMMITTER);
+        session.write(ByteBuffer.wrap(new byte[20]), 40);
+        session.markReceived(40, 60);
+        session.saveProgress();
+        session = null; // As if the server stopped
+
+        session = UploadSession.recover("restart.bin", COMMITTER);
+
+        assertEquals(100, session.totalSize);
+        assertTrue(session.matches(100, "AB12"));
+        assertFalse(session.matches(100, "cd34"));
+        assertRanges(session.missingRanges(), new long[] { 0, 40 }, new long[] { 60, 100 });
+    }
+
+    @Test
+    void progressIsOnlyFlushedWithFsyncGroup() throws Exception {
+        session = UploadSession.create("unflushed.bin", 100, null, COMMITTER);
+        session.write(ByteBuffer.wrap(new byte[10]), 0);
+        session.markReceived(0, 10);
+        session.saveProgress();
+
+        assertEquals(0, COMMITTER.progressFlushes.sum());
+
+        UploadCommitter durable = new UploadCommitter(true);
+        session.abort();
+        session = UploadSession.create("flushed.bin", 100, null, durable);
+        session.write(ByteBuffer.wrap(new byte[10]), 0);
+        session.markReceived(0, 10);
+        session.saveProgress();
+
+        assertEquals(2, durable.progressFlushes.sum()); // Once more when it was created
+    }
+
+    // Chunks saved together never need more flushes than saves, and the last save has every
+    // chunk in it
+    @Test
+    void concurrentSavesShareFlushes() throws Exception {
+        UploadCommitter durable = new UploadCommitter(true);
+        session = UploadSession.create("shared.bin", 16 * 1000, null, durable);
+        UploadSession shared = session;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 16; i++) {
+            long position = i * 1000L;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    shared.write(ByteBuffer.wrap(new byte[1000]), position);
+                    shared.markReceived(position, position + 1000);
+                    shared.saveProgress();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(durable.progressFlushes.sum() <= 17, "flushes " + durable.progressFlushes.sum());
+
+        session.saveProgress();
+        UploadSession recovered = UploadSession.recover("shared.bin", COMMITTER);
+        assertTrue(recovered.missingRanges().isEmpty());
+        recovered.abort();
+    }
+
+    @Test
+    void verifyChecksTheDeclaredHash() throws Exception {
+        byte[] content = "eleven byte".getBytes(StandardCharsets.US_ASCII);
+        Path expected = Files.createTempFile("upload", ".bin");
+        Files.write(expected, content);
+        String hash = Manifest.sha256(expected.toFile());
+        Files.delete(expected);
+
+        session = UploadSession.create("verify.bin", content.length, hash, COMMITTER);
+        session.write(ByteBuffer.wrap(content), 0);
+        assertNull(session.verify());
+
+        session.write(ByteBuffer.wrap(new byte[] { 'E' }), 0);
+        assertEquals("ErrChecksumMismatch", session.verify());
+    }
+
+    private static void assertRanges(List<long[]> ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.size());
+
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+}
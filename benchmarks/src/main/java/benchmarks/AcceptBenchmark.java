@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Connections accepted and served per second. Each operation connects, makes a SIZE request
+// (the smallest complete exchange) and closes, so the rate is bounded by accept and
+// connection setup rather than by transfer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(4)
+public class AcceptBenchmark {
+    @Param({ "threads", "nio" })
+    public String mode;
+
+    private ServerProcess server;
+    private String filename;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = ServerProcess.start(new long[] { 1024 }, "MODE=" + mode);
+        filename = ServerProcess.fixtureName(1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public long connect() throws IOException {
+        return ServerProcess.size(filename);
+    }
+}
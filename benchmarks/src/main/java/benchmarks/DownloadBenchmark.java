@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole-file READs (processClientDownload, or NioConnection in nio mode) on a fresh
+// connection each, as the Client makes them. bufferSize is the client's read buffer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({ "threads", "nio" })
+    public String mode;
+
+    @Param({ "65536", "1048576", "16777216" })
+    public long fileSize;
+
+    private ServerProcess server;
+    private String filename;
+
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        @Param({ "8192", "65536", "1048576" })
+        public int bufferSize;
+
+        byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void allocate() {
+            bytes = new byte[bufferSize];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = ServerProcess.start(new long[] { fileSize }, "MODE=" + mode);
+        filename = ServerProcess.fixtureName(fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public long download(ReadBuffer buffer, Transferred transferred) throws IOException {
+        long received = ServerProcess.download(filename, buffer.bytes);
+
+        if (received != fileSize) {
+            throw new IOException("Received " + received + " of " + fileSize + " bytes");
+        }
+
+        transferred.bytes += received;
+        return received;
+    }
+}
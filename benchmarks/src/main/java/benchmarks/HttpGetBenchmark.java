@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latency of GETs for small files over a persistent connection, sampled so the results
+// carry percentiles. The file is served from the server's memory cache after the first hit.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class HttpGetBenchmark {
+    @Param({ "threads", "nio" })
+    public String mode;
+
+    @Param({ "1024", "16384" })
+    public long fileSize;
+
+    private ServerProcess server;
+    private byte[] request;
+
+    @State(Scope.Thread)
+    public static class Connection {
+        Socket socket;
+        OutputStream out;
+        DataInputStream in;
+        byte[] body = new byte[64 * 1024];
+
+        void open() throws IOException {
+            socket = ServerProcess.connect();
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        // Keep the connection for the whole run instead of reconnecting every 100 requests
+        server = ServerProcess.start(new long[] { fileSize }, "MODE=" + mode, "MAX_KEEP_ALIVE_REQUESTS=1000000000",
+                "KEEP_ALIVE_TIMEOUT=600000");
+        request = ("GET /" + ServerProcess.fixtureName(fileSize) + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public long get(Connection connection) throws IOException {
+        if (connection.socket == null) {
+            connection.open();
+        }
+
+        connection.out.write(request);
+        connection.out.flush();
+
+        String status = readLine(connection.in);
+
+        if (!status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response " + status);
+        }
+
+        long length = -1;
+        boolean close = false;
+        String header;
+
+        while (!(header = readLine(connection.in)).isEmpty()) {
+            String lower = header.toLowerCase();
+
+            if (lower.startsWith("content-length:")) {
+                length = Long.parseLong(header.substring(15).trim());
+            } else if (lower.equals("connection: close")) {
+                close = true;
+            }
+        }
+
+        for (long left = length; left > 0;) {
+            int read = connection.in.read(connection.body, 0, (int) Math.min(connection.body.length, left));
+
+            if (read < 0) {
+                throw new IOException("Connection closed mid-body");
+            }
+
+            left -= read;
+        }
+
+        if (close) {
+            connection.close();
+        }
+
+        return length;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed mid-response");
+            }
+
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+
+        return line.toString();
+    }
+}
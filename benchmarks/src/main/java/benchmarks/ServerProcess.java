@@ -0,0 +1,212 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs the Server in its own JVM on loopback, serving generated fixture files from a
+// temporary working directory so benchmarks never touch the real Server/Files/. Also holds
+// the client side of the custom protocol the benchmarks speak.
+final class ServerProcess implements AutoCloseable {
+    // Port.port. The server always listens there.
+    static final int PORT = 2296;
+    private static final long STARTUP_TIMEOUT_MILLIS = 20_000;
+
+    private final Process process;
+    private final Path directory;
+
+    private ServerProcess(Process process, Path directory) {
+        this.process = process;
+        this.directory = directory;
+    }
+
+    // Generates a fixture of each size and starts the server with the given KEY=VALUE options
+    static ServerProcess start(long[] fixtureSizes, String... options) throws IOException, InterruptedException {
+        try (ServerSocket probe = new ServerSocket(PORT)) {
+            // Free
+        } catch (IOException e) {
+            throw new IllegalStateException("Port " + PORT + " is in use. Stop the running Server first.", e);
+        }
+
+        Path directory = Files.createTempDirectory("clientserver-bench");
+        Path files = Files.createDirectory(directory.resolve("Files"));
+        Random random = new Random(42);
+
+        for (long size : fixtureSizes) {
+            byte[] content = new byte[(int) size];
+            random.nextBytes(content);
+            Files.write(files.resolve(fixtureName(size)), content);
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path")); // The shaded jar carries the Server classes
+        command.add("Server");
+
+        for (String option : options) {
+            command.add(option);
+        }
+
+        Process process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        ServerProcess server = new ServerProcess(process, directory);
+        server.awaitReady(fixtureName(fixtureSizes[0]));
+        return server;
+    }
+
+    static String fixtureName(long size) {
+        return "fixture-" + size + ".bin";
+    }
+
+    Path files() {
+        return directory.resolve("Files");
+    }
+
+    static Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", PORT);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    // READ of a whole file. Returns the number of bytes received.
+    static long download(String filename, byte[] buffer) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            InputStream raw = socket.getInputStream();
+            DataInputStream in = new DataInputStream(raw);
+
+            out.writeUTF("0\n");
+            out.writeUTF(filename);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+
+            out.writeLong(0); // First byte
+            out.writeLong(0); // Whole file
+            out.flush();
+
+            long received = 0;
+            int read;
+
+            while ((read = raw.read(buffer)) > 0) {
+                received += read;
+            }
+
+            return received;
+        }
+    }
+
+    // Legacy WRITE: the file ends when the client shuts down its output. Returns once the
+    // server has stored everything and closed the connection.
+    static void upload(String filename, byte[] content) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("1\n");
+            out.writeUTF(filename);
+            out.flush();
+            expect(in.readUTF(), "OkToWrite");
+
+            OutputStream raw = socket.getOutputStream();
+            raw.write(content);
+            socket.shutdownOutput();
+
+            while (in.read() >= 0) {
+                // Wait for the server to close
+            }
+        }
+    }
+
+    // SIZE: the smallest complete exchange of the custom protocol
+    static long size(String filename) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("2\n");
+            out.writeUTF(filename);
+            out.flush();
+            expect(in.readUTF(), "OkToRead");
+            return in.readLong();
+        }
+    }
+
+    private static void expect(String status, String expected) throws IOException {
+        if (!status.equals(expected)) {
+            throw new IOException("Server replied " + status);
+        }
+    }
+
+    private void awaitReady(String filename) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+
+        while (true) {
+            if (!process.isAlive()) {
+                throw new IOException("Server exited with status " + process.exitValue());
+            }
+
+            try {
+                size(filename);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    close();
+                    throw new IOException("Server did not start within " + STARTUP_TIMEOUT_MILLIS + " ms", e);
+                }
+
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Removes files uploaded by a benchmark so the next iteration starts from the fixtures only
+    void deleteUploads(String prefix) throws IOException {
+        List<Path> uploads;
+
+        try (Stream<Path> paths = Files.list(files())) {
+            uploads = paths.filter(path -> path.getFileName().toString().startsWith(prefix))
+                    .collect(Collectors.toList());
+        }
+
+        for (Path upload : uploads) {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        process.destroy();
+
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Path> paths;
+
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()); // Children first
+        }
+
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
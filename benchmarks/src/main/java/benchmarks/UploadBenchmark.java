@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Legacy WRITE uploads (processClientUpload, or NioConnection in nio mode). Each operation
+// stores a new file, measured until the server has written it and closed the connection.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class UploadBenchmark {
+    private static final String PREFIX = "upload-";
+
+    @Param({ "threads", "nio" })
+    public String mode;
+
+    @Param({ "65536", "1048576", "16777216" })
+    public int fileSize;
+
+    private ServerProcess server;
+    private byte[] content;
+    private final AtomicLong uploads = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = ServerProcess.start(new long[] { 1 }, "MODE=" + mode);
+        content = new byte[fileSize];
+        new Random(7).nextBytes(content);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteUploads() throws IOException {
+        server.deleteUploads(PREFIX);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public void upload(Transferred transferred) throws IOException {
+        ServerProcess.upload(PREFIX + uploads.incrementAndGet(), content);
+        transferred.bytes += content.length;
+    }
+}